@@ -0,0 +1,101 @@
+package se.cqst.sleeper.benchmarks;
+
+import java.util.Random;
+
+/**
+ * <p>Generates realistic, reproducible input for the benchmarks: HTML pages and mail bodies made of English-like
+ * words, markup and script, that never contain the key phrase {@link #KEYPHRASE} unless it is put there.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+final class Corpus {
+
+	public static final String KEYPHRASE = "Sleeper wake up now";
+
+	/** Size of a typical mail body */
+	public static final int MAIL = 2 * 1024;
+	/** Size of a typical web page */
+	public static final int PAGE = 64 * 1024;
+	/** Size of a large web page */
+	public static final int LARGE_PAGE = 2 * 1024 * 1024;
+
+	private static final String[] WORDS = { "the", "of", "and", "to", "in", "is", "you", "that", "it", "he", "was",
+			"for", "on", "are", "as", "with", "his", "they", "at", "be", "this", "have", "from", "or", "one", "had",
+			"by", "word", "but", "not", "what", "all", "were", "we", "when", "your", "can", "said", "there", "use",
+			"an", "each", "which", "she", "do", "how", "their", "if", "will", "up", "other", "about", "out", "many",
+			"then", "them", "these", "so", "some", "her", "would", "make", "like", "him", "into", "time", "has",
+			"look", "two", "more", "write", "go", "see", "number", "no", "way", "could", "people", "my", "than",
+			"first", "water", "been", "call", "who", "oil", "its", "now", "find", "long", "down", "day", "did",
+			"get", "come", "made", "may", "part", "Sleeper", "wake", "Stockholm", "sm\u00f6rg\u00e5s" };
+
+	private Corpus()
+	{ }
+
+	/**
+	 * Returns a mail body of about <code>size</code> characters
+	 */
+	static String mail(int size, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder text = new StringBuilder(size + 64);
+		while(text.length() < size)
+		{
+			sentence(text, random);
+			if(random.nextInt(6) == 0)
+				text.append("\r\n\r\n");
+		}
+		text.setLength(size);
+		return text.toString();
+	}
+
+	/**
+	 * Returns an HTML page of about <code>size</code> characters
+	 */
+	static String page(int size, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder html = new StringBuilder(size + 256);
+		html.append("<!DOCTYPE html>\n<html lang=\"en\"><head><meta charset=\"utf-8\"><title>Benchmark</title>\n")
+				.append("<style>body{font-family:sans-serif;margin:0}.nav a{color:#336}</style>\n")
+				.append("<script>window.dataLayer=window.dataLayer||[];function gtag(){dataLayer.push(arguments);}</script>\n")
+				.append("</head><body>\n");
+		while(html.length() < size - 32)
+		{
+			switch(random.nextInt(4))
+			{
+			case 0:
+				html.append("<div class=\"nav\"><a href=\"/page/").append(random.nextInt(10000)).append("\">");
+				sentence(html, random);
+				html.append("</a></div>\n");
+				break;
+			case 1:
+				html.append("<script>var config={\"id\":").append(random.nextInt()).append(",\"enabled\":true};</script>\n");
+				break;
+			default:
+				html.append("<p>");
+				for(int i = random.nextInt(5) + 1; i > 0; i--)
+					sentence(html, random);
+				html.append("</p>\n");
+				break;
+			}
+		}
+		html.append("</body></html>\n");
+		return html.toString();
+	}
+
+	private static void sentence(StringBuilder text, Random random)
+	{
+		int words = random.nextInt(12) + 4;
+		for(int i = 0; i < words; i++)
+		{
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if(i == 0)
+				text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+			else
+				text.append(' ').append(word);
+		}
+		text.append(". ");
+	}
+
+}
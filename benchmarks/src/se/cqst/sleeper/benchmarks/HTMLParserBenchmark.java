@@ -0,0 +1,85 @@
+package se.cqst.sleeper.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cqst.sleeper.parsers.HTMLParser;
+
+/**
+ * <p>Benchmarks {@link HTMLParser}, over all the text of a page and within <code>html_select=.nav</code>, over the
+ * same pages as {@link PlainTextParserBenchmark}, which do not contain the key phrase. Compare with the results of
+ * that benchmark for the cost of tokenizing the HTML.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTMLParserBenchmark {
+
+	@Param({ "page", "large" })
+	public String input;
+
+	@Param({ "", ".nav" })
+	public String select;
+
+	private HTMLParser parser;
+	private String text;
+	private ByteBuffer bytes;
+
+	@Setup
+	public void setup()
+	{
+		Output.silence();
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		if(!select.isEmpty())
+			arguments.put("html_select", select);
+		parser = new HTMLParser(arguments);
+
+		text = input.equals("page") ? Corpus.page(Corpus.PAGE, 2) : Corpus.page(Corpus.LARGE_PAGE, 3);
+		if(text.contains(Corpus.KEYPHRASE))
+			throw new IllegalStateException("The generated input contains the key phrase");
+		byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+		bytes = ByteBuffer.allocateDirect(encoded.length);
+		bytes.put(encoded).flip();
+	}
+
+	@Benchmark
+	public boolean string()
+	{
+		return parser.phraseExists(Corpus.KEYPHRASE, text);
+	}
+
+	@Benchmark
+	public boolean reader() throws IOException
+	{
+		return parser.phraseExists(Corpus.KEYPHRASE, new StringReader(text));
+	}
+
+	@Benchmark
+	public boolean byteBuffer()
+	{
+		return parser.phraseExists(Corpus.KEYPHRASE, bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,71 @@
+package se.cqst.sleeper.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cqst.sleeper.providers.NoProvider;
+import se.cqst.sleeper.providers.Provider;
+import se.cqst.sleeper.senders.ConsoleSender;
+
+/**
+ * <p>Benchmarks the cost of a log line: <code>Provider.getDate()</code>, <code>Provider.print()</code> as seen
+ * by the polling thread (the line is only queued), and the full cost of a line including formatting and writing
+ * it, measured by queueing a batch of lines and waiting for them to be written. Output goes to a null stream.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggingBenchmark {
+
+	public static final int BATCH = 1000;
+	public static final String LINE = "Verbose: Keyphrase was not found";
+
+	private Provider provider;
+
+	@Setup
+	public void setup()
+	{
+		Output.silence();
+		provider = new NoProvider(new HashMap<String, String>());
+	}
+
+	@Benchmark
+	public String getDate()
+	{
+		return provider.getDate();
+	}
+
+	@Benchmark
+	public void print()
+	{
+		provider.print(LINE);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void printWritten()
+	{
+		for(int i = 0; i < BATCH; i++)
+			provider.print(LINE);
+		ConsoleSender.flush();
+	}
+
+}
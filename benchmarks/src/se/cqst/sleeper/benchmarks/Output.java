@@ -0,0 +1,36 @@
+package se.cqst.sleeper.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * <p>Sends <code>System.out</code> of the benchmark JVM to a null stream, so that lines logged by the code under
+ * test are not written to the console while it is measured. Must be called before the <code>ConsoleSender</code>
+ * class is loaded, since its log writes to the <code>System.out</code> it finds then.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class Output {
+
+	private static final PrintStream NULL = new PrintStream(new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{ }
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{ }
+	});
+
+	private Output()
+	{ }
+
+	public static synchronized void silence()
+	{
+		if(System.out != NULL)
+			System.setOut(NULL);
+	}
+
+}
@@ -0,0 +1,97 @@
+package se.cqst.sleeper.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cqst.sleeper.parsers.PlainTextParser;
+
+/**
+ * <p>Benchmarks {@link PlainTextParser}, case sensitive and with <code>ptp_ci</code>, over a mail body, a typical
+ * page and a large page that do not contain the key phrase, so that the whole input is searched. The input is
+ * given as a <code>String</code> (GUMProvider), a <code>Reader</code> (HTTPProvider with <code>http_hash=false</code>)
+ * and a direct <code>ByteBuffer</code> in UTF-8 (HTTPProvider).</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlainTextParserBenchmark {
+
+	@Param({ "mail", "page", "large" })
+	public String input;
+
+	@Param({ "false", "true" })
+	public boolean ci;
+
+	private PlainTextParser parser;
+	private String text;
+	private ByteBuffer bytes;
+
+	@Setup
+	public void setup()
+	{
+		Output.silence();
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		if(ci)
+			arguments.put("ptp_ci", "true");
+		parser = new PlainTextParser(arguments);
+
+		switch(input)
+		{
+		case "mail":
+			text = Corpus.mail(Corpus.MAIL, 1);
+			break;
+		case "page":
+			text = Corpus.page(Corpus.PAGE, 2);
+			break;
+		default:
+			text = Corpus.page(Corpus.LARGE_PAGE, 3);
+			break;
+		}
+		if(text.toLowerCase().contains(Corpus.KEYPHRASE.toLowerCase()))
+			throw new IllegalStateException("The generated input contains the key phrase");
+		byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+		bytes = ByteBuffer.allocateDirect(encoded.length);
+		bytes.put(encoded).flip();
+	}
+
+	@Benchmark
+	public boolean string()
+	{
+		return parser.phraseExists(Corpus.KEYPHRASE, text);
+	}
+
+	@Benchmark
+	public boolean reader() throws IOException
+	{
+		return parser.phraseExists(Corpus.KEYPHRASE, new StringReader(text));
+	}
+
+	@Benchmark
+	public boolean byteBuffer()
+	{
+		return parser.phraseExists(Corpus.KEYPHRASE, bytes, StandardCharsets.UTF_8);
+	}
+
+}
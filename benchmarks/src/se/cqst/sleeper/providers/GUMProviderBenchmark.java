@@ -0,0 +1,129 @@
+package se.cqst.sleeper.providers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import se.cqst.sleeper.benchmarks.Output;
+
+/**
+ * <p>Benchmarks the GuerrillaMail side of {@link GUMProvider}: decoding a <code>get_email_list</code> response
+ * with <code>mails</code> mails into a {@link GUMProvider.GuerrillaMailboxObject}, decoding a
+ * <code>fetch_email</code> response into a mail the way <code>doFetchEmails</code> does, and
+ * {@link GUMProvider#getMd5EmailAddress()}, which is called on every check.</p>
+ *
+ * <p>The responses are read from direct buffers, like the pooled buffers the provider reads them into.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GUMProviderBenchmark {
+
+	@Param({ "1", "20" })
+	public int mails;
+
+	private GUMProvider provider;
+	private ObjectMapper mapper;
+	private ByteBuffer list;
+	private ByteBuffer mail;
+
+	@Setup
+	public void setup()
+	{
+		Output.silence();
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		arguments.put("keyphrase", "Sleeper wake up now");
+		arguments.put("parser", "se.cqst.sleeper.parsers.PlainTextParser");
+		provider = new GUMProvider(arguments);
+		mapper = new ObjectMapper();
+
+		StringBuilder json = new StringBuilder("{\"list\":[");
+		for(int i = 0; i < mails; i++)
+		{
+			if(i > 0)
+				json.append(',');
+			mailJson(json, i + 2, false);
+		}
+		json.append("],\"count\":\"").append(mails).append("\",\"email\":\"abcdef0123456789@guerrillamailblock.com\",")
+				.append("\"alias\":\"x1y2z3+5f\",\"ts\":1476460800,\"sid_token\":\"r9kd7s0n6q2l8v4m1b5c3x\",")
+				.append("\"stats\":{\"sequence_mail\":\"61,338,125\",\"created_addresses\":28476133,")
+				.append("\"received_emails\":\"11,218,541,020\",\"total\":\"11,157,202,895\",\"total_per_hour\":\"182374\"},")
+				.append("\"auth\":{\"success\":true,\"error_codes\":[]}}");
+		list = direct(json.toString());
+
+		StringBuilder body = new StringBuilder();
+		mailJson(body, 2, true);
+		mail = direct(body.toString());
+	}
+
+	@Benchmark
+	public GUMProvider.GuerrillaMailboxObject decodeList() throws IOException
+	{
+		return mapper.readValue(new ByteBufferBackedInputStream(list.duplicate()), GUMProvider.GuerrillaMailboxObject.class);
+	}
+
+	@Benchmark
+	public GUMProvider.GuerrillaMailboxObject.GuerrillaMailObject decodeMail() throws IOException
+	{
+		GUMProvider.GuerrillaMailboxObject.GuerrillaMailObject target = new GUMProvider.GuerrillaMailboxObject.GuerrillaMailObject();
+		ObjectReader reader = mapper.readerForUpdating(target);
+		reader.readValue(new ByteBufferBackedInputStream(mail.duplicate()));
+		return target;
+	}
+
+	@Benchmark
+	public String md5EmailAddress()
+	{
+		return provider.getMd5EmailAddress();
+	}
+
+	private static void mailJson(StringBuilder json, int id, boolean body)
+	{
+		json.append("{\"mail_id\":\"").append(id).append("\",\"mail_from\":\"sender").append(id)
+				.append("@example.com\",\"mail_subject\":\"Weekly report ").append(id)
+				.append("\",\"mail_excerpt\":\"Hello, here is the weekly report with the numbers from the last\",")
+				.append("\"mail_timestamp\":\"").append(1476460800 + id * 60).append("\",\"mail_read\":0,")
+				.append("\"mail_date\":\"16:0").append(id % 10).append(":00\",\"att\":\"0\",\"mail_size\":\"2048\"");
+		if(body)
+		{
+			json.append(",\"mail_recipient\":\"abcdef0123456789\",\"content_type\":\"text/html\",\"mail_body\":\"");
+			for(int i = 0; i < 40; i++)
+				json.append("<p>Hello, here is the weekly report with the numbers from the last week.<\\/p>\\n");
+			json.append('"');
+		}
+		json.append('}');
+	}
+
+	private static ByteBuffer direct(String text)
+	{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+}
@@ -0,0 +1,92 @@
+#!/bin/bash
+#
+# Compares the cold start of the JVM and native builds of Sleeper: wall time and peak RSS of
+# "provider=gum notify", which gets an address from GuerrillaMail, prints it and exits.
+# GuerrillaMail is the stand-in of the load harness, so the network does not add to the time.
+#
+# Build first:
+#   mvn -f sleeper install
+#   mvn -f sleeper -Pnative package      (with GraalVM as JAVA_HOME; skipped if missing)
+#   mvn -f harness clean package
+#
+# Usage: benchmarks/startup.sh [runs]
+
+set -e
+cd "$(dirname "$0")/.."
+
+RUNS=${1:-20}
+JAR=$(ls sleeper/target/sleeper-*.jar | head -n 1)
+NATIVE=sleeper/target/sleeper
+HARNESS=harness/target/harness.jar
+ARGS="provider=gum keyphrase=startup notify"
+
+if [ ! -f "$JAR" ] || [ ! -f "$HARNESS" ]; then
+	echo "Build sleeper and harness first, see the top of $0" >&2
+	exit 1
+fi
+CLASSPATH_FILE=$(mktemp)
+mvn -B -q -f sleeper dependency:build-classpath -Dmdep.outputFile="$CLASSPATH_FILE" >/dev/null
+JVM_CLASSPATH="$JAR:$(cat "$CLASSPATH_FILE")"
+rm -f "$CLASSPATH_FILE"
+
+# Start the GuerrillaMail stand-in and read its address
+STUB_OUT=$(mktemp)
+java -jar "$HARNESS" stub latency=0 > "$STUB_OUT" &
+STUB=$!
+trap 'kill $STUB 2>/dev/null; rm -f "$STUB_OUT"' EXIT
+while ! grep -q "^gumapi=" "$STUB_OUT"; do
+	sleep 0.1
+done
+GUMAPI=$(grep "^gumapi=" "$STUB_OUT")
+
+# Run a command once, and print its wall time in milliseconds
+measure_time()
+{
+	local start end
+	start=$(date +%s%N)
+	"$@" >/dev/null 2>&1 || true
+	end=$(date +%s%N)
+	echo $(( (end - start) / 1000000 ))
+}
+
+# Run a command once, and print its peak RSS in KiB. VmHWM is the high water mark, so the last value read
+# before the process exits is its peak. This is a separate run, so that polling does not add to the time.
+measure_rss()
+{
+	local pid key value unit peak=0
+	"$@" >/dev/null 2>&1 &
+	pid=$!
+	while [ -r /proc/$pid/status ]; do
+		while read -r key value unit; do
+			if [ "$key" = "VmHWM:" ] && [ "$value" -gt "$peak" ]; then
+				peak=$value
+			fi
+		done < /proc/$pid/status 2>/dev/null || true
+		sleep 0.005
+	done
+	wait $pid || true
+	echo $peak
+}
+
+# Run a command $RUNS times after one warm-up run (for the file cache), and print a summary
+run()
+{
+	local name=$1 rss
+	shift
+	measure_time "$@" >/dev/null
+	rss=$(measure_rss "$@")
+	for i in $(seq "$RUNS"); do
+		measure_time "$@"
+	done | sort -n | awk -v name="$name" -v rss="$rss" '
+		{ time[NR] = $1; sum += $1 }
+		END { printf "%-8s %4d runs   mean %6.1f ms   median %6d ms   min %6d ms   peak RSS %7.1f MiB\n",
+			name, NR, sum / NR, time[int((NR + 1) / 2)], time[1], rss / 1024 }'
+}
+
+echo "Cold start of: sleeper $ARGS $GUMAPI"
+run jvm java -cp "$JVM_CLASSPATH" se.cqst.sleeper.main.MainProgram $ARGS "$GUMAPI"
+if [ -x "$NATIVE" ]; then
+	run native "$NATIVE" $ARGS "$GUMAPI"
+else
+	echo "native   not built ($NATIVE is missing, build it with mvn -f sleeper -Pnative package)"
+fi
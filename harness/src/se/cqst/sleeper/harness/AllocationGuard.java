@@ -0,0 +1,284 @@
+package se.cqst.sleeper.harness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+
+import se.cqst.sleeper.providers.FileProvider;
+import se.cqst.sleeper.providers.HTTPProvider;
+import se.cqst.sleeper.providers.Provider;
+
+/**
+ * <p>AllocationGuard fails the build if a check that finds nothing new allocates more than it should. A watch
+ * that polls a page or file that has not changed should allocate nothing beyond its I/O, since that is what almost
+ * every check of a long-running watch does.</p>
+ *
+ * <p>The heap allocated by the checking thread is measured with
+ * <code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes</code>, averaged over <code>checks</code> checks
+ * after as many for warmup. The JDK allocates for the I/O of every check, so the same I/O is measured without a
+ * provider too, and only the difference counts. Both are measured <code>rounds</code> times, taking turns, and the
+ * least of each is used, since the JDK does not allocate exactly as much for every request.</p>
+ *
+ * <p>The paths are:</p>
+ *
+ * <ul>
+ * 	<li><b>http 304</b>: an <code>HTTPProvider</code> whose page answers <code>HTTP 304 Not Modified</code>,
+ * 		beyond the same conditional request made with a bare <code>HttpURLConnection</code>.</li>
+ * 	<li><b>http shared</b>: two <code>HTTPProvider</code>s sharing a page that is already parsed, within
+ * 		<code>http_window</code>, which makes no request at all.</li>
+ * 	<li><b>file</b>: a <code>FileProvider</code> following a file that has no new lines, beyond reading the
+ * 		attributes of the file.</li>
+ * </ul>
+ *
+ * <p>Prints one line per path and exits with status 1 if any of them allocates more than <code>budget</code>
+ * bytes per check, or 2 if allocations can not be measured on this JVM. It runs in the <code>verify</code> phase
+ * of the harness build.</p>
+ *
+ * <p>The following keys are used by AllocationGuard:</p>
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>checks</td><td>int</td><td>Checks measured per path and round (default 2000)</td></tr>
+ * 			<tr><td>rounds</td><td>int</td><td>Times each path is measured (default 5)</td></tr>
+ * 			<tr><td>budget</td><td>int</td><td>Bytes a check may allocate beyond its I/O (default 256)</td></tr>
+ * 			<tr><td>pagesize</td><td>int</td><td>Size of the page in bytes (default 65536)</td></tr>
+ * 			<tr><td>log</td><td>boolean</td><td>Show the output of the watches</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class AllocationGuard {
+
+	public static final String KEYPHRASE = "Sleeper wake up now";
+
+	private final HashMap<String, String> arguments;
+	private final int checks;
+	private final int rounds;
+	private final int budget;
+	private final int pageSize;
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	/**
+	 * Create a guard
+	 *
+	 * @param arguments the arguments
+	 * @param threadBean the bean to measure allocations with
+	 */
+	public AllocationGuard(HashMap<String, String> arguments, com.sun.management.ThreadMXBean threadBean)
+	{
+		this.arguments = arguments;
+		this.checks = getInt("checks", 2000);
+		this.rounds = Math.max(1, getInt("rounds", 5));
+		this.budget = getInt("budget", 256);
+		this.pageSize = getInt("pagesize", 64 * 1024);
+		this.threadBean = threadBean;
+	}
+
+	/**
+	 * Measure every path, and exit with status 1 if any is over budget
+	 *
+	 * @param args the arguments, as <code>key=value</code>
+	 * @throws Exception if the stand-in or the file could not be created
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		for(String argument : args)
+		{
+			String[] splitString = argument.split("=", 2);
+			arguments.put(splitString[0], (splitString.length > 1) ? splitString[1] : "true");
+		}
+
+		PrintStream report = System.out;
+		if(!Boolean.parseBoolean(arguments.get("log")))
+			System.setOut(new PrintStream(new OutputStream()
+			{
+				@Override
+				public void write(int b)
+				{ }
+
+				@Override
+				public void write(byte[] b, int off, int len)
+				{ }
+			}));
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+		{
+			report.println("Allocation guard: this JVM can not measure allocated memory per thread");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		boolean passed = new AllocationGuard(arguments, threadBean).run(report);
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Measure every path and print the result to <code>report</code>
+	 *
+	 * @param report the stream to print the result to
+	 * @return true, if every path is within the budget
+	 * @throws Exception if the stand-in or the file could not be created
+	 */
+	public boolean run(PrintStream report) throws Exception
+	{
+		boolean passed = true;
+		try(StubPageServer pages = new StubPageServer(new Content(pageSize), 2, 0, 0))
+		{
+			URL address = new URL(pages.getPageUrl(0));
+			String[] validators = getValidators(address);
+			Provider http = new HTTPProvider(watch("httpaddress", pages.getPageUrl(0)));
+			double[] notModified = measure(http::check, () -> request(address, validators));
+			http.close();
+			passed &= report(report, "http 304", notModified[0] - notModified[1], String.format(Locale.ROOT,
+					" (beyond the %.0f bytes of a bare conditional request)", notModified[1]));
+
+			HashMap<String, String> shared = watch("httpaddress", pages.getPageUrl(1));
+			shared.put("http_window", String.valueOf(Integer.MAX_VALUE));
+			Provider first = new HTTPProvider(shared);
+			Provider second = new HTTPProvider(shared);
+			second.check();
+			passed &= report(report, "http shared", measure(first::check, () -> true)[0], "");
+			first.close();
+			second.close();
+		}
+
+		Path file = Files.createTempFile("sleeper-allocation", ".log");
+		try
+		{
+			Files.write(file, "Nothing to see here\n".getBytes(StandardCharsets.UTF_8));
+			Provider tail = new FileProvider(watch("filepath", file.toString()));
+			double[] unchanged = measure(tail::check,
+					() -> Files.readAttributes(file, BasicFileAttributes.class).size() >= 0);
+			passed &= report(report, "file", unchanged[0] - unchanged[1], String.format(Locale.ROOT,
+					" (beyond the %.0f bytes of reading its attributes)", unchanged[1]));
+			tail.close();
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+		}
+		return passed;
+	}
+
+	/**
+	 * Returns the least bytes allocated per call of <code>check</code> and of <code>baseline</code> on this thread,
+	 * over every round
+	 */
+	private double[] measure(Check check, Check baseline) throws IOException
+	{
+		double[] least = { Double.MAX_VALUE, Double.MAX_VALUE };
+		for(int round = 0; round < rounds; round++)
+		{
+			least[0] = Math.min(least[0], measure(check));
+			least[1] = Math.min(least[1], measure(baseline));
+		}
+		return least;
+	}
+
+	/**
+	 * Returns the bytes allocated per call of <code>check</code> on this thread, after a warmup
+	 */
+	private double measure(Check check) throws IOException
+	{
+		for(int i = 0; i < checks; i++)
+			check.run();
+		long thread = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(thread);
+		for(int i = 0; i < checks; i++)
+			check.run();
+		long after = threadBean.getThreadAllocatedBytes(thread);
+		return (double)(after - before) / checks;
+	}
+
+	/**
+	 * Print the result of a path, and return true if it is within the budget
+	 */
+	private boolean report(PrintStream report, String path, double bytes, String detail)
+	{
+		boolean passed = bytes <= budget;
+		report.println(String.format(Locale.ROOT, "Allocation guard: %-12s %8.0f bytes per check%s, budget %d: %s",
+				path, Math.max(0, bytes), detail, budget, passed ? "ok" : "FAILED"));
+		return passed;
+	}
+
+	/**
+	 * Returns the arguments of a watch that never finds its key phrase, with <code>key</code> set to
+	 * <code>value</code>
+	 */
+	private static HashMap<String, String> watch(String key, String value)
+	{
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		arguments.put("keyphrase", KEYPHRASE);
+		arguments.put("parser", "se.cqst.sleeper.parsers.PlainTextParser");
+		arguments.put(key, value);
+		return arguments;
+	}
+
+	/**
+	 * Returns the <code>ETag</code> and <code>Last-Modified</code> of the page at <code>address</code>
+	 */
+	private static String[] getValidators(URL address) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)address.openConnection();
+		try(InputStream body = connection.getInputStream())
+		{
+			while(body.read() >= 0)
+			{ }
+		}
+		return new String[] { connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified") };
+	}
+
+	/**
+	 * Make a conditional request for the page at <code>address</code>, the way <code>HTTPProvider</code> does,
+	 * without a provider
+	 */
+	private static boolean request(URL address, String[] validators) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)address.openConnection();
+		connection.setConnectTimeout(0);
+		connection.setReadTimeout(0);
+		connection.addRequestProperty("User-Agent", HTTPProvider.USER_AGENT);
+		connection.addRequestProperty("Accept-Encoding", HTTPProvider.ACCEPT_ENCODING);
+		connection.addRequestProperty("If-None-Match", validators[0]);
+		connection.addRequestProperty("If-Modified-Since", validators[1]);
+		return connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+	}
+
+	private int getInt(String key, int defaultValue)
+	{
+		String value = arguments.get(key);
+		return (value != null) ? Integer.parseInt(value) : defaultValue;
+	}
+
+	/**
+	 * A check to measure
+	 */
+	private interface Check
+	{
+		boolean run() throws IOException;
+	}
+
+}
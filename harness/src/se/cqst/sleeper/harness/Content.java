@@ -0,0 +1,217 @@
+package se.cqst.sleeper.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * <p>The pages and mails served by the stand-ins, which never contain a key phrase until one is put there.</p>
+ *
+ * <p>By default a few pages of <code>pagesize</code> bytes and mails of about 2 KiB are generated from a fixed
+ * seed. When replaying captures, they are read from a directory instead:</p>
+ *
+ * <ul>
+ * 	<li><code>pages/*</code>: page bodies, e.g. saved with <code>curl -o</code>.</li>
+ * 	<li><code>mails/*.json</code>: <code>fetch_email</code> responses of the GuerrillaMail API, of which
+ * 		<code>mail_from</code>, <code>mail_subject</code> and <code>mail_body</code> are used.</li>
+ * 	<li><code>mails/*</code>: other files are used as mail bodies.</li>
+ * </ul>
+ *
+ * <p>Watches are assigned pages and mails round-robin, so they share the same few bodies.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+final class Content {
+
+	public static final int VARIANTS = 8;
+	public static final int MAIL_SIZE = 2 * 1024;
+
+	private static final String[] WORDS = { "the", "of", "and", "to", "in", "is", "you", "that", "it", "was", "for",
+			"on", "are", "as", "with", "they", "at", "be", "this", "have", "from", "or", "one", "had", "by", "word",
+			"but", "not", "what", "all", "were", "we", "when", "your", "can", "said", "there", "use", "an", "each",
+			"which", "do", "how", "their", "if", "will", "up", "other", "about", "out", "many", "then", "them",
+			"these", "so", "some", "would", "make", "like", "into", "time", "has", "look", "two", "more", "write",
+			"go", "see", "number", "no", "way", "could", "people", "than", "first", "water", "been", "call", "who",
+			"now", "find", "long", "down", "day", "did", "get", "come", "made", "may", "part", "Stockholm" };
+
+	private final List<byte[]> pages;
+	private final List<Mail> mails;
+
+	/**
+	 * Generate pages of <code>pageSize</code> bytes and mails
+	 *
+	 * @param pageSize the size of a page
+	 */
+	Content(int pageSize)
+	{
+		this.pages = new ArrayList<byte[]>();
+		this.mails = new ArrayList<Mail>();
+		for(int i = 0; i < VARIANTS; i++)
+		{
+			pages.add(page(pageSize, i));
+			mails.add(new Mail("newsletter" + i + "@example.com", "Newsletter " + i, text(MAIL_SIZE, i)));
+		}
+	}
+
+	/**
+	 * Read captured pages and mails from <code>directory</code>. Generated content is used for whichever of the
+	 * two is missing.
+	 *
+	 * @param pageSize the size of a generated page
+	 * @param directory the directory with the captures
+	 * @throws IOException if a capture could not be read
+	 */
+	Content(int pageSize, File directory) throws IOException
+	{
+		this(pageSize);
+		List<byte[]> capturedPages = new ArrayList<byte[]>();
+		for(File file : list(new File(directory, "pages")))
+			capturedPages.add(Files.readAllBytes(file.toPath()));
+
+		List<Mail> capturedMails = new ArrayList<Mail>();
+		ObjectMapper mapper = new ObjectMapper();
+		for(File file : list(new File(directory, "mails")))
+		{
+			if(file.getName().endsWith(".json"))
+			{
+				JsonNode mail = mapper.readTree(file);
+				capturedMails.add(new Mail(mail.path("mail_from").asText("capture@example.com"),
+						mail.path("mail_subject").asText(file.getName()), mail.path("mail_body").asText("")));
+			}
+			else
+				capturedMails.add(new Mail("capture@example.com", file.getName(),
+						new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+		}
+
+		if(capturedPages.isEmpty() && capturedMails.isEmpty())
+			throw new IOException("No captures in " + directory + "/pages or " + directory + "/mails");
+		if(!capturedPages.isEmpty())
+		{
+			pages.clear();
+			pages.addAll(capturedPages);
+		}
+		if(!capturedMails.isEmpty())
+		{
+			mails.clear();
+			mails.addAll(capturedMails);
+		}
+	}
+
+	/**
+	 * Returns the page of watch <code>index</code>
+	 */
+	byte[] getPage(int index)
+	{
+		return pages.get(index % pages.size());
+	}
+
+	/**
+	 * Returns the <code>n</code>th filler mail of a mailbox
+	 */
+	Mail getMail(int n)
+	{
+		return mails.get(n % mails.size());
+	}
+
+	/**
+	 * Returns <code>page</code> with <code>text</code> in a paragraph at the end of the body
+	 */
+	static byte[] insert(byte[] page, String text)
+	{
+		byte[] paragraph = ("<p>" + text + "</p>\n").getBytes(StandardCharsets.UTF_8);
+		int at = new String(page, StandardCharsets.ISO_8859_1).lastIndexOf("</body>");
+		if(at < 0)
+			at = page.length;
+		byte[] result = new byte[page.length + paragraph.length];
+		System.arraycopy(page, 0, result, 0, at);
+		System.arraycopy(paragraph, 0, result, at, paragraph.length);
+		System.arraycopy(page, at, result, at + paragraph.length, page.length - at);
+		return result;
+	}
+
+	public int	getPages()	{	return pages.size();	}
+	public int	getMails()	{	return mails.size();	}
+
+	private static List<File> list(File directory)
+	{
+		File[] files = directory.listFiles(File::isFile);
+		if(files == null)
+			return new ArrayList<File>();
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+	private static byte[] page(int size, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder html = new StringBuilder(size + 256);
+		html.append("<!DOCTYPE html>\n<html lang=\"en\"><head><meta charset=\"utf-8\"><title>Harness</title>\n")
+				.append("<script>var config={poll:300,items:[1,2,3]};</script></head>\n<body>\n");
+		while(html.length() < size - 32)
+		{
+			html.append("<div class=\"item\"><h2>");
+			sentence(html, random);
+			html.append("</h2><p>");
+			for(int i = random.nextInt(4); i >= 0; i--)
+				sentence(html, random);
+			html.append("</p></div>\n");
+		}
+		html.append("</body></html>\n");
+		return html.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String text(int size, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder text = new StringBuilder(size + 64);
+		while(text.length() < size)
+		{
+			sentence(text, random);
+			if(random.nextInt(6) == 0)
+				text.append("\r\n\r\n");
+		}
+		text.setLength(size);
+		return text.toString();
+	}
+
+	private static void sentence(StringBuilder text, Random random)
+	{
+		int words = 4 + random.nextInt(12);
+		for(int i = 0; i < words; i++)
+		{
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if(i == 0)
+				text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+			else
+				text.append(' ').append(word);
+		}
+		text.append(". ");
+	}
+
+	/**
+	 * A mail served by the GuerrillaMail stand-in
+	 */
+	static final class Mail
+	{
+		final String from;
+		final String subject;
+		final String body;
+
+		Mail(String from, String subject, String body)
+		{
+			this.from = from;
+			this.subject = subject;
+			this.body = body;
+		}
+	}
+
+}
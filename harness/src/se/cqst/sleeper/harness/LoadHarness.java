@@ -0,0 +1,449 @@
+package se.cqst.sleeper.harness;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import se.cqst.sleeper.buffers.BufferPool;
+import se.cqst.sleeper.metrics.Histogram;
+import se.cqst.sleeper.metrics.Metrics;
+import se.cqst.sleeper.providers.GUMProvider;
+import se.cqst.sleeper.providers.HTTPProvider;
+import se.cqst.sleeper.providers.Provider;
+
+/**
+ * <p>LoadHarness drives many watches against local stand-ins for GuerrillaMail ({@link StubGuerrillaMail}) and
+ * web pages ({@link StubPageServer}), and reports:</p>
+ *
+ * <ul>
+ * 	<li>Throughput: checks completed per second, against the rate the poll interval asks for.</li>
+ * 	<li>Detection latency: the time from a trigger being put in a mailbox or page until a check finds it.</li>
+ * 	<li>Heap per watch: retained heap after creating the watches, and after polling them.</li>
+ * 	<li>CPU per poll: CPU time of the polling thread, and of the whole process (including the stand-ins).</li>
+ * </ul>
+ *
+ * <p>Each watch is a <code>Provider</code>, checked every <code>interval</code> milliseconds on a pool of
+ * <code>threads</code> threads, like <code>SleeperTask</code> would check it. Triggers are put in a random watch at
+ * <code>triggers</code> per second and removed again when they have been found. Only the measurement window after
+ * <code>warmup</code> is reported; triggers fired in it are given time to be found after it.</p>
+ *
+ * <p>The following keys are used by LoadHarness. Any other argument (e.g. <code>parser</code>, <code>http_hash</code>
+ * or <code>metricsport</code>) is passed on to every watch:</p>
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>watches</td><td>int</td><td>Number of watches (default 100)</td></tr>
+ * 			<tr><td>provider</td><td>http, gum, mixed</td><td>Provider of the watches (default http)</td></tr>
+ * 			<tr><td>interval</td><td>int</td><td>Poll interval of a watch in milliseconds (default 1000)</td></tr>
+ * 			<tr><td>threads</td><td>int</td><td>Polling threads (default 4)</td></tr>
+ * 			<tr><td>warmup</td><td>int</td><td>Seconds before measuring (default 10)</td></tr>
+ * 			<tr><td>duration</td><td>int</td><td>Seconds to measure (default 60)</td></tr>
+ * 			<tr><td>triggers</td><td>double</td><td>Triggers per second over all watches (default 1)</td></tr>
+ * 			<tr><td>latency</td><td>int</td><td>Delay of every stand-in response in milliseconds (default 20)</td></tr>
+ * 			<tr><td>jitter</td><td>int</td><td>Maximum extra delay in milliseconds (default 0)</td></tr>
+ * 			<tr><td>pagesize</td><td>int</td><td>Size of a generated page in bytes (default 65536)</td></tr>
+ * 			<tr><td>mails</td><td>int</td><td>Mails in a new mailbox besides the welcome mail (default 3)</td></tr>
+ * 			<tr><td>captures</td><td>directory</td><td>Replay pages and mails captured in this directory</td></tr>
+ * 			<tr><td>log</td><td>boolean</td><td>Show the output of the watches</td></tr>
+ * 			<tr><td>stub</td><td>boolean</td><td>Only start the stand-ins, print their addresses as
+ * 				<code>gumapi=</code> and <code>httpaddress=</code> arguments and wait until killed</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class LoadHarness {
+
+	public static final String KEYPHRASE_FORMAT = "Sleeper wake up %05d";
+	public static final long DRAIN_MILLIS = 10000;
+
+	public static final Set<String> HARNESS_KEYS = new HashSet<String>(Arrays.asList("watches", "provider",
+			"interval", "threads", "warmup", "duration", "triggers", "latency", "jitter", "pagesize", "mails",
+			"captures", "log", "stub"));
+
+	private final HashMap<String, String> arguments;
+	private final int count;
+	private final String mode;
+	private final int interval;
+	private final int threads;
+	private final int warmup;
+	private final int duration;
+	private final double triggers;
+	private final int latency;
+	private final int jitter;
+	private final int pageSize;
+
+	private final ThreadMXBean threadBean;
+	private final LongAdder polls;
+	private final LongAdder pollCpu;
+	private final LongAdder errors;
+	private final LongAdder unexpected;
+	private final LongAdder fired;
+	private final LongAdder detected;
+	private final Histogram pollTime;
+	private final Histogram detectionLatency;
+
+	private StubPageServer pages;
+	private StubGuerrillaMail mail;
+	private Watch[] watches;
+	private volatile boolean measuring;
+	private volatile long measureStart;
+	private volatile long measureEnd;
+
+	/**
+	 * Create a harness
+	 *
+	 * @param arguments the arguments
+	 */
+	public LoadHarness(HashMap<String, String> arguments)
+	{
+		this.arguments = arguments;
+		this.count = getInt("watches", 100);
+		this.mode = arguments.getOrDefault("provider", "http");
+		this.interval = getInt("interval", 1000);
+		this.threads = getInt("threads", 4);
+		this.warmup = getInt("warmup", 10);
+		this.duration = getInt("duration", 60);
+		this.triggers = Double.parseDouble(arguments.getOrDefault("triggers", "1"));
+		this.latency = getInt("latency", 20);
+		this.jitter = getInt("jitter", 0);
+		this.pageSize = getInt("pagesize", 64 * 1024);
+
+		this.threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean.isThreadCpuTimeSupported())
+			threadBean.setThreadCpuTimeEnabled(true);
+		this.polls = new LongAdder();
+		this.pollCpu = new LongAdder();
+		this.errors = new LongAdder();
+		this.unexpected = new LongAdder();
+		this.fired = new LongAdder();
+		this.detected = new LongAdder();
+		this.pollTime = Metrics.getDefault().timer("harness_check_seconds", "Duration of a check in the harness.");
+		this.detectionLatency = Metrics.getDefault().timer("harness_detection_latency_seconds",
+				"Time from a trigger being published until a check finds it.");
+		this.measureStart = Long.MAX_VALUE;
+		this.measureEnd = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Run the harness. Output of the watches is discarded unless <code>log</code> is set.
+	 *
+	 * @param args the arguments, as <code>key=value</code>
+	 * @throws Exception if the stand-ins could not be started
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		for(String argument : args)
+		{
+			String[] splitString = argument.split("=", 2);
+			arguments.put(splitString[0], (splitString.length > 1) ? splitString[1] : "true");
+		}
+
+		PrintStream report = System.out;
+		if(!Boolean.parseBoolean(arguments.get("log")))
+			System.setOut(new PrintStream(new OutputStream()
+			{
+				@Override
+				public void write(int b)
+				{ }
+
+				@Override
+				public void write(byte[] b, int off, int len)
+				{ }
+			}));
+
+		new LoadHarness(arguments).run(report);
+		System.exit(0);
+	}
+
+	/**
+	 * Start the stand-ins, run the watches and print the report to <code>report</code>
+	 *
+	 * @param report the stream to print the report to
+	 * @throws Exception if the stand-ins could not be started
+	 */
+	public void run(PrintStream report) throws Exception
+	{
+		String captures = arguments.get("captures");
+		Content content = (captures != null) ? new Content(pageSize, new File(captures)) : new Content(pageSize);
+
+		try(StubPageServer pages = new StubPageServer(content, count, latency, jitter);
+				StubGuerrillaMail mail = new StubGuerrillaMail(content, getInt("mails", 3), latency, jitter))
+		{
+			if(Boolean.parseBoolean(arguments.get("stub")))
+			{
+				report.println("gumapi=" + mail.getApiUrl());
+				report.println("httpaddress=" + pages.getPageUrl(0));
+				report.flush();
+				Thread.sleep(Long.MAX_VALUE);
+			}
+
+			Metrics.configure(arguments);
+			BufferPool.configure(arguments);
+			this.pages = pages;
+			this.mail = mail;
+			report.println(String.format(Locale.ROOT, "Sleeper load harness: %d %s watches, interval %d ms, %d threads, "
+					+ "latency %d+%d ms, %d pages and %d mails%s", count, mode, interval, threads, latency, jitter,
+					content.getPages(), content.getMails(), (captures != null) ? " from " + captures : ""));
+
+			long baseline = getUsedHeap();
+			this.watches = new Watch[count];
+			for(int i = 0; i < count; i++)
+				watches[i] = createWatch(i);
+			long created = getUsedHeap();
+
+			ScheduledExecutorService pollers = Executors.newScheduledThreadPool(threads, runnable -> newThread(runnable, "poller"));
+			for(Watch watch : watches)
+				pollers.scheduleWithFixedDelay(() -> poll(watch), (long)watch.index * interval / count, interval, TimeUnit.MILLISECONDS);
+			ScheduledExecutorService triggerer = Executors.newSingleThreadScheduledExecutor(runnable -> newThread(runnable, "triggerer"));
+			if(triggers > 0)
+				triggerer.scheduleAtFixedRate(this::trigger, 0, (long)(1000000 / triggers), TimeUnit.MICROSECONDS);
+
+			Thread.sleep(warmup * 1000L);
+			long[] before = snapshot(pages, mail);
+			this.measureStart = System.nanoTime();
+			this.measuring = true;
+			Thread.sleep(duration * 1000L);
+			this.measuring = false;
+			this.measureEnd = System.nanoTime();
+			long[] after = snapshot(pages, mail);
+			triggerer.shutdownNow();
+
+			long drainEnd = System.currentTimeMillis() + 2L * interval + DRAIN_MILLIS;
+			while(getPending() > 0 && System.currentTimeMillis() < drainEnd)
+				Thread.sleep(10);
+			pollers.shutdown();
+			pollers.awaitTermination(1, TimeUnit.MINUTES);
+
+			long polled = getUsedHeap();
+			for(Watch watch : watches)
+				watch.provider.close();
+
+			print(report, after, before, created - baseline, polled - baseline);
+		}
+	}
+
+	/**
+	 * Check <code>watch</code> once, and remove the trigger if the check found it
+	 */
+	private void poll(Watch watch)
+	{
+		long cpu = threadBean.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		boolean found;
+		try
+		{
+			found = watch.provider.check();
+		}
+		catch(RuntimeException ex)
+		{
+			errors.increment();
+			return;
+		}
+		long end = System.nanoTime();
+		if(measuring)
+		{
+			polls.increment();
+			pollCpu.add(threadBean.getCurrentThreadCpuTime() - cpu);
+			pollTime.record(end - start);
+		}
+		if(watch.provider instanceof GUMProvider)
+			watch.address = ((GUMProvider)watch.provider).getEmailAddress();
+
+		if(!found)
+			return;
+		long triggered = watch.triggered.get();
+		if(triggered == 0)
+		{
+			unexpected.increment();
+			return;
+		}
+		if(watch.provider instanceof GUMProvider)
+			mail.delete(watch.address, watch.keyphrase);
+		else
+			pages.reset(watch.index);
+		watch.triggered.set(0);
+		if(triggered >= measureStart && triggered < measureEnd)
+		{
+			detectionLatency.record(end - triggered);
+			detected.increment();
+		}
+	}
+
+	/**
+	 * Put the key phrase in the mailbox or page of a random watch without a pending trigger
+	 */
+	private void trigger()
+	{
+		Watch watch = watches[ThreadLocalRandom.current().nextInt(count)];
+		long now = System.nanoTime();
+		if(!watch.triggered.compareAndSet(0, now))
+			return;
+		if(watch.provider instanceof GUMProvider)
+		{
+			if(watch.address.isEmpty())
+			{
+				watch.triggered.set(0);
+				return;
+			}
+			mail.deliver(watch.address, "Wake up", "Please wake up: " + watch.keyphrase);
+		}
+		else
+			pages.trigger(watch.index, watch.keyphrase);
+		if(now >= measureStart && now < measureEnd)
+			fired.increment();
+	}
+
+	/**
+	 * Create watch <code>index</code>, with the arguments passed to the harness
+	 */
+	private Watch createWatch(int index)
+	{
+		HashMap<String, String> watchArguments = new HashMap<String, String>();
+		watchArguments.put("parser", "se.cqst.sleeper.parsers.PlainTextParser");
+		watchArguments.put("notify", "false");
+		watchArguments.put("verbose", "false");
+		watchArguments.put("debug", "false");
+		watchArguments.put("repeat", "5");
+		for(Map.Entry<String, String> argument : arguments.entrySet())
+			if(!HARNESS_KEYS.contains(argument.getKey()))
+				watchArguments.put(argument.getKey(), argument.getValue());
+
+		String keyphrase = String.format(KEYPHRASE_FORMAT, index);
+		watchArguments.put("keyphrase", keyphrase);
+		boolean gum = mode.equals("gum") || (mode.equals("mixed") && index % 2 == 1);
+		if(gum)
+		{
+			watchArguments.put("provider", GUMProvider.class.getName());
+			watchArguments.put("gumapi", mail.getApiUrl());
+			return new Watch(index, keyphrase, new GUMProvider(watchArguments));
+		}
+		if(!mode.equals("http") && !mode.equals("mixed"))
+			throw new IllegalArgumentException("The provider \"" + mode + "\" does not exist. Valid providers are http, gum and mixed.");
+		watchArguments.put("provider", HTTPProvider.class.getName());
+		watchArguments.put("httpaddress", pages.getPageUrl(index));
+		return new Watch(index, keyphrase, new HTTPProvider(watchArguments));
+	}
+
+	/**
+	 * Print the report of the measurement window
+	 */
+	private void print(PrintStream report, long[] after, long[] before, long createdHeap, long polledHeap)
+	{
+		double seconds = (measureEnd - measureStart) / 1e9;
+		long pollCount = after[0] - before[0];
+		report.println(String.format(Locale.ROOT, "Checks:            %d in %.1f s, %.1f/s (interval asks for %.1f/s), %d errors",
+				pollCount, seconds, pollCount / seconds, count * 1000.0 / interval, errors.sum()));
+		report.println(String.format(Locale.ROOT, "Check time:        p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+				pollTime.getPercentile(0.5) * 1e3, pollTime.getPercentile(0.99) * 1e3, pollTime.getMax() * 1e3));
+		report.println(String.format(Locale.ROOT, "Detection latency: p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms "
+				+ "(%d of %d triggers found, %d unexpected)", detectionLatency.getPercentile(0.5) * 1e3,
+				detectionLatency.getPercentile(0.9) * 1e3, detectionLatency.getPercentile(0.99) * 1e3,
+				detectionLatency.getMax() * 1e3, detected.sum(), fired.sum(), unexpected.sum()));
+		report.println(String.format(Locale.ROOT, "CPU per check:     %.0f us polling thread, %s process (with stand-ins)",
+				(pollCount > 0) ? (after[1] - before[1]) / 1e3 / pollCount : 0.0,
+				(after[2] >= 0 && pollCount > 0) ? String.format(Locale.ROOT, "%.0f us", (after[2] - before[2]) / 1e3 / pollCount) : "n/a"));
+		report.println(String.format(Locale.ROOT, "Heap per watch:    %.1f KiB created, %.1f KiB after polling",
+				createdHeap / 1024.0 / count, polledHeap / 1024.0 / count));
+		report.println(String.format(Locale.ROOT, "Requests:          %d pages, %d ajax.php",
+				after[3] - before[3], after[4] - before[4]));
+	}
+
+	/**
+	 * Returns the checks, polling CPU time, process CPU time and requests to the stand-ins so far
+	 */
+	private long[] snapshot(StubPageServer pages, StubGuerrillaMail mail)
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		long processCpu = (os instanceof com.sun.management.OperatingSystemMXBean)
+				? ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime() : -1;
+		return new long[] { polls.sum(), pollCpu.sum(), processCpu, pages.getRequests(), mail.getRequests() };
+	}
+
+	/**
+	 * Returns the number of watches with a trigger that has not been found
+	 */
+	private int getPending()
+	{
+		int pending = 0;
+		for(Watch watch : watches)
+		{
+			long triggered = watch.triggered.get();
+			if(triggered >= measureStart && triggered < measureEnd)
+				pending++;
+		}
+		return pending;
+	}
+
+	private int getInt(String key, int defaultValue)
+	{
+		String value = arguments.get(key);
+		return (value != null) ? Integer.parseInt(value) : defaultValue;
+	}
+
+	/**
+	 * Returns the used heap after a few full collections
+	 */
+	private static long getUsedHeap() throws InterruptedException
+	{
+		for(int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static Thread newThread(Runnable runnable, String name)
+	{
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * A watch and its pending trigger
+	 */
+	private static final class Watch
+	{
+		final int index;
+		final String keyphrase;
+		final Provider provider;
+		final AtomicLong triggered;
+		volatile String address;
+
+		Watch(int index, String keyphrase, Provider provider)
+		{
+			this.index = index;
+			this.keyphrase = keyphrase;
+			this.provider = provider;
+			this.triggered = new AtomicLong();
+			this.address = "";
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+package se.cqst.sleeper.harness;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * <p>A local stand-in for the GuerrillaMail <code>ajax.php</code> API, implementing the functions used by
+ * <code>GUMProvider</code>: <code>get_email_address</code>, <code>set_email_user</code>,
+ * <code>get_email_list</code> and <code>fetch_email</code>. Point a provider at it with
+ * <code>gumapi=</code>{@link #getApiUrl()}.</p>
+ *
+ * <p>Sessions are not kept: <code>set_email_user</code> returns the mailbox user as <code>sid_token</code>, which
+ * the provider then sends with the other calls. A mailbox is created by the first <code>set_email_user</code>, with
+ * the welcome mail (id 1) and <code>filler</code> mails from {@link Content}. Like the real API,
+ * <code>get_email_list</code> lists at most 20 mails, newest first, without bodies.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+final class StubGuerrillaMail extends StubServer {
+
+	public static final String PATH = "/ajax.php";
+	public static final String DOMAIN = "sharklasers.com";
+	public static final int LIST_LIMIT = 20;
+	public static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+	private final Content content;
+	private final int filler;
+	private final ObjectMapper mapper;
+	private final ConcurrentHashMap<String, Mailbox> mailboxes;
+	private final AtomicLong anonymous;
+
+	/**
+	 * Start the stand-in
+	 *
+	 * @param content the filler mails
+	 * @param filler the number of filler mails in a new mailbox
+	 * @param latency the delay of every response in milliseconds
+	 * @param jitter the maximum extra delay in milliseconds
+	 * @throws IOException if the server could not be started
+	 */
+	StubGuerrillaMail(Content content, int filler, int latency, int jitter) throws IOException
+	{
+		super(PATH, latency, jitter);
+		this.content = content;
+		this.filler = filler;
+		this.mapper = new ObjectMapper();
+		this.mailboxes = new ConcurrentHashMap<String, Mailbox>();
+		this.anonymous = new AtomicLong();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.harness.StubServer#handle(com.sun.net.httpserver.HttpExchange)
+	 */
+	@Override
+	protected void handle(HttpExchange exchange) throws IOException
+	{
+		Map<String, String> parameters = getParameters(exchange);
+		Object response;
+		switch(String.valueOf(parameters.get("f")))
+		{
+		case "get_email_address":
+			response = getEmailAddress();
+			break;
+		case "set_email_user":
+			response = setEmailUser(parameters.get("email_user"));
+			break;
+		case "get_email_list":
+			response = getEmailList(parameters.get("sid_token"));
+			break;
+		case "fetch_email":
+			response = fetchEmail(parameters.get("sid_token"), parameters.get("email_id"));
+			break;
+		default:
+			respond(exchange, 400, CONTENT_TYPE, mapper.writeValueAsBytes(error("Unknown function")));
+			return;
+		}
+		respond(exchange, 200, CONTENT_TYPE, mapper.writeValueAsBytes(response));
+	}
+
+	/**
+	 * Put a mail in the mailbox of <code>address</code>, creating it if needed
+	 *
+	 * @param address the e-mail address
+	 * @param subject the subject
+	 * @param body the body
+	 */
+	public void deliver(String address, String subject, String body)
+	{
+		getMailbox(getUser(address)).add(new Content.Mail("harness@example.com", subject, body));
+	}
+
+	/**
+	 * Delete the mails in the mailbox of <code>address</code> whose body contains <code>text</code>
+	 *
+	 * @param address the e-mail address
+	 * @param text the text
+	 */
+	public void delete(String address, String text)
+	{
+		Mailbox mailbox = mailboxes.get(getUser(address));
+		if(mailbox != null)
+			mailbox.delete(text);
+	}
+
+	/**
+	 * Returns the address of the API, for the argument <code>gumapi</code>
+	 *
+	 * @return the address
+	 */
+	public String getApiUrl()
+	{
+		return getAddress() + PATH;
+	}
+
+	public int	getMailboxes()	{	return mailboxes.size();	}
+
+	private Map<String, Object> getEmailAddress()
+	{
+		String user = "anon" + anonymous.incrementAndGet();
+		Map<String, Object> response = session(user);
+		response.put("sid_token", "anonymous");
+		return response;
+	}
+
+	private Map<String, Object> setEmailUser(String user)
+	{
+		if(user == null || user.isEmpty())
+			return error("Missing email_user");
+		getMailbox(user);
+		return session(user);
+	}
+
+	private Map<String, Object> getEmailList(String user)
+	{
+		Mailbox mailbox = (user != null) ? mailboxes.get(user) : null;
+		if(mailbox == null)
+			return error("Invalid sid_token");
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		for(Message message : mailbox.list())
+			list.add(message.toJson(false));
+		Map<String, Object> response = session(user);
+		response.put("list", list);
+		response.put("count", list.size());
+		return response;
+	}
+
+	private Object fetchEmail(String user, String id)
+	{
+		Mailbox mailbox = (user != null) ? mailboxes.get(user) : null;
+		Message message = (mailbox != null) ? mailbox.get(id) : null;
+		if(message == null)
+			return Boolean.FALSE;
+		Map<String, Object> response = message.toJson(true);
+		response.put("mail_recipient", user + "@" + DOMAIN);
+		response.put("sid_token", user);
+		return response;
+	}
+
+	private Mailbox getMailbox(String user)
+	{
+		return mailboxes.computeIfAbsent(user, key ->
+		{
+			Mailbox mailbox = new Mailbox();
+			mailbox.add(new Content.Mail("no-reply@guerrillamail.com", "Welcome to Guerrilla Mail",
+					"Dear Random User, thank you for using Guerrilla Mail."));
+			for(int i = 0; i < filler; i++)
+				mailbox.add(content.getMail(i));
+			return mailbox;
+		});
+	}
+
+	private static String getUser(String address)
+	{
+		int at = address.indexOf('@');
+		return (at < 0) ? address : address.substring(0, at);
+	}
+
+	private static Map<String, Object> session(String user)
+	{
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("email_addr", user + "@" + DOMAIN);
+		response.put("email_timestamp", System.currentTimeMillis() / 1000);
+		response.put("alias", user);
+		response.put("sid_token", user);
+		response.put("site", "emjd");
+		return response;
+	}
+
+	private static Map<String, Object> error(String message)
+	{
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("error", message);
+		return response;
+	}
+
+	/**
+	 * The mails of one user
+	 */
+	private static final class Mailbox
+	{
+		private final List<Message> messages = new ArrayList<Message>();
+		private int nextId = 1;
+
+		synchronized void add(Content.Mail mail)
+		{
+			messages.add(new Message(nextId++, mail, System.currentTimeMillis()));
+		}
+
+		synchronized void delete(String text)
+		{
+			messages.removeIf(message -> message.mail.body.contains(text));
+		}
+
+		synchronized Message get(String id)
+		{
+			for(Message message : messages)
+				if(String.valueOf(message.id).equals(id))
+					return message;
+			return null;
+		}
+
+		synchronized List<Message> list()
+		{
+			List<Message> list = new ArrayList<Message>(LIST_LIMIT);
+			for(int i = messages.size() - 1; i >= 0 && list.size() < LIST_LIMIT; i--)
+				list.add(messages.get(i));
+			return list;
+		}
+	}
+
+	/**
+	 * A mail in a mailbox
+	 */
+	private static final class Message
+	{
+		final int id;
+		final Content.Mail mail;
+		final long received;
+
+		Message(int id, Content.Mail mail, long received)
+		{
+			this.id = id;
+			this.mail = mail;
+			this.received = received;
+		}
+
+		Map<String, Object> toJson(boolean body)
+		{
+			Map<String, Object> json = new LinkedHashMap<String, Object>();
+			json.put("mail_id", String.valueOf(id));
+			json.put("mail_from", mail.from);
+			json.put("mail_subject", mail.subject);
+			json.put("mail_excerpt", mail.body.substring(0, Math.min(50, mail.body.length())));
+			json.put("mail_timestamp", String.valueOf(received / 1000));
+			json.put("mail_read", body ? 1 : 0);
+			json.put("mail_date", String.format("%tT", received));
+			if(body)
+			{
+				json.put("mail_body", mail.body);
+				json.put("content_type", "text");
+			}
+			return json;
+		}
+	}
+
+}
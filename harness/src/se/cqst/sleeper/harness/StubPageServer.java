@@ -0,0 +1,134 @@
+package se.cqst.sleeper.harness;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * <p>A local stand-in for the web pages polled by <code>HTTPProvider</code>. Serves one page per watch on
+ * <code>/page/&lt;index&gt;</code>, with the body from {@link Content}. A page can be triggered, which puts the key
+ * phrase in it, and reset.</p>
+ *
+ * <p>Every version of a page has its own <code>ETag</code> and a <code>Last-Modified</code> of when it was
+ * created, and conditional requests are answered with <code>HTTP 304 Not Modified</code>.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+final class StubPageServer extends StubServer {
+
+	public static final String PATH = "/page/";
+	public static final String CONTENT_TYPE = "text/html; charset=utf-8";
+	public static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+	private final Content content;
+	private final AtomicReferenceArray<Page> pages;
+	private final AtomicLong versions;
+
+	/**
+	 * Start the stand-in
+	 *
+	 * @param content the page bodies
+	 * @param count the number of pages
+	 * @param latency the delay of every response in milliseconds
+	 * @param jitter the maximum extra delay in milliseconds
+	 * @throws IOException if the server could not be started
+	 */
+	StubPageServer(Content content, int count, int latency, int jitter) throws IOException
+	{
+		super(PATH, latency, jitter);
+		this.content = content;
+		this.pages = new AtomicReferenceArray<Page>(count);
+		this.versions = new AtomicLong();
+		for(int i = 0; i < count; i++)
+			reset(i);
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.harness.StubServer#handle(com.sun.net.httpserver.HttpExchange)
+	 */
+	@Override
+	protected void handle(HttpExchange exchange) throws IOException
+	{
+		Page page = null;
+		try
+		{
+			int index = Integer.parseInt(exchange.getRequestURI().getPath().substring(PATH.length()));
+			page = (index >= 0 && index < pages.length()) ? pages.get(index) : null;
+		}
+		catch(NumberFormatException ex)
+		{
+
+		}
+		if(page == null)
+		{
+			respond(exchange, 404, null, null);
+			return;
+		}
+
+		exchange.getResponseHeaders().set("ETag", page.etag);
+		exchange.getResponseHeaders().set("Last-Modified", page.lastModified);
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		if((ifNoneMatch != null) ? ifNoneMatch.equals(page.etag) : page.lastModified.equals(ifModifiedSince))
+			respond(exchange, 304, null, null);
+		else
+			respond(exchange, 200, CONTENT_TYPE, page.body);
+	}
+
+	/**
+	 * Put <code>text</code> in page <code>index</code>
+	 *
+	 * @param index the page
+	 * @param text the text
+	 */
+	public void trigger(int index, String text)
+	{
+		pages.set(index, new Page(Content.insert(content.getPage(index), text), versions.incrementAndGet()));
+	}
+
+	/**
+	 * Restore page <code>index</code> to its original body
+	 *
+	 * @param index the page
+	 */
+	public void reset(int index)
+	{
+		pages.set(index, new Page(content.getPage(index), versions.incrementAndGet()));
+	}
+
+	/**
+	 * Returns the address of page <code>index</code>, for the argument <code>httpaddress</code>
+	 *
+	 * @param index the page
+	 * @return the address
+	 */
+	public String getPageUrl(int index)
+	{
+		return getAddress() + PATH + index;
+	}
+
+	/**
+	 * A version of a page
+	 */
+	private static final class Page
+	{
+		final byte[] body;
+		final String etag;
+		final String lastModified;
+
+		Page(byte[] body, long version)
+		{
+			this.body = body;
+			this.etag = "\"" + version + "\"";
+			this.lastModified = HTTP_DATE.format(Instant.now().atOffset(ZoneOffset.UTC));
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+package se.cqst.sleeper.harness;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Base class of the local stand-ins the load harness polls instead of real servers. Listens on an ephemeral
+ * port on the loopback address and delays every response by <code>latency</code> milliseconds, plus up to
+ * <code>jitter</code> milliseconds, to emulate the network and the remote server.</p>
+ *
+ * <p>Exchanges are handled on a cached thread pool, so a delayed response does not hold up the others. Nagle's
+ * algorithm is turned off for the servers in the JDK, or every small response written as headers and body would wait
+ * for a delayed ACK (about 40 ms).</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+abstract class StubServer implements AutoCloseable {
+
+	public static final int BACKLOG = 1024;
+
+	static
+	{
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int latency;
+	private final int jitter;
+	private final LongAdder requests;
+
+	/**
+	 * Start a server that handles <code>path</code>
+	 *
+	 * @param path the context path
+	 * @param latency the delay of every response in milliseconds
+	 * @param jitter the maximum extra delay in milliseconds
+	 * @throws IOException if the server could not be started
+	 */
+	StubServer(String path, int latency, int jitter) throws IOException
+	{
+		this.latency = latency;
+		this.jitter = jitter;
+		this.requests = new LongAdder();
+		this.executor = Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, getClass().getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG);
+		this.server.createContext(path, new Handler());
+		this.server.setExecutor(executor);
+		this.server.start();
+	}
+
+	/**
+	 * Handle a request, after the injected delay
+	 *
+	 * @param exchange the exchange
+	 * @throws IOException if the response could not be written
+	 */
+	protected abstract void handle(HttpExchange exchange) throws IOException;
+
+	/**
+	 * Send <code>body</code> with <code>status</code>, or only the status if <code>body</code> is null
+	 */
+	protected static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+	{
+		if(contentType != null)
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+		if(body == null || "HEAD".equals(exchange.getRequestMethod()))
+		{
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Returns the decoded query parameters of <code>exchange</code>
+	 */
+	protected static Map<String, String> getParameters(HttpExchange exchange)
+	{
+		Map<String, String> parameters = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if(query == null)
+			return parameters;
+		for(String pair : query.split("&"))
+		{
+			String[] keyValue = pair.split("=", 2);
+			try
+			{
+				parameters.put(URLDecoder.decode(keyValue[0], "UTF-8"),
+						(keyValue.length > 1) ? URLDecoder.decode(keyValue[1], "UTF-8") : "");
+			}
+			catch(IOException | IllegalArgumentException ex)
+			{
+
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Returns the address of the server, e.g. <code>http://127.0.0.1:41234</code>
+	 *
+	 * @return the address
+	 */
+	public String getAddress()
+	{
+		InetSocketAddress address = server.getAddress();
+		return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+
+	/**
+	 * Returns the number of requests handled
+	 *
+	 * @return the number of requests
+	 */
+	public long getRequests()
+	{
+		return requests.sum();
+	}
+
+	/**
+	 * Stop the server
+	 */
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Counts and delays every exchange, and turns failures into <code>HTTP 500</code>
+	 */
+	private final class Handler implements HttpHandler
+	{
+		@Override
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			requests.increment();
+			try
+			{
+				int delay = latency + ((jitter > 0) ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+				if(delay > 0)
+					Thread.sleep(delay);
+				StubServer.this.handle(exchange);
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				exchange.close();
+			}
+			catch(RuntimeException ex)
+			{
+				respond(exchange, 500, "text/plain; charset=utf-8", String.valueOf(ex).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+}
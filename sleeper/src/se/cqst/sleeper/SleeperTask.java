@@ -1,194 +1,724 @@
-package se.cqst.sleeper;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import se.cqst.sleeper.providers.Provider;
-
-/**
- * <p>The <strong>SleeperTask</strong> class uses a {@link Provider} to check if a <i>key phrase</i> has been detected.
- * Upon detection, the specified task will execute and the <code>SleeperTask</code> will terminate.</p>
- * 
- * <p>The <code>SleeperTask</code> implements the <code>Singleton</code> pattern to simplify call-backs to the parent class</p>
- * 
- * @author Nicklas Rosvall Carlquist
- *
- */
-public class SleeperTask  {
-	
-	public static final String	TASK_EXECUTE = "Keyphrase found, executing action...";
-	public static final String TASK_EXPIRED = "Keyphrase has not been provided within time limit, exiting...";
-	
-	public static final String VERBOSE_NOTF = "Keyphrase was not found.";
-	public static final String VERBOSE_COMP = "Execution of action complete.";
-	
-	private static SleeperTask instance = null;
-	
-	private Provider 	provider;
-	private String		action;
-	
-	private int			repeat;
-	
-	private Timer timer;
-	
-	private boolean verbose;
-
-	/**
-	 * Create a new SleeperTask object
-	 */
-	private SleeperTask()
-	{
-		timer = new Timer();
-		provider = null;
-		action = "";
-		verbose = false;
-		setRepeat(5);
-	}
-	
-	/**
-	 * Returns the single SleeperTask instance.
-	 * If the instance does not exist, create it.
-	 * @return
-	 */
-	public static SleeperTask getInstance()
-	{
-		if(instance == null)
-			instance = new SleeperTask();
-		return instance;
-	}
-	
-	public Provider getProvider()
-	{
-		return this.provider;
-	}
-	
-	public void	setProvider(Provider provider)
-	{
-		this.provider = provider;
-	}
-	
-	public String getAction()
-	{
-		return this.action;
-	}
-	
-	public void setAction(String action)
-	{
-		this.action = action;
-	}
-	
-	public boolean isVerbose()
-	{
-		return this.verbose;
-	}
-	
-	public void setVerbose(boolean verbose)
-	{
-		this.verbose = verbose;
-	}
-	
-	public int getRepeat() {
-		return repeat;
-	}
-
-	public void setRepeat(int repeat) {
-		if (repeat >= 3)
-			this.repeat = repeat;
-		if(verbose)
-			print("Repeat set to: " + repeat + " min (min value allowed is 3 min)");
-	}
-	
-	/**
-	 * <p>Returns an instantiation of the TimerTask that will poll a {@link Provider} object. 
-	 * If the <code>Provider</code> object returns true, execute the action specified by the provided
-	 * arguments.</p>
-	 * @return
-	 */
-	private TimerTask getTimerTask()
-	{
-		TimerTask task = new TimerTask()
-		{
-			@Override
-			public void run()
-			{
-				if(SleeperTask.getInstance().getProvider().check())
-				{
-					print(SleeperTask.TASK_EXECUTE);
-					StringBuffer out = new StringBuffer();
-					Process p;
-					
-					try
-					{
-						p = Runtime.getRuntime().exec(SleeperTask.getInstance().getAction());
-						p.waitFor();
-						
-						BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-						String line = "";
-						while((line = reader.readLine()) != null)
-						{
-							out.append(line + '\n');
-						}
-					}
-					catch(IllegalArgumentException ex)
-					{
-						print("No argument to execute was specified. Program will now terminate.");
-						System.exit(0);
-					}
-					catch(Exception ex)
-					{
-						ex.printStackTrace();
-						System.exit(0);
-					}
-					
-					System.out.println(out.toString());
-					
-					if(SleeperTask.getInstance().isVerbose())
-						print(SleeperTask.VERBOSE_COMP);
-					
-					System.exit(0);
-				}
-				else
-				{
-					if(SleeperTask.getInstance().isVerbose())
-						print(SleeperTask.VERBOSE_NOTF);
-				}
-			}
-		};
-		
-		return task;
-	}
-	
-	/**
-	 * <p>Returns the current date and time in the yyyy-MM-dd HH:mm format</p>
-	 * @return
-	 */
-	private String getDate()
-	{
-		Calendar cal = Calendar.getInstance();
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-		return sdf.format(cal.getTime());
-	}
-	
-	/**
-	 * <p>Prints to the System.out but with added prefix of {@link #getDate()}</p>
-	 * @param text
-	 */
-	public void print(String text)
-	{
-		System.out.println("[" + getDate() + "] " + text);
-	}
-	
-	/**
-	 * <p>Executes the SleeperTask, scheduling the TimerTask object to execute at the interval specified
-	 * by SleeperTask.repeat</p>
-	 */
-	public void run()
-	{
-		timer.scheduleAtFixedRate(this.getTimerTask(), 0, repeat * 60 * 1000);
-	}
-
-}
+package se.cqst.sleeper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.cqst.sleeper.actions.ActionResult;
+import se.cqst.sleeper.actions.ActionRunner;
+import se.cqst.sleeper.events.ActionEvent;
+import se.cqst.sleeper.metrics.DetectionLag;
+import se.cqst.sleeper.metrics.Metrics;
+import se.cqst.sleeper.plugins.PluginException;
+import se.cqst.sleeper.providers.Provider;
+import se.cqst.sleeper.senders.ConsoleSender;
+import se.cqst.sleeper.senders.Sender;
+import se.cqst.sleeper.senders.SharedSenders;
+import se.cqst.sleeper.state.TriggerJournal;
+
+/**
+ * <p>The <strong>SleeperTask</strong> class uses a {@link Provider} to check if a <i>key phrase</i> has been detected.
+ * Upon detection, the specified task will execute and the <code>SleeperTask</code> will terminate.</p>
+ * 
+ * <p>The action is executed asynchronously by an {@link ActionRunner}. Polling stops as soon as the key phrase
+ * has been found, and the application exits on its own once the action has finished.</p>
+ * 
+ * <p>If a {@link TriggerJournal} is configured, the trigger is journaled before the action starts and when it
+ * finishes. A trigger that was detected but never started before a restart is resumed at once, without polling
+ * again; a trigger whose action was started but never finished is skipped, unless <code>journal_recover=rerun</code>
+ * is set.</p>
+ * 
+ * <p>When the action starts, the detection lag of the trigger (the time since the source published the key
+ * phrase, see {@link Provider#getSourceTimestamp()}) is recorded in a {@link DetectionLag} and printed, with a
+ * warning if it is above the latency target of the watch.</p>
+ * 
+ * <p>The Provider is checked at the repeat interval, and at once whenever it calls its wakeup callback (see
+ * {@link Provider#setWakeup(Runnable)}). Checks never overlap: a wakeup during a check leads to one more check
+ * when it is done.</p>
+ * 
+ * <p>A <code>SleeperTask</code> runs one watch. A single-watch run uses {@link #getInstance()}, which polls on a
+ * thread of its own and lets the application exit once the action has finished. The daemon (see
+ * <code>WatchDaemon</code>) creates a SleeperTask per watch, polled on a shared scheduler, and can
+ * {@link #retune(WatchSpec)} or {@link #close()} it while the other watches keep running.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class SleeperTask  {
+	
+	public static final String	TASK_EXECUTE = "Keyphrase found, executing action...";
+	public static final String TASK_EXPIRED = "Keyphrase has not been provided within time limit, exiting...";
+	
+	public static final String VERBOSE_NOTF = "Keyphrase was not found.";
+	public static final String VERBOSE_COMP = "Execution of action complete.";
+	public static final String TASK_NOACTION = "No argument to execute was specified. Program will now terminate.";
+	public static final String TASK_RESUME = "Resuming action of trigger %d, detected at %s...";
+	public static final String TASK_SKIP = "Action of trigger %d, detected at %s, was interrupted and will not be run again.";
+	public static final String TASK_RERUN = "Action of trigger %d, detected at %s, was interrupted and will be run again...";
+	public static final String TASK_LAG = "Detection lag was %.1f s (p50 %.1f s, p90 %.1f s, p99 %.1f s over %d trigger(s)).";
+	public static final String TASK_LAG_TARGET = "Detection lag of %.1f s is above the latency target of %.1f s.";
+	public static final String TASK_LAG_REPEAT = "With repeat=%d, the key phrase can wait up to %d s before it is seen; consider a lower repeat.";
+	public static final String TASK_CHECK_FAILED = "Check failed: %s";
+	public static final String TASK_COMPLETION_FAILED = "Could not complete the action: %s";
+	
+	/**
+	 * Arguments that only affect the SleeperTask, not its Provider, and can be changed with {@link #retune(WatchSpec)}
+	 */
+	public static final Set<String> TASK_KEYS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"repeat", "verbose", "action", "actionmode", "actiontimeout", "actionoutput", "actionworkers", "actionshell",
+			"sender", "latencytarget", "journal_recover")));
+	private static final String[] TASK_PREFIXES = { "smtp", "webhook" };
+	
+	private static SleeperTask instance = null;
+	
+	private Provider 	provider;
+	private String		action;
+	private ActionRunner	actionRunner;
+	private Sender		sender;
+	private String		watchId;
+	private TriggerJournal	journal;
+	private boolean		rerun;
+	private DetectionLag	lag;
+	private Runnable	onTrigger;
+	
+	private int			repeat;
+	private long		latencyTarget;
+	
+	private ScheduledExecutorService scheduler;
+	private final boolean standalone;
+	private ScheduledFuture<?> future;
+	private volatile boolean triggered;
+	private volatile boolean closed;
+	private final AtomicBoolean polling;
+	private volatile boolean pollAgain;
+	
+	private boolean verbose;
+
+	/**
+	 * Create a new SleeperTask for a single-watch run. It polls on a thread of its own, which is stopped when the
+	 * key phrase has been found.
+	 */
+	public SleeperTask()
+	{
+		this(null);
+	}
+	
+	/**
+	 * Create a new SleeperTask that polls on <code>scheduler</code>, shared with other watches. The scheduler is
+	 * not shut down by the SleeperTask.
+	 * 
+	 * @param scheduler the scheduler to poll on, or null to poll on a thread of its own
+	 */
+	public SleeperTask(ScheduledExecutorService scheduler)
+	{
+		this.scheduler = scheduler;
+		this.standalone = (scheduler == null);
+		provider = null;
+		action = "";
+		watchId = "";
+		journal = null;
+		rerun = false;
+		lag = null;
+		latencyTarget = -1;
+		triggered = false;
+		closed = false;
+		polling = new AtomicBoolean();
+		pollAgain = false;
+		verbose = false;
+		setRepeat(5);
+	}
+	
+	/**
+	 * Returns the SleeperTask of a single-watch run.
+	 * If the instance does not exist, create it.
+	 * @return
+	 */
+	public static SleeperTask getInstance()
+	{
+		if(instance == null)
+			instance = new SleeperTask();
+		return instance;
+	}
+	
+	public Provider getProvider()
+	{
+		return this.provider;
+	}
+	
+	public void	setProvider(Provider provider)
+	{
+		this.provider = provider;
+	}
+	
+	public String getAction()
+	{
+		return this.action;
+	}
+	
+	public void setAction(String action)
+	{
+		this.action = action;
+	}
+	
+	public ActionRunner getActionRunner()
+	{
+		return this.actionRunner;
+	}
+	
+	public void setActionRunner(ActionRunner actionRunner)
+	{
+		this.actionRunner = actionRunner;
+	}
+	
+	public Sender getSender()
+	{
+		return this.sender;
+	}
+	
+	public void setSender(Sender sender)
+	{
+		this.sender = sender;
+	}
+	
+	public String getWatchId()
+	{
+		return this.watchId;
+	}
+	
+	public void setWatchId(String watchId)
+	{
+		this.watchId = watchId;
+	}
+	
+	public TriggerJournal getJournal()
+	{
+		return this.journal;
+	}
+	
+	/**
+	 * <p>Set the journal to record triggers in, and whether interrupted actions found in it should be run again.</p>
+	 * 
+	 * @param journal the journal, or null
+	 * @param rerun run actions that were started but never finished again
+	 */
+	public void setJournal(TriggerJournal journal, boolean rerun)
+	{
+		this.journal = journal;
+		this.rerun = rerun;
+	}
+	
+	public DetectionLag getDetectionLag()
+	{
+		return this.lag;
+	}
+	
+	public void setDetectionLag(DetectionLag lag)
+	{
+		this.lag = lag;
+	}
+	
+	public boolean isVerbose()
+	{
+		return this.verbose;
+	}
+	
+	public void setVerbose(boolean verbose)
+	{
+		this.verbose = verbose;
+	}
+	
+	public int getRepeat() {
+		return repeat;
+	}
+
+	public void setRepeat(int repeat) {
+		if (repeat >= 3)
+			this.repeat = repeat;
+		if(verbose)
+			print("Repeat set to: " + repeat + " min (min value allowed is 3 min)");
+	}
+	
+	public boolean isTriggered()
+	{
+		return this.triggered;
+	}
+	
+	/**
+	 * <p>Set a callback that is run when the key phrase has been found (or a trigger is recovered from the
+	 * journal), before the action is executed.</p>
+	 * 
+	 * @param onTrigger the callback, or null
+	 */
+	public void setOnTrigger(Runnable onTrigger)
+	{
+		this.onTrigger = onTrigger;
+	}
+	
+	/**
+	 * <p>Apply the arguments of <code>spec</code> that belong to the task: verbose status, repeat interval, action,
+	 * action runner, sender, watch id, trigger journal and detection lag. The Provider is set on its own with
+	 * {@link #setProvider(Provider)}.</p>
+	 * 
+	 * @param spec the watch
+	 * @throws PluginException if the sender does not exist
+	 * @throws IllegalArgumentException if the action mode does not exist
+	 */
+	public void configure(WatchSpec spec)
+	{
+		//	Create the action runner and sender first, so that nothing is changed if either fails
+		ActionRunner runner = ActionRunner.create(spec.toArguments());
+		Sender newSender;
+		try
+		{
+			newSender = SharedSenders.get(spec);
+		}
+		catch(RuntimeException ex)
+		{
+			runner.shutdown();
+			throw ex;
+		}
+		
+		setVerbose(spec.isVerbose());
+		setRepeat(spec.getRepeat());
+		setAction(spec.getAction());
+		setActionRunner(runner);
+		setSender(newSender);
+		setWatchId(spec.getId());
+		setJournal(TriggerJournal.getDefault(), spec.getString("journal_recover", "skip").equals("rerun"));
+		
+		//	The latency target is given in seconds; history of the detection lag is kept if it does not change
+		long target = spec.getInt("latencytarget", 0) * 1000L;
+		if(lag == null || target != latencyTarget)
+			setDetectionLag(new DetectionLag(spec.getId(), target));
+		latencyTarget = target;
+	}
+	
+	/**
+	 * <p>Returns true if a watch can be changed from <code>from</code> to <code>to</code> with
+	 * {@link #retune(WatchSpec)}, i.e. if they only differ in {@link #TASK_KEYS}.</p>
+	 * 
+	 * @param from the current watch
+	 * @param to the changed watch
+	 * @return true, if only arguments of the task differ
+	 */
+	public static boolean canRetune(WatchSpec from, WatchSpec to)
+	{
+		return withoutTaskKeys(from).equals(withoutTaskKeys(to));
+	}
+	
+	private static Map<String, String> withoutTaskKeys(WatchSpec spec)
+	{
+		Map<String, String> arguments = new TreeMap<String, String>(spec.toArguments());
+		arguments.keySet().removeIf(key ->
+		{
+			for(String prefix : TASK_PREFIXES)
+				if(key.startsWith(prefix))
+					return true;
+			return TASK_KEYS.contains(key);
+		});
+		return arguments;
+	}
+	
+	/**
+	 * <p>Change the arguments of the task (see {@link #canRetune(WatchSpec, WatchSpec)}) while it is polling,
+	 * keeping the Provider and everything it has cached. The action runner and sender are replaced (the shared
+	 * sender is left open for other watches), and a new
+	 * repeat interval takes effect after the next check.</p>
+	 * 
+	 * @param spec the changed watch
+	 * @throws PluginException if the sender does not exist
+	 * @throws IllegalArgumentException if the action mode does not exist
+	 */
+	public synchronized void retune(WatchSpec spec)
+	{
+		if(triggered || closed)
+			throw new IllegalStateException("Watch " + watchId + " has stopped polling");
+		ActionRunner oldRunner = this.actionRunner;
+		int oldRepeat = this.repeat;
+		configure(spec);
+		if(oldRunner != null && oldRunner != this.actionRunner)
+			oldRunner.shutdown();
+		if(future != null && repeat != oldRepeat)
+		{
+			future.cancel(false);
+			schedule(repeat * 60 * 1000L);
+		}
+	}
+	
+	/**
+	 * <p>Stop polling and release the Provider and action runner. The sender is shared (see {@link SharedSenders})
+	 * and left open. An action that has already started is left to finish.</p>
+	 */
+	public synchronized void close()
+	{
+		if(closed)
+			return;
+		closed = true;
+		stop();
+		if(triggered)
+			return;
+		provider.close();
+		if(actionRunner != null)
+			actionRunner.shutdown();
+	}
+	
+	/**
+	 * <p>Checks the {@link Provider} until it has not asked for another check. If another thread is already
+	 * checking, it is left to check once more instead, so the Provider is never checked by two threads at once.</p>
+	 */
+	private void poll()
+	{
+		pollAgain = true;
+		while(pollAgain && !triggered && !closed && polling.compareAndSet(false, true))
+		{
+			try
+			{
+				pollAgain = false;
+				checkOnce();
+			}
+			finally
+			{
+				polling.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Check the Provider at once, on the scheduler. Called by the Provider when it has new data.</p>
+	 */
+	private void wakeup()
+	{
+		if(triggered || closed)
+			return;
+		try
+		{
+			scheduler.execute(this::poll);
+		}
+		catch(RejectedExecutionException ex)
+		{
+			//	The scheduler has been shut down, polling has stopped
+		}
+	}
+	
+	/**
+	 * <p>Checks the {@link Provider} once. If it returns true, polling stops and the action is executed.</p>
+	 * 
+	 * <p>A check that throws is reported and polled again at the next interval.</p>
+	 */
+	private void checkOnce()
+	{
+		boolean found;
+		try
+		{
+			found = provider.check();
+		}
+		catch(RuntimeException ex)
+		{
+			print(String.format(SleeperTask.TASK_CHECK_FAILED, ex));
+			return;
+		}
+		
+		if(found)
+		{
+			synchronized(this)
+			{
+				if(closed || triggered)
+					return;
+				triggered = true;
+				stop();
+			}
+			print(SleeperTask.TASK_EXECUTE);
+			provider.close();
+			execute(null, provider.getSourceTimestamp());
+		}
+		else
+		{
+			if(isVerbose())
+				print(SleeperTask.VERBOSE_NOTF);
+		}
+	}
+	
+	/**
+	 * <p>Stop polling. The thread of a single-watch run is stopped, so the application can exit once the action
+	 * has finished.</p>
+	 */
+	private synchronized void stop()
+	{
+		if(future != null)
+			future.cancel(false);
+		if(standalone && scheduler != null)
+			scheduler.shutdown();
+	}
+	
+	/**
+	 * <p>Schedule polling at the repeat interval, starting after <code>delay</code> milliseconds.</p>
+	 * 
+	 * @param delay the delay before the first check
+	 */
+	private synchronized void schedule(long delay)
+	{
+		future = scheduler.scheduleAtFixedRate(this::poll, delay, repeat * 60 * 1000L, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * <p>Executes the action, journaling the trigger if a {@link TriggerJournal} is set.</p>
+	 * 
+	 * <p>The <code>DETECTED</code> (unless <code>pending</code> is given) and <code>STARTED</code> records are on
+	 * disk before the action starts; <code>COMPLETED</code> is written when it has finished, with the outcome
+	 * <code>failed</code> if the runner could not tell how it finished.</p>
+	 * 
+	 * <p>The runner is shut down, and a standalone watch closes its senders and metrics, even if the action or
+	 * anything done when it completes fails, since their threads would otherwise keep the JVM running.</p>
+	 * 
+	 * @param pending a trigger recovered from the journal, or null for a new trigger
+	 * @param sourceTimestamp the time the source published the key phrase, or 0 if it is not known
+	 */
+	private void execute(TriggerJournal.Trigger pending, long sourceTimestamp)
+	{
+		if(onTrigger != null)
+			onTrigger.run();
+		
+		long trigger = -1;
+		if(journal != null)
+		{
+			trigger = (pending != null) ? pending.getId() : journal.detected(watchId, action);
+			journal.started(trigger, watchId);
+		}
+		
+		if(lag != null && sourceTimestamp > 0)
+			printLag(lag.record(sourceTimestamp, System.currentTimeMillis()));
+		
+		final long id = trigger;
+		ActionRunner runner = this.actionRunner;
+		ActionEvent event = new ActionEvent();
+		event.begin();
+		runner.execute(this.action).whenComplete((result, error) ->
+		{
+			try
+			{
+				if(error != null)
+				{
+					print(String.format(SleeperTask.TASK_COMPLETION_FAILED, error));
+					//	The action may or may not have run, but running it again on every restart would not help
+					if(journal != null)
+						journal.completed(id, watchId, "failed");
+				}
+				else
+					complete(id, runner, event, result);
+			}
+			catch(RuntimeException ex)
+			{
+				print(String.format(SleeperTask.TASK_COMPLETION_FAILED, ex));
+			}
+			finally
+			{
+				try
+				{
+					shutdown(runner);
+				}
+				catch(RuntimeException ex)
+				{
+					print(String.format(SleeperTask.TASK_COMPLETION_FAILED, ex));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * <p>Journals that an action has completed, then reports and records its result. The journal is written first,
+	 * so that a trigger whose notification fails is not run again.</p>
+	 * 
+	 * @param trigger the trigger in the journal, or -1 if there is no journal
+	 * @param runner the runner of the action
+	 * @param event the event of the action
+	 * @param result the result of the action
+	 */
+	private void complete(long trigger, ActionRunner runner, ActionEvent event, ActionResult result)
+	{
+		String outcome = (result.getError() != null) ? "error" : (result.isTimedOut() ? "timeout" : "exit " + result.getExitCode());
+		if(journal != null)
+			journal.completed(trigger, watchId, outcome);
+		printResult(result);
+		notify(result);
+		String label = result.isSuccess() ? "success" : outcome.startsWith("exit") ? "failure" : outcome;
+		Metrics.getDefault().timer("sleeper_action_seconds", "Duration of an action.", "watch", watchId, "result", label)
+				.record(result.getDuration() * 1000000L);
+		event.commit(watchId, action, runner.getClass().getSimpleName(), result.getExitCode(), label);
+	}
+	
+	/**
+	 * <p>Shuts down the runner of an action and, for a standalone watch, the senders and metrics, each even if
+	 * the one before it fails. The last failure is thrown when all have been tried.</p>
+	 * 
+	 * @param runner the runner of the action
+	 */
+	private void shutdown(ActionRunner runner)
+	{
+		try
+		{
+			runner.shutdown();
+		}
+		finally
+		{
+			if(standalone)
+			{
+				try
+				{
+					SharedSenders.closeAll();
+				}
+				finally
+				{
+					Metrics.getDefault().close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * <p>Handles an incomplete trigger of this watch found in the journal. Returns true if its action is run
+	 * again, in which case the watch is not polled.</p>
+	 * 
+	 * @param pending the incomplete trigger
+	 * @return true, if the action is run
+	 */
+	private boolean recover(TriggerJournal.Trigger pending)
+	{
+		String detected = ConsoleSender.getTimestamp(pending.getDetected());
+		if(!pending.isStarted())
+			print(String.format(SleeperTask.TASK_RESUME, pending.getId(), detected));
+		else if(rerun)
+			print(String.format(SleeperTask.TASK_RERUN, pending.getId(), detected));
+		else
+		{
+			print(String.format(SleeperTask.TASK_SKIP, pending.getId(), detected));
+			journal.completed(pending.getId(), watchId, "skipped");
+			return false;
+		}
+		
+		triggered = true;
+		stop();
+		provider.close();
+		execute(pending, 0);
+		return true;
+	}
+	
+	/**
+	 * <p>Prints the detection lag of a trigger, with percentiles over the recorded triggers of the watch, and a
+	 * warning if it is above the latency target.</p>
+	 * 
+	 * @param millis the detection lag in milliseconds
+	 */
+	private void printLag(long millis)
+	{
+		print(String.format(SleeperTask.TASK_LAG, millis / 1000.0, lag.getPercentile(0.5) / 1000.0,
+				lag.getPercentile(0.9) / 1000.0, lag.getPercentile(0.99) / 1000.0, lag.getCount()));
+		if(lag.isAboveTarget(millis))
+		{
+			print(String.format(SleeperTask.TASK_LAG_TARGET, millis / 1000.0, lag.getTarget() / 1000.0));
+			if(repeat * 60 * 1000L > lag.getTarget())
+				print(String.format(SleeperTask.TASK_LAG_REPEAT, repeat, repeat * 60));
+		}
+	}
+	
+	/**
+	 * <p>Prints the output of an executed action, or the reason it failed.</p>
+	 * 
+	 * @param result the result of the action
+	 */
+	private void printResult(ActionResult result)
+	{
+		if(result.getError() instanceof IllegalArgumentException)
+		{
+			print(SleeperTask.TASK_NOACTION);
+			return;
+		}
+		if(result.getError() != null)
+		{
+			print("Could not execute action \"" + result.getAction() + "\": " + result.getError().getMessage());
+			return;
+		}
+		if(result.isTimedOut())
+			print("Action did not finish within the time limit and was terminated.");
+		else if(result.getExitCode() != 0)
+			print("Action exited with code " + result.getExitCode() + ".");
+		
+		ConsoleSender.println(result.getStdout());
+		if(!result.getStderr().isEmpty())
+			ConsoleSender.println(result.getStderr());
+		if(result.isTruncated())
+			print("Output of the action was truncated.");
+		
+		if(isVerbose())
+			print(SleeperTask.VERBOSE_COMP);
+	}
+	
+	/**
+	 * <p>Sends a notification about an executed action through the {@link Sender}. The Sender is shared with
+	 * other watches, and delivers the notification when it is closed at the latest.</p>
+	 * 
+	 * @param result the result of the action
+	 */
+	private void notify(ActionResult result)
+	{
+		if(sender == null)
+			return;
+		
+		String status = result.isSuccess() ? "completed" : "failed";
+		sender.send("Sleeper: Keyphrase found, action " + status,
+				"The keyphrase was found at " + getDate() + " and the action was executed.\n\n" + result.toString()
+				+ "\n\nOutput:\n" + result.getStdout() + result.getStderr());
+	}
+	
+	/**
+	 * <p>Returns the current date and time in the yyyy-MM-dd HH:mm format</p>
+	 * @return
+	 */
+	private String getDate()
+	{
+		return ConsoleSender.getTimestamp(System.currentTimeMillis());
+	}
+	
+	/**
+	 * <p>Prints to the System.out but with added prefix of {@link #getDate()}, and of the watch id if the task
+	 * is one of several watches in a daemon</p>
+	 * <p>The text is queued in the {@link ConsoleSender} log and written asynchronously.</p>
+	 * @param text
+	 */
+	public void print(String text)
+	{
+		ConsoleSender.log("SleeperTask", standalone ? text : "[" + watchId + "] " + text);
+	}
+	
+	/**
+	 * <p>Executes the SleeperTask, checking the Provider at once and then at the interval specified
+	 * by SleeperTask.repeat</p>
+	 * 
+	 * <p>If the journal has an incomplete trigger for this watch, it is recovered first.</p>
+	 */
+	public void run()
+	{
+		TriggerJournal.Trigger pending = (journal != null) ? journal.getPending(watchId) : null;
+		if(pending != null && recover(pending))
+			return;
+		
+		synchronized(this)
+		{
+			if(closed)
+				return;
+			if(scheduler == null)
+				scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "sleeper-poll"));
+			provider.setWakeup(this::wakeup);
+			schedule(0);
+		}
+	}
+
+}
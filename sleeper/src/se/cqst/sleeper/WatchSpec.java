@@ -0,0 +1,262 @@
+package se.cqst.sleeper;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import se.cqst.sleeper.parsers.Parser;
+import se.cqst.sleeper.plugins.PluginRegistry;
+import se.cqst.sleeper.providers.Provider;
+import se.cqst.sleeper.senders.Sender;
+
+/**
+ * <p>A <strong>WatchSpec</strong> is the compiled, immutable form of the arguments of a watch: a key phrase,
+ * a <code>Provider</code> and <code>Parser</code> to look for it with, and an action to execute when it is
+ * found.</p>
+ *
+ * <p>Arguments are given as a <code>HashMap&lt;String, String&gt;</code>, which is convenient to build but has to
+ * be looked up and parsed every time a value is needed. A WatchSpec parses the common arguments into typed fields
+ * once, when the watch is created, so that nothing on the polling path has to touch the <code>HashMap</code> or
+ * parse a String again. Classes with arguments of their own (e.g. <code>ptp_ci</code>) should read them through
+ * the typed getters once, in their constructor, and keep the result in a field.</p>
+ *
+ * <p>Every watch has an id, given by the argument <code>watchid</code> or, if not set, derived from every argument
+ * that affects what the watch finds (those of {@link #getStateHash()}): the first 64 bits of their SHA-256 digest,
+ * e.g. <code>w3f9a0c41d2e87b65</code>. Watches that differ in any of them, e.g. only in the address, get different
+ * ids. The digest is computed once per watch: {@link #toArguments()} carries the id as <code>watchid</code>, so
+ * the plugins created from them do not derive it again.</p>
+ *
+ * <p>Short plugin names (e.g. <code>provider=http</code>) are replaced by the class names they stand for in the
+ * {@link PluginRegistry}, so that a watch has the same id and state hash whichever name it is given with.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class WatchSpec {
+
+	/**
+	 * Arguments that do not change what a watch finds, and are left out of {@link #getStateHash()}
+	 */
+	private static final Set<String> STATELESS_KEYS = new HashSet<String>(Arrays.asList(
+			"debug", "verbose", "notify", "repeat", "log_json", "statefile", "statefile_slots", "bufferpool",
+			"bufferpool_maxbody", "journal", "journal_recover", "metrics", "metricsport", "jfr", "jfr_settings",
+			"jfr_maxage", "http_timeout", "latencytarget", "action", "actionmode", "actiontimeout", "actionoutput",
+			"actionworkers", "actionshell", "sender", "watchid"));
+	private static final String[] STATELESS_PREFIXES = { "smtp", "webhook" };
+
+	private final Map<String, String> arguments;
+
+	private final String	id;
+	private final String	provider;
+	private final String	parser;
+	private final String	sender;
+	private final String	keyphrase;
+	private final String	action;
+	private final String	actionMode;
+	private final String	httpAddress;
+	private final int		repeat;
+	private final boolean	verbose;
+	private final boolean	debug;
+	private final boolean	notify;
+	private final int		stateHash;
+
+	/**
+	 * Compile a new <code>WatchSpec</code> from a <code>HashMap</code> of arguments. The map is copied, so later
+	 * changes to it do not affect the WatchSpec.
+	 *
+	 * @param arguments HashMap with arguments
+	 */
+	public WatchSpec(HashMap<String, String> arguments)
+	{
+		HashMap<String, String> copy = new HashMap<String, String>(arguments);
+		PluginRegistry registry = PluginRegistry.getDefault();
+		copy.computeIfPresent("provider", (key, name) -> registry.getClassName(Provider.class, name));
+		copy.computeIfPresent("parser", (key, name) -> registry.getClassName(Parser.class, name));
+		copy.computeIfPresent("sender", (key, name) -> registry.getClassName(Sender.class, name));
+		this.arguments = Collections.unmodifiableMap(copy);
+
+		this.provider = getString("provider", "");
+		this.parser = getString("parser", "");
+		this.sender = getString("sender", "");
+		this.keyphrase = getString("keyphrase", "");
+		this.action = getString("action", "");
+		this.actionMode = getString("actionmode", "exec");
+		this.httpAddress = getString("httpaddress", "");
+		this.repeat = getInt("repeat", 5);
+		this.verbose = getBoolean("verbose");
+		this.debug = getBoolean("debug");
+		this.notify = getBoolean("notify");
+
+		TreeMap<String, String> relevant = getRelevantArguments();
+		String watchId = getString("watchid", "");
+		this.id = watchId.isEmpty() ? computeId(relevant) : watchId;
+		this.stateHash = relevant.toString().hashCode();
+	}
+
+	/**
+	 * <p>Returns the arguments that affect what the watch finds, leaving out e.g. logging, the action and the
+	 * sender, sorted by key.</p>
+	 */
+	private TreeMap<String, String> getRelevantArguments()
+	{
+		TreeMap<String, String> relevant = new TreeMap<String, String>();
+		for(Map.Entry<String, String> argument : arguments.entrySet())
+		{
+			String key = argument.getKey();
+			boolean stateless = STATELESS_KEYS.contains(key);
+			for(String prefix : STATELESS_PREFIXES)
+				stateless |= key.startsWith(prefix);
+			if(!stateless)
+				relevant.put(key, argument.getValue());
+		}
+		return relevant;
+	}
+
+	/**
+	 * <p>Returns an id derived from the <code>relevant</code> arguments: the first 64 bits of the SHA-256 digest
+	 * of every one that is set, as <code>key=value</code> lines. Arguments that are empty are left out, so that
+	 * an argument given as empty (e.g. a default of the command line) and one left out give the same id.</p>
+	 */
+	private static String computeId(TreeMap<String, String> relevant)
+	{
+		StringBuilder text = new StringBuilder();
+		for(Map.Entry<String, String> argument : relevant.entrySet())
+			if(!argument.getValue().isEmpty())
+				text.append(argument.getKey()).append('=').append(argument.getValue()).append('\n');
+
+		byte[] digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256").digest(text.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		catch(NoSuchAlgorithmException ex)
+		{
+			//	Every Java platform is required to support SHA-256
+			throw new IllegalStateException(ex);
+		}
+		StringBuilder id = new StringBuilder("w");
+		for(int i = 0; i < 8; i++)
+			id.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+		return id.toString();
+	}
+
+	/**
+	 * <p>Returns the argument <code>key</code>, or <code>defaultValue</code> if it is not set.</p>
+	 *
+	 * @param key the key
+	 * @param defaultValue the value to use if the argument is missing
+	 * @return the argument
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public String getString(String key, String defaultValue)
+	{
+		String value = arguments.get(key);
+		return (value != null) ? value : defaultValue;
+	}
+
+	/**
+	 * <p>Returns the argument <code>key</code> as a boolean; <code>false</code> unless it is set to "true".</p>
+	 *
+	 * @param key the key
+	 * @return the argument as a boolean
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean getBoolean(String key)
+	{
+		return Boolean.parseBoolean(arguments.get(key));
+	}
+
+	/**
+	 * <p>Returns the argument <code>key</code> as a boolean, or <code>defaultValue</code> if it is not set.</p>
+	 *
+	 * @param key the key
+	 * @param defaultValue the value to use if the argument is missing
+	 * @return the argument as a boolean
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean getBoolean(String key, boolean defaultValue)
+	{
+		String value = arguments.get(key);
+		return (value == null || value.isEmpty()) ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * <p>Returns the argument <code>key</code> as an int, or <code>defaultValue</code> if it is missing or invalid.</p>
+	 *
+	 * @param key the key
+	 * @param defaultValue the value to use if the argument is missing
+	 * @return the argument as an int
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public int getInt(String key, int defaultValue)
+	{
+		try
+		{
+			return Integer.parseInt(arguments.get(key));
+		}
+		catch(NumberFormatException ex)
+		{
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * <p>Returns a modifiable copy of the arguments, e.g. to instantiate a <code>Provider</code>, with
+	 * <code>watchid</code> set to the id of this WatchSpec.</p>
+	 *
+	 * @return the arguments of this WatchSpec
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public HashMap<String, String> toArguments()
+	{
+		HashMap<String, String> copy = new HashMap<String, String>(arguments);
+		copy.put("watchid", id);
+		return copy;
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		return (other instanceof WatchSpec) && ((WatchSpec)other).arguments.equals(this.arguments);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return arguments.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return arguments.toString();
+	}
+
+	//	Getters
+	public String	getId()				{	return id;	}
+	public String	getProvider()		{	return provider;	}
+	public String	getParser()			{	return parser;	}
+	public String	getSender()			{	return sender;	}
+	public String	getKeyphrase()		{	return keyphrase;	}
+	public String	getAction()			{	return action;	}
+	public String	getActionMode()		{	return actionMode;	}
+	public String	getHttpAddress()	{	return httpAddress;	}
+	public int		getRepeat()			{	return repeat;	}
+	public boolean	isVerbose()			{	return verbose;	}
+	public boolean	isDebug()			{	return debug;	}
+	public boolean	isNotify()			{	return notify;	}
+	public int		getStateHash()		{	return stateHash;	}
+
+}
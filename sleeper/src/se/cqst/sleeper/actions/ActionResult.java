@@ -0,0 +1,93 @@
+package se.cqst.sleeper.actions;
+
+/**
+ * <p>An <code>ActionResult</code> holds the outcome of an action executed by an {@link ActionRunner}.</p>
+ * 
+ * <p>Output is captured by {@link OutputBuffer OutputBuffers}, so <code>stdout</code> and <code>stderr</code>
+ * only contain the last part of the output if the action printed more than the buffer size.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class ActionResult {
+	
+	private final String	action;
+	private final int		exitCode;
+	private final boolean	timedOut;
+	private final String	stdout;
+	private final String	stderr;
+	private final boolean	truncated;
+	private final long		duration;
+	private final Exception	error;
+	
+	/**
+	 * Create a new <code>ActionResult</code>
+	 * 
+	 * @param action the action that was executed
+	 * @param exitCode exit code of the action, or -1 if it did not finish
+	 * @param timedOut true, if the action was killed because it exceeded its timeout
+	 * @param stdout captured standard output
+	 * @param stderr captured standard error
+	 * @param truncated true, if output was discarded because the buffers were full
+	 * @param duration execution time in milliseconds
+	 * @param error the exception that prevented the action from running, or <code>null</code>
+	 */
+	public ActionResult(String action, int exitCode, boolean timedOut, String stdout, String stderr,
+			boolean truncated, long duration, Exception error)
+	{
+		this.action = action;
+		this.exitCode = exitCode;
+		this.timedOut = timedOut;
+		this.stdout = stdout;
+		this.stderr = stderr;
+		this.truncated = truncated;
+		this.duration = duration;
+		this.error = error;
+	}
+	
+	/**
+	 * Create an <code>ActionResult</code> for an action that could not be started
+	 * 
+	 * @param action the action
+	 * @param error the reason the action could not be started
+	 * @return a failed <code>ActionResult</code>
+	 */
+	public static ActionResult failed(String action, Exception error)
+	{
+		return new ActionResult(action, -1, false, "", "", false, 0, error);
+	}
+	
+	/**
+	 * <p>Returns true if the action ran to completion with exit code 0.</p>
+	 *
+	 * @return true, if the action succeeded
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean isSuccess()
+	{
+		return error == null && !timedOut && exitCode == 0;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return " action: " + action +
+				"\r\n exitCode: " + exitCode +
+				"\r\n timedOut: " + timedOut +
+				"\r\n truncated: " + truncated +
+				"\r\n duration: " + duration + " ms" +
+				"\r\n error: " + error;
+	}
+	
+	//	Getters
+	public String		getAction()		{	return action;	}
+	public int			getExitCode()	{	return exitCode;	}
+	public boolean		isTimedOut()	{	return timedOut;	}
+	public String		getStdout()		{	return stdout;	}
+	public String		getStderr()		{	return stderr;	}
+	public boolean		isTruncated()	{	return truncated;	}
+	public long			getDuration()	{	return duration;	}
+	public Exception	getError()		{	return error;	}
+
+}
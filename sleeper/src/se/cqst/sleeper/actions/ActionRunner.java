@@ -0,0 +1,88 @@
+package se.cqst.sleeper.actions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>The ActionRunner interface executes the action of a <code>SleeperTask</code> once the key phrase has been
+ * found.</p>
+ * 
+ * <p>Actions are executed asynchronously. {@link #execute(String)} returns immediately with a
+ * <code>CompletableFuture</code> that is completed with an {@link ActionResult} when the action has finished,
+ * so several actions (e.g. from several watches) may run at the same time.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ */
+public interface ActionRunner {
+	
+	/**
+	 * Execute an action.
+	 *
+	 * @param action the command line to execute
+	 * @return a future that is completed with the result of the action
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	CompletableFuture<ActionResult> execute(String action);
+	
+	/**
+	 * <p>Stop accepting new actions and release resources once running actions have finished.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void shutdown()
+	{
+		
+	}
+	
+	/**
+	 * <p>Create the ActionRunner selected by the argument "actionmode".</p>
+	 * 
+	 * <p>"exec" (default) starts a new process for every action, "worker" sends actions to a pool
+	 * of long-lived shell processes.</p>
+	 *
+	 * @param arguments HashMap of arguments
+	 * @return the ActionRunner
+	 * @throws IllegalArgumentException if the action mode does not exist
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	static ActionRunner create(HashMap<String, String> arguments)
+	{
+		String mode = arguments.getOrDefault("actionmode", "exec");
+		switch(mode)
+		{
+		case "worker":
+			return new WorkerActionRunner(arguments);
+		case "exec":
+			return new ExecActionRunner(arguments);
+		default:
+			throw new IllegalArgumentException("The action mode \"" + mode + "\" does not exist. Valid modes are exec and worker.");
+		}
+	}
+	
+	/**
+	 * <p>Split a command line into a command and its arguments.</p>
+	 * 
+	 * <p>The command line is split on whitespace, the same way <code>Runtime.exec(String)</code> does it.</p>
+	 *
+	 * @param action the command line
+	 * @return the command and its arguments
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	static List<String> tokenize(String action)
+	{
+		List<String> command = new ArrayList<String>();
+		if(action == null)
+			return command;
+		StringTokenizer tokenizer = new StringTokenizer(action);
+		while(tokenizer.hasMoreTokens())
+			command.add(tokenizer.nextToken());
+		return command;
+	}
+
+}
@@ -0,0 +1,195 @@
+package se.cqst.sleeper.actions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.cqst.sleeper.WatchSpec;
+
+/**
+ * <p><code>ExecActionRunner</code> is an implementation of the <code>ActionRunner</code> interface that
+ * starts a new process for every action.</p>
+ * 
+ * <p>The standard output and standard error of the process are drained on separate threads while the
+ * process runs, so an action that prints a lot can never block on a full pipe. The output is captured in
+ * {@link OutputBuffer OutputBuffers} of a fixed size, and a process that runs longer than the timeout is
+ * killed.</p>
+ * 
+ * <p>The following arguments are used by ExecActionRunner (all keys are in the format (String, String) but
+ * will be interpreted according to <i>Accepted Value</i>:</p>
+ * 
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>actiontimeout</td><td>int</td><td>Seconds before an action is killed (default 300)</td></tr>
+ * 			<tr><td>actionoutput</td><td>int</td><td>Bytes of stdout/stderr kept per action (default 65536)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class ExecActionRunner implements ActionRunner {
+	
+	public static final int DEFAULT_TIMEOUT = 300;
+	public static final int DEFAULT_OUTPUT = 64 * 1024;
+	public static final int BUFFER_SIZE = 8192;
+	
+	private final ExecutorService executor;
+	private final int timeout;
+	private final int outputSize;
+	
+	/**
+	 * Instantiate a new <code>ExecActionRunner</code> using the provided <code>HashMap</code> with arguments
+	 * 
+	 * @param arguments HashMap with arguments
+	 */
+	public ExecActionRunner(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.timeout = spec.getInt("actiontimeout", DEFAULT_TIMEOUT);
+		this.outputSize = spec.getInt("actionoutput", DEFAULT_OUTPUT);
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "sleeper-action-" + count.incrementAndGet());
+			}
+		});
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.actions.ActionRunner#execute(java.lang.String)
+	 * 
+	 * Start the action in a new process and wait for it on a pooled thread.
+	 */
+	@Override
+	public CompletableFuture<ActionResult> execute(String action)
+	{
+		return CompletableFuture.supplyAsync(() -> this.run(action), this.executor);
+	}
+	
+	/**
+	 * <p>Run <code>action</code> in a new process and wait for it to finish or time out.</p>
+	 *
+	 * @param action the command line to execute
+	 * @return the result of the action
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private ActionResult run(String action)
+	{
+		List<String> command = ActionRunner.tokenize(action);
+		if(command.isEmpty())
+			return ActionResult.failed(action, new IllegalArgumentException("Empty command"));
+		
+		long start = System.currentTimeMillis();
+		OutputBuffer stdout = new OutputBuffer(outputSize);
+		OutputBuffer stderr = new OutputBuffer(outputSize);
+		Process process;
+		try
+		{
+			process = new ProcessBuilder(command).start();
+		}
+		catch(IOException ex)
+		{
+			return ActionResult.failed(action, ex);
+		}
+		
+		try
+		{
+			process.getOutputStream().close();
+		}
+		catch(IOException ex)
+		{ }
+		
+		Future<?> outPump = executor.submit(() -> pump(process.getInputStream(), stdout));
+		Future<?> errPump = executor.submit(() -> pump(process.getErrorStream(), stderr));
+		
+		boolean timedOut = false;
+		int exitCode = -1;
+		try
+		{
+			if(process.waitFor(timeout, TimeUnit.SECONDS))
+				exitCode = process.exitValue();
+			else
+			{
+				timedOut = true;
+				process.destroyForcibly();
+				process.waitFor(5, TimeUnit.SECONDS);
+			}
+			outPump.get(5, TimeUnit.SECONDS);
+			errPump.get(5, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException ex)
+		{
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			return new ActionResult(action, -1, false, stdout.toString(), stderr.toString(),
+					stdout.isTruncated() || stderr.isTruncated(), System.currentTimeMillis() - start, ex);
+		}
+		catch(Exception ex)
+		{
+			//	A pump that has not finished after the process exited is left to finish on its own;
+			//	the output captured so far is still returned
+		}
+		
+		Charset charset = Charset.defaultCharset();
+		return new ActionResult(action, exitCode, timedOut, stdout.toString(charset), stderr.toString(charset),
+				stdout.isTruncated() || stderr.isTruncated(), System.currentTimeMillis() - start, null);
+	}
+	
+	/**
+	 * <p>Copy everything from <code>stream</code> into <code>buffer</code> until the end of the stream.</p>
+	 *
+	 * @param stream an output stream of the process
+	 * @param buffer the buffer to capture output in
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static void pump(InputStream stream, OutputBuffer buffer)
+	{
+		byte[] data = new byte[BUFFER_SIZE];
+		int read;
+		try(InputStream input = stream)
+		{
+			while((read = input.read(data)) != -1)
+				buffer.write(data, 0, read);
+		}
+		catch(IOException ex)
+		{
+			//	The stream is closed when the process is destroyed
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.actions.ActionRunner#shutdown()
+	 * 
+	 * Let running actions finish, but do not accept new ones.
+	 */
+	@Override
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,124 @@
+package se.cqst.sleeper.actions;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>An <code>OutputBuffer</code> is a bounded ring buffer of bytes used to capture the output of an action.</p>
+ * 
+ * <p>When more than <code>capacity</code> bytes are written, the oldest bytes are overwritten, so the buffer
+ * always holds the <i>last</i> <code>capacity</code> bytes of output and a chatty action can never grow it
+ * without limit.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class OutputBuffer {
+	
+	private final byte[] buffer;
+	private int		position;
+	private long	written;
+	
+	/**
+	 * Create a new <code>OutputBuffer</code> holding at most <code>capacity</code> bytes
+	 * 
+	 * @param capacity maximum number of bytes kept
+	 */
+	public OutputBuffer(int capacity)
+	{
+		this.buffer = new byte[Math.max(1, capacity)];
+		this.position = 0;
+		this.written = 0;
+	}
+	
+	/**
+	 * <p>Append <code>length</code> bytes from <code>data</code> starting at <code>offset</code>, overwriting
+	 * the oldest bytes if the buffer is full.</p>
+	 *
+	 * @param data the bytes to write
+	 * @param offset index of the first byte to write
+	 * @param length number of bytes to write
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void write(byte[] data, int offset, int length)
+	{
+		written += length;
+		if(length >= buffer.length)
+		{
+			System.arraycopy(data, offset + length - buffer.length, buffer, 0, buffer.length);
+			position = 0;
+			return;
+		}
+		
+		int first = Math.min(length, buffer.length - position);
+		System.arraycopy(data, offset, buffer, position, first);
+		System.arraycopy(data, offset + first, buffer, 0, length - first);
+		position = (position + length) % buffer.length;
+	}
+	
+	/**
+	 * <p>Returns true if more bytes have been written than the buffer can hold.</p>
+	 *
+	 * @return true, if the oldest output has been discarded
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized boolean isTruncated()
+	{
+		return written > buffer.length;
+	}
+	
+	/**
+	 * <p>Returns the total number of bytes written, including discarded bytes.</p>
+	 *
+	 * @return number of bytes written
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized long getWritten()
+	{
+		return written;
+	}
+	
+	/**
+	 * <p>Returns the bytes currently held by the buffer, oldest first.</p>
+	 *
+	 * @return the buffered bytes
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized byte[] toByteArray()
+	{
+		if(!isTruncated())
+		{
+			byte[] data = new byte[(int)written];
+			System.arraycopy(buffer, 0, data, 0, data.length);
+			return data;
+		}
+		
+		byte[] data = new byte[buffer.length];
+		System.arraycopy(buffer, position, data, 0, buffer.length - position);
+		System.arraycopy(buffer, 0, data, buffer.length - position, position);
+		return data;
+	}
+	
+	/**
+	 * <p>Returns the buffered bytes decoded using <code>charset</code>.</p>
+	 *
+	 * @param charset the charset of the output
+	 * @return the buffered output as text
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public String toString(Charset charset)
+	{
+		return new String(toByteArray(), charset);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return toString(Charset.defaultCharset());
+	}
+
+}
@@ -0,0 +1,495 @@
+package se.cqst.sleeper.actions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.cqst.sleeper.WatchSpec;
+
+/**
+ * <p><code>WorkerActionRunner</code> is an implementation of the <code>ActionRunner</code> interface that
+ * keeps a small pool of long-lived shell processes and sends actions to them over a pipe, instead of starting
+ * a new process from the JVM for every action.</p>
+ * 
+ * <p>Forking a large JVM is expensive, and during a burst of triggers from many watches it dominates the cost
+ * of running actions. A worker is a <code>/bin/sh</code> process that reads one command line at a time from
+ * its standard input, runs it in a subshell and prints a marker line with the exit code when it is done. The
+ * output before the marker is captured as the output of the action.</p>
+ * 
+ * <p>Note the differences to {@link ExecActionRunner}:</p>
+ * <ul>
+ * 	<li>The action is interpreted by the shell, so quoting, pipes and redirects work.</li>
+ * 	<li>Standard error is merged into standard output.</li>
+ * 	<li>Actions share the environment and working directory of the worker. Use <code>actionmode=exec</code>
+ * 		for actions that need to run isolated.</li>
+ * 	<li>When an action times out the worker is killed and replaced. Workers are started with <code>setsid</code>
+ * 		where available, so the processes started by the action are killed along with it.</li>
+ * </ul>
+ * 
+ * <p>The workers belong to a pool that is shared by every WorkerActionRunner in the application with the same
+ * <code>actionshell</code> and <code>actionworkers</code>, so a watch that triggers finds its workers already
+ * running. The pool is started with the first of these runners and closed when the last of them is shut down.</p>
+ * 
+ * <p>The following arguments are used by WorkerActionRunner, in addition to <code>actiontimeout</code> and
+ * <code>actionoutput</code> (see {@link ExecActionRunner}):</p>
+ * 
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>actionworkers</td><td>int</td><td>Number of worker processes (default 2)</td></tr>
+ * 			<tr><td>actionshell</td><td>String</td><td>Shell used by the workers (default /bin/sh)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class WorkerActionRunner implements ActionRunner {
+	
+	public static final int DEFAULT_WORKERS = 2;
+	public static final String DEFAULT_SHELL = "/bin/sh";
+	
+	private static final Map<String, Pool> POOLS = new HashMap<String, Pool>();
+	
+	private final Pool pool;
+	private final AtomicBoolean shutdown;
+	private final int timeout;
+	private final int outputSize;
+	
+	/**
+	 * Instantiate a new <code>WorkerActionRunner</code> using the provided <code>HashMap</code> with arguments
+	 * 
+	 * @param arguments HashMap with arguments
+	 */
+	public WorkerActionRunner(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		int workers = Math.max(1, spec.getInt("actionworkers", DEFAULT_WORKERS));
+		String shell = spec.getString("actionshell", "").isEmpty() ? DEFAULT_SHELL : spec.getString("actionshell", "");
+		this.timeout = spec.getInt("actiontimeout", ExecActionRunner.DEFAULT_TIMEOUT);
+		this.outputSize = spec.getInt("actionoutput", ExecActionRunner.DEFAULT_OUTPUT);
+		this.shutdown = new AtomicBoolean(false);
+		this.pool = Pool.acquire(shell, workers);
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.actions.ActionRunner#execute(java.lang.String)
+	 * 
+	 * Send the action to the next idle worker, starting or replacing workers as needed.
+	 */
+	@Override
+	public CompletableFuture<ActionResult> execute(String action)
+	{
+		if(shutdown.get())
+			throw new RejectedExecutionException("The action runner has been shut down");
+		return CompletableFuture.supplyAsync(() -> pool.run(action, timeout, outputSize), pool.executor);
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.actions.ActionRunner#shutdown()
+	 * 
+	 * Release the pool. The last runner of a pool closes idle workers at once, and busy workers
+	 * when their action has finished.
+	 */
+	@Override
+	public void shutdown()
+	{
+		if(shutdown.compareAndSet(false, true))
+			pool.release();
+	}
+	
+	/**
+	 * <p>A <code>Pool</code> of workers running the same shell, shared by the WorkerActionRunners that use it.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static class Pool
+	{
+		private final String key;
+		private final String shell;
+		private final Charset charset;
+		private final BlockingQueue<Worker> idle;
+		private final ExecutorService executor;
+		private final ScheduledExecutorService timeouts;
+		private volatile boolean closed;
+		private int users;
+		
+		private Pool(String key, String shell, int workers)
+		{
+			this.key = key;
+			this.shell = shell;
+			this.charset = Charset.defaultCharset();
+			this.closed = false;
+			this.users = 0;
+			
+			//	The queue holds one entry per worker; NONE entries are started when first taken
+			this.idle = new ArrayBlockingQueue<Worker>(workers);
+			for(int i = 0; i < workers; i++)
+				this.idle.add(Worker.NONE);
+			
+			AtomicInteger count = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(workers, runnable -> new Thread(runnable, "sleeper-worker-" + count.incrementAndGet()));
+			this.timeouts = Executors.newSingleThreadScheduledExecutor(runnable ->
+			{
+				Thread thread = new Thread(runnable, "sleeper-worker-timeout");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			//	Start the workers ahead of the first action, so that it does not wait for a fork
+			for(int i = 0; i < workers; i++)
+				this.executor.execute(this::prestart);
+		}
+		
+		/**
+		 * Returns the pool of <code>workers</code> workers running <code>shell</code>, started if there is none,
+		 * and counts the caller as one of its users.
+		 */
+		static Pool acquire(String shell, int workers)
+		{
+			String key = workers + ":" + shell;
+			synchronized(POOLS)
+			{
+				Pool pool = POOLS.computeIfAbsent(key, name -> new Pool(name, shell, workers));
+				pool.users++;
+				return pool;
+			}
+		}
+		
+		/**
+		 * Stop counting the caller as a user of the pool, and close the pool if it was the last one.
+		 */
+		void release()
+		{
+			synchronized(POOLS)
+			{
+				if(--users > 0)
+					return;
+				POOLS.remove(key);
+				closed = true;
+			}
+			executor.shutdown();
+			for(Worker worker : idle)
+				worker.close();
+			timeouts.shutdown();
+		}
+		
+		private void prestart()
+		{
+			Worker worker = idle.poll();
+			if(worker == null)
+				return;
+			try
+			{
+				if(!worker.isAlive() && !closed)
+					worker = Worker.start(shell, charset);
+			}
+			catch(IOException ex)
+			{
+				//	The worker is started again by the first action that takes it, which reports the error
+			}
+			finally
+			{
+				if(closed)
+					worker.close();
+				idle.offer(worker);
+			}
+		}
+		
+		/**
+		 * <p>Take an idle worker, run <code>action</code> on it and return it to the pool.</p>
+		 *
+		 * @param action the command line to execute
+		 * @param timeout seconds before the action is killed
+		 * @param outputSize the maximum number of bytes of output to keep
+		 * @return the result of the action
+		 * 
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		ActionResult run(String action, int timeout, int outputSize)
+		{
+			if(action == null || action.trim().isEmpty())
+				return ActionResult.failed(action, new IllegalArgumentException("Empty command"));
+			
+			Worker worker = Worker.NONE;
+			try
+			{
+				worker = idle.take();
+				if(!worker.isAlive())
+					worker = Worker.start(shell, charset);
+				return worker.run(action, timeout, outputSize, this);
+			}
+			catch(IOException ex)
+			{
+				return ActionResult.failed(action, ex);
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				return ActionResult.failed(action, ex);
+			}
+			finally
+			{
+				if(closed)
+					worker.close();
+				idle.offer(worker.isAlive() ? worker : Worker.NONE);
+			}
+		}
+	}
+	
+	/**
+	 * <p>A <code>Worker</code> is a shell process that executes one action at a time.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static class Worker
+	{
+		static final Worker NONE = new Worker();
+		
+		private final Process process;
+		private final Writer input;
+		private final InputStream output;
+		private final AtomicLong pid;
+		
+		//	Output read from the worker but not yet consumed, between start and end
+		private final byte[] chunk;
+		private int start;
+		private int end;
+		
+		private Worker()
+		{
+			this.process = null;
+			this.input = null;
+			this.output = null;
+			this.pid = new AtomicLong(-1);
+			this.chunk = null;
+		}
+		
+		private Worker(Process process, Charset charset) throws IOException
+		{
+			this.process = process;
+			this.input = new OutputStreamWriter(process.getOutputStream(), charset);
+			this.output = process.getInputStream();
+			this.pid = new AtomicLong(-1);
+			this.chunk = new byte[ExecActionRunner.BUFFER_SIZE];
+			
+			//	The worker reports its pid on stderr, and must never block on writing to it after that
+			Thread drain = new Thread(() ->
+			{
+				try(BufferedReader errors = new BufferedReader(new InputStreamReader(process.getErrorStream(), charset)))
+				{
+					String line = errors.readLine();
+					if(line != null && line.trim().matches("[0-9]+"))
+						pid.set(Long.parseLong(line.trim()));
+					while(errors.readLine() != null);
+				}
+				catch(IOException ex)
+				{ }
+			}, "sleeper-worker-stderr");
+			drain.setDaemon(true);
+			drain.start();
+			
+			input.write("echo $$ >&2\n");
+			input.flush();
+		}
+		
+		/**
+		 * Start a new worker running <code>shell</code>, in a new session if <code>setsid</code> exists.
+		 */
+		static Worker start(String shell, Charset charset) throws IOException
+		{
+			Process process;
+			try
+			{
+				process = new ProcessBuilder("setsid", shell).start();
+			}
+			catch(IOException ex)
+			{
+				process = new ProcessBuilder(shell).start();
+			}
+			return new Worker(process, charset);
+		}
+		
+		/**
+		 * Kill the worker along with every process in its process group.
+		 */
+		void kill()
+		{
+			if(pid.get() > 0)
+			{
+				try
+				{
+					new ProcessBuilder("kill", "-KILL", "--", "-" + pid.get()).start();
+				}
+				catch(IOException ex)
+				{ }
+			}
+			process.destroyForcibly();
+		}
+		
+		boolean isAlive()
+		{
+			return process != null && process.isAlive();
+		}
+		
+		/**
+		 * Send <code>action</code> to the worker and read its output until the marker line. The output is read
+		 * in chunks, so an action that writes a lot without a line break never uses more memory than the
+		 * <code>OutputBuffer</code> and one chunk.
+		 */
+		ActionResult run(String action, int timeout, int outputSize, Pool pool) throws IOException
+		{
+			String marker = "__sleeper_" + UUID.randomUUID().toString().replace("-", "") + "__";
+			byte[] pattern = ("\n" + marker + " ").getBytes(StandardCharsets.US_ASCII);
+			OutputBuffer buffer = new OutputBuffer(outputSize);
+			AtomicBoolean timedOut = new AtomicBoolean(false);
+			long start = System.currentTimeMillis();
+			
+			ScheduledFuture<?> kill = pool.timeouts.schedule(() ->
+			{
+				timedOut.set(true);
+				kill();
+			}, timeout, TimeUnit.SECONDS);
+			
+			int exitCode = -1;
+			try
+			{
+				input.write("( " + action + "\n) </dev/null 2>&1; printf '\\n%s %d\\n' '" + marker + "' $?\n");
+				input.flush();
+				
+				if(readUntil(pattern, buffer))
+					exitCode = readExitCode();
+			}
+			catch(IOException ex)
+			{
+				if(!timedOut.get())
+				{
+					close();
+					throw ex;
+				}
+			}
+			finally
+			{
+				kill.cancel(false);
+			}
+			
+			if(exitCode == -1 && !timedOut.get())
+				close();
+			
+			return new ActionResult(action, exitCode, timedOut.get(), buffer.toString(pool.charset), "",
+					buffer.isTruncated(), System.currentTimeMillis() - start, null);
+		}
+		
+		/**
+		 * <p>Copy output to <code>buffer</code> until <code>pattern</code>, which is left out. Returns false if the
+		 * worker exits first.</p>
+		 * 
+		 * <p>The pattern starts with its only line break, so a partial match can only restart at a line break.
+		 * The bytes of a partial match are held back until it fails, and are then written from
+		 * <code>pattern</code>, so a match may span several chunks.</p>
+		 */
+		private boolean readUntil(byte[] pattern, OutputBuffer buffer) throws IOException
+		{
+			int matched = 0;
+			while(fill())
+			{
+				int run = start;
+				while(start < end)
+				{
+					if(chunk[start] == pattern[matched])
+					{
+						if(matched == 0)
+							buffer.write(chunk, run, start - run);
+						start++;
+						if(++matched == pattern.length)
+							return true;
+					}
+					else if(matched > 0)
+					{
+						buffer.write(pattern, 0, matched);
+						matched = 0;
+						run = start;
+					}
+					else
+						start++;
+				}
+				if(matched == 0)
+					buffer.write(chunk, run, start - run);
+			}
+			return false;
+		}
+		
+		/**
+		 * Read the exit code after the marker, up to the end of the line.
+		 */
+		private int readExitCode() throws IOException
+		{
+			int code = 0;
+			while(fill())
+			{
+				byte next = chunk[start++];
+				if(next == '\n')
+					return code;
+				if(next >= '0' && next <= '9' && code < 1000)
+					code = code * 10 + (next - '0');
+			}
+			return -1;
+		}
+		
+		/**
+		 * Read the next chunk of output if the current one has been consumed. Returns false at the end of the
+		 * output.
+		 */
+		private boolean fill() throws IOException
+		{
+			if(start < end)
+				return true;
+			int read = output.read(chunk, 0, chunk.length);
+			start = 0;
+			end = Math.max(0, read);
+			return read > 0;
+		}
+		
+		void close()
+		{
+			if(process == null)
+				return;
+			try
+			{
+				input.close();
+			}
+			catch(IOException ex)
+			{
+				process.destroyForcibly();
+			}
+		}
+	}
+
+}
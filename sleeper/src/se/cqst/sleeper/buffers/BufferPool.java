@@ -0,0 +1,302 @@
+package se.cqst.sleeper.buffers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.cqst.sleeper.metrics.Metrics;
+
+/**
+ * <p><strong>BufferPool</strong> hands out direct (off-heap) <code>ByteBuffers</code> for response bodies and
+ * takes them back when a check is done, so that polling does not allocate a new body on the heap every time.</p>
+ *
+ * <p>Buffers come in size classes that are powers of two, from <code>{@link #MIN_SIZE}</code> to
+ * <code>{@link #MAX_SIZE}</code>. {@link #acquire(int)} returns a buffer of the smallest class that is large enough,
+ * reusing a released buffer of that class if there is one. Requests larger than <code>MAX_SIZE</code> are
+ * allocated exactly and never pooled.</p>
+ *
+ * <p>Released buffers are kept until the pool holds <code>bufferpool</code> MiB (default 64); buffers released
+ * after that are left to the garbage collector. The number of bytes in use, the high-water mark of bytes in use
+ * and the number of bytes kept in the pool are available through the getters and {@link #toString()}.</p>
+ *
+ * <p>{@link #readFully(InputStream, int)} fails for a body larger than <code>bufferpool_maxbody</code> MiB
+ * (default 64), so that a page that never ends can not exhaust direct memory.</p>
+ *
+ * <p>A buffer must be released exactly once, and must not be used after it has been released.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class BufferPool {
+
+	public static final int MIN_SIZE = 4 * 1024;
+	public static final int MAX_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_RETAINED = 64;
+	public static final int DEFAULT_MAX_BODY = 64;
+	public static final int MAX_BODY_LIMIT = Integer.MAX_VALUE - 1;
+	public static final int TRANSFER_SIZE = 8192;
+
+	private static final BufferPool DEFAULT = new BufferPool(DEFAULT_RETAINED * 1024L * 1024L);
+	private static final ThreadLocal<byte[]> TRANSFER = ThreadLocal.withInitial(() -> new byte[TRANSFER_SIZE]);
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+	private volatile long retained;
+	private volatile int maxBody;
+
+	private final AtomicLong inUse;
+	private final AtomicLong highWater;
+	private final AtomicLong pooled;
+	private final AtomicLong acquired;
+	private final AtomicLong allocated;
+
+	/**
+	 * Create a new, empty <code>BufferPool</code>, reading bodies of up to <code>DEFAULT_MAX_BODY</code> MiB
+	 *
+	 * @param retained maximum number of bytes to keep in the pool
+	 */
+	public BufferPool(long retained)
+	{
+		this(retained, DEFAULT_MAX_BODY * 1024 * 1024);
+	}
+
+	/**
+	 * Create a new, empty <code>BufferPool</code>
+	 *
+	 * @param retained maximum number of bytes to keep in the pool
+	 * @param maxBody maximum number of bytes read by {@link #readFully(InputStream, int)}
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(long retained, int maxBody)
+	{
+		this.classes = (ConcurrentLinkedQueue<ByteBuffer>[])new ConcurrentLinkedQueue<?>[getSizeClass(MAX_SIZE) + 1];
+		for(int i = 0; i < classes.length; i++)
+			classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.retained = retained;
+		this.maxBody = Math.min(maxBody, MAX_BODY_LIMIT);
+		this.inUse = new AtomicLong();
+		this.highWater = new AtomicLong();
+		this.pooled = new AtomicLong();
+		this.acquired = new AtomicLong();
+		this.allocated = new AtomicLong();
+	}
+
+	/**
+	 * <p>Returns the pool shared by every <code>Provider</code>.</p>
+	 *
+	 * @return the default pool
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static BufferPool getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * <p>Apply pool arguments (<code>bufferpool</code> and <code>bufferpool_maxbody</code>, in MiB) to the default
+	 * pool, and register its gauges in the default {@link Metrics} registry.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void configure(HashMap<String, String> arguments)
+	{
+		try
+		{
+			DEFAULT.retained = Long.parseLong(arguments.get("bufferpool")) * 1024L * 1024L;
+		}
+		catch(NumberFormatException ex)
+		{ }
+		try
+		{
+			DEFAULT.maxBody = (int)Math.min(Long.parseLong(arguments.get("bufferpool_maxbody")) * 1024L * 1024L, MAX_BODY_LIMIT);
+		}
+		catch(NumberFormatException ex)
+		{ }
+
+		Metrics metrics = Metrics.getDefault();
+		metrics.gauge("sleeper_bufferpool_in_use_bytes", "Bytes of pooled buffers in use.", DEFAULT::getInUse);
+		metrics.gauge("sleeper_bufferpool_high_water_bytes", "Most bytes of pooled buffers in use at once.", DEFAULT::getHighWater);
+		metrics.gauge("sleeper_bufferpool_pooled_bytes", "Bytes of released buffers kept in the pool.", DEFAULT::getPooled);
+		metrics.counter("sleeper_bufferpool_acquired_total", "Buffers acquired from the pool.", DEFAULT::getAcquired);
+		metrics.counter("sleeper_bufferpool_allocated_total", "Buffers allocated because the pool had none to reuse.", DEFAULT::getAllocated);
+	}
+
+	/**
+	 * <p>Returns a cleared direct buffer with a capacity of at least <code>capacity</code> bytes.</p>
+	 *
+	 * @param capacity the minimum capacity
+	 * @return a buffer, which must be returned with {@link #release(ByteBuffer)}
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public ByteBuffer acquire(int capacity)
+	{
+		ByteBuffer buffer = null;
+		if(capacity <= MAX_SIZE)
+		{
+			int sizeClass = getSizeClass(capacity);
+			buffer = classes[sizeClass].poll();
+			if(buffer != null)
+				pooled.addAndGet(-buffer.capacity());
+			else
+				capacity = MIN_SIZE << sizeClass;
+		}
+		if(buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(capacity);
+			allocated.incrementAndGet();
+		}
+
+		buffer.clear();
+		acquired.incrementAndGet();
+		long used = inUse.addAndGet(buffer.capacity());
+		highWater.accumulateAndGet(used, Math::max);
+		return buffer;
+	}
+
+	/**
+	 * <p>Return a buffer to the pool. <code>null</code> is ignored.</p>
+	 *
+	 * @param buffer a buffer returned by {@link #acquire(int)}
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if(buffer == null)
+			return;
+
+		int capacity = buffer.capacity();
+		inUse.addAndGet(-capacity);
+		if(capacity > MAX_SIZE || Integer.bitCount(capacity) != 1 || capacity < MIN_SIZE)
+			return;
+		if(pooled.addAndGet(capacity) > retained)
+		{
+			pooled.addAndGet(-capacity);
+			return;
+		}
+		classes[getSizeClass(capacity)].offer(buffer);
+	}
+
+	/**
+	 * <p>Reads all of <code>stream</code> into a buffer from this pool.</p>
+	 *
+	 * <p>The buffer starts at the size class of <code>expected</code> (e.g. a <code>Content-Length</code>) and
+	 * is replaced by a buffer of the next size class whenever it is full. The returned buffer is flipped, i.e.
+	 * the data is between position 0 and the limit.</p>
+	 *
+	 * <p>A stream longer than the maximum body size fails as soon as it has been read past it, or at once if
+	 * <code>expected</code> is larger, and the buffer is released.</p>
+	 *
+	 * @param stream the stream to read
+	 * @param expected the expected number of bytes, or -1 if unknown
+	 * @return a buffer with the data, which must be returned with {@link #release(ByteBuffer)}
+	 * @throws IOException if the stream could not be read, or is larger than the maximum body size
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public ByteBuffer readFully(InputStream stream, int expected) throws IOException
+	{
+		int max = this.maxBody;
+		if(expected > max)
+			throw new IOException(getTooLargeMessage(max));
+		
+		//	One byte more than expected, or than the maximum, tells the end of the stream from a longer stream
+		ByteBuffer buffer = acquire((int)Math.max(MIN_SIZE, Math.min(expected + 1L, max + 1L)));
+		try
+		{
+			while(read(stream, buffer, buffer.position(), buffer.remaining()) > 0)
+			{
+				if(buffer.position() > max)
+					throw new IOException(getTooLargeMessage(max));
+				if(!buffer.hasRemaining())
+				{
+					ByteBuffer larger = acquire((int)Math.min(buffer.capacity() * 2L, max + 1L));
+					buffer.flip();
+					larger.put(buffer);
+					release(buffer);
+					buffer = larger;
+				}
+			}
+		}
+		catch(IOException | RuntimeException ex)
+		{
+			release(buffer);
+			throw ex;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * <p>Reads from <code>stream</code> into <code>buffer</code>, starting at index <code>offset</code>, until
+	 * <code>length</code> bytes have been read or the end of the stream is reached.</p>
+	 *
+	 * <p>The data is copied through a small transfer array kept per thread. After the call, the position of
+	 * <code>buffer</code> is after the last byte read.</p>
+	 *
+	 * @param stream the stream to read from
+	 * @param buffer the buffer to read into
+	 * @param offset index in <code>buffer</code> of the first byte to read
+	 * @param length maximum number of bytes to read
+	 * @return number of bytes read, 0 at the end of the stream
+	 * @throws IOException if the stream could not be read
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static int read(InputStream stream, ByteBuffer buffer, int offset, int length) throws IOException
+	{
+		byte[] transfer = TRANSFER.get();
+		buffer.limit(buffer.capacity()).position(offset);
+		int total = 0;
+		while(total < length)
+		{
+			int read = stream.read(transfer, 0, Math.min(transfer.length, length - total));
+			if(read == -1)
+				break;
+			buffer.put(transfer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	private static String getTooLargeMessage(int max)
+	{
+		return "The body is larger than " + max + " bytes (bufferpool_maxbody)";
+	}
+
+	/**
+	 * <p>Returns the index of the smallest size class that holds <code>capacity</code> bytes.</p>
+	 */
+	private static int getSizeClass(int capacity)
+	{
+		if(capacity <= MIN_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	/**
+	 * <p>Returns the pool usage as a single line, e.g. for the log.</p>
+	 */
+	@Override
+	public String toString()
+	{
+		return "BufferPool: " + (getInUse() / 1024) + " KiB in use (high water " + (getHighWater() / 1024) + " KiB), "
+				+ (getPooled() / 1024) + " KiB pooled, " + getAllocated() + " of " + getAcquired() + " buffers allocated";
+	}
+
+	//	Getters
+	public long		getInUse()			{	return inUse.get();	}
+	public long		getHighWater()		{	return highWater.get();	}
+	public long		getPooled()			{	return pooled.get();	}
+	public long		getAcquired()		{	return acquired.get();	}
+	public long		getAllocated()		{	return allocated.get();	}
+	public long		getRetained()		{	return retained;	}
+	public int		getMaxBody()		{	return maxBody;	}
+
+}
@@ -0,0 +1,78 @@
+package se.cqst.sleeper.daemon;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>A consistent hash ring that assigns keys (watch ids) to nodes. Every node is placed on the ring at
+ * <code>vnodes</code> points, and a key belongs to the first node at or after its own point.</p>
+ *
+ * <p>When a node joins, it only takes over the keys that fall just before its points, about 1/n of them, and
+ * when it leaves only its own keys move, spread over the remaining nodes. Points are derived from MD5, so every
+ * process computes the same ring from the same set of nodes.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class HashRing {
+
+	private final TreeMap<Long, String> points;
+
+	/**
+	 * Create a ring of <code>nodes</code>
+	 *
+	 * @param nodes the names of the nodes
+	 * @param vnodes the number of points of every node
+	 */
+	public HashRing(Collection<String> nodes, int vnodes)
+	{
+		this.points = new TreeMap<Long, String>();
+		for(String node : nodes)
+			for(int i = 0; i < vnodes; i++)
+			{
+				//	On the unlikely collision, the smallest name wins on every node
+				Long point = hash(node + "#" + i);
+				String other = points.get(point);
+				if(other == null || node.compareTo(other) < 0)
+					points.put(point, node);
+			}
+	}
+
+	/**
+	 * Returns the node that <code>key</code> belongs to
+	 *
+	 * @param key the key
+	 * @return the node, or null if the ring is empty
+	 */
+	public String getOwner(String key)
+	{
+		if(points.isEmpty())
+			return null;
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+		return (point != null) ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * Returns the first 64 bits of the MD5 of <code>text</code>
+	 */
+	static long hash(String text)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for(int i = 0; i < 8; i++)
+				hash = (hash << 8) | (digest[i] & 0xff);
+			return hash;
+		}
+		catch(NoSuchAlgorithmException ex)
+		{
+			throw new IllegalStateException("MD5 is not available", ex);
+		}
+	}
+
+}
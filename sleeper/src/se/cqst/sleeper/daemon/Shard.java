@@ -0,0 +1,429 @@
+package se.cqst.sleeper.daemon;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A <strong>Shard</strong> lets several {@link WatchDaemon} processes split the watches of a shared watch file
+ * between them, coordinated through a shared directory only:</p>
+ *
+ * <ul>
+ * 	<li><code>members/&lt;node&gt;</code>: one file per process, whose modification time is its heartbeat. A node
+ * 		whose heartbeat is older than the lease time is considered gone.</li>
+ * 	<li><code>leases/&lt;watch id&gt;.lease</code>: the node that runs a watch. A lease is only valid while its
+ * 		node is alive, so leases never have to be renewed one by one.</li>
+ * 	<li><code>fired/&lt;watch id&gt;.fired</code>: written by the node that runs a watch when it finds its key
+ * 		phrase, with a fingerprint of the watch. A node taking over the watch does not start it again as long as
+ * 		the fingerprint is unchanged, i.e. until its line in the watch file is changed.</li>
+ * 	<li><code>shard.lock</code>: locked (with <code>FileChannel.lock()</code>) while a node updates its
+ * 		heartbeat and leases, so two nodes never take the same watch.</li>
+ * </ul>
+ *
+ * <p>Watches are assigned to the live nodes with a {@link HashRing} on their ids, so a node joining or leaving
+ * only moves about 1/n of the watches. A node releases a watch as soon as it sees that another node owns it,
+ * and the new owner takes it over at its next round once the lease is released, or once the old node is gone.
+ * A watch is therefore never run by two nodes at the same time, and moves within two rounds.</p>
+ *
+ * <p>The heartbeat is kept up by {@link #heartbeat()}, which should run on a thread of its own so that it is not
+ * held up by a busy daemon. If a node misses its heartbeat (e.g. it was suspended), it checks every lease it
+ * holds again at the next assignment, and stops the watches that were taken over in the meantime.</p>
+ *
+ * <p>The <code>statefile</code> and <code>journal</code> of a node are its own, as nodes would overwrite each
+ * other's records in a shared file: {@link #localize(HashMap)} appends the name of the node to both. Set
+ * <code>shardnode</code> to a name that stays the same across restarts for a node to find its files again.</p>
+ *
+ * <p>The following keys are used by Shard:</p>
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>shard</td><td>directory</td><td>The shared directory; enables sharding of the watch file</td></tr>
+ * 			<tr><td>shardnode</td><td>String</td><td>Name of this node, unique in the shard (default pid@host)</td></tr>
+ * 			<tr><td>shardlease</td><td>int</td><td>Seconds without a heartbeat before a node is gone (default 15)</td></tr>
+ * 			<tr><td>shardvnodes</td><td>int</td><td>Points of every node on the hash ring (default 128)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class Shard {
+
+	public static final int DEFAULT_LEASE = 15;
+	public static final int DEFAULT_VNODES = 128;
+
+	/**
+	 * Member files not updated for this many lease times are deleted
+	 */
+	public static final int STALE_LEASES = 4;
+
+	private static final Pattern SAFE_NAME = Pattern.compile("[A-Za-z0-9._@-]{1,100}");
+
+	private final Path members;
+	private final Path leases;
+	private final Path fired;
+	private final Path lockFile;
+	private final String node;
+	private final long leaseMillis;
+	private final int vnodes;
+	private final Set<String> held;
+	private Set<String> nodes;
+	private volatile long lastHeartbeat;
+	private volatile boolean missed;
+	private volatile boolean closed;
+
+	/**
+	 * Join the shard in <code>directory</code>. The node is not visible to the others until the first call to
+	 * {@link #assign(Collection)}.
+	 *
+	 * @param directory the shared directory
+	 * @param node the name of this node
+	 * @param leaseMillis the time without a heartbeat before a node is gone
+	 * @param vnodes the number of points of every node on the hash ring
+	 * @throws IOException if the directory could not be created
+	 */
+	public Shard(Path directory, String node, long leaseMillis, int vnodes) throws IOException
+	{
+		this.members = Files.createDirectories(directory.resolve("members"));
+		this.leases = Files.createDirectories(directory.resolve("leases"));
+		this.fired = Files.createDirectories(directory.resolve("fired"));
+		this.lockFile = directory.resolve("shard.lock");
+		this.node = getSafeName(node);
+		this.leaseMillis = leaseMillis;
+		this.vnodes = vnodes;
+		this.held = new HashSet<String>();
+		this.nodes = new TreeSet<String>();
+		this.lastHeartbeat = 0;
+		this.missed = false;
+		this.closed = false;
+	}
+
+	/**
+	 * <p>Returns the Shard configured by the argument <code>shard</code>, or null if it is not set.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 * @return the Shard, or null
+	 * @throws IOException if the directory could not be created
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static Shard create(HashMap<String, String> arguments) throws IOException
+	{
+		String directory = arguments.get("shard");
+		if(directory == null || directory.isEmpty())
+			return null;
+		return new Shard(Paths.get(directory), getNode(arguments), getInt(arguments, "shardlease", DEFAULT_LEASE) * 1000L,
+				getInt(arguments, "shardvnodes", DEFAULT_VNODES));
+	}
+
+	/**
+	 * <p>Give this node a <code>statefile</code> and <code>journal</code> of its own, if the argument
+	 * <code>shard</code> is set, by appending the name of the node to the paths in <code>arguments</code>. Must
+	 * be called before the state file and journal are opened.</p>
+	 *
+	 * @param arguments HashMap with arguments, changed in place
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void localize(HashMap<String, String> arguments)
+	{
+		if(arguments.getOrDefault("shard", "").isEmpty())
+			return;
+		String node = getNode(arguments);
+		for(String key : new String[] { "statefile", "journal" })
+			arguments.computeIfPresent(key, (name, path) -> path.isEmpty() ? path : path + "." + node);
+	}
+
+	/**
+	 * <p>Update the heartbeat of this node, and take and release leases so that it holds the watches of
+	 * <code>watchIds</code> that the hash ring assigns to it (as far as the other nodes have released them).
+	 * Should be called at least every {@link #getRoundMillis()}.</p>
+	 *
+	 * @param watchIds the ids of every watch in the watch file
+	 * @return the ids of the watches this node should run
+	 * @throws IOException if the shared directory could not be read or written
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized Set<String> assign(Collection<String> watchIds) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			channel.lock();
+			long now = System.currentTimeMillis();
+			touch(now);
+			boolean missed = this.missed;
+			this.missed = false;
+			this.nodes = getLiveNodes(now);
+			HashRing ring = new HashRing(nodes, vnodes);
+			Set<String> wanted = (watchIds instanceof Set) ? (Set<String>)watchIds : new HashSet<String>(watchIds);
+
+			for(Iterator<String> iterator = held.iterator(); iterator.hasNext(); )
+			{
+				String id = iterator.next();
+				if(!wanted.contains(id) || !node.equals(ring.getOwner(id)))
+				{
+					release(id);
+					iterator.remove();
+				}
+				else if(missed && !node.equals(readLease(id)))
+					iterator.remove();
+			}
+
+			for(String id : wanted)
+			{
+				if(held.contains(id) || !node.equals(ring.getOwner(id)))
+					continue;
+				String holder = readLease(id);
+				if(holder == null || holder.equals(node) || !nodes.contains(holder))
+				{
+					Files.write(getLease(id), node.getBytes(StandardCharsets.UTF_8));
+					held.add(id);
+				}
+			}
+			return new HashSet<String>(held);
+		}
+	}
+
+	/**
+	 * <p>Leave the shard: release every lease and remove this node, so the others take over its watches at their
+	 * next round instead of waiting for the heartbeat to expire.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		try(FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			channel.lock();
+			for(String id : held)
+				release(id);
+			held.clear();
+			Files.deleteIfExists(members.resolve(node));
+		}
+		catch(IOException ex)
+		{
+			//	The others take over when the heartbeat expires
+		}
+	}
+
+	/**
+	 * Returns how often {@link #assign(Collection)} should be called: a third of the lease time
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getRoundMillis()
+	{
+		return Math.max(1000, leaseMillis / 3);
+	}
+
+	public String	getNode()					{	return node;	}
+	public synchronized Set<String>	getNodes()	{	return new TreeSet<String>(nodes);	}
+
+	/**
+	 * <p>Update the heartbeat of this node. Should be called at least every {@link #getRoundMillis()}, on a thread
+	 * that is not held up by anything else, since the other nodes take over the watches of this node if its
+	 * heartbeat is older than the lease time.</p>
+	 *
+	 * <p>Unlike {@link #assign(Collection)}, the heartbeat does not wait for <code>shard.lock</code>.</p>
+	 *
+	 * @throws IOException if the member file could not be written
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void heartbeat() throws IOException
+	{
+		if(!closed)
+			touch(System.currentTimeMillis());
+	}
+
+	/**
+	 * <p>Record that the watch <code>id</code> has found its key phrase, so that a node taking it over does not
+	 * run its action again while its <code>fingerprint</code> is unchanged.</p>
+	 *
+	 * @param id the id of the watch
+	 * @param fingerprint the fingerprint of the definition of the watch
+	 * @throws IOException if the record could not be written
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void markFired(String id, String fingerprint) throws IOException
+	{
+		Path record = getFired(id);
+		Path temporary = fired.resolve(record.getFileName() + "." + node + ".tmp");
+		Files.write(temporary, fingerprint.getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * <p>Returns true if the watch <code>id</code> has found its key phrase, on any node, with the same
+	 * <code>fingerprint</code>.</p>
+	 *
+	 * @param id the id of the watch
+	 * @param fingerprint the fingerprint of the definition of the watch
+	 * @return true, if the watch has already triggered
+	 * @throws IOException if the record could not be read
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean isFired(String id, String fingerprint) throws IOException
+	{
+		try
+		{
+			return new String(Files.readAllBytes(getFired(id)), StandardCharsets.UTF_8).equals(fingerprint);
+		}
+		catch(NoSuchFileException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * <p>Remove the record that the watch <code>id</code> has found its key phrase, e.g. because its line has been
+	 * changed or removed.</p>
+	 *
+	 * @param id the id of the watch
+	 * @throws IOException if the record could not be deleted
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void clearFired(String id) throws IOException
+	{
+		Files.deleteIfExists(getFired(id));
+	}
+
+	/**
+	 * Touch the member file of this node, and remember if the previous heartbeat is older than the lease time
+	 */
+	private void touch(long now) throws IOException
+	{
+		synchronized(members)
+		{
+			if(lastHeartbeat > 0 && now - lastHeartbeat > leaseMillis)
+				missed = true;
+			Path member = members.resolve(node);
+			if(!Files.exists(member))
+				Files.write(member, node.getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(member, FileTime.fromMillis(now));
+			lastHeartbeat = now;
+		}
+	}
+
+	/**
+	 * Returns the nodes with a heartbeat within the lease time, deleting those that have been gone for long
+	 */
+	private Set<String> getLiveNodes(long now) throws IOException
+	{
+		Set<String> live = new TreeSet<String>();
+		live.add(node);
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(members))
+		{
+			for(Path file : files)
+			{
+				long age;
+				try
+				{
+					age = now - Files.getLastModifiedTime(file).toMillis();
+				}
+				catch(NoSuchFileException ex)
+				{
+					continue;
+				}
+				if(age <= leaseMillis)
+					live.add(file.getFileName().toString());
+				else if(age > STALE_LEASES * leaseMillis)
+					Files.deleteIfExists(file);
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Delete the lease of watch <code>id</code>, unless another node has taken it over
+	 */
+	private void release(String id) throws IOException
+	{
+		if(node.equals(readLease(id)))
+			Files.deleteIfExists(getLease(id));
+	}
+
+	/**
+	 * Returns the node holding the lease of watch <code>id</code>, or null if it has none
+	 */
+	private String readLease(String id) throws IOException
+	{
+		try
+		{
+			return new String(Files.readAllBytes(getLease(id)), StandardCharsets.UTF_8).trim();
+		}
+		catch(NoSuchFileException ex)
+		{
+			return null;
+		}
+	}
+
+	private Path getLease(String id)
+	{
+		return leases.resolve(getFileName(id) + ".lease");
+	}
+
+	private Path getFired(String id)
+	{
+		return fired.resolve(getFileName(id) + ".fired");
+	}
+
+	private static String getFileName(String id)
+	{
+		return SAFE_NAME.matcher(id).matches() ? id : "h" + Long.toHexString(HashRing.hash(id));
+	}
+
+	/**
+	 * Returns the name of this node given by <code>shardnode</code>, or pid@host, made safe to use in file names
+	 */
+	private static String getNode(HashMap<String, String> arguments)
+	{
+		return getSafeName(arguments.getOrDefault("shardnode", ManagementFactory.getRuntimeMXBean().getName()));
+	}
+
+	private static String getSafeName(String node)
+	{
+		return SAFE_NAME.matcher(node).matches() ? node : node.replaceAll("[^A-Za-z0-9._@-]", "_");
+	}
+
+	private static int getInt(HashMap<String, String> arguments, String key, int defaultValue)
+	{
+		try
+		{
+			return Math.max(1, Integer.parseInt(arguments.get(key)));
+		}
+		catch(NumberFormatException ex)
+		{
+			return defaultValue;
+		}
+	}
+
+}
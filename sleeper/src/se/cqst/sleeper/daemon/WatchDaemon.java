@@ -0,0 +1,623 @@
+package se.cqst.sleeper.daemon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.cqst.sleeper.SleeperTask;
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.metrics.Metrics;
+import se.cqst.sleeper.plugins.PluginRegistry;
+import se.cqst.sleeper.providers.Provider;
+import se.cqst.sleeper.senders.ConsoleSender;
+import se.cqst.sleeper.senders.SharedSenders;
+import se.cqst.sleeper.state.StateStore;
+
+/**
+ * <p><strong>WatchDaemon</strong> runs every watch in a watch file in one long-running process, and applies
+ * changes to the file while it runs.</p>
+ *
+ * <p>A watch file has one watch per line, given with the same <code>key=value</code> arguments as on the command
+ * line. Values with whitespace are quoted with <code>"</code> or <code>'</code> (in double quotes, <code>\</code>
+ * escapes the next character), and everything after a <code>#</code> outside of quotes is a comment:</p>
+ *
+ * <p><code>watchid=deploy provider=gum keyphrase=Deploy action="/opt/deploy.sh --all"   # the deploy mailbox</code></p>
+ *
+ * <p>The arguments given to the daemon itself, other than those below, are defaults for every watch in the file.
+ * Watches are told apart by their id (the argument <code>watchid</code>, or derived from the arguments that
+ * affect what the watch finds, see {@link WatchSpec}), which must be unique within the file.</p>
+ *
+ * <p>The file is watched with a <code>WatchService</code>. When it changes, it is read again and compared with
+ * the running watches, by id:</p>
+ *
+ * <ul>
+ * 	<li>A watch that is new is started, and a watch that is gone is closed, and its slots in the
+ * 		<code>statefile</code> and its metrics are dropped.</li>
+ * 	<li>A watch whose arguments have not changed keeps running untouched.</li>
+ * 	<li>A watch that only changed arguments of its task (e.g. <code>repeat</code>, <code>action</code> or
+ * 		<code>sender</code>, see {@link SleeperTask#TASK_KEYS}) is retuned in place, keeping its Provider with its
+ * 		session, <code>ETag</code>, seen mails and buffers.</li>
+ * 	<li>Any other change replaces the watch with a new one. State kept in the <code>statefile</code> is
+ * 		restored if the arguments that affect what the watch finds are unchanged; the metrics start over.</li>
+ * </ul>
+ *
+ * <p>With the argument <code>shard</code>, several daemons on the same watch file split its watches between
+ * them through a shared directory; see {@link Shard}. Each daemon then only runs the watches assigned to it,
+ * and starts or closes watches as nodes join and leave. The heartbeat and the assignment run on threads of
+ * their own, apart from the threads that poll. A watch that has found its key phrase is recorded in the shard,
+ * and is not started again by the node that takes it over.</p>
+ *
+ * <p>A watch that has found its key phrase stops polling, as in a single-watch run, and is not started again
+ * until its line is changed. Lines that can not be parsed, or watches that can not be created, are reported
+ * and skipped without affecting the others. If the file can not be read, the running watches are kept.</p>
+ *
+ * <p>The following keys are used by WatchDaemon:</p>
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>watchfile</td><td>path</td><td>The watch file; runs Sleeper as a daemon</td></tr>
+ * 			<tr><td>daemonthreads</td><td>int</td><td>Threads that poll the watches (default 8)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class WatchDaemon {
+
+	public static final int DEFAULT_THREADS = 8;
+	public static final long DEBOUNCE_MILLIS = 200;
+
+	public static final String DAEMON_LOADED = "Loaded %s: %d watch(es) running, %d added, %d removed, %d retuned, %d replaced.";
+	public static final String DAEMON_UNREADABLE = "Could not read %s, keeping the running watches: %s";
+	public static final String DAEMON_NOT_WATCHING = "Could not watch %s for changes, it will not be reloaded: %s";
+	public static final String LINE_SKIPPED = "Line %d of %s was skipped: %s";
+	public static final String WATCH_FAILED = "Watch %s could not be started: %s";
+	public static final String WATCH_NOT_RETUNED = "Watch %s could not be changed and keeps its old arguments: %s";
+	public static final String SHARD_STATUS = "Shard node %s runs %d of %d watch(es), with %d node(s): %s";
+	public static final String SHARD_FAILED = "Could not update the shard, keeping the running watches: %s";
+	public static final String SHARD_UNAVAILABLE = "Could not join the shard in %s: %s";
+	public static final String SHARD_NO_HEARTBEAT = "Could not update the heartbeat of shard node %s: %s";
+	public static final String WATCH_FIRED = "Watch %s has already found its key phrase on another node and is not started again.";
+	public static final String WATCH_NOT_RECORDED = "Could not record in the shard that watch %s has found its key phrase: %s";
+
+	private final Path file;
+	private final HashMap<String, String> defaults;
+	private final ScheduledExecutorService scheduler;
+	private final Shard shard;
+	private final ScheduledExecutorService shardScheduler;
+	private final Map<String, Watch> watches;
+	private Map<String, WatchSpec> defined;
+	private Map<String, String> fingerprints;
+
+	/**
+	 * Create a new <code>WatchDaemon</code> for the file in the argument <code>watchfile</code>. No watches
+	 * are started until {@link #reload()} is called.
+	 *
+	 * @param arguments HashMap with arguments, used as defaults for every watch
+	 * @throws IOException if the shard directory could not be used
+	 */
+	public WatchDaemon(HashMap<String, String> arguments) throws IOException
+	{
+		this.file = Paths.get(arguments.get("watchfile")).toAbsolutePath();
+		this.defaults = new HashMap<String, String>(arguments);
+		this.defaults.remove("watchfile");
+		this.defaults.remove("daemonthreads");
+		for(String key : new String[] { "shard", "shardnode", "shardlease", "shardvnodes" })
+			this.defaults.remove(key);
+		this.shard = Shard.create(arguments);
+
+		int threads = DEFAULT_THREADS;
+		try
+		{
+			threads = Math.max(1, Integer.parseInt(arguments.get("daemonthreads")));
+		}
+		catch(NumberFormatException ex)
+		{ }
+		AtomicInteger count = new AtomicInteger();
+		this.scheduler = Executors.newScheduledThreadPool(threads, runnable ->
+				new Thread(runnable, "sleeper-poll-" + count.incrementAndGet()));
+		//	Two threads, so that a slow assignment never holds up the heartbeat
+		AtomicInteger shardCount = new AtomicInteger();
+		this.shardScheduler = (shard == null) ? null : Executors.newScheduledThreadPool(2, runnable ->
+		{
+			Thread thread = new Thread(runnable, "sleeper-shard-" + shardCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.watches = new LinkedHashMap<String, Watch>();
+		this.defined = new LinkedHashMap<String, WatchSpec>();
+		this.fingerprints = new HashMap<String, String>();
+	}
+
+	/**
+	 * <p>Start the watches in the watch file given in <code>arguments</code>, and reload it whenever it changes.
+	 * Does not return unless the file can no longer be watched; the watches keep running in that case.</p>
+	 *
+	 * <p>When sharded, the assignment of watches is updated every {@link Shard#getRoundMillis()}, and the shard
+	 * is left when the process exits.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void start(HashMap<String, String> arguments)
+	{
+		WatchDaemon daemon;
+		try
+		{
+			daemon = new WatchDaemon(arguments);
+		}
+		catch(IOException ex)
+		{
+			ConsoleSender.log("WatchDaemon", String.format(SHARD_UNAVAILABLE, arguments.get("shard"), ex));
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(daemon::close, "sleeper-daemon-close"));
+		daemon.reload();
+		if(daemon.shard != null)
+		{
+			long round = daemon.shard.getRoundMillis();
+			daemon.shardScheduler.scheduleAtFixedRate(daemon::heartbeat, round, round, TimeUnit.MILLISECONDS);
+			daemon.shardScheduler.scheduleWithFixedDelay(daemon::rebalance, round, round, TimeUnit.MILLISECONDS);
+		}
+		try
+		{
+			daemon.watch();
+		}
+		catch(IOException ex)
+		{
+			daemon.print(String.format(DAEMON_NOT_WATCHING, daemon.file, ex.getMessage()));
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * <p>Read the watch file and apply the difference to the running watches (see the class description).</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void reload()
+	{
+		List<String> lines;
+		try
+		{
+			lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		}
+		catch(IOException ex)
+		{
+			print(String.format(DAEMON_UNREADABLE, file, ex));
+			return;
+		}
+
+		Map<String, WatchSpec> specs = new LinkedHashMap<String, WatchSpec>();
+		Map<String, String> lineFingerprints = new HashMap<String, String>();
+		for(int i = 0; i < lines.size(); i++)
+		{
+			HashMap<String, String> line;
+			try
+			{
+				line = parseLine(lines.get(i));
+			}
+			catch(IllegalArgumentException ex)
+			{
+				print(String.format(LINE_SKIPPED, i + 1, file.getFileName(), ex.getMessage()));
+				continue;
+			}
+			if(line.isEmpty())
+				continue;
+
+			HashMap<String, String> arguments = new HashMap<String, String>(defaults);
+			arguments.putAll(line);
+			WatchSpec spec = new WatchSpec(arguments);
+			if(spec.isNotify())
+				print(String.format(LINE_SKIPPED, i + 1, file.getFileName(), "notify can only be used on the command line"));
+			else if(specs.containsKey(spec.getId()))
+				print(String.format(LINE_SKIPPED, i + 1, file.getFileName(), "the watch id " + spec.getId()
+						+ " is already used by an earlier line; set watchid to tell them apart"));
+			else
+			{
+				specs.put(spec.getId(), spec);
+				lineFingerprints.put(spec.getId(), Long.toHexString(HashRing.hash(new TreeMap<String, String>(line).toString())));
+			}
+		}
+		this.defined = specs;
+		this.fingerprints = lineFingerprints;
+		apply(true);
+	}
+
+	/**
+	 * <p>Update the assignment of watches to this node, and start or close watches accordingly.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void rebalance()
+	{
+		try
+		{
+			apply(false);
+		}
+		catch(RuntimeException ex)
+		{
+			print(String.format(SHARD_FAILED, ex));
+		}
+	}
+
+	/**
+	 * Update the heartbeat of this node in the shard
+	 */
+	private void heartbeat()
+	{
+		try
+		{
+			shard.heartbeat();
+		}
+		catch(IOException | RuntimeException ex)
+		{
+			print(String.format(SHARD_NO_HEARTBEAT, shard.getNode(), ex));
+		}
+	}
+
+	/**
+	 * Apply the difference between the defined watches (those assigned to this node, if sharded) and the running
+	 * watches, and report it if anything changed or <code>reloaded</code> is set
+	 */
+	private void apply(boolean reloaded)
+	{
+		Map<String, WatchSpec> specs = defined;
+		if(shard != null)
+		{
+			Set<String> assigned;
+			try
+			{
+				assigned = shard.assign(defined.keySet());
+			}
+			catch(IOException ex)
+			{
+				print(String.format(SHARD_FAILED, ex));
+				return;
+			}
+			specs = new LinkedHashMap<String, WatchSpec>();
+			for(WatchSpec spec : defined.values())
+				if(assigned.contains(spec.getId()))
+					specs.put(spec.getId(), spec);
+		}
+
+		int added = 0, removed = 0, retuned = 0, replaced = 0;
+		for(Iterator<Watch> iterator = watches.values().iterator(); iterator.hasNext(); )
+		{
+			Watch watch = iterator.next();
+			if(!specs.containsKey(watch.spec.getId()))
+			{
+				watch.close();
+				iterator.remove();
+				removed++;
+				if(!defined.containsKey(watch.spec.getId()))
+					forget(watch.spec.getId());
+			}
+		}
+		for(WatchSpec spec : specs.values())
+		{
+			Watch current = watches.get(spec.getId());
+			if(current == null)
+			{
+				if(startWatch(spec))
+					added++;
+			}
+			else if(current.spec.equals(spec))
+				continue;
+			else if(!current.isTriggered() && SleeperTask.canRetune(current.spec, spec))
+			{
+				try
+				{
+					current.task.retune(spec);
+					watches.put(spec.getId(), new Watch(spec, current.task));
+					retuned++;
+				}
+				catch(RuntimeException ex)
+				{
+					print(String.format(WATCH_NOT_RETUNED, spec.getId(), ex.getMessage()));
+				}
+			}
+			else
+			{
+				current.close();
+				watches.remove(spec.getId());
+				Metrics.getDefault().removeWatch(spec.getId());
+				if(startWatch(spec))
+					replaced++;
+				else
+					removed++;
+			}
+		}
+		boolean changed = (added + removed + retuned + replaced) > 0;
+		if(reloaded)
+			print(String.format(DAEMON_LOADED, file.getFileName(), watches.size(), added, removed, retuned, replaced));
+		if(shard != null && (reloaded || changed))
+			print(String.format(SHARD_STATUS, shard.getNode(), watches.size(), defined.size(), shard.getNodes().size(),
+					String.join(", ", shard.getNodes())));
+	}
+
+	/**
+	 * <p>Watch the directory of the watch file and {@link #reload()} when the file is changed or replaced. Editors
+	 * often write a file in several steps, so the file is reloaded once no more changes have been seen for
+	 * {@link #DEBOUNCE_MILLIS}.</p>
+	 *
+	 * @throws IOException if the directory can not be watched
+	 * @throws InterruptedException if the thread is interrupted
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void watch() throws IOException, InterruptedException
+	{
+		Path directory = file.getParent();
+		try(WatchService service = directory.getFileSystem().newWatchService())
+		{
+			directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			while(true)
+			{
+				WatchKey key = service.take();
+				boolean changed = isChanged(key);
+				if(!key.reset())
+					throw new IOException(directory + " is no longer accessible");
+				if(!changed)
+					continue;
+
+				WatchKey more;
+				while((more = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+				{
+					more.pollEvents();
+					more.reset();
+				}
+				reload();
+			}
+		}
+	}
+
+	/**
+	 * <p>Close every watch, stop polling, leave the shard and close the shared senders.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void close()
+	{
+		if(shardScheduler != null)
+			shardScheduler.shutdown();
+		scheduler.shutdown();
+		for(Watch watch : watches.values())
+			watch.close();
+		watches.clear();
+		if(shard != null)
+			shard.close();
+		SharedSenders.closeAll();
+	}
+
+	public synchronized int	getWatchCount()	{	return watches.size();	}
+
+	/**
+	 * Create the Provider and SleeperTask of <code>spec</code> and start it. Returns false, after reporting why,
+	 * if it could not be created, or if it has already found its key phrase on another node of the shard.
+	 */
+	private boolean startWatch(WatchSpec spec)
+	{
+		String id = spec.getId();
+		String fingerprint = fingerprints.get(id);
+		if(shard != null && isFired(id, fingerprint))
+		{
+			print(String.format(WATCH_FIRED, id));
+			watches.put(id, new Watch(spec, null));
+			return false;
+		}
+
+		Provider provider = null;
+		try
+		{
+			provider = PluginRegistry.getDefault().create(Provider.class, spec.getProvider(), spec.toArguments());
+			if(spec.isDebug())
+				ConsoleSender.println(spec.toString());
+			SleeperTask task = new SleeperTask(scheduler);
+			task.setProvider(provider);
+			task.configure(spec);
+			if(shard != null)
+				task.setOnTrigger(() -> markFired(id, fingerprint));
+			watches.put(id, new Watch(spec, task));
+			task.run();
+			return true;
+		}
+		catch(RuntimeException ex)
+		{
+			if(provider != null)
+				provider.close();
+			print(String.format(WATCH_FAILED, spec.getId(), ex.getMessage()));
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if the shard records that watch <code>id</code> has found its key phrase with the same line.
+	 * A record of an earlier version of the line is removed.
+	 */
+	private boolean isFired(String id, String fingerprint)
+	{
+		try
+		{
+			if(shard.isFired(id, fingerprint))
+				return true;
+			shard.clearFired(id);
+		}
+		catch(IOException ex)
+		{
+			print(String.format(SHARD_FAILED, ex));
+		}
+		return false;
+	}
+
+	private void markFired(String id, String fingerprint)
+	{
+		try
+		{
+			shard.markFired(id, fingerprint);
+		}
+		catch(IOException ex)
+		{
+			print(String.format(WATCH_NOT_RECORDED, id, ex));
+		}
+	}
+
+	/**
+	 * Drop everything kept for watch <code>id</code>, which is no longer in the watch file: its slots in the state
+	 * file, its metrics and, when sharded, the record that it has found its key phrase
+	 */
+	private void forget(String id)
+	{
+		StateStore store = StateStore.getDefault();
+		if(store != null)
+			store.removeWatch(id);
+		Metrics.getDefault().removeWatch(id);
+		if(shard != null)
+			clearFired(id);
+	}
+
+	private void clearFired(String id)
+	{
+		try
+		{
+			shard.clearFired(id);
+		}
+		catch(IOException ex)
+		{
+			print(String.format(SHARD_FAILED, ex));
+		}
+	}
+
+	/**
+	 * Returns true if any event of <code>key</code> is about the watch file, or events were lost
+	 */
+	private boolean isChanged(WatchKey key)
+	{
+		boolean changed = false;
+		for(WatchEvent<?> event : key.pollEvents())
+			changed |= (event.kind() == StandardWatchEventKinds.OVERFLOW) || file.getFileName().equals(event.context());
+		return changed;
+	}
+
+	/**
+	 * <p>Parse a line of a watch file into arguments. Tokens are separated by whitespace; a token without
+	 * <code>=</code> is set to "true", like on the command line.</p>
+	 *
+	 * @param line the line
+	 * @return the arguments, empty for a blank line or comment
+	 * @throws IllegalArgumentException if a quote is not closed or a key is missing
+	 */
+	static HashMap<String, String> parseLine(String line)
+	{
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		StringBuilder token = new StringBuilder();
+		boolean inToken = false;
+		char quote = 0;
+		for(int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if(quote != 0)
+			{
+				if(c == quote)
+					quote = 0;
+				else if(c == '\\' && quote == '"' && i + 1 < line.length())
+					token.append(line.charAt(++i));
+				else
+					token.append(c);
+			}
+			else if(c == '"' || c == '\'')
+			{
+				quote = c;
+				inToken = true;
+			}
+			else if(Character.isWhitespace(c))
+			{
+				if(inToken)
+					addArgument(arguments, token);
+				inToken = false;
+			}
+			else if(c == '#' && !inToken)
+				break;
+			else
+			{
+				token.append(c);
+				inToken = true;
+			}
+		}
+		if(quote != 0)
+			throw new IllegalArgumentException("a quote (" + quote + ") is not closed");
+		if(inToken)
+			addArgument(arguments, token);
+		return arguments;
+	}
+
+	private static void addArgument(HashMap<String, String> arguments, StringBuilder token)
+	{
+		String[] splitString = token.toString().split("=", 2);
+		token.setLength(0);
+		if(splitString[0].isEmpty())
+			throw new IllegalArgumentException("an argument has no key");
+		arguments.put(splitString[0], (splitString.length > 1) ? splitString[1] : "true");
+	}
+
+	private void print(String text)
+	{
+		ConsoleSender.log("WatchDaemon", text);
+	}
+
+	/**
+	 * A running watch, or one without a task that has already found its key phrase on another node
+	 */
+	private static final class Watch
+	{
+		final WatchSpec spec;
+		final SleeperTask task;
+
+		Watch(WatchSpec spec, SleeperTask task)
+		{
+			this.spec = spec;
+			this.task = task;
+		}
+
+		boolean isTriggered()
+		{
+			return task == null || task.isTriggered();
+		}
+
+		void close()
+		{
+			if(task != null)
+				task.close();
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package se.cqst.sleeper.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>JFR event for the execution of an action, from when it is handed to the <code>ActionRunner</code> until
+ * its result is in. The event is committed on the thread that completes the action.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Name("se.cqst.sleeper.Action")
+@Label("Action")
+@Category({ "Sleeper", "Action" })
+@Description("Execution of the action of a watch")
+@StackTrace(false)
+public final class ActionEvent extends SleeperEvent {
+
+	@Label("Action")
+	String action;
+
+	@Label("Runner")
+	String runner;
+
+	@Label("Exit Code")
+	int exitCode;
+
+	/**
+	 * Commit the event, if it is enabled and above its threshold
+	 *
+	 * @param watchId the id of the watch
+	 * @param action the action
+	 * @param runner the simple class name of the action runner
+	 * @param exitCode the exit code, or -1
+	 * @param outcome <code>success</code>, <code>failure</code>, <code>timeout</code> or <code>error</code>
+	 */
+	public void commit(String watchId, String action, String runner, int exitCode, String outcome)
+	{
+		if(!shouldCommit())
+			return;
+		this.watchId = watchId;
+		this.action = action;
+		this.runner = runner;
+		this.exitCode = exitCode;
+		this.outcome = outcome;
+		commit();
+	}
+
+}
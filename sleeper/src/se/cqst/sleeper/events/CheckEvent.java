@@ -0,0 +1,75 @@
+package se.cqst.sleeper.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>JFR event for one call to <code>Provider.check()</code>: the watch, the provider, the address it
+ * checked, the bytes it read and the outcome (<code>found</code>, <code>not found</code>,
+ * <code>not modified</code>, <code>timeout</code> or an HTTP status).</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Name("se.cqst.sleeper.Check")
+@Label("Check")
+@Category({ "Sleeper", "Provider" })
+@Description("A check of a watch by its Provider")
+@StackTrace(false)
+public final class CheckEvent extends SleeperEvent {
+
+	private static final EventType TYPE = EventType.getEventType(CheckEvent.class);
+
+	@Label("Provider")
+	String provider;
+
+	@Label("Address")
+	@Description("URL, mailbox or file that was checked")
+	String address;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	/**
+	 * Returns a new event, already begun, if the event is enabled in a running recording, or <code>null</code>
+	 * otherwise. A check runs on every poll, so no event is created while nothing records it.
+	 *
+	 * @return the event, or null
+	 */
+	public static CheckEvent start()
+	{
+		if(!TYPE.isEnabled())
+			return null;
+		CheckEvent event = new CheckEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Commit the event, if it is enabled and above its threshold
+	 *
+	 * @param watchId the id of the watch
+	 * @param provider the simple class name of the provider
+	 * @param address the address that was checked
+	 * @param bytes the number of bytes read
+	 * @param outcome the outcome of the check
+	 */
+	public void commit(String watchId, String provider, String address, long bytes, String outcome)
+	{
+		if(!shouldCommit())
+			return;
+		this.watchId = watchId;
+		this.provider = provider;
+		this.address = address;
+		this.bytes = bytes;
+		this.outcome = outcome;
+		commit();
+	}
+
+}
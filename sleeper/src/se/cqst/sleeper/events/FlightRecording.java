@@ -0,0 +1,87 @@
+package se.cqst.sleeper.events;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.HashMap;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import se.cqst.sleeper.senders.ConsoleSender;
+
+/**
+ * <p>Starts a continuous JDK Flight Recorder recording from the command line, as an alternative to starting the
+ * JVM with <code>-XX:StartFlightRecording</code>. The Sleeper events ({@link CheckEvent}, {@link ParseEvent},
+ * {@link GUMApiEvent} and {@link ActionEvent}) are recorded together with the JDK events of the
+ * <code>default</code> settings (GC, socket reads, CPU load, ...), so a slow check can be lined up with what the
+ * JVM was doing at the time.</p>
+ *
+ * <table summary="Arguments">
+ * 	<tr>
+ * 		<th>Argument</th>
+ * 		<th>Description</th>
+ * 	</tr>
+ * 	<tr>
+ * 		<td>jfr</td>
+ * 		<td>File the recording is written to when the application exits</td>
+ * 	</tr>
+ * 	<tr>
+ * 		<td>jfr_settings</td>
+ * 		<td>JFR settings to use, <code>default</code> (about 1% overhead) or <code>profile</code> (default: default)</td>
+ * 	</tr>
+ * 	<tr>
+ * 		<td>jfr_maxage</td>
+ * 		<td>Hours of events to keep on disk (default: 24)</td>
+ * 	</tr>
+ * </table>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class FlightRecording {
+
+	public static final int DEFAULT_MAXAGE = 24;
+
+	private FlightRecording()
+	{ }
+
+	/**
+	 * <p>Start a recording if the argument <code>jfr</code> is set. If the recording cannot be started, the
+	 * application runs without it.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void configure(HashMap<String, String> arguments)
+	{
+		String file = arguments.getOrDefault("jfr", "");
+		if(file.isEmpty())
+			return;
+
+		int maxAge = DEFAULT_MAXAGE;
+		try
+		{
+			maxAge = Integer.parseInt(arguments.get("jfr_maxage"));
+		}
+		catch(NumberFormatException ex)
+		{ }
+
+		try
+		{
+			Recording recording = new Recording(Configuration.getConfiguration(arguments.getOrDefault("jfr_settings", "default")));
+			recording.setName("sleeper");
+			recording.setToDisk(true);
+			recording.setMaxAge(Duration.ofHours(maxAge));
+			recording.setDestination(Paths.get(file));
+			recording.setDumpOnExit(true);
+			recording.start();
+		}
+		catch(IOException | ParseException | IllegalStateException | SecurityException ex)
+		{
+			ConsoleSender.println("Could not start a flight recording to " + file + ": " + ex.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package se.cqst.sleeper.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>JFR event for one call to the GuerrillaMail API, from opening the connection until the JSON response
+ * has been read.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Name("se.cqst.sleeper.GUMApi")
+@Label("GuerrillaMail API Call")
+@Category({ "Sleeper", "Provider" })
+@Description("A call to the GuerrillaMail API")
+@StackTrace(false)
+public final class GUMApiEvent extends SleeperEvent {
+
+	private static final EventType TYPE = EventType.getEventType(GUMApiEvent.class);
+
+	@Label("Function")
+	String function;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	/**
+	 * Returns a new event, already begun, if the event is enabled in a running recording, or <code>null</code>
+	 * otherwise. A check of a mailbox calls the API at least once, so no event is created while nothing records it.
+	 *
+	 * @return the event, or null
+	 */
+	public static GUMApiEvent start()
+	{
+		if(!TYPE.isEnabled())
+			return null;
+		GUMApiEvent event = new GUMApiEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Commit the event, if it is enabled and above its threshold
+	 *
+	 * @param watchId the id of the watch
+	 * @param function the API function, e.g. <code>get_email_list</code>
+	 * @param bytes the size of the response
+	 * @param outcome <code>ok</code>, or the exception that made the call fail
+	 */
+	public void commit(String watchId, String function, long bytes, String outcome)
+	{
+		if(!shouldCommit())
+			return;
+		this.watchId = watchId;
+		this.function = function;
+		this.bytes = bytes;
+		this.outcome = outcome;
+		commit();
+	}
+
+}
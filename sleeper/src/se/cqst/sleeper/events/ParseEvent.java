@@ -0,0 +1,71 @@
+package se.cqst.sleeper.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * <p>JFR event for one call to <code>Parser.phraseExists()</code>. A check parses every changed chunk of a page
+ * separately, so by default only calls that take 1 ms or more are recorded; set the threshold of
+ * <code>se.cqst.sleeper.Parse</code> to <code>0 ms</code> to record every call.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Name("se.cqst.sleeper.Parse")
+@Label("Parse")
+@Category({ "Sleeper", "Parser" })
+@Description("A call to a Parser")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class ParseEvent extends SleeperEvent {
+
+	private static final EventType TYPE = EventType.getEventType(ParseEvent.class);
+
+	@Label("Parser")
+	String parser;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	/**
+	 * Returns a new event, already begun, if the event is enabled in a running recording, or <code>null</code>
+	 * otherwise. Every check parses at least once, so no event is created while nothing records it.
+	 *
+	 * @return the event, or null
+	 */
+	public static ParseEvent start()
+	{
+		if(!TYPE.isEnabled())
+			return null;
+		ParseEvent event = new ParseEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Commit the event, if it is enabled and above its threshold
+	 *
+	 * @param watchId the id of the watch
+	 * @param parser the simple class name of the parser
+	 * @param bytes the number of bytes (characters, for text) parsed
+	 * @param found true, if the key phrase was found
+	 */
+	public void commit(String watchId, String parser, long bytes, boolean found)
+	{
+		if(!shouldCommit())
+			return;
+		this.watchId = watchId;
+		this.parser = parser;
+		this.bytes = bytes;
+		this.outcome = found ? "found" : "not found";
+		commit();
+	}
+
+}
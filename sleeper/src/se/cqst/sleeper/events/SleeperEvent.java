@@ -0,0 +1,28 @@
+package se.cqst.sleeper.events;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * <p>Base class of the JDK Flight Recorder events of Sleeper. Every event carries the id of the watch and an
+ * outcome; subclasses add what they measure.</p>
+ *
+ * <p>An event is created and <code>begin()</code> is called before the measured work, and one of the
+ * <code>commit()</code> methods of the subclass is called after it. The fields are only set if the event is
+ * enabled in the running recording (<code>shouldCommit()</code>), so an event costs next to nothing when no
+ * recording is running. Events of work done on every poll (<code>CheckEvent</code>, <code>ParseEvent</code> and
+ * <code>GUMApiEvent</code>) are only created when they are enabled, by their <code>start()</code>, so that a poll
+ * allocates nothing for them.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+abstract class SleeperEvent extends Event {
+
+	@Label("Watch")
+	String watchId;
+
+	@Label("Outcome")
+	String outcome;
+
+}
@@ -0,0 +1,66 @@
+package se.cqst.sleeper.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A monotonically increasing count. Backed by a <code>LongAdder</code>, which stripes updates from
+ * different threads over separate cells, so incrementing it does not contend.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class Counter extends Metric implements CounterMBean {
+
+	private final LongAdder count = new LongAdder();
+
+	Counter(String name, String help, String[] labels)
+	{
+		super(name, help, labels);
+	}
+
+	/**
+	 * Add one to the count
+	 */
+	public void increment()
+	{
+		count.increment();
+	}
+
+	/**
+	 * Add <code>value</code> to the count
+	 *
+	 * @param value a value that is zero or more
+	 */
+	public void add(long value)
+	{
+		count.add(value);
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.CounterMBean#getCount()
+	 */
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.Metric#getType()
+	 */
+	@Override
+	String getType()
+	{
+		return "counter";
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.Metric#write(java.lang.StringBuilder)
+	 */
+	@Override
+	void write(StringBuilder out)
+	{
+		writeSample(out, name, null, getCount());
+	}
+
+}
@@ -0,0 +1,21 @@
+package se.cqst.sleeper.metrics;
+
+import se.cqst.sleeper.nativeimage.Reflected;
+
+/**
+ * <p>JMX view of a {@link Counter}.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Reflected
+public interface CounterMBean {
+
+	/**
+	 * Returns the current count
+	 *
+	 * @return the count
+	 */
+	long getCount();
+
+}
@@ -0,0 +1,136 @@
+package se.cqst.sleeper.metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import se.cqst.sleeper.state.StateStore;
+
+/**
+ * <p><strong>DetectionLag</strong> tracks how long a key phrase sat in the source before the action of a watch
+ * started: from the time the source gives for it (the <code>mail_timestamp</code> of a mail, the
+ * <code>Last-Modified</code> time of a page, or the time it was first seen) until the action is handed to the
+ * <code>ActionRunner</code>.</p>
+ *
+ * <p>Every lag is recorded in the <code>sleeper_detection_lag_seconds</code> histogram of the watch. Since a
+ * watch usually ends with its first trigger, the last {@link #HISTORY} lags are also kept in the
+ * {@link StateStore} (if one is configured), so that percentiles can be reported over the triggers of earlier
+ * runs as well.</p>
+ *
+ * <p>A watch can have a latency target (argument <code>latencytarget</code>, in seconds). Lags above it are
+ * counted in <code>sleeper_detection_lag_exceeded_total</code>.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class DetectionLag {
+
+	public static final int HISTORY = 256;
+	public static final String RECORD_PREFIX = "lag:";
+
+	private final long target;
+	private final Histogram histogram;
+	private final Counter exceeded;
+	private final StateStore.Record state;
+	private final long[] history;
+	private int count;
+	private int next;
+
+	/**
+	 * Create a new <code>DetectionLag</code> for <code>watchId</code>, restoring its history from the default
+	 * {@link StateStore}
+	 *
+	 * @param watchId the id of the watch
+	 * @param target the latency target in milliseconds, or 0 for none
+	 */
+	public DetectionLag(String watchId, long target)
+	{
+		this.target = target;
+		this.histogram = Metrics.getDefault().timer("sleeper_detection_lag_seconds",
+				"Time from the source publishing the key phrase until the action starts.", "watch", watchId);
+		this.exceeded = Metrics.getDefault().counter("sleeper_detection_lag_exceeded_total",
+				"Triggers whose detection lag was above the latency target.", "watch", watchId);
+		this.history = new long[HISTORY];
+
+		StateStore store = StateStore.getDefault();
+		this.state = (store != null) ? store.getRecord(RECORD_PREFIX + watchId) : null;
+		ByteBuffer data = (state != null) ? state.read() : null;
+		if(data != null && data.remaining() >= 8)
+		{
+			count = Math.min(data.getInt(), HISTORY);
+			next = Math.floorMod(data.getInt(), HISTORY);
+			for(int i = 0; i < count && data.remaining() >= 8; i++)
+				history[i] = data.getLong();
+		}
+	}
+
+	/**
+	 * <p>Record the lag of a trigger.</p>
+	 *
+	 * @param sourceTimestamp the time the source gives for the key phrase, in milliseconds since the epoch
+	 * @param actionStart the time the action starts, in milliseconds since the epoch
+	 * @return the lag in milliseconds, never less than 0
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public long record(long sourceTimestamp, long actionStart)
+	{
+		long lag = Math.max(0, actionStart - sourceTimestamp);
+		histogram.record(lag * 1000000L);
+		if(isAboveTarget(lag))
+			exceeded.increment();
+
+		history[next] = lag;
+		next = (next + 1) % HISTORY;
+		count = Math.min(count + 1, HISTORY);
+		save();
+		return lag;
+	}
+
+	/**
+	 * <p>Returns the lag at quantile <code>q</code> (0 to 1) of the recorded history, in milliseconds, or 0 if
+	 * nothing has been recorded.</p>
+	 *
+	 * @param q the quantile
+	 * @return the lag in milliseconds
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public long getPercentile(double q)
+	{
+		if(count == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(history, count);
+		Arrays.sort(sorted);
+		int rank = (int)Math.ceil(q * count);
+		return sorted[Math.min(count, Math.max(1, rank)) - 1];
+	}
+
+	/**
+	 * <p>Returns true if a latency target is set and <code>lag</code> is above it.</p>
+	 *
+	 * @param lag a lag in milliseconds
+	 * @return true, if the lag exceeds the target
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean isAboveTarget(long lag)
+	{
+		return target > 0 && lag > target;
+	}
+
+	public int		getCount()	{	return count;	}
+	public long		getTarget()	{	return target;	}
+
+	private void save()
+	{
+		if(state == null)
+			return;
+		ByteBuffer data = state.edit();
+		data.putInt(count);
+		data.putInt(next);
+		for(int i = 0; i < count; i++)
+			data.putLong(history[i]);
+		state.commit();
+	}
+
+}
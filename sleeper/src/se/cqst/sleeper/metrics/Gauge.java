@@ -0,0 +1,51 @@
+package se.cqst.sleeper.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * <p>A value that is read from its owner when it is exported, e.g. the number of bytes a pool has in use.
+ * Nothing is recorded, so a gauge costs nothing between scrapes.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class Gauge extends Metric implements GaugeMBean {
+
+	private final LongSupplier supplier;
+	private final boolean cumulative;
+
+	Gauge(String name, String help, String[] labels, LongSupplier supplier, boolean cumulative)
+	{
+		super(name, help, labels);
+		this.supplier = supplier;
+		this.cumulative = cumulative;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.GaugeMBean#getValue()
+	 */
+	@Override
+	public long getValue()
+	{
+		return supplier.getAsLong();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.Metric#getType()
+	 */
+	@Override
+	String getType()
+	{
+		return cumulative ? "counter" : "gauge";
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.Metric#write(java.lang.StringBuilder)
+	 */
+	@Override
+	void write(StringBuilder out)
+	{
+		writeSample(out, name, null, getValue());
+	}
+
+}
@@ -0,0 +1,21 @@
+package se.cqst.sleeper.metrics;
+
+import se.cqst.sleeper.nativeimage.Reflected;
+
+/**
+ * <p>JMX view of a {@link Gauge}.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Reflected
+public interface GaugeMBean {
+
+	/**
+	 * Returns the current value
+	 *
+	 * @return the value
+	 */
+	long getValue();
+
+}
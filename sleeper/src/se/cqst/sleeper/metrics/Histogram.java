@@ -0,0 +1,172 @@
+package se.cqst.sleeper.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A histogram of non-negative long values (usually nanoseconds), recorded into log-linear buckets like
+ * HdrHistogram: every power of two is split into {@link #SUB_BUCKETS} linear buckets, so a percentile is
+ * within 1/16 (6.25%) of the recorded value whatever its magnitude. Values below 16 are exact.</p>
+ *
+ * <p>Recording is one bucket increment, a <code>LongAdder</code> for the sum and count and a
+ * <code>LongAccumulator</code> for the max; there are no locks and no allocation. Percentiles are computed
+ * when the histogram is read, and exported as a Prometheus <code>summary</code> in the unit of the histogram
+ * (values are divided by <code>divisor</code>, e.g. <code>1e9</code> to export nanoseconds as seconds).</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class Histogram extends Metric implements HistogramMBean {
+
+	public static final int SUB_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	public static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final double divisor;
+	private final AtomicLongArray buckets;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	Histogram(String name, String help, String[] labels, double divisor)
+	{
+		super(name, help, labels);
+		this.divisor = divisor;
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 *
+	 * @param value the value, in the recorded unit
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+		buckets.incrementAndGet(getBucket(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Record the nanoseconds elapsed since <code>start</code>, and return the current time.
+	 *
+	 * @param start a value of <code>System.nanoTime()</code>
+	 * @return <code>System.nanoTime()</code>, to be used as the start of the next phase
+	 */
+	public long recordSince(long start)
+	{
+		long now = System.nanoTime();
+		record(now - start);
+		return now;
+	}
+
+	/**
+	 * Returns the value at quantile <code>q</code> (0 to 1), scaled to the unit of the histogram, or 0 if
+	 * nothing has been recorded
+	 *
+	 * @param q the quantile
+	 * @return the value
+	 */
+	public double getPercentile(double q)
+	{
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+			total += (counts[i] = buckets.get(i));
+		if(total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(q * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.min(getUpperBound(i), max.get()) / divisor;
+		}
+		return max.get() / divisor;
+	}
+
+	/**
+	 * Returns the bucket of <code>value</code>
+	 */
+	static int getBucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the largest value in <code>bucket</code>
+	 */
+	static long getUpperBound(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.HistogramMBean#getCount()
+	 */
+	@Override
+	public long		getCount()				{	return count.sum();	}
+	@Override
+	public double	getSum()				{	return sum.sum() / divisor;	}
+	@Override
+	public double	getMax()				{	return max.get() / divisor;	}
+	@Override
+	public double	get50thPercentile()		{	return getPercentile(0.5);	}
+	@Override
+	public double	get90thPercentile()		{	return getPercentile(0.9);	}
+	@Override
+	public double	get99thPercentile()		{	return getPercentile(0.99);	}
+	@Override
+	public double	get999thPercentile()	{	return getPercentile(0.999);	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.HistogramMBean#getMean()
+	 */
+	@Override
+	public double getMean()
+	{
+		long n = count.sum();
+		return (n == 0) ? 0 : sum.sum() / divisor / n;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.Metric#getType()
+	 */
+	@Override
+	String getType()
+	{
+		return "summary";
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.metrics.Metric#write(java.lang.StringBuilder)
+	 */
+	@Override
+	void write(StringBuilder out)
+	{
+		for(double q : QUANTILES)
+			writeSample(out, name, "quantile=\"" + q + "\"", getPercentile(q));
+		writeSample(out, name + "_sum", null, getSum());
+		writeSample(out, name + "_count", null, getCount());
+	}
+
+}
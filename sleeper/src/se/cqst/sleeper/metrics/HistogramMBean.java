@@ -0,0 +1,23 @@
+package se.cqst.sleeper.metrics;
+
+import se.cqst.sleeper.nativeimage.Reflected;
+
+/**
+ * <p>JMX view of a {@link Histogram}. Values are in the unit of the histogram (seconds for durations).</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Reflected
+public interface HistogramMBean {
+
+	long	getCount();
+	double	getSum();
+	double	getMean();
+	double	getMax();
+	double	get50thPercentile();
+	double	get90thPercentile();
+	double	get99thPercentile();
+	double	get999thPercentile();
+
+}
@@ -0,0 +1,118 @@
+package se.cqst.sleeper.metrics;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * <p>Base class of the metrics in a {@link Metrics} registry: a name in Prometheus style
+ * (<code>sleeper_http_bytes_total</code>), a help text and label pairs such as <code>watch</code> and
+ * <code>provider</code>.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public abstract class Metric {
+
+	protected final String name;
+	protected final String help;
+	private final String[] labels;
+	private final String labelText;
+
+	Metric(String name, String help, String[] labels)
+	{
+		if(labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name/value pairs");
+		this.name = name;
+		this.help = help;
+		this.labels = labels.clone();
+
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < labels.length; i += 2)
+		{
+			if(text.length() > 0)
+				text.append(',');
+			text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+		this.labelText = text.toString();
+	}
+
+	public String	getName()	{	return name;	}
+	public String	getHelp()	{	return help;	}
+
+	/**
+	 * Returns the value of the label <code>label</code>, or <code>null</code> if the metric does not have it
+	 */
+	String getLabel(String label)
+	{
+		for(int i = 0; i < labels.length; i += 2)
+			if(labels[i].equals(label))
+				return labels[i + 1];
+		return null;
+	}
+
+	/**
+	 * Returns the Prometheus type of the metric
+	 */
+	abstract String getType();
+
+	/**
+	 * Append the samples of the metric, in Prometheus text format, to <code>out</code>
+	 */
+	abstract void write(StringBuilder out);
+
+	/**
+	 * Returns the key of the metric in the registry, its name and labels
+	 */
+	String getKey()
+	{
+		return name + "{" + labelText + "}";
+	}
+
+	/**
+	 * Returns the name the metric is registered with in JMX, e.g.
+	 * <code>se.cqst.sleeper:type=Counter,name=sleeper_http_bytes_total,watch=w1,provider=HTTPProvider</code>
+	 */
+	ObjectName getObjectName() throws MalformedObjectNameException
+	{
+		StringBuilder name = new StringBuilder(Metrics.DOMAIN).append(":type=").append(getClass().getSimpleName())
+				.append(",name=").append(this.name);
+		for(int i = 0; i < labels.length; i += 2)
+			name.append(',').append(labels[i]).append('=').append(quote(labels[i + 1]));
+		return new ObjectName(name.toString());
+	}
+
+	/**
+	 * Append one sample line, with an optional extra label (e.g. <code>quantile="0.99"</code>)
+	 */
+	void writeSample(StringBuilder out, String sample, String extra, double value)
+	{
+		out.append(sample);
+		if(!labelText.isEmpty() || extra != null)
+		{
+			out.append('{').append(labelText);
+			if(extra != null)
+				out.append(labelText.isEmpty() ? "" : ",").append(extra);
+			out.append('}');
+		}
+		out.append(' ');
+		if(value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+			out.append((long)value);
+		else
+			out.append(value);
+		out.append('\n');
+	}
+
+	private static String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String quote(String value)
+	{
+		for(char c : value.toCharArray())
+			if(",=:*?\"\n\\".indexOf(c) >= 0)
+				return ObjectName.quote(value);
+		return value;
+	}
+
+}
@@ -0,0 +1,315 @@
+package se.cqst.sleeper.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+
+import se.cqst.sleeper.senders.ConsoleSender;
+
+/**
+ * <p><strong>Metrics</strong> is the registry of every {@link Counter}, {@link Gauge} and {@link Histogram} in the
+ * application. Providers, the action runner, the buffer pool and the trigger journal get their metrics from
+ * {@link #getDefault()} once, and recording into them is lock free.</p>
+ *
+ * <p>Metrics are always recorded. They are exported when enabled with the following arguments:</p>
+ *
+ * <table summary="Arguments">
+ * 	<tr>
+ * 		<th>Argument</th>
+ * 		<th>Description</th>
+ * 	</tr>
+ * 	<tr>
+ * 		<td>metrics</td>
+ * 		<td>Register the metrics as MBeans in the platform MBean server, under <code>se.cqst.sleeper</code></td>
+ * 	</tr>
+ * 	<tr>
+ * 		<td>metricsport</td>
+ * 		<td>Serve the metrics in Prometheus text format on <code>http://127.0.0.1:&lt;metricsport&gt;/metrics</code></td>
+ * 	</tr>
+ * </table>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class Metrics {
+
+	public static final String DOMAIN = "se.cqst.sleeper";
+
+	private static final Metrics DEFAULT = new Metrics();
+
+	private final ConcurrentHashMap<String, Metric> metrics;
+	private volatile MBeanServer server;
+	private MetricsServer http;
+
+	/**
+	 * Create a new, empty <code>Metrics</code> registry
+	 */
+	public Metrics()
+	{
+		this.metrics = new ConcurrentHashMap<String, Metric>();
+	}
+
+	/**
+	 * <p>Returns the registry shared by the application.</p>
+	 *
+	 * @return the default registry
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static Metrics getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * <p>Apply the metrics arguments (<code>metrics</code>, <code>metricsport</code>) to the default registry.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void configure(HashMap<String, String> arguments)
+	{
+		int port = 0;
+		try
+		{
+			port = Integer.parseInt(arguments.get("metricsport"));
+		}
+		catch(NumberFormatException ex)
+		{ }
+
+		if(port > 0 || arguments.containsKey("metrics"))
+			DEFAULT.registerMBeans();
+		if(port > 0)
+		{
+			try
+			{
+				DEFAULT.http = new MetricsServer(DEFAULT, port);
+			}
+			catch(IOException ex)
+			{
+				ConsoleSender.println("Could not serve metrics on port " + port + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * <p>Returns the counter with <code>name</code> and <code>labels</code>, creating it the first time.</p>
+	 *
+	 * @param name the name of the counter, ending in <code>_total</code>
+	 * @param help a description of the counter
+	 * @param labels label names and values, in pairs
+	 * @return the counter
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public Counter counter(String name, String help, String... labels)
+	{
+		return register(new Counter(name, help, labels), Counter.class);
+	}
+
+	/**
+	 * <p>Returns the histogram with <code>name</code> and <code>labels</code>, creating it the first time.
+	 * Durations are recorded in nanoseconds and exported in seconds.</p>
+	 *
+	 * @param name the name of the histogram, ending in the unit it is exported in (e.g. <code>_seconds</code>)
+	 * @param help a description of the histogram
+	 * @param labels label names and values, in pairs
+	 * @return the histogram
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public Histogram timer(String name, String help, String... labels)
+	{
+		return register(new Histogram(name, help, labels, 1e9), Histogram.class);
+	}
+
+	/**
+	 * <p>Returns the histogram with <code>name</code> and <code>labels</code>, creating it the first time.
+	 * Values are exported as they are recorded.</p>
+	 *
+	 * @param name the name of the histogram
+	 * @param help a description of the histogram
+	 * @param labels label names and values, in pairs
+	 * @return the histogram
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public Histogram histogram(String name, String help, String... labels)
+	{
+		return register(new Histogram(name, help, labels, 1), Histogram.class);
+	}
+
+	/**
+	 * <p>Register a gauge, read from <code>supplier</code> when it is exported. A gauge that is already
+	 * registered with the same name and labels is replaced.</p>
+	 *
+	 * @param name the name of the gauge
+	 * @param help a description of the gauge
+	 * @param supplier the value of the gauge
+	 * @param labels label names and values, in pairs
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void gauge(String name, String help, LongSupplier supplier, String... labels)
+	{
+		replace(new Gauge(name, help, labels, supplier, false));
+	}
+
+	/**
+	 * <p>Register a count that is kept by its owner, read from <code>supplier</code> when it is exported.</p>
+	 *
+	 * @param name the name of the count, ending in <code>_total</code>
+	 * @param help a description of the count
+	 * @param supplier the value of the count
+	 * @param labels label names and values, in pairs
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void counter(String name, String help, LongSupplier supplier, String... labels)
+	{
+		replace(new Gauge(name, help, labels, supplier, true));
+	}
+
+	/**
+	 * <p>Remove every metric of the watch <code>watch</code> (label <code>watch</code>) and of its children (watch
+	 * ids starting with <code>watch.</code>), when the watch is gone for good. A metric asked for again after this
+	 * is created again.</p>
+	 *
+	 * @param watch the id of the watch
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void removeWatch(String watch)
+	{
+		String children = watch + ".";
+		for(Metric metric : metrics.values())
+		{
+			String label = metric.getLabel("watch");
+			if(label == null || (!label.equals(watch) && !label.startsWith(children)))
+				continue;
+			if(metrics.remove(metric.getKey(), metric))
+			{
+				MBeanServer server = this.server;
+				if(server != null)
+					unregister(server, metric);
+			}
+		}
+	}
+
+	/**
+	 * <p>Returns every metric, in Prometheus text exposition format (version 0.0.4).</p>
+	 *
+	 * @return the metrics
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public String toPrometheus()
+	{
+		TreeMap<String, List<Metric>> families = new TreeMap<String, List<Metric>>();
+		for(Metric metric : metrics.values())
+			families.computeIfAbsent(metric.getName(), k -> new ArrayList<Metric>()).add(metric);
+
+		StringBuilder out = new StringBuilder(4096);
+		for(List<Metric> family : families.values())
+		{
+			family.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+			Metric first = family.get(0);
+			out.append("# HELP ").append(first.getName()).append(' ').append(first.getHelp()).append('\n');
+			out.append("# TYPE ").append(first.getName()).append(' ').append(first.getType()).append('\n');
+			for(Metric metric : family)
+				metric.write(out);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * <p>Stop serving metrics over HTTP and unregister the MBeans.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void close()
+	{
+		if(http != null)
+			http.stop();
+		http = null;
+
+		MBeanServer server = this.server;
+		this.server = null;
+		if(server != null)
+			for(Metric metric : metrics.values())
+				unregister(server, metric);
+	}
+
+	/**
+	 * Register every metric, and every metric added later, in the platform MBean server
+	 */
+	private synchronized void registerMBeans()
+	{
+		if(server != null)
+			return;
+		server = ManagementFactory.getPlatformMBeanServer();
+		for(Metric metric : metrics.values())
+			register(server, metric);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(T metric, Class<T> type)
+	{
+		Function<String, Metric> create = key ->
+		{
+			MBeanServer server = this.server;
+			if(server != null)
+				register(server, metric);
+			return metric;
+		};
+		Metric existing = metrics.computeIfAbsent(metric.getKey(), create);
+		if(!type.isInstance(existing))
+			throw new IllegalArgumentException(metric.getKey() + " is already registered as a " + existing.getType());
+		return (T)existing;
+	}
+
+	private void replace(Metric metric)
+	{
+		Metric previous = metrics.put(metric.getKey(), metric);
+		MBeanServer server = this.server;
+		if(server != null)
+		{
+			if(previous != null)
+				unregister(server, previous);
+			register(server, metric);
+		}
+	}
+
+	private static void register(MBeanServer server, Metric metric)
+	{
+		try
+		{
+			server.registerMBean(metric, metric.getObjectName());
+		}
+		catch(JMException ex)
+		{
+			ConsoleSender.println("Could not register " + metric.getKey() + " in JMX: " + ex.getMessage());
+		}
+	}
+
+	private static void unregister(MBeanServer server, Metric metric)
+	{
+		try
+		{
+			server.unregisterMBean(metric.getObjectName());
+		}
+		catch(JMException ex)
+		{ }
+	}
+
+}
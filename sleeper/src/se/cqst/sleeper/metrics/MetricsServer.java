@@ -0,0 +1,64 @@
+package se.cqst.sleeper.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Serves a {@link Metrics} registry in Prometheus text format on <code>/metrics</code>, using the HTTP server
+ * in the JDK. The server only listens on the loopback address.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+final class MetricsServer {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+
+	/**
+	 * Start serving <code>metrics</code> on <code>port</code>
+	 *
+	 * @param metrics the registry
+	 * @param port the port
+	 * @throws IOException if the port could not be bound
+	 */
+	MetricsServer(Metrics metrics, int port) throws IOException
+	{
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/metrics", exchange -> write(exchange, metrics));
+		this.server.start();
+	}
+
+	/**
+	 * Stop the server, waiting at most a second for exchanges in progress
+	 */
+	void stop()
+	{
+		server.stop(1);
+	}
+
+	private static void write(HttpExchange exchange, Metrics metrics) throws IOException
+	{
+		byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		if("HEAD".equals(exchange.getRequestMethod()))
+		{
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+
+}
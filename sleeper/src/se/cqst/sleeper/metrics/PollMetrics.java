@@ -0,0 +1,139 @@
+package se.cqst.sleeper.metrics;
+
+/**
+ * <p>The metrics of the checks made by one <code>Provider</code> for one watch, labelled with
+ * <code>watch</code> and <code>provider</code>:</p>
+ *
+ * <ul>
+ * 	<li><code>sleeper_check_seconds</code>: the whole check, and its <code>connect</code> (until the response
+ * 		headers are in), <code>transfer</code> (reading the body) and <code>parse</code> phases in
+ * 		<code>sleeper_check_phase_seconds</code></li>
+ * 	<li><code>sleeper_fetched_bytes_total</code>: bytes of (decompressed) body read</li>
+ * 	<li><code>sleeper_parsed_bytes_total</code> and <code>sleeper_parse_seconds_per_mebibyte</code>: how much
+ * 		was parsed, and how long a MiB took</li>
+ * 	<li><code>sleeper_not_modified_total</code>: checks answered with <code>HTTP 304</code> or an already
+ * 		parsed shared response</li>
+ * 	<li><code>sleeper_chunks_total</code> and <code>sleeper_chunks_unchanged_total</code>: chunks hashed, and
+ * 		chunks whose hash was unchanged so they were not parsed</li>
+ * 	<li><code>sleeper_timeouts_total</code> and <code>sleeper_errors_total</code>: checks that failed</li>
+ * </ul>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class PollMetrics {
+
+	private static final double NANOS_PER_MEBIBYTE = 1024 * 1024;
+
+	private final Histogram check;
+	private final Histogram connect;
+	private final Histogram transfer;
+	private final Histogram parse;
+	private final Histogram parsePerMebibyte;
+	private final Counter fetched;
+	private final Counter parsed;
+	private final Counter notModified;
+	private final Counter chunks;
+	private final Counter unchanged;
+	private final Counter timeouts;
+	private final Counter errors;
+
+	/**
+	 * Get the metrics of <code>provider</code> for <code>watch</code> from the default registry
+	 *
+	 * @param watch the id of the watch
+	 * @param provider the simple class name of the provider
+	 */
+	public PollMetrics(String watch, String provider)
+	{
+		Metrics metrics = Metrics.getDefault();
+		this.check = metrics.timer("sleeper_check_seconds", "Duration of a check.",
+				"watch", watch, "provider", provider);
+		this.connect = metrics.timer("sleeper_check_phase_seconds", "Duration of a phase of a check.",
+				"watch", watch, "provider", provider, "phase", "connect");
+		this.transfer = metrics.timer("sleeper_check_phase_seconds", "Duration of a phase of a check.",
+				"watch", watch, "provider", provider, "phase", "transfer");
+		this.parse = metrics.timer("sleeper_check_phase_seconds", "Duration of a phase of a check.",
+				"watch", watch, "provider", provider, "phase", "parse");
+		this.parsePerMebibyte = metrics.timer("sleeper_parse_seconds_per_mebibyte", "Parser time per MiB parsed.",
+				"watch", watch, "provider", provider);
+		this.fetched = metrics.counter("sleeper_fetched_bytes_total", "Bytes of response body read.",
+				"watch", watch, "provider", provider);
+		this.parsed = metrics.counter("sleeper_parsed_bytes_total", "Bytes handed to the parser.",
+				"watch", watch, "provider", provider);
+		this.notModified = metrics.counter("sleeper_not_modified_total", "Checks that reused the previous result.",
+				"watch", watch, "provider", provider);
+		this.chunks = metrics.counter("sleeper_chunks_total", "Chunks of response body hashed.",
+				"watch", watch, "provider", provider);
+		this.unchanged = metrics.counter("sleeper_chunks_unchanged_total", "Chunks skipped because their hash was unchanged.",
+				"watch", watch, "provider", provider);
+		this.timeouts = metrics.counter("sleeper_timeouts_total", "Checks that timed out.",
+				"watch", watch, "provider", provider);
+		this.errors = metrics.counter("sleeper_errors_total", "Checks that failed.",
+				"watch", watch, "provider", provider);
+	}
+
+	/**
+	 * Record a check that started at <code>start</code> (<code>System.nanoTime()</code>)
+	 *
+	 * @param start the start of the check
+	 */
+	public void recordCheck(long start)
+	{
+		check.recordSince(start);
+	}
+
+	/**
+	 * Record the connect phase, from <code>start</code> until now
+	 *
+	 * @param start the start of the phase
+	 * @return now, the start of the next phase
+	 */
+	public long recordConnect(long start)
+	{
+		return connect.recordSince(start);
+	}
+
+	/**
+	 * Record the transfer of <code>bytes</code>, which took <code>nanos</code>
+	 *
+	 * @param nanos the duration of the transfer
+	 * @param bytes the number of bytes read
+	 */
+	public void recordTransfer(long nanos, long bytes)
+	{
+		transfer.record(nanos);
+		fetched.add(bytes);
+	}
+
+	/**
+	 * Record that <code>bytes</code> were parsed in <code>nanos</code>, in total, during one check
+	 *
+	 * @param nanos the time spent in the parser
+	 * @param bytes the number of bytes parsed
+	 */
+	public void recordParse(long nanos, long bytes)
+	{
+		parse.record(nanos);
+		parsed.add(bytes);
+		if(bytes > 0)
+			parsePerMebibyte.record((long)(nanos * NANOS_PER_MEBIBYTE / bytes));
+	}
+
+	/**
+	 * Record that <code>total</code> chunks were hashed, of which <code>skipped</code> were unchanged
+	 *
+	 * @param total the number of chunks
+	 * @param skipped the number of unchanged chunks
+	 */
+	public void recordChunks(long total, long skipped)
+	{
+		chunks.add(total);
+		unchanged.add(skipped);
+	}
+
+	public void recordNotModified()	{	notModified.increment();	}
+	public void recordTimeout()		{	timeouts.increment();	}
+	public void recordError()		{	errors.increment();	}
+
+}
@@ -0,0 +1,126 @@
+package se.cqst.sleeper.nativeimage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * <p>Annotation processor that generates the reflection metadata of the GraalVM native image
+ * (<code>META-INF/native-image/se.cqst.sleeper/sleeper/reflect-config.json</code>), so that it does not have to be
+ * kept up to date by hand.</p>
+ *
+ * <p>Every class annotated with {@link Reflected} is registered with all its constructors, methods and fields.
+ * Jackson creates <code>List</code>, <code>Collection</code>, <code>Set</code> and <code>Map</code> properties as
+ * <code>ArrayList</code>, <code>HashSet</code> and <code>LinkedHashMap</code> with their default constructors,
+ * so those are registered too when a reflected class has such a field.</p>
+ *
+ * <p>Plugins do not need metadata: they are created by the factories generated by <code>PluginProcessor</code>,
+ * which the native image finds through <code>META-INF/services</code>.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@SupportedAnnotationTypes("se.cqst.sleeper.nativeimage.Reflected")
+public final class NativeImageProcessor extends AbstractProcessor {
+
+	public static final String REFLECT_CONFIG = "META-INF/native-image/se.cqst.sleeper/sleeper/reflect-config.json";
+
+	private static final Map<String, String> DEFAULT_IMPLEMENTATIONS = new TreeMap<String, String>();
+
+	static
+	{
+		DEFAULT_IMPLEMENTATIONS.put("java.util.List", "java.util.ArrayList");
+		DEFAULT_IMPLEMENTATIONS.put("java.util.Collection", "java.util.ArrayList");
+		DEFAULT_IMPLEMENTATIONS.put("java.util.Set", "java.util.HashSet");
+		DEFAULT_IMPLEMENTATIONS.put("java.util.Map", "java.util.LinkedHashMap");
+	}
+
+	/** Binary class names, and if all members (true) or only the default constructor (false) are registered */
+	private final Map<String, Boolean> classes = new TreeMap<String, Boolean>();
+
+	/* (non-Javadoc)
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round)
+	{
+		for(TypeElement annotation : annotations)
+			for(TypeElement type : ElementFilter.typesIn(round.getElementsAnnotatedWith(annotation)))
+			{
+				classes.put(processingEnv.getElementUtils().getBinaryName(type).toString(), Boolean.TRUE);
+				for(VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements()))
+				{
+					if(field.asType().getKind() != TypeKind.DECLARED)
+						continue;
+					Element fieldType = ((DeclaredType)field.asType()).asElement();
+					String implementation = DEFAULT_IMPLEMENTATIONS.get(((TypeElement)fieldType).getQualifiedName().toString());
+					if(implementation != null)
+						classes.putIfAbsent(implementation, Boolean.FALSE);
+				}
+			}
+
+		if(round.processingOver() && !classes.isEmpty())
+			write();
+		return true;
+	}
+
+	/**
+	 * Write the registered classes to <code>reflect-config.json</code>
+	 */
+	private void write()
+	{
+		try
+		{
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", REFLECT_CONFIG);
+			try(Writer out = file.openWriter())
+			{
+				out.write("[\n");
+				String separator = "";
+				for(Map.Entry<String, Boolean> entry : classes.entrySet())
+				{
+					out.write(separator);
+					out.write("  {\n    \"name\": \"" + entry.getKey() + "\",\n");
+					if(entry.getValue())
+						out.write("    \"allDeclaredConstructors\": true,\n    \"allPublicConstructors\": true,\n"
+								+ "    \"allDeclaredMethods\": true,\n    \"allPublicMethods\": true,\n"
+								+ "    \"allDeclaredFields\": true,\n    \"allPublicFields\": true\n");
+					else
+						out.write("    \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ]\n");
+					out.write("  }");
+					separator = ",\n";
+				}
+				out.write("\n]\n");
+			}
+		}
+		catch(IOException ex)
+		{
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + REFLECT_CONFIG + ": " + ex);
+		}
+	}
+
+}
@@ -0,0 +1,22 @@
+package se.cqst.sleeper.nativeimage;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Marks a class whose constructors, methods and fields are used by reflection at run time, e.g. a class that
+ * Jackson binds JSON to. {@link NativeImageProcessor} registers it in the reflection metadata of the native image,
+ * which otherwise leaves such members out.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Reflected {
+
+}
@@ -0,0 +1,948 @@
+package se.cqst.sleeper.parsers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.plugins.Plugin;
+import se.cqst.sleeper.plugins.PluginException;
+
+/**
+ * <p><code>HTMLParser</code> is an implementation of the <code>Parser</code> interface that only looks for the key
+ * phrase in the text of an HTML document that a browser would show: tags, attributes, comments and the contents
+ * of <code>script</code>, <code>style</code> and <code>template</code> elements are skipped, and character
+ * references (<code>&amp;amp;</code>, <code>&amp;#233;</code>, <code>&amp;#xE9;</code>) are decoded.</p>
+ *
+ * <p>Runs of whitespace are treated as a single space, as a browser renders them, and so is the boundary between
+ * two blocks of text (e.g. two paragraphs). Inline elements such as <code>b</code> or <code>span</code> do not break
+ * the text, so <code>Sold&lt;b&gt;out&lt;/b&gt;</code> reads <code>Soldout</code>.</p>
+ *
+ * <p>The document is read as a stream of tokens, one character at a time, and matched against the key phrase as
+ * the text is decoded, so no DOM is built and the memory used does not depend on the size of the document.
+ * Only with <code>html_select</code> is a stack of open elements kept, limited to <code>MAX_DEPTH</code>
+ * elements.</p>
+ *
+ * <p><code>html_select</code> limits the search to the text within elements matching a simple CSS selector:
+ * a tag name, <code>#id</code> and <code>.class</code> (e.g. <code>div#status</code>, <code>td.price</code>), and
+ * descendants separated by spaces (e.g. <code>#main .stock</code>).</p>
+ *
+ * <p>Plain text without markup is matched as a whole, so <code>HTMLParser</code> can also be used for mails
+ * that may be either (see <code>GUMProvider</code>).</p>
+ *
+ * <p>A <code>HTMLParser</code> object is created by passing a <code>HashMap&lt;String, String&gt;</code>
+ * with arguments to it. The following is a list of arguments used by the Parser (note that all arguments are in
+ * the format (String, String), but the column <i>Accepted Value</i> displays how they are interpreted):</p>
+ *
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>html_ci</td><td>boolean</td><td>if set, compares text and key phrase case insensitive</td></tr>
+ * 			<tr><td>html_select</td><td>selector</td><td>only search the text within elements matching the selector</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * <p>Like <code>PlainTextParser</code>, the buffers of a <code>HTMLParser</code> are reused between calls, so it
+ * must not be used by more than one thread at a time.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Plugin(name = "html", type = Parser.class)
+public class HTMLParser implements Parser {
+
+	public static final int BUFFER_SIZE = 8192;
+	public static final int MAX_DEPTH = 512;
+
+	/**
+	 * Longest tag name, attribute name and character reference, and longest attribute value kept; the rest is ignored
+	 */
+	private static final int MAX_NAME = 32;
+	private static final int MAX_VALUE = 1024;
+
+	private static final Pattern COMPOUND = Pattern.compile("([A-Za-z][A-Za-z0-9-]*|\\*)?((?:[#.][A-Za-z0-9_-]+)*)");
+	private static final Pattern PART = Pattern.compile("([#.])([A-Za-z0-9_-]+)");
+
+	/**
+	 * Kinds of elements, looked up by tag name in <code>ELEMENTS</code>
+	 */
+	private static final int RAW = 1;
+	private static final int VOID = 2;
+	private static final int INLINE = 4;
+	private static final int OPTIONAL_END = 8;
+
+	private static final Map<String, Integer> ELEMENTS = new HashMap<String, Integer>();
+
+	/**
+	 * Character references by name: the common ones, and those of Latin-1 (160 to 255) in order
+	 */
+	private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+
+	static
+	{
+		String[] latin1 = ("nbsp iexcl cent pound curren yen brvbar sect uml copy ordf laquo not shy reg macr deg plusmn "
+				+ "sup2 sup3 acute micro para middot cedil sup1 ordm raquo frac14 frac12 frac34 iquest Agrave Aacute Acirc "
+				+ "Atilde Auml Aring AElig Ccedil Egrave Eacute Ecirc Euml Igrave Iacute Icirc Iuml ETH Ntilde Ograve Oacute "
+				+ "Ocirc Otilde Ouml times Oslash Ugrave Uacute Ucirc Uuml Yacute THORN szlig agrave aacute acirc atilde auml "
+				+ "aring aelig ccedil egrave eacute ecirc euml igrave iacute icirc iuml eth ntilde ograve oacute ocirc otilde "
+				+ "ouml divide oslash ugrave uacute ucirc uuml yacute thorn yuml").split(" ");
+		for(int i = 0; i < latin1.length; i++)
+			ENTITIES.put(latin1[i], (char)(160 + i));
+		String[] other = { "quot", "\"", "amp", "&", "apos", "'", "lt", "<", "gt", ">", "ensp", " ", "emsp", " ",
+				"thinsp", " ", "ndash", "\u2013", "mdash", "\u2014", "lsquo", "\u2018", "rsquo", "\u2019", "sbquo", "\u201A",
+				"ldquo", "\u201C", "rdquo", "\u201D", "bdquo", "\u201E", "bull", "\u2022", "hellip", "\u2026",
+				"prime", "\u2032", "lsaquo", "\u2039", "rsaquo", "\u203A", "euro", "\u20AC", "trade", "\u2122",
+				"larr", "\u2190", "rarr", "\u2192", "minus", "\u2212", "OElig", "\u0152", "oelig", "\u0153",
+				"Scaron", "\u0160", "scaron", "\u0161", "Yuml", "\u0178" };
+		for(int i = 0; i < other.length; i += 2)
+			ENTITIES.put(other[i], other[i + 1].charAt(0));
+
+		//	Raw elements are skipped to their end tag; void elements have no end tag; inline elements do not break
+		//	the text; elements with an optional end tag are closed by the next element of the same name
+		addElements(RAW, "script", "style", "template");
+		addElements(VOID, "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source",
+				"track", "wbr");
+		addElements(INLINE, "a", "abbr", "b", "bdi", "bdo", "cite", "code", "data", "dfn", "em", "font", "i", "kbd", "mark",
+				"q", "s", "samp", "small", "span", "strong", "sub", "sup", "time", "u", "var");
+		addElements(OPTIONAL_END, "dd", "dt", "li", "option", "p", "td", "th", "tr");
+	}
+
+	private final boolean caseInsensitive;
+	private final String selector;
+	private final Compound[] compounds;
+
+	private final Tokenizer tokenizer;
+	private char[] buffer;
+	private CharBuffer decoded;
+	private CharsetDecoder decoder;
+	private String phrase;
+	private char[] needle;
+	private int[] table;
+
+	/**
+	 * Instantiate a new <code>HTMLParser</code> using the provided <code>HashMap</code>
+	 *
+	 * @param arguments HashMap with arguments
+	 * @throws PluginException if <code>html_select</code> is not a selector that HTMLParser understands
+	 */
+	public HTMLParser(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.caseInsensitive = spec.getBoolean("html_ci");
+		this.selector = spec.getString("html_select", "").trim();
+		this.compounds = parseSelector(this.selector);
+		this.tokenizer = new Tokenizer();
+		this.buffer = new char[BUFFER_SIZE];
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.lang.String)
+	 *
+	 * Override default implementation and search the visible text of the document.
+	 */
+	@Override
+	public boolean phraseExists(String phrase, String data)
+	{
+		if(!start(phrase))
+			return true;
+		if(data == null)
+			return false;
+
+		for(int offset = 0; offset < data.length(); offset += buffer.length)
+		{
+			int length = Math.min(buffer.length, data.length() - offset);
+			data.getChars(offset, offset + length, buffer, 0);
+			if(tokenizer.feed(buffer, 0, length))
+				return true;
+		}
+		return tokenizer.finish();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.io.Reader)
+	 *
+	 * Override default implementation and search the visible text as the document is read,
+	 * keeping only a buffer of BUFFER_SIZE characters in memory.
+	 */
+	@Override
+	public boolean phraseExists(String phrase, Reader data) throws IOException
+	{
+		if(!start(phrase))
+			return true;
+
+		int read;
+		while((read = data.read(buffer, 0, buffer.length)) != -1)
+			if(tokenizer.feed(buffer, 0, read))
+				return true;
+		return tokenizer.finish();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.nio.ByteBuffer, java.nio.charset.Charset)
+	 *
+	 * Override default implementation and decode the data BUFFER_SIZE characters at a time,
+	 * instead of decoding the whole document into a String.
+	 */
+	@Override
+	public boolean phraseExists(String phrase, ByteBuffer data, Charset charset)
+	{
+		if(!start(phrase))
+			return true;
+
+		CharsetDecoder decoder = getDecoder(charset);
+		ByteBuffer input = data.duplicate();
+		CharBuffer output = this.decoded;
+		boolean flushing = false;
+		while(true)
+		{
+			output.clear();
+			CoderResult result = flushing ? decoder.flush(output) : decoder.decode(input, output, true);
+			if(!flushing && result.isUnderflow())
+			{
+				flushing = true;
+				result = decoder.flush(output);
+			}
+			output.flip();
+			if(tokenizer.feed(output.array(), 0, output.limit()))
+				return true;
+			if(flushing && result.isUnderflow())
+				return tokenizer.finish();
+		}
+	}
+
+	private static void addElements(int kind, String... tags)
+	{
+		for(String tag : tags)
+			ELEMENTS.put(tag, kind);
+	}
+
+	/**
+	 * <p>Prepares a search for <code>phrase</code>. Returns false if the key phrase is empty (after collapsing its
+	 * whitespace), in which case it is always found.</p>
+	 *
+	 * @param phrase the key phrase
+	 * @return true, if the document has to be searched
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean start(String phrase)
+	{
+		if(!phrase.equals(this.phrase))
+		{
+			String normalized = phrase.trim().replaceAll("[\\s\\u00A0]+", " ");
+			this.needle = (caseInsensitive ? normalized.toLowerCase() : normalized).toCharArray();
+			this.table = getFailureTable(this.needle);
+			this.phrase = phrase;
+		}
+		if(this.needle.length == 0)
+			return false;
+		tokenizer.reset();
+		return true;
+	}
+
+	/**
+	 * <p>Returns the Knuth-Morris-Pratt failure table of <code>needle</code>: for every prefix, the length of its
+	 * longest proper prefix that is also a suffix. This lets the text be matched one character at a time without
+	 * going back.</p>
+	 */
+	private static int[] getFailureTable(char[] needle)
+	{
+		int[] table = new int[needle.length];
+		int length = 0;
+		for(int i = 1; i < needle.length; i++)
+		{
+			while(length > 0 && needle[i] != needle[length])
+				length = table[length - 1];
+			if(needle[i] == needle[length])
+				length++;
+			table[i] = length;
+		}
+		return table;
+	}
+
+	/**
+	 * <p>Returns a decoder for <code>charset</code>, which replaces malformed input. The decoder is cached for
+	 * the last charset.</p>
+	 */
+	private CharsetDecoder getDecoder(Charset charset)
+	{
+		if(decoder == null || !decoder.charset().equals(charset))
+		{
+			decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			if(decoded == null)
+				decoded = CharBuffer.allocate(BUFFER_SIZE);
+		}
+		decoder.reset();
+		return decoder;
+	}
+
+	/**
+	 * <p>Parses <code>html_select</code> into its compound selectors, one for every element on the path.</p>
+	 *
+	 * @param selector the selector, or an empty String for no selector
+	 * @return the compound selectors, or <code>null</code> for no selector
+	 * @throws PluginException if the selector is not understood
+	 */
+	private static Compound[] parseSelector(String selector)
+	{
+		if(selector.isEmpty())
+			return null;
+
+		List<Compound> compounds = new ArrayList<Compound>();
+		for(String part : selector.split("\\s+"))
+		{
+			Matcher matcher = COMPOUND.matcher(part);
+			if(!matcher.matches())
+				throw new PluginException("The selector \"" + selector + "\" of html_select is not supported. Use tag names, "
+						+ "#id and .class, separated by spaces, e.g. html_select=\"div#main .price\"");
+			String tag = (matcher.group(1) == null || matcher.group(1).equals("*")) ? null : matcher.group(1).toLowerCase();
+			String id = null;
+			List<String> classes = new ArrayList<String>();
+			Matcher parts = PART.matcher(matcher.group(2));
+			while(parts.find())
+			{
+				if(parts.group(1).equals("#"))
+					id = parts.group(2);
+				else
+					classes.add(parts.group(2));
+			}
+			compounds.add(new Compound(tag, id, classes.toArray(new String[0])));
+		}
+		return compounds.toArray(new Compound[0]);
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#printHelp()
+	 *
+	 * Override default printHelp() and print help regarding HTMLParser
+	 */
+	@Override
+	public void printHelp()
+	{
+		print("Parser HTMLParser reads incoming data as HTML and compares the text a browser would show to the provided "
+				+ "keyphrase. Tags, attributes, comments, scripts and style sheets are skipped, and entities such as &amp; are "
+				+ "decoded. HTMLParser can use argument html_ci to compare text case insensitive, and html_select to only "
+				+ "search within elements matching a simple CSS selector, e.g. html_select=\"#main td.status\".");
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#printUsage()
+	 *
+	 * Override default printUsage() and print usage information about HTMLParser
+	 */
+	@Override
+	public void printUsage()
+	{
+		print("HTMLParser will be used to parse incoming data and compare it to the keyphrase. Only the visible text of the "
+				+ "HTML will be searched");
+		if(compounds != null)
+			print("html_select has been set and only text within \"" + selector + "\" will be searched");
+		if(caseInsensitive)
+			print("html_ci has been set and data will be compared case insensitive. Note that Providers will still treat the keyphrase"
+					+ " case sensitive (unless specified otherwise), so care should be taken mixing the two");
+	}
+
+	/**
+	 * <p>One element of a selector: a tag name, an id and classes, each of which may be left out.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static final class Compound
+	{
+		private final String tag;
+		private final String id;
+		private final String[] classes;
+
+		private Compound(String tag, String id, String[] classes)
+		{
+			this.tag = tag;
+			this.id = id;
+			this.classes = classes;
+		}
+
+		private boolean matches(String tag, String id, String classList)
+		{
+			if(this.tag != null && !this.tag.equals(tag))
+				return false;
+			if(this.id != null && !this.id.equals(id))
+				return false;
+			for(String name : classes)
+				if(classList == null || !hasClass(classList, name))
+					return false;
+			return true;
+		}
+
+		/**
+		 * Returns true if the whitespace separated <code>classList</code> contains <code>name</code>
+		 */
+		private static boolean hasClass(String classList, String name)
+		{
+			for(int start = classList.indexOf(name); start >= 0; start = classList.indexOf(name, start + 1))
+			{
+				int end = start + name.length();
+				if((start == 0 || Character.isWhitespace(classList.charAt(start - 1)))
+						&& (end == classList.length() || Character.isWhitespace(classList.charAt(end))))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * <p>The state machine that splits a document into text, tags, comments and character references, and
+	 * matches the visible text against the key phrase. It can be fed a document in pieces of any size.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private final class Tokenizer
+	{
+		private static final int TEXT = 0;
+		private static final int TAG_OPEN = 1;
+		private static final int TAG_NAME = 2;
+		private static final int END_TAG_OPEN = 3;
+		private static final int END_TAG_NAME = 4;
+		private static final int ATTRIBUTES = 5;
+		private static final int ATTRIBUTE_NAME = 6;
+		private static final int AFTER_ATTRIBUTE_NAME = 7;
+		private static final int BEFORE_VALUE = 8;
+		private static final int VALUE_DOUBLE = 9;
+		private static final int VALUE_SINGLE = 10;
+		private static final int VALUE_UNQUOTED = 11;
+		private static final int SELF_CLOSING = 12;
+		private static final int MARKUP = 13;
+		private static final int COMMENT = 14;
+		private static final int BOGUS = 15;
+		private static final int RAW_TEXT = 16;
+		private static final int REFERENCE = 17;
+
+		/**
+		 * Number of tag names cached, so that a document does not allocate a String for every tag
+		 */
+		private static final int TAG_CACHE = 64;
+
+		private final char[] name;
+		private final char[] attribute;
+		private final char[] value;
+		private final char[] reference;
+		private int nameLength;
+		private int attributeLength;
+		private int valueLength;
+		private int referenceLength;
+		private final String[] names;
+		private final int[] matched;
+		private final String[] tags;
+		private final int[] kinds;
+
+		private int state;
+		private boolean endTag;
+		private int kind;
+		private String id;
+		private String classList;
+		private int dashes;
+		private String rawEnd;
+		private int rawIndex;
+		private int depth;
+		private int overflow;
+		private boolean space;
+		private boolean visible;
+		private int position;
+
+		private Tokenizer()
+		{
+			this.name = new char[MAX_NAME];
+			this.attribute = new char[MAX_NAME];
+			this.value = new char[MAX_VALUE];
+			this.reference = new char[MAX_NAME];
+			this.names = (compounds != null) ? new String[MAX_DEPTH] : null;
+			this.matched = (compounds != null) ? new int[MAX_DEPTH] : null;
+			this.tags = new String[TAG_CACHE];
+			this.kinds = new int[TAG_CACHE];
+		}
+
+		private void reset()
+		{
+			state = TEXT;
+			depth = 0;
+			overflow = 0;
+			space = true;
+			visible = (compounds == null);
+			position = 0;
+		}
+
+		/**
+		 * <p>Updates whether text is shown here: always without a selector, else within a matching element.</p>
+		 */
+		private void updateVisible()
+		{
+			visible = compounds == null || (depth > 0 && matched[depth - 1] == compounds.length);
+		}
+
+		/**
+		 * Feeds <code>length</code> characters of <code>data</code>, and returns true as soon as the key phrase is found
+		 */
+		private boolean feed(char[] data, int offset, int length)
+		{
+			int end = offset + length;
+			for(int i = offset; i < end; i++)
+			{
+				char c = data[i];
+				//	Runs of text, and of characters that are skipped, bypass the state machine
+				if(state == TEXT && c != '<' && c != '&')
+				{
+					if(visible && emit(c))
+						return true;
+				}
+				else if((state == VALUE_DOUBLE && c != '"') || (state == COMMENT && c != '-' && c != '>')
+						|| (state == RAW_TEXT && c != '<' && rawIndex == 0) || (state == BOGUS && c != '>'))
+				{
+					if(state == VALUE_DOUBLE && valueLength < MAX_VALUE)
+						value[valueLength++] = c;
+					else if(state == COMMENT)
+						dashes = 0;
+				}
+				else if(next(c))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Ends the document, emitting an unterminated character reference, and returns true if it completed the key phrase
+		 */
+		private boolean finish()
+		{
+			return (state == REFERENCE) && emitReference(false);
+		}
+
+		private boolean next(char c)
+		{
+			switch(state)
+			{
+				case TEXT:
+					if(c == '<')
+						state = TAG_OPEN;
+					else if(c == '&')
+					{
+						referenceLength = 0;
+						state = REFERENCE;
+					}
+					else
+						return emit(c);
+					return false;
+
+				case REFERENCE:
+					if(c == ';')
+						return emitReference(true);
+					if((Character.isLetterOrDigit(c) || (c == '#' && referenceLength == 0)) && referenceLength < MAX_NAME)
+					{
+						reference[referenceLength++] = c;
+						return false;
+					}
+					return emitReference(false) || next(c);
+
+				case TAG_OPEN:
+					if(isAsciiLetter(c))
+					{
+						startTag(false);
+						name[nameLength++] = Character.toLowerCase(c);
+						state = TAG_NAME;
+					}
+					else if(c == '/')
+						state = END_TAG_OPEN;
+					else if(c == '!')
+					{
+						dashes = 0;
+						state = MARKUP;
+					}
+					else if(c == '?')
+						state = BOGUS;
+					else
+					{
+						//	Not a tag, e.g. "a < b"
+						state = TEXT;
+						return emit('<') || next(c);
+					}
+					return false;
+
+				case END_TAG_OPEN:
+					if(isAsciiLetter(c))
+					{
+						startTag(true);
+						name[nameLength++] = Character.toLowerCase(c);
+						state = END_TAG_NAME;
+					}
+					else
+						state = (c == '>') ? TEXT : BOGUS;
+					return false;
+
+				case TAG_NAME:
+				case END_TAG_NAME:
+					if(c == '>')
+						return endOfTag(false);
+					if(isWhitespace(c))
+						state = ATTRIBUTES;
+					else if(c == '/')
+						state = SELF_CLOSING;
+					else if(nameLength < MAX_NAME)
+						name[nameLength++] = Character.toLowerCase(c);
+					return false;
+
+				case ATTRIBUTES:
+				case AFTER_ATTRIBUTE_NAME:
+					if(c == '>')
+						return endOfTag(false);
+					if(c == '/')
+						state = SELF_CLOSING;
+					else if(c == '=' && state == AFTER_ATTRIBUTE_NAME)
+						state = BEFORE_VALUE;
+					else if(!isWhitespace(c))
+					{
+						attribute[0] = Character.toLowerCase(c);
+						attributeLength = 1;
+						state = ATTRIBUTE_NAME;
+					}
+					return false;
+
+				case ATTRIBUTE_NAME:
+					if(c == '>')
+						return endOfTag(false);
+					if(c == '=')
+						state = BEFORE_VALUE;
+					else if(isWhitespace(c))
+						state = AFTER_ATTRIBUTE_NAME;
+					else if(c == '/')
+						state = SELF_CLOSING;
+					else if(attributeLength < MAX_NAME)
+						attribute[attributeLength++] = Character.toLowerCase(c);
+					return false;
+
+				case BEFORE_VALUE:
+					if(c == '>')
+						return endOfTag(false);
+					valueLength = 0;
+					if(c == '"')
+						state = VALUE_DOUBLE;
+					else if(c == '\'')
+						state = VALUE_SINGLE;
+					else if(!isWhitespace(c))
+					{
+						value[valueLength++] = c;
+						state = VALUE_UNQUOTED;
+					}
+					return false;
+
+				case VALUE_DOUBLE:
+				case VALUE_SINGLE:
+					if(c == ((state == VALUE_DOUBLE) ? '"' : '\''))
+					{
+						endOfValue();
+						state = ATTRIBUTES;
+					}
+					else if(valueLength < MAX_VALUE)
+						value[valueLength++] = c;
+					return false;
+
+				case VALUE_UNQUOTED:
+					if(c == '>')
+					{
+						endOfValue();
+						return endOfTag(false);
+					}
+					if(isWhitespace(c))
+					{
+						endOfValue();
+						state = ATTRIBUTES;
+					}
+					else if(valueLength < MAX_VALUE)
+						value[valueLength++] = c;
+					return false;
+
+				case SELF_CLOSING:
+					if(c == '>')
+						return endOfTag(true);
+					state = ATTRIBUTES;
+					return next(c);
+
+				case MARKUP:
+					//	"<!--" starts a comment; anything else ("<!DOCTYPE", "<![CDATA[") is skipped to the next '>'
+					if(c == '-' && ++dashes == 2)
+					{
+						dashes = 0;
+						state = COMMENT;
+					}
+					else if(c != '-')
+						state = (c == '>') ? TEXT : BOGUS;
+					return false;
+
+				case COMMENT:
+					if(c == '>' && dashes >= 2)
+						state = TEXT;
+					dashes = (c == '-') ? dashes + 1 : 0;
+					return false;
+
+				case BOGUS:
+					if(c == '>')
+						state = TEXT;
+					return false;
+
+				case RAW_TEXT:
+					//	Skip to the end tag of the script or style, e.g. "</script"
+					if(Character.toLowerCase(c) == rawEnd.charAt(rawIndex))
+					{
+						if(++rawIndex == rawEnd.length())
+						{
+							rawIndex = 0;
+							state = BOGUS;
+							return boundary();
+						}
+					}
+					else
+						rawIndex = (c == '<') ? 1 : 0;
+					return false;
+
+				default:
+					return false;
+			}
+		}
+
+		private void startTag(boolean end)
+		{
+			endTag = end;
+			nameLength = 0;
+			id = null;
+			classList = null;
+		}
+
+		private void endOfValue()
+		{
+			if(compounds == null)
+				return;
+			String key = new String(attribute, 0, attributeLength);
+			if(key.equals("id"))
+				id = new String(value, 0, valueLength);
+			else if(key.equals("class"))
+				classList = new String(value, 0, valueLength);
+		}
+
+		/**
+		 * Handles a complete start or end tag, and returns true if the boundary it makes completes the key phrase
+		 */
+		private boolean endOfTag(boolean selfClosing)
+		{
+			String tag = getTag();
+			boolean wasVisible = visible;
+			state = TEXT;
+
+			if(endTag)
+				pop(tag);
+			else if((kind & RAW) != 0 && !selfClosing)
+			{
+				rawEnd = "</" + tag;
+				rawIndex = 0;
+				state = RAW_TEXT;
+			}
+			else if((kind & VOID) == 0 && !selfClosing)
+				push(tag, (kind & OPTIONAL_END) != 0);
+
+			//	Text on both sides of a block, or of a change of scope, is not joined
+			if((kind & INLINE) == 0 || wasVisible != visible)
+				return boundary(wasVisible);
+			return false;
+		}
+
+		/**
+		 * Returns the tag name in <code>name</code>, from the cache if it has been seen before, and sets
+		 * <code>kind</code> to its kind
+		 */
+		private String getTag()
+		{
+			int hash = 0;
+			for(int i = 0; i < nameLength; i++)
+				hash = 31 * hash + name[i];
+			int slot = (hash ^ (hash >>> 7)) & (TAG_CACHE - 1);
+			String tag = tags[slot];
+			if(tag == null || !isName(tag))
+			{
+				tag = new String(name, 0, nameLength);
+				Integer known = ELEMENTS.get(tag);
+				tags[slot] = tag;
+				kinds[slot] = (known != null) ? known : 0;
+			}
+			kind = kinds[slot];
+			return tag;
+		}
+
+		private boolean isName(String tag)
+		{
+			if(tag.length() != nameLength)
+				return false;
+			for(int i = 0; i < nameLength; i++)
+				if(tag.charAt(i) != name[i])
+					return false;
+			return true;
+		}
+
+		private void push(String tag, boolean optionalEnd)
+		{
+			if(compounds == null)
+				return;
+			if(optionalEnd && depth > 0 && tag.equals(names[depth - 1]))
+			{
+				depth--;
+				updateVisible();
+			}
+			if(depth == MAX_DEPTH)
+			{
+				overflow++;
+				return;
+			}
+			int parent = (depth > 0) ? matched[depth - 1] : 0;
+			names[depth] = tag;
+			matched[depth] = (parent < compounds.length && compounds[parent].matches(tag, id, classList)) ? parent + 1 : parent;
+			depth++;
+			updateVisible();
+		}
+
+		/**
+		 * Closes the innermost open element named <code>tag</code> and those within it; end tags of elements that are
+		 * not open are ignored
+		 */
+		private void pop(String tag)
+		{
+			if(compounds == null)
+				return;
+			if(overflow > 0)
+			{
+				overflow--;
+				return;
+			}
+			for(int i = depth - 1; i >= 0; i--)
+				if(tag.equals(names[i]))
+				{
+					depth = i;
+					updateVisible();
+					return;
+				}
+		}
+
+		/**
+		 * Breaks the text with a space, if text is shown on either side
+		 */
+		private boolean boundary(boolean wasVisible)
+		{
+			return (wasVisible || visible) && emitSpace();
+		}
+
+		private boolean boundary()
+		{
+			return boundary(false);
+		}
+
+		/**
+		 * <p>Emits the character reference in <code>reference</code>, or the text it was read from if it is not
+		 * known. Without a terminating semicolon, only the most common references are decoded.</p>
+		 */
+		private boolean emitReference(boolean terminated)
+		{
+			state = TEXT;
+			String text = new String(reference, 0, referenceLength);
+			int codePoint = -1;
+			if(text.startsWith("#") && text.length() > 1)
+			{
+				try
+				{
+					boolean hex = (text.charAt(1) == 'x' || text.charAt(1) == 'X');
+					codePoint = hex ? Integer.parseInt(text.substring(2), 16) : Integer.parseInt(text.substring(1));
+					if(codePoint <= 0 || codePoint > Character.MAX_CODE_POINT || (codePoint >= 0xD800 && codePoint <= 0xDFFF))
+						codePoint = 0xFFFD;
+				}
+				catch(NumberFormatException ex)
+				{
+					codePoint = -1;
+				}
+			}
+			else if(terminated || text.matches("amp|lt|gt|quot|nbsp"))
+			{
+				Character resolved = ENTITIES.get(text);
+				if(resolved != null)
+					codePoint = resolved;
+			}
+
+			if(codePoint >= 0)
+			{
+				for(char c : Character.toChars(codePoint))
+					if(emit(c))
+						return true;
+				return false;
+			}
+			if(emit('&'))
+				return true;
+			for(int i = 0; i < text.length(); i++)
+				if(emit(text.charAt(i)))
+					return true;
+			return terminated && emit(';');
+		}
+
+		private boolean emit(char c)
+		{
+			if(!visible)
+				return false;
+			if(isWhitespace(c) || c == '\u00A0')
+				return emitSpace();
+			space = false;
+			return match(caseInsensitive ? Character.toLowerCase(c) : c);
+		}
+
+		private boolean emitSpace()
+		{
+			if(space)
+				return false;
+			space = true;
+			return match(' ');
+		}
+
+		/**
+		 * Advances the match of the key phrase by one character of text, and returns true when it is complete
+		 */
+		private boolean match(char c)
+		{
+			while(position > 0 && needle[position] != c)
+				position = table[position - 1];
+			if(needle[position] == c)
+				position++;
+			if(position == needle.length)
+				return true;
+			return false;
+		}
+
+		private boolean isWhitespace(char c)
+		{
+			return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+		}
+
+		private boolean isAsciiLetter(char c)
+		{
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+		}
+	}
+
+}
@@ -1,72 +1,144 @@
-package se.cqst.sleeper.parsers;
-
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
-public interface Parser {
-	
-	default boolean phraseExists(String phrase, String data)
-	{
-		return false;
-	}
-	
-	/**
-	 * <p>Returns the current date</p>
-	 *
-	 * @return Current date in yyyy-MM-dd HH:mm format
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default String getDate()
-	{
-		Calendar cal = Calendar.getInstance();
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-		return sdf.format(cal.getTime());
-	}
-	
-	/**
-	 * <p>Prints text to <code>System.out</code> with a prefix date in brackets.</p>
-	 *
-	 * @param text text to be printed
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default void print(String text)
-	{
-		System.out.println("[" + getDate() + "] " + text);
-	}
-	
-	/**
-	 * <p>Print detailed information about how you configure and use the Parser</p>
-	 * 
-	 * <p>Example: <i>Parser x reads incoming data backwards and looks for the keyphrase.
-	 * For key phrase <code>Foo</code>, ParserX.phraseExists() would return <code>true</code> if <code>ooF</code>
-	 * exists in the input data.</i></p>
-	 * 
-	 * <p><i>Valid arguments are: argumentA, argumentB, argumentC<br>
-	 * argumentA - do something<br>
-	 * argumentB - do something else<br>
-	 * argumentC - do something different</i></p>
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default void	printHelp()
-	{
-		print("This Parser has no help specified.");
-	}
-	
-	/**
-	 * <p>Print information about what the Parser will do. This information will be
-	 * displayed when you run the application with the specified Provider</p>
-	 * 
-	 * <p>Example: <i>Parser x will be used to find the specified key phrase by reading the
-	 * input data backwards. ArgumentA has been specified and parser x will do something.</i></p>
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default void	printUsage()
-	{
-		print("This Parser has no usage information defined.");
-	}
-
-}
+package se.cqst.sleeper.parsers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import se.cqst.sleeper.senders.ConsoleSender;
+
+public interface Parser {
+	
+	default boolean phraseExists(String phrase, String data)
+	{
+		return false;
+	}
+	
+	/**
+	 * <p>Streaming variant of {@link #phraseExists(String, String)} used by <code>Providers</code> that
+	 * read their data from a network stream.</p>
+	 * 
+	 * <p>The default implementation reads the entire <code>Reader</code> into a <code>String</code> and
+	 * passes it on to {@link #phraseExists(String, String)}. Parsers that can search incrementally should
+	 * override this method so that large documents never have to exist fully in memory.</p>
+	 * 
+	 * <p>The <code>Reader</code> is not closed by this method.</p>
+	 *
+	 * @param phrase the key phrase
+	 * @param data the data to search
+	 * @return true, if the key phrase is found
+	 * @throws IOException if the data could not be read
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default boolean phraseExists(String phrase, Reader data) throws IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[8192];
+		int read;
+		while((read = data.read(buffer)) != -1)
+			builder.append(buffer, 0, read);
+		return this.phraseExists(phrase, builder.toString());
+	}
+	
+	/**
+	 * <p>Variant of {@link #phraseExists(String, String)} for data that a <code>Provider</code> has read into a
+	 * (usually pooled, direct) <code>ByteBuffer</code>, encoded in <code>charset</code>.</p>
+	 * 
+	 * <p>The data is the bytes between the position and the limit of <code>data</code>. Implementations must
+	 * not change the position, limit or content of the buffer, and must not keep a reference to it after
+	 * returning, since it is handed back to a pool afterwards.</p>
+	 * 
+	 * <p>The default implementation decodes the bytes into a <code>String</code> and passes it on to
+	 * {@link #phraseExists(String, String)}. Parsers that can search the bytes directly should override this
+	 * method.</p>
+	 *
+	 * @param phrase the key phrase
+	 * @param data the data to search
+	 * @param charset the charset of <code>data</code>
+	 * @return true, if the key phrase is found
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default boolean phraseExists(String phrase, ByteBuffer data, Charset charset)
+	{
+		return this.phraseExists(phrase, charset.decode(data.duplicate()).toString());
+	}
+	
+	/**
+	 * <p>Returns true if this Parser gives the same result for a document as for its parts, as long as
+	 * each part overlaps the previous one by the length of the key phrase.</p>
+	 * 
+	 * <p>Providers may use this to hand only the changed parts of a document to the Parser. Parsers
+	 * that depend on context (e.g. markup that spans the entire document) must return <code>false</code>,
+	 * which is the default.</p>
+	 *
+	 * @return true, if the Parser can parse a document in overlapping segments
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default boolean isSegmentable()
+	{
+		return false;
+	}
+	
+	/**
+	 * <p>Returns the current date</p>
+	 *
+	 * @return Current date in yyyy-MM-dd HH:mm format
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default String getDate()
+	{
+		return ConsoleSender.getTimestamp(System.currentTimeMillis());
+	}
+	
+	/**
+	 * <p>Prints text to <code>System.out</code> with a prefix date in brackets.</p>
+	 * 
+	 * <p>The text is queued in the {@link ConsoleSender} log and written asynchronously.</p>
+	 *
+	 * @param text text to be printed
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void print(String text)
+	{
+		ConsoleSender.log(getClass().getSimpleName(), text);
+	}
+	
+	/**
+	 * <p>Print detailed information about how you configure and use the Parser</p>
+	 * 
+	 * <p>Example: <i>Parser x reads incoming data backwards and looks for the keyphrase.
+	 * For key phrase <code>Foo</code>, ParserX.phraseExists() would return <code>true</code> if <code>ooF</code>
+	 * exists in the input data.</i></p>
+	 * 
+	 * <p><i>Valid arguments are: argumentA, argumentB, argumentC<br>
+	 * argumentA - do something<br>
+	 * argumentB - do something else<br>
+	 * argumentC - do something different</i></p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void	printHelp()
+	{
+		print("This Parser has no help specified.");
+	}
+	
+	/**
+	 * <p>Print information about what the Parser will do. This information will be
+	 * displayed when you run the application with the specified Provider</p>
+	 * 
+	 * <p>Example: <i>Parser x will be used to find the specified key phrase by reading the
+	 * input data backwards. ArgumentA has been specified and parser x will do something.</i></p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void	printUsage()
+	{
+		print("This Parser has no usage information defined.");
+	}
+
+}
@@ -1,99 +1,483 @@
-package se.cqst.sleeper.parsers;
-
-import java.util.HashMap;
-
-/**
- * <p><code>PlainTextParser</code> is the default implementation of the <code>Parser</code> interface,
- * and parses all input data as plain text.</p>
- * 
- * <p>The <code>PlainTextParser</code> compares the input data with the key phrase like two Strings.
- * It is by default case sensitive, but can be made case insensitive with the attribute <code>ptp_ci</code></p>
- * 
- * <p>A <code>PlainTextParser</code> object is created by passing a <code>HashMap&lt;String, String&gt;</code> 
- * with arguments to it. The following is a list of arguments used by the Parser (note that all arguments are in
- * the format (String, String), but the column <i>Accepted Value</i> displays how they are interpreted):</p>
- * 
- * <col width="25%" />
- * <col width="25%" />
- * <col width="50%" />
- * <code>
- * 	<table>
- * 		<thead>
- * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
- * 		</thead>
- * 		<tbody>
- * 			<tr><td>ptp_ci</td><td>boolean</td><td>if set, compares input and key phrase case insensitive</td></tr>
- * 		</tbody>
- * 	</table>
- * </code>
- * 
- * 
- * @author Nicklas Rosvall Carlquist
- * 
- */
-public class PlainTextParser implements Parser {
-	
-	private HashMap<String, String> arguments;
-	
-	/**
-	 * Instantiate a new <code>PlainTextParser</code> using the provided <code>HashMap</code>
-	 *
-	 * @param arguments HashMap with arguments
-	 */
-	public PlainTextParser(HashMap<String, String> arguments)
-	{
-		this.arguments = arguments;
-	}
-	
-	/* (non-Javadoc)
-	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.lang.String)
-	 * 
-	 * Override default implementation and compare the two input Strings to each other.
-	 * 
-	 * If String phrase is found within String data, return true.
-	 * 
-	 * If argument ptp_ci is set, compare case insensitive.
-	 */
-	@Override
-	public boolean phraseExists(String phrase, String data)
-	{
-		boolean caseInsensitive = false;
-		if(Boolean.parseBoolean(arguments.get("ptp_ci")))
-			caseInsensitive = true;
-		
-		if(caseInsensitive)
-			return data.toLowerCase().contains(phrase.toLowerCase());
-		else
-			return data.contains(phrase);
-	}
-	
-	/* (non-Javadoc)
-	 * @see se.cqst.sleeper.parsers.Parser#printHelp()
-	 * 
-	 * Override default printHelp() and print help regarding PlainTextParser
-	 */
-	@Override
-	public void printHelp()
-	{
-		print("Parser PlainTextParser parses incoming data as plain text and compares it to the provided keyphrase. The"
-				+ "PlainTextParser treats potential metadata and tags as text, and will trigger the action if the keyphrase"
-				+ "is found anywhere in the data provided by a Provider. PlainTextParser can use argument ptp_ci to compare"
-				+ "text case insensitive. Note that this ONLY affects the parsing of data - any provider that relies on the keyphrase"
-				+ " (e.g. to generate an e-mail address) will not be affected.");
-	}
-	
-	/* (non-Javadoc)
-	 * @see se.cqst.sleeper.parsers.Parser#printUsage()
-	 * 
-	 * Override default printUsage() and print usage information about PlainTextParser
-	 */
-	@Override
-	public void printUsage()
-	{
-		print("PlainTextParser will be used to parse incoming data and compare it to the keyphrase. Data will be parsed as plain text");
-		if(Boolean.valueOf(this.arguments.get("ptp_ci")))
-			print("ptp_ci has been set and data will be compared case insensitive. Note that Providers will still treat the keyphrase"
-					+ " case sensitive (unless specified otherwise), so care should be taken mixing the two");
-	}
-
-}
+package se.cqst.sleeper.parsers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.plugins.Plugin;
+
+/**
+ * <p><code>PlainTextParser</code> is the default implementation of the <code>Parser</code> interface,
+ * and parses all input data as plain text.</p>
+ * 
+ * <p>The <code>PlainTextParser</code> compares the input data with the key phrase like two Strings.
+ * It is by default case sensitive, but can be made case insensitive with the attribute <code>ptp_ci</code></p>
+ * 
+ * <p>A <code>PlainTextParser</code> object is created by passing a <code>HashMap&lt;String, String&gt;</code> 
+ * with arguments to it. The following is a list of arguments used by the Parser (note that all arguments are in
+ * the format (String, String), but the column <i>Accepted Value</i> displays how they are interpreted):</p>
+ * 
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>ptp_ci</td><td>boolean</td><td>if set, compares input and key phrase case insensitive</td></tr>
+ * 			<tr><td>ptp_parallel</td><td>boolean</td><td>if set, searches large input in parallel</td></tr>
+ * 			<tr><td>ptp_threshold</td><td>int</td><td>minimum input length (characters, or bytes) for a parallel search</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ * 
+ * <p>Data in a <code>ByteBuffer</code> is searched as bytes, without decoding it, when it is encoded in
+ * <code>UTF-8</code>, <code>ISO-8859-1</code> or <code>US-ASCII</code> (case insensitive only for ASCII key phrases).
+ * A key phrase that cannot be encoded in the charset of the data is never found in it. <code>ptp_parallel</code>
+ * applies to data given as a <code>String</code> or a <code>ByteBuffer</code>, not to data read from a
+ * <code>Reader</code>.</p>
+ * 
+ * <p>Arguments are read once, when the <code>PlainTextParser</code> is created, and the search buffer is reused
+ * between calls, so a <code>PlainTextParser</code> must not be used by more than one thread at a time.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ * 
+ */
+@Plugin(name = "plaintext", type = Parser.class)
+public class PlainTextParser implements Parser {
+	
+	public static final int BUFFER_SIZE = 8192;
+	public static final int PARALLEL_THRESHOLD = 1024 * 1024;
+	public static final int SEGMENT_SIZE = 256 * 1024;
+	
+	/** The needle of a key phrase that cannot be encoded in the charset of the data, and is never found */
+	private static final byte[] UNENCODABLE = new byte[0];
+	
+	private final boolean caseInsensitive;
+	private final boolean parallel;
+	private final int threshold;
+	
+	private char[] buffer;
+	private String phrase;
+	private char[] needle;
+	private String bytePhrase;
+	private Charset byteCharset;
+	private byte[] byteNeedle;
+	
+	/**
+	 * Instantiate a new <code>PlainTextParser</code> using the provided <code>HashMap</code>
+	 *
+	 * @param arguments HashMap with arguments
+	 */
+	public PlainTextParser(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.caseInsensitive = spec.getBoolean("ptp_ci");
+		this.parallel = spec.getBoolean("ptp_parallel");
+		this.threshold = spec.getInt("ptp_threshold", PARALLEL_THRESHOLD);
+		this.buffer = new char[BUFFER_SIZE];
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.lang.String)
+	 * 
+	 * Override default implementation and compare the two input Strings to each other.
+	 * 
+	 * If String phrase is found within String data, return true.
+	 * 
+	 * If argument ptp_ci is set, compare case insensitive. This is done character by character
+	 * instead of converting data to lower case, so no copy of data is made.
+	 */
+	@Override
+	public boolean phraseExists(String phrase, String data)
+	{
+		if(phrase.isEmpty())
+			return true;
+		
+		if(parallel && data.length() >= threshold)
+			return ForkJoinPool.commonPool().invoke(new SearchTask(data, phrase, caseInsensitive, 0, data.length(), new AtomicBoolean()));
+		
+		if(caseInsensitive)
+			return indexOf(data, 0, data.length(), phrase, true, null) != -1;
+		else
+			return data.contains(phrase);
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.io.Reader)
+	 * 
+	 * Override default implementation and search the data as it is read, keeping only
+	 * a buffer of BUFFER_SIZE characters in memory.
+	 * 
+	 * The last (phrase length - 1) characters of every buffer are carried over to the next
+	 * read, so a key phrase spanning two reads is still found.
+	 */
+	@Override
+	public boolean phraseExists(String phrase, Reader data) throws IOException
+	{
+		if(phrase.isEmpty())
+			return true;
+		
+		char[] needle = getNeedle(phrase);
+		if(buffer.length < needle.length * 2)
+			buffer = new char[needle.length * 2];
+		int filled = 0;
+		int read;
+		
+		while((read = data.read(buffer, filled, buffer.length - filled)) != -1)
+		{
+			filled += read;
+			if(indexOf(buffer, filled, needle, caseInsensitive) != -1)
+				return true;
+			
+			int keep = Math.min(needle.length - 1, filled);
+			System.arraycopy(buffer, filled - keep, buffer, 0, keep);
+			filled = keep;
+		}
+		return false;
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#phraseExists(java.lang.String, java.nio.ByteBuffer, java.nio.charset.Charset)
+	 * 
+	 * Override default implementation and search the encoded bytes directly, without decoding
+	 * the data, if the charset allows it: UTF-8, ISO-8859-1 or US-ASCII, and an ASCII key phrase
+	 * if ptp_ci is set (since only ASCII letters can be folded byte by byte). Large data is split
+	 * in overlapping segments and searched in parallel if ptp_parallel is set, like a String.
+	 * 
+	 * Other charsets are decoded by the default implementation.
+	 */
+	@Override
+	public boolean phraseExists(String phrase, ByteBuffer data, Charset charset)
+	{
+		if(phrase.isEmpty())
+			return true;
+		
+		byte[] needle = getByteNeedle(phrase, charset);
+		if(needle == null)
+			return Parser.super.phraseExists(phrase, data, charset);
+		if(needle == UNENCODABLE)
+			return false;
+		
+		if(parallel && data.remaining() >= threshold)
+			return ForkJoinPool.commonPool().invoke(new ByteSearchTask(data, needle, caseInsensitive, data.position(), data.limit(), new AtomicBoolean()));
+		return indexOf(data, data.position(), data.limit(), needle, caseInsensitive, null) != -1;
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#isSegmentable()
+	 * 
+	 * A plain text search only depends on the characters around a match.
+	 */
+	@Override
+	public boolean isSegmentable()
+	{
+		return true;
+	}
+	
+	/**
+	 * <p>Returns <code>phrase</code> as a char array, in lower case if <code>ptp_ci</code> is set.</p>
+	 * 
+	 * <p>The key phrase of a watch never changes, so the array is cached for the last phrase.</p>
+	 *
+	 * @param phrase the key phrase
+	 * @return the characters to search for
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private char[] getNeedle(String phrase)
+	{
+		if(!phrase.equals(this.phrase))
+		{
+			this.needle = (caseInsensitive ? phrase.toLowerCase() : phrase).toCharArray();
+			this.phrase = phrase;
+		}
+		return this.needle;
+	}
+	
+	/**
+	 * <p>Returns <code>phrase</code> encoded in <code>charset</code>, in lower case if <code>ptp_ci</code> is set,
+	 * or <code>null</code> if the data cannot be searched as bytes.</p>
+	 * 
+	 * <p>A key phrase with characters that <code>charset</code> cannot encode returns {@link #UNENCODABLE},
+	 * since <code>String.getBytes</code> would replace them with <code>?</code> and match text that is not the
+	 * key phrase.</p>
+	 * 
+	 * <p>Like {@link #getNeedle(String)}, the array is cached for the last phrase and charset.</p>
+	 *
+	 * @param phrase the key phrase
+	 * @param charset the charset of the data
+	 * @return the bytes to search for, {@link #UNENCODABLE} or <code>null</code>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private byte[] getByteNeedle(String phrase, Charset charset)
+	{
+		if(phrase.equals(this.bytePhrase) && charset.equals(this.byteCharset))
+			return this.byteNeedle;
+		
+		byte[] needle = null;
+		boolean ascii = phrase.chars().allMatch(c -> c < 0x80);
+		boolean byteCharset = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1)
+				|| charset.equals(StandardCharsets.US_ASCII);
+		if(byteCharset && (ascii || !caseInsensitive))
+		{
+			String target = caseInsensitive ? phrase.toLowerCase() : phrase;
+			needle = charset.newEncoder().canEncode(target) ? target.getBytes(charset) : UNENCODABLE;
+		}
+		
+		this.bytePhrase = phrase;
+		this.byteCharset = charset;
+		this.byteNeedle = needle;
+		return needle;
+	}
+	
+	/**
+	 * <p>Returns the first index in [<code>from</code>, <code>to</code>) of <code>data</code> where
+	 * <code>needle</code> starts. A match may extend past <code>to</code>, up to the limit of <code>data</code>.
+	 * Only absolute reads are used, so the position and limit are not changed, and several threads may search
+	 * the same buffer.</p>
+	 * 
+	 * <p>If <code>caseInsensitive</code> is set, <code>needle</code> must be ASCII in lower case, and ASCII
+	 * letters in <code>data</code> are folded to lower case.</p>
+	 *
+	 * @param data the bytes to search
+	 * @param from first start index to check
+	 * @param to end (exclusive) of the start indexes to check
+	 * @param needle the bytes to search for
+	 * @param caseInsensitive compare ASCII letters case insensitive
+	 * @param found a flag that aborts the search when set by another thread, or <code>null</code>
+	 * @return index of the first occurrence, or -1 if not found (or aborted)
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static int indexOf(ByteBuffer data, int from, int to, byte[] needle, boolean caseInsensitive, AtomicBoolean found)
+	{
+		int last = Math.min(to - 1, data.limit() - needle.length);
+		byte first = needle[0];
+		for(int i = from; i <= last; i++)
+		{
+			if(found != null && (i & 0x0FFF) == 0 && found.get())
+				return -1;
+			if(fold(data.get(i), caseInsensitive) != first)
+				continue;
+			int j = 1;
+			while(j < needle.length && fold(data.get(i + j), caseInsensitive) == needle[j])
+				j++;
+			if(j == needle.length)
+				return i;
+		}
+		return -1;
+	}
+	
+	private static byte fold(byte value, boolean caseInsensitive)
+	{
+		return (caseInsensitive && value >= 'A' && value <= 'Z') ? (byte)(value + ('a' - 'A')) : value;
+	}
+	
+	/**
+	 * <p>Returns the index of the first occurrence of <code>needle</code> within the first
+	 * <code>length</code> characters of <code>buffer</code>.</p>
+	 * 
+	 * <p>If <code>caseInsensitive</code> is set, <code>needle</code> must already be in lower case.</p>
+	 *
+	 * @param buffer the characters to search
+	 * @param length number of valid characters in <code>buffer</code>
+	 * @param needle the characters to search for
+	 * @param caseInsensitive compare characters case insensitive
+	 * @return index of the first occurrence, or -1 if not found
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static int indexOf(char[] buffer, int length, char[] needle, boolean caseInsensitive)
+	{
+		int last = length - needle.length;
+		for(int i = 0; i <= last; i++)
+		{
+			int j = 0;
+			while(j < needle.length && (caseInsensitive ? Character.toLowerCase(buffer[i + j]) : buffer[i + j]) == needle[j])
+				j++;
+			if(j == needle.length)
+				return i;
+		}
+		return -1;
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#printHelp()
+	 * 
+	 * Override default printHelp() and print help regarding PlainTextParser
+	 */
+	@Override
+	public void printHelp()
+	{
+		print("Parser PlainTextParser parses incoming data as plain text and compares it to the provided keyphrase. The"
+				+ "PlainTextParser treats potential metadata and tags as text, and will trigger the action if the keyphrase"
+				+ "is found anywhere in the data provided by a Provider. PlainTextParser can use argument ptp_ci to compare"
+				+ "text case insensitive. Note that this ONLY affects the parsing of data - any provider that relies on the keyphrase"
+				+ " (e.g. to generate an e-mail address) will not be affected.");
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.parsers.Parser#printUsage()
+	 * 
+	 * Override default printUsage() and print usage information about PlainTextParser
+	 */
+	@Override
+	public void printUsage()
+	{
+		print("PlainTextParser will be used to parse incoming data and compare it to the keyphrase. Data will be parsed as plain text");
+		if(caseInsensitive)
+			print("ptp_ci has been set and data will be compared case insensitive. Note that Providers will still treat the keyphrase"
+					+ " case sensitive (unless specified otherwise), so care should be taken mixing the two");
+	}
+
+	/**
+	 * <p>Returns the first position in [<code>from</code>, <code>to</code>) of <code>data</code> where
+	 * <code>phrase</code> starts. A match may extend past <code>to</code>.</p>
+	 *
+	 * @param data the String to search
+	 * @param from first start position to check
+	 * @param to end (exclusive) of the start positions to check
+	 * @param phrase the key phrase
+	 * @param caseInsensitive compare characters case insensitive
+	 * @param found a flag that aborts the search when set by another thread, or <code>null</code>
+	 * @return the position of the first match, or -1 if not found (or aborted)
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static int indexOf(String data, int from, int to, String phrase, boolean caseInsensitive, AtomicBoolean found)
+	{
+		int last = Math.min(to, data.length() - phrase.length() + 1);
+		char first = phrase.charAt(0);
+		char firstLower = Character.toLowerCase(first);
+		char firstUpper = Character.toUpperCase(first);
+		for(int i = from; i < last; i++)
+		{
+			if(found != null && (i & 0x0FFF) == 0 && found.get())
+				return -1;
+			
+			char c = data.charAt(i);
+			boolean candidate = caseInsensitive 
+					? (Character.toLowerCase(c) == firstLower || Character.toUpperCase(c) == firstUpper)
+					: c == first;
+			if(candidate && data.regionMatches(caseInsensitive, i, phrase, 0, phrase.length()))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * <p>A <code>SearchTask</code> searches a range of a String for the key phrase on a <code>ForkJoinPool</code>.</p>
+	 * 
+	 * <p>Ranges larger than <code>SEGMENT_SIZE</code> are split in two halves that are searched in parallel.
+	 * A range covers every position where a match may <i>start</i>, so a match is allowed to extend up to
+	 * (phrase length - 1) characters into the next range, which makes the segments overlap.</p>
+	 * 
+	 * <p>All tasks share a flag that is set on the first hit, after which remaining tasks return without
+	 * searching.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static class SearchTask extends RecursiveTask<Boolean>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final String data;
+		private final String phrase;
+		private final boolean caseInsensitive;
+		private final int from;
+		private final int to;
+		private final AtomicBoolean found;
+		
+		SearchTask(String data, String phrase, boolean caseInsensitive, int from, int to, AtomicBoolean found)
+		{
+			this.data = data;
+			this.phrase = phrase;
+			this.caseInsensitive = caseInsensitive;
+			this.from = from;
+			this.to = to;
+			this.found = found;
+		}
+		
+		@Override
+		protected Boolean compute()
+		{
+			if(found.get())
+				return false;
+			
+			if(to - from > SEGMENT_SIZE)
+			{
+				int middle = from + (to - from) / 2;
+				SearchTask left = new SearchTask(data, phrase, caseInsensitive, from, middle, found);
+				left.fork();
+				boolean result = new SearchTask(data, phrase, caseInsensitive, middle, to, found).compute();
+				return left.join() || result;
+			}
+			
+			if(indexOf(data, from, to, phrase, caseInsensitive, found) == -1)
+				return false;
+			found.set(true);
+			return true;
+		}
+	}
+	
+	/**
+	 * <p>A <code>ByteSearchTask</code> searches a range of a <code>ByteBuffer</code> for the encoded key phrase,
+	 * split in overlapping segments the same way as a {@link SearchTask}.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static class ByteSearchTask extends RecursiveTask<Boolean>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final ByteBuffer data;
+		private final byte[] needle;
+		private final boolean caseInsensitive;
+		private final int from;
+		private final int to;
+		private final AtomicBoolean found;
+		
+		ByteSearchTask(ByteBuffer data, byte[] needle, boolean caseInsensitive, int from, int to, AtomicBoolean found)
+		{
+			this.data = data;
+			this.needle = needle;
+			this.caseInsensitive = caseInsensitive;
+			this.from = from;
+			this.to = to;
+			this.found = found;
+		}
+		
+		@Override
+		protected Boolean compute()
+		{
+			if(found.get())
+				return false;
+			
+			if(to - from > SEGMENT_SIZE)
+			{
+				int middle = from + (to - from) / 2;
+				ByteSearchTask left = new ByteSearchTask(data, needle, caseInsensitive, from, middle, found);
+				left.fork();
+				boolean result = new ByteSearchTask(data, needle, caseInsensitive, middle, to, found).compute();
+				return left.join() || result;
+			}
+			
+			if(indexOf(data, from, to, needle, caseInsensitive, found) == -1)
+				return false;
+			found.set(true);
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package se.cqst.sleeper.plugins;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Marks a class as a plugin that can be selected by a short name, e.g. <code>provider=http</code>, as well as by
+ * the full name of the class.</p>
+ *
+ * <p>The class must be public, not abstract, implement <code>type</code> and have a public constructor that takes
+ * a <code>HashMap&lt;String, String&gt;</code> with arguments. At build time {@link PluginProcessor} generates a
+ * {@link PluginFactory} for it that calls the constructor directly, and lists the factory in
+ * <code>META-INF/services</code>, where {@link PluginRegistry} finds it.</p>
+ *
+ * <pre>
+ * &#64;Plugin(name = "http", type = Provider.class)
+ * public class HTTPProvider implements Provider
+ * </pre>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Plugin {
+
+	/**
+	 * The short name of the plugin, unique among plugins of the same type
+	 */
+	String name();
+
+	/**
+	 * The plugin interface, e.g. <code>Provider.class</code>
+	 */
+	Class<?> type();
+
+}
@@ -0,0 +1,24 @@
+package se.cqst.sleeper.plugins;
+
+/**
+ * <p>Thrown by {@link PluginRegistry} when a plugin does not exist or could not be created. The message is meant to
+ * be shown to the user.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class PluginException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PluginException(String message)
+	{
+		super(message);
+	}
+
+	public PluginException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+
+}
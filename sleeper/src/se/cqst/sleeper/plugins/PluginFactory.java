@@ -0,0 +1,49 @@
+package se.cqst.sleeper.plugins;
+
+import java.util.HashMap;
+
+/**
+ * <p>Creates instances of a plugin. Factories of classes annotated with {@link Plugin} are generated by
+ * {@link PluginProcessor} and create the plugin with its constructor, without reflection.</p>
+ *
+ * <p>Implementations are loaded with <code>java.util.ServiceLoader</code> and must have a public constructor
+ * without arguments.</p>
+ *
+ * @param <T> the plugin interface
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public interface PluginFactory<T> {
+
+	/**
+	 * Returns the short name of the plugin
+	 *
+	 * @return the short name
+	 */
+	String getName();
+
+	/**
+	 * Returns the plugin interface the plugin implements
+	 *
+	 * @return the plugin interface
+	 */
+	Class<T> getType();
+
+	/**
+	 * Returns the full name of the plugin class
+	 *
+	 * @return the class name
+	 */
+	String getClassName();
+
+	/**
+	 * Create an instance of the plugin
+	 *
+	 * @param arguments a HashMap with arguments for the plugin
+	 * @return the plugin
+	 * @throws PluginException if the plugin could not be created
+	 */
+	T create(HashMap<String, String> arguments);
+
+}
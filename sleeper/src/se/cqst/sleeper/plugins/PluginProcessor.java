@@ -0,0 +1,244 @@
+package se.cqst.sleeper.plugins;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * <p>Annotation processor that builds the plugin index at compile time. For every class annotated with
+ * {@link Plugin} it generates a {@link PluginFactory}, named after the class with the suffix
+ * <code>PluginFactory</code>, that creates the plugin with <code>new</code>, and lists the factories in
+ * <code>META-INF/services/se.cqst.sleeper.plugins.PluginFactory</code>.</p>
+ *
+ * <p>A class that is not public, is abstract, does not implement the type of its annotation or lacks a public
+ * <code>HashMap&lt;String, String&gt;</code> constructor, and two plugins of the same type with the same name, are
+ * compile errors.</p>
+ *
+ * <p>The processor is compiled on its own before the rest of Sleeper (see <code>pom.xml</code>), and can be used
+ * the same way by plugins built outside of Sleeper.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@SupportedAnnotationTypes("se.cqst.sleeper.plugins.Plugin")
+public final class PluginProcessor extends AbstractProcessor {
+
+	public static final String SUFFIX = "PluginFactory";
+	public static final String SERVICES = "META-INF/services/" + PluginFactory.class.getName();
+
+	private final Set<String> factories = new TreeSet<String>();
+	private final Map<String, String> names = new HashMap<String, String>();
+
+	/* (non-Javadoc)
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round)
+	{
+		for(TypeElement annotation : annotations)
+			for(Element element : round.getElementsAnnotatedWith(annotation))
+				if(element.getKind() == ElementKind.CLASS)
+					generate((TypeElement)element);
+				else
+					error(element, "@Plugin can only be used on classes");
+
+		if(round.processingOver() && !factories.isEmpty())
+			writeServices();
+		return true;
+	}
+
+	/**
+	 * Check <code>plugin</code> and generate its factory
+	 */
+	private void generate(TypeElement plugin)
+	{
+		AnnotationMirror annotation = getAnnotation(plugin);
+		String name = null;
+		TypeMirror type = null;
+		for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : annotation.getElementValues().entrySet())
+		{
+			if(value.getKey().getSimpleName().contentEquals("name"))
+				name = (String)value.getValue().getValue();
+			else if(value.getKey().getSimpleName().contentEquals("type"))
+				type = (TypeMirror)value.getValue().getValue();
+		}
+		if(name == null || name.isEmpty() || type == null || !(type instanceof DeclaredType))
+		{
+			error(plugin, "@Plugin needs a name and a type");
+			return;
+		}
+
+		String typeName = ((TypeElement)((DeclaredType)type).asElement()).getQualifiedName().toString();
+		if(!plugin.getModifiers().contains(Modifier.PUBLIC) || plugin.getModifiers().contains(Modifier.ABSTRACT))
+		{
+			error(plugin, "A plugin must be a public class that is not abstract");
+			return;
+		}
+		if(!processingEnv.getTypeUtils().isAssignable(plugin.asType(), processingEnv.getTypeUtils().erasure(type)))
+		{
+			error(plugin, "A plugin of type " + typeName + " must implement it");
+			return;
+		}
+		ExecutableElement constructor = getConstructor(plugin);
+		if(constructor == null)
+		{
+			error(plugin, "A plugin must have a public constructor that takes a HashMap<String, String>");
+			return;
+		}
+		String previous = names.put(typeName + "/" + name, plugin.getQualifiedName().toString());
+		if(previous != null && !previous.equals(plugin.getQualifiedName().toString()))
+		{
+			error(plugin, "The name \"" + name + "\" is already used by " + previous);
+			return;
+		}
+
+		String packageName = processingEnv.getElementUtils().getPackageOf(plugin).getQualifiedName().toString();
+		String className = plugin.getQualifiedName().toString();
+		String factoryName = plugin.getSimpleName() + SUFFIX;
+		String qualifiedFactoryName = packageName.isEmpty() ? factoryName : packageName + "." + factoryName;
+		String literal = name.replace("\\", "\\\\").replace("\"", "\\\"");
+		factories.add(qualifiedFactoryName);
+
+		try(PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedFactoryName, plugin).openWriter()))
+		{
+			if(!packageName.isEmpty())
+				out.println("package " + packageName + ";");
+			out.println();
+			out.println("/**");
+			out.println(" * Creates " + className + " plugins. Generated by " + PluginProcessor.class.getName() + ".");
+			out.println(" */");
+			out.println("public final class " + factoryName + " implements se.cqst.sleeper.plugins.PluginFactory<" + typeName + "> {");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic String getName()");
+			out.println("\t{");
+			out.println("\t\treturn \"" + literal + "\";");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic Class<" + typeName + "> getType()");
+			out.println("\t{");
+			out.println("\t\treturn " + typeName + ".class;");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic String getClassName()");
+			out.println("\t{");
+			out.println("\t\treturn \"" + className + "\";");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic " + typeName + " create(java.util.HashMap<String, String> arguments)");
+			out.println("\t{");
+			if(constructor.getThrownTypes().isEmpty())
+				out.println("\t\treturn new " + className + "(arguments);");
+			else
+			{
+				out.println("\t\ttry");
+				out.println("\t\t{");
+				out.println("\t\t\treturn new " + className + "(arguments);");
+				out.println("\t\t}");
+				out.println("\t\tcatch(RuntimeException ex)");
+				out.println("\t\t{");
+				out.println("\t\t\tthrow ex;");
+				out.println("\t\t}");
+				out.println("\t\tcatch(Exception ex)");
+				out.println("\t\t{");
+				out.println("\t\t\tthrow new se.cqst.sleeper.plugins.PluginException(\"Could not create \\\"" + literal
+						+ "\\\": \" + ex, ex);");
+				out.println("\t\t}");
+			}
+			out.println("\t}");
+			out.println();
+			out.println("}");
+		}
+		catch(IOException ex)
+		{
+			error(plugin, "Could not write " + qualifiedFactoryName + ": " + ex);
+		}
+	}
+
+	/**
+	 * List every factory in the service file
+	 */
+	private void writeServices()
+	{
+		try
+		{
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICES);
+			try(Writer out = file.openWriter())
+			{
+				for(String factory : factories)
+					out.write(factory + "\n");
+			}
+		}
+		catch(IOException ex)
+		{
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + SERVICES + ": " + ex);
+		}
+	}
+
+	/**
+	 * Returns the public constructor of <code>plugin</code> that takes a <code>HashMap</code>, or null
+	 */
+	private ExecutableElement getConstructor(TypeElement plugin)
+	{
+		TypeMirror hashMap = processingEnv.getTypeUtils().erasure(
+				processingEnv.getElementUtils().getTypeElement(HashMap.class.getName()).asType());
+		for(ExecutableElement constructor : ElementFilter.constructorsIn(plugin.getEnclosedElements()))
+		{
+			List<? extends VariableElement> parameters = constructor.getParameters();
+			if(constructor.getModifiers().contains(Modifier.PUBLIC) && parameters.size() == 1
+					&& processingEnv.getTypeUtils().isSameType(processingEnv.getTypeUtils().erasure(parameters.get(0).asType()), hashMap))
+				return constructor;
+		}
+		return null;
+	}
+
+	private AnnotationMirror getAnnotation(TypeElement plugin)
+	{
+		for(AnnotationMirror annotation : plugin.getAnnotationMirrors())
+			if(((TypeElement)annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(Plugin.class.getName()))
+				return annotation;
+		throw new IllegalStateException(plugin + " is not annotated with @Plugin");
+	}
+
+	private void error(Element element, String message)
+	{
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+}
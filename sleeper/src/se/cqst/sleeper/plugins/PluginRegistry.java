@@ -0,0 +1,254 @@
+package se.cqst.sleeper.plugins;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>The PluginRegistry looks up Providers, Parsers and Senders by short name (e.g. <code>http</code>) or by the
+ * full name of the class.</p>
+ *
+ * <p>The factories of the plugins that come with Sleeper, and of any plugin built with {@link PluginProcessor}, are
+ * listed in <code>META-INF/services/se.cqst.sleeper.plugins.PluginFactory</code> and loaded with a
+ * <code>ServiceLoader</code> once, when the registry is created. Creating a plugin with one of them is a plain
+ * constructor call.</p>
+ *
+ * <p>A class name that is not in the index is loaded by reflection the first time it is asked for, and the
+ * constructor is kept, so that watches using the same class do not look it up again. Names that cannot be resolved
+ * throw a {@link PluginException} with a message for the user, instead of exiting the application.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class PluginRegistry {
+
+	private static volatile PluginRegistry defaultRegistry;
+
+	private final ClassLoader loader;
+	private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, PluginFactory<?>>> factories;
+
+	/**
+	 * Create a registry with the factories listed by <code>loader</code>
+	 *
+	 * @param loader the class loader to find factories and plugin classes with
+	 */
+	public PluginRegistry(ClassLoader loader)
+	{
+		this.loader = loader;
+		this.factories = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, PluginFactory<?>>>();
+		for(PluginFactory<?> factory : ServiceLoader.load(PluginFactory.class, loader))
+			register(factory);
+	}
+
+	/**
+	 * Returns the registry of the application, creating it the first time
+	 *
+	 * @return the registry
+	 */
+	public static PluginRegistry getDefault()
+	{
+		PluginRegistry registry = defaultRegistry;
+		if(registry == null)
+		{
+			synchronized(PluginRegistry.class)
+			{
+				registry = defaultRegistry;
+				if(registry == null)
+					defaultRegistry = registry = new PluginRegistry(PluginRegistry.class.getClassLoader());
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Register <code>factory</code> under its short name and class name. A name that is already registered for the
+	 * same type is kept.
+	 *
+	 * @param factory the factory
+	 */
+	public void register(PluginFactory<?> factory)
+	{
+		Map<String, PluginFactory<?>> byName = getFactories(factory.getType());
+		byName.putIfAbsent(factory.getName(), factory);
+		byName.putIfAbsent(factory.getClassName(), factory);
+	}
+
+	/**
+	 * Returns the factory of the plugin <code>name</code> of <code>type</code>
+	 *
+	 * @param <T> the plugin interface
+	 * @param type the plugin interface, e.g. <code>Provider.class</code>
+	 * @param name a short name or the full name of a class
+	 * @return the factory
+	 * @throws PluginException if there is no such plugin
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> PluginFactory<T> getFactory(Class<T> type, String name)
+	{
+		if(name == null || name.isEmpty())
+			throw new PluginException("No " + getKind(type) + " was given. " + getHint(type));
+		Map<String, PluginFactory<?>> byName = getFactories(type);
+		PluginFactory<?> factory = byName.get(name);
+		if(factory == null)
+		{
+			factory = load(type, name);
+			PluginFactory<?> previous = byName.putIfAbsent(name, factory);
+			if(previous != null)
+				factory = previous;
+		}
+		return (PluginFactory<T>)factory;
+	}
+
+	/**
+	 * Create the plugin <code>name</code> of <code>type</code>
+	 *
+	 * @param <T> the plugin interface
+	 * @param type the plugin interface, e.g. <code>Provider.class</code>
+	 * @param name a short name or the full name of a class
+	 * @param arguments a HashMap with arguments for the plugin
+	 * @return the plugin
+	 * @throws PluginException if there is no such plugin, or it could not be created
+	 */
+	public <T> T create(Class<T> type, String name, HashMap<String, String> arguments)
+	{
+		return getFactory(type, name).create(arguments);
+	}
+
+	/**
+	 * Returns the class name of the indexed plugin <code>name</code> of <code>type</code>, or <code>name</code> if
+	 * it is not indexed. Nothing is loaded.
+	 *
+	 * @param type the plugin interface
+	 * @param name a short name or the full name of a class
+	 * @return the class name
+	 */
+	public String getClassName(Class<?> type, String name)
+	{
+		Map<String, PluginFactory<?>> byName = factories.get(type);
+		PluginFactory<?> factory = (byName != null && name != null) ? byName.get(name) : null;
+		return (factory != null) ? factory.getClassName() : name;
+	}
+
+	/**
+	 * Returns the short names of the indexed plugins of <code>type</code>
+	 *
+	 * @param type the plugin interface
+	 * @return the short names, sorted
+	 */
+	public SortedSet<String> getNames(Class<?> type)
+	{
+		SortedSet<String> names = new TreeSet<String>();
+		Map<String, PluginFactory<?>> byName = factories.get(type);
+		if(byName != null)
+			for(PluginFactory<?> factory : byName.values())
+				if(!factory.getName().equals(factory.getClassName()))
+					names.add(factory.getName());
+		return names;
+	}
+
+	private ConcurrentHashMap<String, PluginFactory<?>> getFactories(Class<?> type)
+	{
+		return factories.computeIfAbsent(type, key -> new ConcurrentHashMap<String, PluginFactory<?>>());
+	}
+
+	/**
+	 * Load the class <code>name</code> and look up its constructor
+	 */
+	private <T> PluginFactory<T> load(Class<T> type, String name)
+	{
+		Class<?> clazz;
+		try
+		{
+			clazz = Class.forName(name, false, loader);
+		}
+		catch(ClassNotFoundException | LinkageError ex)
+		{
+			throw new PluginException("The " + getKind(type) + " \"" + name + "\" does not exist. " + getHint(type), ex);
+		}
+		if(!type.isAssignableFrom(clazz))
+			throw new PluginException("The " + getKind(type) + " \"" + name + "\" must be an implementation of "
+					+ type.getName() + ".");
+		try
+		{
+			return new ReflectiveFactory<T>(type, clazz.asSubclass(type).getConstructor(HashMap.class));
+		}
+		catch(NoSuchMethodException ex)
+		{
+			throw new PluginException("The " + getKind(type) + " \"" + name + "\" does not have a valid constructor "
+					+ "(valid types are " + type.getSimpleName() + "(HashMap<String, String>))", ex);
+		}
+	}
+
+	private String getHint(Class<?> type)
+	{
+		SortedSet<String> names = getNames(type);
+		return (names.isEmpty() ? "Enter" : "Use one of " + String.join(", ", names) + " or enter")
+				+ " the full name of the class.";
+	}
+
+	private static String getKind(Class<?> type)
+	{
+		return type.getSimpleName().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Creates a plugin that is not in the index with its constructor, found by reflection
+	 */
+	private static final class ReflectiveFactory<T> implements PluginFactory<T>
+	{
+		private final Class<T> type;
+		private final Constructor<? extends T> constructor;
+
+		ReflectiveFactory(Class<T> type, Constructor<? extends T> constructor)
+		{
+			this.type = type;
+			this.constructor = constructor;
+		}
+
+		@Override
+		public String getName()
+		{
+			return constructor.getDeclaringClass().getName();
+		}
+
+		@Override
+		public Class<T> getType()
+		{
+			return type;
+		}
+
+		@Override
+		public String getClassName()
+		{
+			return constructor.getDeclaringClass().getName();
+		}
+
+		@Override
+		public T create(HashMap<String, String> arguments)
+		{
+			try
+			{
+				return constructor.newInstance(arguments);
+			}
+			catch(InvocationTargetException ex)
+			{
+				if(ex.getCause() instanceof RuntimeException)
+					throw (RuntimeException)ex.getCause();
+				throw new PluginException("Could not create the " + getKind(type) + " \"" + getClassName() + "\": "
+						+ ex.getCause(), ex.getCause());
+			}
+			catch(ReflectiveOperationException ex)
+			{
+				throw new PluginException("Could not create the " + getKind(type) + " \"" + getClassName() + "\": "
+						+ ex, ex);
+			}
+		}
+	}
+
+}
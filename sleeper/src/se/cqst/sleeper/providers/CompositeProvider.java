@@ -0,0 +1,455 @@
+package se.cqst.sleeper.providers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.plugins.Plugin;
+import se.cqst.sleeper.plugins.PluginException;
+import se.cqst.sleeper.plugins.PluginRegistry;
+
+/**
+ * <p><code>CompositeProvider</code> is an implementation of the <code>Provider</code> interface that combines
+ * other Providers, its <i>children</i>, and triggers when all, any or N of them have found their key phrase,
+ * e.g. when a page contains one phrase and a mailbox has received another.</p>
+ *
+ * <p>Children are named in the argument <code>children</code>, and are given the arguments of the watch
+ * overridden by those prefixed with their name:</p>
+ *
+ * <p><code>provider=composite children=page,mail require=all page.provider=http
+ * page.httpaddress=http://example.com page.keyphrase=Released mail.provider=gum mail.keyphrase=Approved</code></p>
+ *
+ * <p>A child that consumes what it finds (e.g. <code>GUMProvider</code>, which only reads a mail once, see
+ * {@link Provider#isConsuming()}) would not report the same key phrase twice, so once it has found its key phrase
+ * it stays found and is not checked again. Other children (e.g. a page) are checked every time, and only count
+ * while their source still contains the key phrase. Set <code>[name].latch</code> to choose for a child.</p>
+ *
+ * <p>Every check evaluates the remaining children one at a time and stops as soon as the result is known, so a
+ * child is only checked when it can still change the outcome. Children are ordered by how much it costs to
+ * check them (the average duration of their checks) against how likely they are to decide the result: when
+ * fewer results are needed to succeed than to fail (e.g. <code>any</code>) the child most likely to find its key
+ * phrase per unit of cost goes first, otherwise (e.g. <code>all</code>) the child most likely <i>not</i> to
+ * find it. An expensive child such as a mailbox scan is therefore put off until the cheap ones allow the
+ * watch to trigger. Children that have not been checked yet go first, in the order given.</p>
+ *
+ * <p>With <code>parallel</code> above 1, up to that many children are checked at the same time, in the same
+ * order. Once the result is known, children still being checked are cancelled (see {@link Provider#cancel()},
+ * e.g. an HTTP child closes its connection) and their check counts as not found. A latching child whose cancelled
+ * check finds its key phrase anyway is still marked as found, and a child is never checked again while a
+ * cancelled check is running.</p>
+ *
+ * <p>The source timestamp of a trigger is that of the child that found its key phrase last.</p>
+ *
+ * <p>The following arguments are used by CompositeProvider; other arguments are passed on to the children:</p>
+ *
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>children</td><td>name,name,...</td><td>The names of the children</td></tr>
+ * 			<tr><td>require</td><td>all, any, int</td><td>How many children must find their key phrase (default all)</td></tr>
+ * 			<tr><td>parallel</td><td>int</td><td>Children checked at the same time (default 1)</td></tr>
+ * 			<tr><td>[name].provider</td><td>Class</td><td>The Provider of child [name]</td></tr>
+ * 			<tr><td>[name].latch</td><td>true, false</td><td>If child [name] stays found once it has found its key phrase (default true for Providers that consume what they find)</td></tr>
+ * 			<tr><td>[name].[key]</td><td>String</td><td>Argument [key] of child [name]</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * <p>Every child is given the watch id <code>[watch id].[name]</code>, under which its state and metrics are
+ * kept.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ * @see {@link Provider} for more information about the <code>Provider</code> interface
+ *
+ */
+@Plugin(name = "composite", type = Provider.class)
+public class CompositeProvider implements Provider {
+
+	/**
+	 * Arguments of the CompositeProvider that are not passed on to the children
+	 */
+	public static final Set<String> COMPOSITE_KEYS = new HashSet<String>(Arrays.asList(
+			"provider", "children", "require", "parallel", "watchid"));
+
+	/**
+	 * Weight of the latest check in the average cost of a child
+	 */
+	public static final double COST_WEIGHT = 0.2;
+
+	private final Child[] children;
+	private final int required;
+	private final int parallel;
+	private final ExecutorService executor;
+	private final boolean debug;
+
+	/**
+	 * <p>Instantiate a new <code>CompositeProvider</code>, creating its children, using the provided
+	 * <code>HashMap&lt;String, String&gt;</code> with arguments</p>
+	 *
+	 * @param arguments argument list
+	 * @throws PluginException if the children are missing or could not be created, or <code>require</code> is
+	 * invalid
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public CompositeProvider(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.debug = spec.isDebug();
+
+		List<String> names = new ArrayList<String>();
+		for(String name : spec.getString("children", "").split(","))
+			if(!name.trim().isEmpty() && !names.contains(name.trim()))
+				names.add(name.trim());
+		if(names.isEmpty())
+			throw new PluginException("CompositeProvider needs the names of its children, e.g. children=page,mail");
+		this.required = getRequired(spec.getString("require", "all"), names.size());
+		this.parallel = Math.max(1, Math.min(names.size(), spec.getInt("parallel", 1)));
+
+		this.children = new Child[names.size()];
+		try
+		{
+			for(int i = 0; i < children.length; i++)
+				children[i] = createChild(names.get(i), names, spec);
+		}
+		catch(RuntimeException ex)
+		{
+			for(Child child : children)
+				if(child != null)
+					child.provider.close();
+			throw ex;
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		this.executor = (parallel > 1) ? Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, "sleeper-composite-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+
+		this.printUsage();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#check()
+	 *
+	 * Check the children that have not found their key phrase, cheapest and most decisive first, until enough
+	 * of them have found it or too many have not.
+	 */
+	@Override
+	public boolean check()
+	{
+		int found = 0;
+		int missing = 0;
+		List<Child> queue = new ArrayList<Child>();
+		for(Child child : children)
+		{
+			if(child.isLatched())
+				found++;
+			else if(!child.isRunning())
+				queue.add(child);
+		}
+
+		if(executor == null)
+		{
+			while(!isDecided(found, missing) && !queue.isEmpty())
+			{
+				if(next(queue, found, missing).check())
+					found++;
+				else
+					missing++;
+			}
+		}
+		else
+		{
+			CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+			Map<Future<Boolean>, Child> running = new HashMap<Future<Boolean>, Child>();
+			while(!isDecided(found, missing) && (!queue.isEmpty() || !running.isEmpty()))
+			{
+				while(running.size() < parallel && !queue.isEmpty())
+				{
+					Child child = next(queue, found, missing);
+					running.put(completion.submit(child::check), child);
+				}
+				Future<Boolean> done;
+				try
+				{
+					done = completion.take();
+				}
+				catch(InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+				running.remove(done);
+				if(getResult(done))
+					found++;
+				else
+					missing++;
+			}
+			for(Map.Entry<Future<Boolean>, Child> entry : running.entrySet())
+			{
+				entry.getKey().cancel(true);
+				entry.getValue().provider.cancel();
+				if(debug)
+					print("Debug: cancelled the check of " + entry.getValue().name + ", the result is already known");
+			}
+		}
+
+		if(debug)
+			print("Debug: " + found + " of " + children.length + " children have found their key phrase, "
+					+ required + " required");
+		return found >= required;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#setWakeup(java.lang.Runnable)
+	 * 
+	 * A child with new data wakes up the whole composite
+	 */
+	@Override
+	public void setWakeup(Runnable wakeup)
+	{
+		for(Child child : children)
+			child.provider.setWakeup(wakeup);
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#getSourceTimestamp()
+	 *
+	 * The latest source timestamp of the children that found their key phrase
+	 */
+	@Override
+	public long getSourceTimestamp()
+	{
+		long timestamp = 0;
+		for(Child child : children)
+			if(child.isFound())
+				timestamp = Math.max(timestamp, child.getSourceTimestamp());
+		return timestamp;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#close()
+	 */
+	@Override
+	public void close()
+	{
+		if(executor != null)
+			executor.shutdownNow();
+		for(Child child : children)
+			child.provider.close();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#printHelp()
+	 */
+	@Override
+	public void printHelp()
+	{
+		print("Provider CompositeProvider triggers when all, any or a number of other Providers (its children) have "
+				+ "found their key phrase. Name the children with children=a,b, set how many must find their key phrase "
+				+ "with require=all, require=any or require=2, and give each child its arguments prefixed with its name, "
+				+ "e.g. a.provider=http a.httpaddress=http://www.example.com.");
+		for(Child child : children)
+			child.provider.printHelp();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#printUsage()
+	 */
+	@Override
+	public void printUsage()
+	{
+		StringBuilder names = new StringBuilder();
+		for(Child child : children)
+			names.append((names.length() > 0) ? ", " : "").append(child.name)
+					.append(" (").append(child.provider.getClass().getSimpleName()).append(")");
+		String count = (required == children.length) ? "all" : (required == 1) ? "any" : String.valueOf(required);
+		print("CompositeProvider will trigger when " + count + " of " + names + " have found their key phrase.");
+	}
+
+	/**
+	 * Returns true if <code>found</code> children are enough, or <code>missing</code> children are too many, to
+	 * know the result
+	 */
+	private boolean isDecided(int found, int missing)
+	{
+		return found >= required || missing > children.length - required;
+	}
+
+	/**
+	 * Remove and return the child in <code>queue</code> that is cheapest to check for the result that is the
+	 * closest to deciding the outcome: finding the key phrase if fewer children need to find it than need to
+	 * miss it for the outcome to be known, missing it otherwise
+	 */
+	private Child next(List<Child> queue, int found, int missing)
+	{
+		boolean wantFound = (required - found) <= (children.length - required + 1 - missing);
+		Child best = null;
+		double bestScore = Double.MAX_VALUE;
+		for(Child child : queue)
+		{
+			double score = child.getScore(wantFound);
+			if(best == null || score < bestScore)
+			{
+				best = child;
+				bestScore = score;
+			}
+		}
+		queue.remove(best);
+		return best;
+	}
+
+	private Child createChild(String name, List<String> names, WatchSpec spec)
+	{
+		HashMap<String, String> arguments = new HashMap<String, String>();
+		String prefix = name + ".";
+		for(Map.Entry<String, String> argument : spec.toArguments().entrySet())
+		{
+			String key = argument.getKey();
+			int dot = key.indexOf('.');
+			if(!COMPOSITE_KEYS.contains(key) && (dot < 0 || !names.contains(key.substring(0, dot))))
+				arguments.put(key, argument.getValue());
+		}
+		for(Map.Entry<String, String> argument : spec.toArguments().entrySet())
+			if(argument.getKey().startsWith(prefix))
+				arguments.put(argument.getKey().substring(prefix.length()), argument.getValue());
+		arguments.putIfAbsent("watchid", spec.getId() + "." + name);
+
+		String provider = arguments.get("provider");
+		if(provider == null || provider.isEmpty())
+			throw new PluginException("The child \"" + name + "\" of CompositeProvider has no Provider, set "
+					+ prefix + "provider");
+		Provider created = PluginRegistry.getDefault().create(Provider.class, provider, arguments);
+		String latch = arguments.get("latch");
+		return new Child(name, created, (latch != null) ? Boolean.parseBoolean(latch) : created.isConsuming());
+	}
+
+	private static int getRequired(String require, int count)
+	{
+		if(require.equals("all"))
+			return count;
+		if(require.equals("any"))
+			return 1;
+		try
+		{
+			int required = Integer.parseInt(require);
+			if(required >= 1 && required <= count)
+				return required;
+		}
+		catch(NumberFormatException ex)
+		{ }
+		throw new PluginException("The argument require of CompositeProvider must be all, any or a number from 1 to "
+				+ count + ", not \"" + require + "\"");
+	}
+
+	private static boolean getResult(Future<Boolean> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException | ExecutionException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * A child Provider, with the average cost of its checks and how often it has found its key phrase
+	 */
+	private static final class Child
+	{
+		final String name;
+		final Provider provider;
+		private final boolean latch;
+		private volatile boolean running;
+		private volatile boolean latched;
+		private volatile boolean current;
+		private volatile long sourceTimestamp;
+		private long checks;
+		private long found;
+		private double cost;
+
+		Child(String name, Provider provider, boolean latch)
+		{
+			this.name = name;
+			this.provider = provider;
+			this.latch = latch;
+		}
+
+		/**
+		 * Check the Provider and record the result and duration
+		 */
+		boolean check()
+		{
+			running = true;
+			long start = System.nanoTime();
+			boolean result = false;
+			try
+			{
+				result = provider.check();
+			}
+			catch(RuntimeException ex)
+			{
+				provider.print("Check failed: " + ex);
+			}
+			finally
+			{
+				record(System.nanoTime() - start, result);
+				running = false;
+			}
+			return result;
+		}
+
+		synchronized void record(long nanos, boolean result)
+		{
+			cost = (checks == 0) ? nanos : cost + (nanos - cost) * COST_WEIGHT;
+			checks++;
+			current = result;
+			if(result)
+			{
+				found++;
+				sourceTimestamp = provider.getSourceTimestamp();
+				latched = latch;
+			}
+		}
+
+		/**
+		 * Returns the expected cost of getting the wanted result from this child: its average cost divided by the
+		 * probability of the result (estimated with add-one smoothing). A child that has not been checked scores 0.
+		 */
+		synchronized double getScore(boolean wantFound)
+		{
+			double probability = (found + 1.0) / (checks + 2.0);
+			return cost / (wantFound ? probability : 1.0 - probability);
+		}
+
+		boolean	isRunning()				{	return running;	}
+		boolean	isLatched()				{	return latched;	}
+		boolean	isFound()				{	return latched || current;	}
+		long	getSourceTimestamp()	{	return sourceTimestamp;	}
+	}
+
+}
@@ -0,0 +1,219 @@
+package se.cqst.sleeper.providers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * <p><code>ContentFingerprint</code> remembers what a <code>Provider</code> saw the last time it fetched a
+ * document, so that an unchanged document does not have to be parsed again.</p>
+ *
+ * <p>The document is split into chunks of <code>{@link #CHUNK_SIZE}</code> bytes and each chunk is hashed with a
+ * fast, non-cryptographic 64-bit hash. When the next fetch produces the same hash for a chunk, that chunk is
+ * known not to contain the key phrase (as long as the previous fetch did not find it) and only changed chunks
+ * and their boundaries need to be handed to the <code>Parser</code>.</p>
+ *
+ * <p>A fingerprint only describes a document where the key phrase was <b>not</b> found. If the key phrase was
+ * found the fetch is usually aborted early, so the fingerprint is incomplete and must not be reused, see
+ * <code>{@link #isReusable()}</code>.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public class ContentFingerprint {
+
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private long[]	hashes;
+	private int		count;
+	private boolean	found;
+
+	/**
+	 * Create a new, empty <code>ContentFingerprint</code>
+	 */
+	public ContentFingerprint()
+	{
+		this.hashes = new long[16];
+		this.count = 0;
+		this.found = false;
+	}
+
+	/**
+	 * <p>Append the hash of the next chunk of the document.</p>
+	 *
+	 * @param hash the hash of the chunk
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void add(long hash)
+	{
+		if(count == hashes.length)
+			hashes = Arrays.copyOf(hashes, count * 2);
+		hashes[count++] = hash;
+	}
+
+	/**
+	 * <p>Clear the fingerprint so it can be reused for the next document.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void reset()
+	{
+		this.count = 0;
+		this.found = false;
+	}
+
+	/**
+	 * <p>Returns true if chunk <code>index</code> had the hash <code>hash</code> when this fingerprint
+	 * was taken.</p>
+	 *
+	 * @param index index of the chunk
+	 * @param hash hash of the chunk in the current document
+	 * @return true, if the chunk is unchanged
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean isUnchanged(int index, long hash)
+	{
+		return index < count && hashes[index] == hash;
+	}
+
+	/**
+	 * <p>Returns true if every chunk of <code>other</code> is identical to the chunks of this fingerprint.</p>
+	 *
+	 * @param other another fingerprint
+	 * @return true, if the documents are identical
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean isUnchanged(ContentFingerprint other)
+	{
+		if(other == null || other.count != this.count)
+			return false;
+		for(int i = 0; i < count; i++)
+			if(other.hashes[i] != this.hashes[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * <p>Returns true if this fingerprint describes a complete document in which the key phrase was not found,
+	 * and may be used to skip unchanged chunks of the next document.</p>
+	 *
+	 * @return true, if the fingerprint may be reused
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public boolean isReusable()
+	{
+		return !found;
+	}
+
+	public int		getCount()					{	return count;	}
+	public long		getHash(int index)			{	return hashes[index];	}
+	public boolean	isFound()					{	return found;	}
+	public void		setFound(boolean found)		{	this.found = found;	}
+
+	/**
+	 * <p>Returns a hash of the entire document, derived from the chunk hashes.</p>
+	 *
+	 * @return 64-bit hash of the document
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public long getBodyHash()
+	{
+		long hash = PRIME5 + count;
+		for(int i = 0; i < count; i++)
+			hash = Long.rotateLeft(hash ^ mix(hashes[i]), 27) * PRIME1 + PRIME4;
+		return avalanche(hash);
+	}
+
+	/**
+	 * <p>Returns a 64-bit hash of <code>length</code> bytes of <code>data</code> starting at <code>offset</code>.</p>
+	 *
+	 * <p>The hash is a single lane variant of xxHash64, processing eight bytes at a time. It is not suitable
+	 * for anything security related, but is fast enough to run over every fetched byte.</p>
+	 *
+	 * @param data the data to hash
+	 * @param offset index of the first byte to hash
+	 * @param length number of bytes to hash
+	 * @return 64-bit hash of the data
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static long hash(byte[] data, int offset, int length)
+	{
+		long hash = PRIME5 + length;
+		int end = offset + length;
+		int i = offset;
+
+		for(; i + 8 <= end; i += 8)
+		{
+			long word = (data[i] & 0xFFL)
+					| (data[i + 1] & 0xFFL) << 8
+					| (data[i + 2] & 0xFFL) << 16
+					| (data[i + 3] & 0xFFL) << 24
+					| (data[i + 4] & 0xFFL) << 32
+					| (data[i + 5] & 0xFFL) << 40
+					| (data[i + 6] & 0xFFL) << 48
+					| (data[i + 7] & 0xFFL) << 56;
+			hash = Long.rotateLeft(hash ^ mix(word), 27) * PRIME1 + PRIME4;
+		}
+		for(; i < end; i++)
+			hash = Long.rotateLeft(hash ^ (data[i] & 0xFFL) * PRIME5, 11) * PRIME1;
+
+		return avalanche(hash);
+	}
+
+	/**
+	 * <p>Returns the same hash as {@link #hash(byte[], int, int)} for <code>length</code> bytes of
+	 * <code>data</code> starting at index <code>offset</code>. The position and limit of <code>data</code>
+	 * are not used or changed.</p>
+	 *
+	 * @param data the data to hash
+	 * @param offset index of the first byte to hash
+	 * @param length number of bytes to hash
+	 * @return 64-bit hash of the data
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static long hash(ByteBuffer data, int offset, int length)
+	{
+		long hash = PRIME5 + length;
+		int end = offset + length;
+		int i = offset;
+		boolean swap = data.order() != ByteOrder.LITTLE_ENDIAN;
+
+		for(; i + 8 <= end; i += 8)
+		{
+			long word = swap ? Long.reverseBytes(data.getLong(i)) : data.getLong(i);
+			hash = Long.rotateLeft(hash ^ mix(word), 27) * PRIME1 + PRIME4;
+		}
+		for(; i < end; i++)
+			hash = Long.rotateLeft(hash ^ (data.get(i) & 0xFFL) * PRIME5, 11) * PRIME1;
+
+		return avalanche(hash);
+	}
+
+	private static long mix(long value)
+	{
+		return Long.rotateLeft(value * PRIME2, 31) * PRIME1;
+	}
+
+	private static long avalanche(long hash)
+	{
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		return hash ^ (hash >>> 32);
+	}
+
+}
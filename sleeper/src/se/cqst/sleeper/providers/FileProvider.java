@@ -0,0 +1,637 @@
+package se.cqst.sleeper.providers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.buffers.BufferPool;
+import se.cqst.sleeper.events.CheckEvent;
+import se.cqst.sleeper.events.ParseEvent;
+import se.cqst.sleeper.metrics.PollMetrics;
+import se.cqst.sleeper.parsers.Parser;
+import se.cqst.sleeper.plugins.Plugin;
+import se.cqst.sleeper.plugins.PluginException;
+import se.cqst.sleeper.state.StateStore;
+
+/**
+ *
+ * <p><code>FileProvider</code> is an implementation of the <code>Provider</code> interface that follows a local
+ * file, or the files of a directory, like <code>tail -F</code>, and triggers when the key phrase is written to
+ * one of them.</p>
+ *
+ * <p>Only bytes appended since the previous check are read, with positioned reads from the offset of every file
+ * into a buffer from the shared {@link BufferPool}, so a check costs the same whatever the size of the file. The
+ * bytes are handed to the <code>{@link Parser}</code> a chunk at a time, cut after the last complete line; the
+ * unterminated end of a file is parsed as well, and again once its line is complete.</p>
+ *
+ * <p>The directory is watched through a <code>WatchService</code>, which wakes up the watch as soon as a file is
+ * written (see {@link Provider#setWakeup(Runnable)}), so the key phrase is usually found within milliseconds. The
+ * check at the repeat interval remains as a fallback in case an event is lost.</p>
+ *
+ * <p>Files are told apart by their file key (the inode on Unix), so rotation is handled:</p>
+ * <ul>
+ * 	<li>A file that is renamed (<code>app.log</code> to <code>app.log.1</code>) or deleted is read to its end from
+ * 		the open channel, and the new file at the path is read from its start.</li>
+ * 	<li>A file that is truncated in place (<code>copytruncate</code>) is read from its start again.</li>
+ * 	<li>In a directory, a file renamed within the directory keeps its offset and is not read again.</li>
+ * </ul>
+ *
+ * <p>If a {@link StateStore} is configured (argument <code>statefile</code>), the offsets are saved after every
+ * check, so the watch carries on where it stopped after a restart. Files that were replaced while the watch was
+ * not running are read from their start. Without saved offsets, files that exist when the watch starts are read
+ * from their end (or start, with <code>file_start=start</code>), and files created later from their start.</p>
+ *
+ * <p>The key phrase is matched within a chunk, so a <code>Parser</code> that needs the whole document will only
+ * see the new lines. Lines are cut at the byte <code>\n</code>, so the charset must be <code>UTF-8</code> or a
+ * single byte charset.</p>
+ *
+ * <p>Every check is recorded in {@link PollMetrics} and as a {@link CheckEvent}, and every parser call as a
+ * {@link ParseEvent}.</p>
+ *
+ * <p><code>FileProvider</code> is initialized with a <code>HashMap&lt;String, String&gt;</code>
+ * containing arguments. The following arguments are used by FileProvider (all keys are in the format
+ * (String, String) but will be interpreted according to <i>Accepted Value</i>:</p>
+ *
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>keyphrase</td><td>String</td><td>check() returns true if found</td></tr>
+ * 			<tr><td>debug</td><td>boolean</td><td>Prints info interesting while debugging</td></tr>
+ * 			<tr><td>parser</td><td>Class</td><td>Full class name of a Parser to process messages</td></tr>
+ * 			<tr><td>filepath</td><td>path</td><td>The file, or a directory of files, to follow</td></tr>
+ * 			<tr><td>file_glob</td><td>glob</td><td>Names of the files to follow in a directory (default *)</td></tr>
+ * 			<tr><td>file_start</td><td>end, start</td><td>Where to start in files that exist when the watch starts, without saved offsets (default end)</td></tr>
+ * 			<tr><td>file_charset</td><td>charset</td><td>The charset of the files (default UTF-8)</td></tr>
+ * 			<tr><td>file_chunk</td><td>int</td><td>Bytes read and parsed at a time (default 65536)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ * @see {@link Provider} for more information about the <code>Provider</code> interface
+ * @see {@link Parser} for more information about <code>Parsers</code>
+ *
+ */
+@Plugin(name = "file", type = Provider.class)
+public class FileProvider implements Provider {
+
+	public static final int DEFAULT_CHUNK = 64 * 1024;
+
+	private final String keyphrase;
+	private final int overlap;
+	private final boolean debug;
+	private final Parser parser;
+	private final Charset charset;
+	private final int chunkSize;
+
+	private final Path path;
+	private final Path directory;
+	private final boolean following;
+	private final String glob;
+	private final Predicate<Path> matcher;
+	private final boolean fromStart;
+	private final Consumer<Path> listener;
+	private volatile Runnable wakeup;
+
+	private final Map<Object, TailedFile> files;
+	private Map<String, Long> saved;
+	private boolean started;
+	private long sourceTimestamp;
+	private final StateStore.Record state;
+	private final int stateKey;
+
+	private final String watchId;
+	private final PollMetrics metrics;
+	private long parseNanos;
+	private long parseBytes;
+	private long readBytes;
+
+	/**
+	 * <p>Instantiate a new <code>FileProvider</code> using the provided <code>HashMap&lt;String, String&gt;</code>
+	 * with arguments, and start watching the directory of the file.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 *
+	 * @param arguments argument list
+	 * @throws PluginException if the file or its directory does not exist, or the charset cannot be used
+	 */
+	public FileProvider(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.keyphrase = spec.getKeyphrase();
+		this.debug = spec.isDebug();
+		this.watchId = spec.getId();
+		this.metrics = new PollMetrics(this.watchId, getClass().getSimpleName());
+		this.chunkSize = Math.max(BufferPool.MIN_SIZE, spec.getInt("file_chunk", DEFAULT_CHUNK));
+		this.fromStart = spec.getString("file_start", "end").equals("start");
+		this.charset = getCharset(spec.getString("file_charset", "UTF-8"));
+		this.overlap = Math.max(0, this.keyphrase.getBytes(this.charset).length - 1);
+		this.parser = this.getParser(arguments);
+
+		String filepath = spec.getString("filepath", "");
+		if(filepath.isEmpty())
+			throw new PluginException("FileProvider needs a file or directory to follow, e.g. filepath=/var/log/app.log");
+		this.path = Paths.get(filepath).toAbsolutePath().normalize();
+		this.following = !Files.isDirectory(this.path);
+		this.directory = this.following ? this.path.getParent() : this.path;
+		this.glob = this.following ? this.path.getFileName().toString() : spec.getString("file_glob", "*");
+		if(this.directory == null || !Files.isDirectory(this.directory))
+			throw new PluginException("The directory of \"" + filepath + "\" does not exist.");
+		PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:" + this.glob);
+		Path name = this.path.getFileName();
+		this.matcher = this.following ? entry -> entry.getFileName().equals(name) : entry -> glob.matches(entry.getFileName());
+
+		this.files = new LinkedHashMap<Object, TailedFile>();
+		this.started = false;
+		StateStore store = StateStore.getDefault();
+		this.state = (store != null) ? store.getRecord(spec.getId()) : null;
+		this.stateKey = spec.getStateHash();
+		this.loadState();
+
+		this.listener = this::onEvent;
+		try
+		{
+			FileWatcher.getDefault().register(this.directory, this.listener);
+		}
+		catch(IOException ex)
+		{
+			throw new PluginException("Could not watch the directory \"" + this.directory + "\": " + ex.getMessage());
+		}
+
+		this.printUsage();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#check()
+	 *
+	 * The check() method in FileProvider finds the files to follow, handles rotation and
+	 * parses the bytes appended to every file since the previous check.
+	 */
+	@Override
+	public synchronized boolean check()
+	{
+		CheckEvent event = CheckEvent.start();
+		long start = System.nanoTime();
+		this.parseNanos = 0;
+		this.parseBytes = 0;
+		this.readBytes = 0;
+
+		boolean found = false;
+		String outcome = null;
+		ByteBuffer buffer = BufferPool.getDefault().acquire(this.chunkSize);
+		try
+		{
+			update();
+			for(Iterator<TailedFile> iterator = files.values().iterator(); iterator.hasNext() && !found; )
+			{
+				TailedFile file = iterator.next();
+				found = file.read(buffer);
+				if(file.isGone())
+				{
+					file.close();
+					iterator.remove();
+				}
+			}
+		}
+		catch(IOException ex)
+		{
+			metrics.recordError();
+			outcome = "error";
+			print("Could not read \"" + this.path + "\": " + ex.getMessage());
+		}
+		finally
+		{
+			BufferPool.getDefault().release(buffer);
+		}
+		this.saveState();
+
+		metrics.recordTransfer(System.nanoTime() - start - this.parseNanos, this.readBytes);
+		metrics.recordParse(this.parseNanos, this.parseBytes);
+		metrics.recordCheck(start);
+		if(event != null)
+			event.commit(this.watchId, getClass().getSimpleName(), this.path.toString(), this.readBytes,
+					(outcome != null) ? outcome : (found ? "found" : "not found"));
+		if(debug)
+			print("Debug: Read " + this.readBytes + " new bytes from " + files.size() + " file(s)");
+		return found;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#getSourceTimestamp()
+	 *
+	 * The modification time of the file the key phrase was found in
+	 */
+	@Override
+	public long getSourceTimestamp()
+	{
+		return this.sourceTimestamp;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#setWakeup(java.lang.Runnable)
+	 */
+	@Override
+	public void setWakeup(Runnable wakeup)
+	{
+		this.wakeup = wakeup;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#close()
+	 *
+	 * Stop watching the directory and close the files.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		try
+		{
+			FileWatcher.getDefault().unregister(this.directory, this.listener);
+		}
+		catch(IOException ex)
+		{
+			//	Never registered
+		}
+		for(TailedFile file : files.values())
+			file.close();
+		files.clear();
+	}
+
+	/**
+	 * <p>Called by the {@link FileWatcher} when a file in the directory has changed, or <code>null</code> if events
+	 * were lost. Wakes up the watch if it is one of the files followed.</p>
+	 */
+	private void onEvent(Path changed)
+	{
+		Runnable wakeup = this.wakeup;
+		if(wakeup != null && (changed == null || this.matcher.test(changed)))
+			wakeup.run();
+	}
+
+	/**
+	 * <p>Matches the files in the directory with the files followed, by file key: files that are new are
+	 * followed from their start (or from their saved offset, or their end on the first check), files that were
+	 * renamed get their new path, and files that are no longer there are marked as gone, to be read to their end
+	 * and closed.</p>
+	 *
+	 * @throws IOException if the directory cannot be read
+	 */
+	private void update() throws IOException
+	{
+		for(TailedFile file : files.values())
+			file.seen = false;
+
+		if(this.following)
+			update(this.path);
+		else
+		{
+			try(DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory, entry -> this.matcher.test(entry)))
+			{
+				for(Path entry : entries)
+					update(entry);
+			}
+		}
+		this.started = true;
+		this.saved = null;
+	}
+
+	/**
+	 * <p>Marks the file at <code>entry</code> as seen, following it if it is new.</p>
+	 *
+	 * @throws IOException if the file cannot be opened
+	 */
+	private void update(Path entry) throws IOException
+	{
+		BasicFileAttributes attributes;
+		try
+		{
+			attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+		}
+		catch(NoSuchFileException ex)
+		{
+			return;
+		}
+		if(!attributes.isRegularFile())
+			return;
+
+		Object fileKey = attributes.fileKey();
+		TailedFile file = files.get((fileKey != null) ? fileKey : getFileKey(entry, attributes));
+		if(file == null)
+		{
+			String key = getFileKey(entry, attributes);
+			long offset;
+			if(this.saved != null && this.saved.containsKey(key))
+				offset = this.saved.get(key);
+			else if(this.started || this.saved != null)
+				offset = 0;
+			else
+				offset = this.fromStart ? 0 : attributes.size();
+			file = new TailedFile(key, entry, offset);
+			files.put((fileKey != null) ? fileKey : key, file);
+			if(debug)
+				print("Debug: Following " + entry + " from offset " + offset);
+		}
+		file.path = entry;
+		file.seen = true;
+		file.size = attributes.size();
+		file.attributes = attributes;
+		if(file.channel == null)
+		{
+			//	Opened at once, so that the file can be read to its end if it is renamed before it grows
+			try
+			{
+				file.channel = FileChannel.open(entry, StandardOpenOption.READ);
+			}
+			catch(NoSuchFileException ex)
+			{
+				file.seen = false;
+			}
+		}
+	}
+
+	/**
+	 * <p>Returns an id of the file, which stays the same when it is renamed: the inode on Unix. File systems
+	 * without file keys use the creation time and path instead.</p>
+	 *
+	 * <p>Followed files are looked up by the file key object itself, so that a check does not build this String
+	 * for every file; it is only built for new files, and kept as the key of their saved offset.</p>
+	 */
+	private static String getFileKey(Path file, BasicFileAttributes attributes)
+	{
+		Object key = attributes.fileKey();
+		return (key != null) ? key.toString() : attributes.creationTime().toMillis() + ":" + file;
+	}
+
+	/**
+	 * <p>Hands the bytes between the position and the limit of <code>data</code> to <code>this.parser</code>,
+	 * adding the time it took and the number of bytes to the parse metrics of the current check.</p>
+	 *
+	 * @param data the bytes to parse
+	 * @return true, if the key phrase is found
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean parse(ByteBuffer data)
+	{
+		int bytes = data.remaining();
+		ParseEvent event = ParseEvent.start();
+		long start = System.nanoTime();
+		boolean found = this.parser.phraseExists(keyphrase, data, charset);
+		this.parseNanos += System.nanoTime() - start;
+		this.parseBytes += bytes;
+		if(event != null)
+			event.commit(this.watchId, this.parser.getClass().getSimpleName(), bytes, found);
+		return found;
+	}
+
+	/**
+	 * <p>Restores the offsets of the files from the {@link StateStore}. State saved with other arguments than the
+	 * current ones is ignored.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void loadState()
+	{
+		ByteBuffer data = (this.state != null) ? this.state.read() : null;
+		if(data == null || data.remaining() < 4 || data.getInt() != this.stateKey)
+			return;
+
+		this.saved = new HashMap<String, Long>();
+		int count = data.getInt();
+		for(int i = 0; i < count; i++)
+			this.saved.put(StateStore.getString(data), data.getLong());
+
+		if(debug)
+			print("Debug: Restored the offsets of " + count + " file(s)");
+	}
+
+	/**
+	 * <p>Saves the file key and offset of every file followed to the {@link StateStore}. Files that do not fit
+	 * in a record are left out, and are read from their start after a restart.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void saveState()
+	{
+		if(this.state == null)
+			return;
+
+		ByteBuffer data = this.state.edit();
+		data.putInt(this.stateKey);
+		int countPosition = data.position();
+		data.putInt(0);
+		int count = 0;
+		for(TailedFile file : files.values())
+		{
+			if(data.remaining() < 2 + file.encodedKey.length + 8)
+				break;
+			//	As StateStore.putString(), without encoding the key again on every check
+			data.putShort((short)file.encodedKey.length).put(file.encodedKey);
+			data.putLong(file.offset);
+			count++;
+		}
+		data.putInt(countPosition, count);
+		this.state.commit();
+	}
+
+	/**
+	 * <p>Returns the charset named <code>name</code>, if lines in it can be cut at the byte <code>\n</code>.</p>
+	 */
+	private static Charset getCharset(String name)
+	{
+		Charset charset;
+		try
+		{
+			charset = Charset.forName(name);
+		}
+		catch(IllegalCharsetNameException | UnsupportedCharsetException ex)
+		{
+			throw new PluginException("The charset \"" + name + "\" of file_charset is not supported.");
+		}
+		if(!charset.equals(StandardCharsets.UTF_8) && !(charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1.0f))
+			throw new PluginException("FileProvider can only read UTF-8 or a single byte charset, not " + name + ".");
+		return charset;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#printHelp()
+	 *
+	 * Override default printHelp() and display help about FileProvider.
+	 *
+	 * Also run this.parser.printHelp()
+	 */
+	@Override
+	public void printHelp()
+	{
+		print("Provider FileProvider follows a local file, or the files of a directory, and uses a Parser to search the "
+				+ "lines written to them for the keyphrase. The file is specified using argument filepath, e.g. "
+				+ "filepath=/var/log/app.log, and the files of a directory with file_glob, e.g. file_glob=*.log. "
+				+ "Rotated and truncated files are followed, and only new lines are read.");
+
+		if(this.parser != null)
+			this.parser.printHelp();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#printUsage()
+	 *
+	 * Override default printUsage() and display usage info about FileProvider
+	 *
+	 * Also run this.parser.printUsage()
+	 */
+	@Override
+	public void printUsage()
+	{
+		print("FileProvider will be used to check new lines of the specified file for the keyphrase.");
+		print("The specified file is : " + (this.following ? this.path : this.path.resolve(this.glob)));
+
+		if(this.parser != null)
+			this.parser.printUsage();
+	}
+
+	/**
+	 * <p>A file being followed: its current path, the offset up to which it has been read, and the channel it is
+	 * read through, which stays open so that a file that is renamed or deleted can still be read to its end.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private final class TailedFile
+	{
+		private final String key;
+		private final byte[] encodedKey;
+		private Path path;
+		private long offset;
+		private long size;
+		private BasicFileAttributes attributes;
+		private boolean seen;
+		private FileChannel channel;
+
+		private TailedFile(String key, Path path, long offset)
+		{
+			this.key = key;
+			this.encodedKey = key.getBytes(StandardCharsets.UTF_8);
+			this.path = path;
+			this.offset = offset;
+			this.seen = true;
+		}
+
+		/**
+		 * Returns true if the file is no longer in the directory, and has been read to its end
+		 */
+		private boolean isGone()
+		{
+			return !seen;
+		}
+
+		/**
+		 * <p>Reads and parses the bytes from the offset to the end of the file, a chunk of <code>buffer</code> at a
+		 * time. A chunk is cut after its last complete line, and the offset moved past it; the unterminated end of
+		 * the file is parsed without moving the offset. A line longer than the buffer is parsed in parts that
+		 * overlap by the length of the key phrase.</p>
+		 *
+		 * @param buffer the buffer to read into
+		 * @return true, if the key phrase is found
+		 * @throws IOException if the file cannot be read
+		 */
+		private boolean read(ByteBuffer buffer) throws IOException
+		{
+			if(seen)
+			{
+				if(size < offset)
+				{
+					if(debug)
+						print("Debug: " + path + " was truncated, reading it from its start");
+					offset = 0;
+				}
+				else if(size == offset)
+					return false;
+			}
+			if(channel == null)
+				return false;
+
+			while(true)
+			{
+				buffer.clear();
+				int length = channel.read(buffer, offset);
+				if(length <= 0)
+					return false;
+				readBytes += length;
+				buffer.flip();
+
+				int end = length;
+				while(end > 0 && buffer.get(end - 1) != '\n')
+					end--;
+				boolean full = (length == buffer.capacity());
+				long consumed;
+				if(end > 0)
+				{
+					buffer.limit(end);
+					consumed = end;
+				}
+				else if(full)
+					consumed = Math.max(1, length - overlap);
+				else
+					consumed = 0;
+
+				boolean found = parse(buffer);
+				offset += consumed;
+				if(!found && end > 0 && end < length && !full)
+				{
+					//	The unterminated end of the file, parsed again once its line is complete
+					buffer.limit(length).position(end);
+					found = parse(buffer);
+				}
+				if(found)
+				{
+					//	A file that is gone may have been written since it was last seen
+					sourceTimestamp = seen ? attributes.lastModifiedTime().toMillis() : System.currentTimeMillis();
+					return true;
+				}
+				if(!full)
+					return false;
+			}
+		}
+
+		private void close()
+		{
+			try
+			{
+				if(channel != null)
+					channel.close();
+			}
+			catch(IOException ex)
+			{
+				//	Nothing to do
+			}
+			channel = null;
+		}
+	}
+
+}
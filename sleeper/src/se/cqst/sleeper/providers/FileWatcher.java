@@ -0,0 +1,131 @@
+package se.cqst.sleeper.providers;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * <p>A <strong>FileWatcher</strong> passes file system events on to listeners, with a single {@link WatchService}
+ * and thread for the whole application, however many directories and watches there are.</p>
+ *
+ * <p>A listener registered for a directory is called with the path of every file created or modified in it, or
+ * with <code>null</code> if events were lost and every file may have changed. Listeners are called on the thread
+ * of the FileWatcher, so they must return quickly.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+final class FileWatcher {
+
+	private static FileWatcher instance = null;
+
+	private final WatchService service;
+	private final Map<Path, WatchKey> keys;
+	private final Map<WatchKey, List<Consumer<Path>>> listeners;
+
+	private FileWatcher() throws IOException
+	{
+		this.service = FileSystems.getDefault().newWatchService();
+		this.keys = new HashMap<Path, WatchKey>();
+		this.listeners = new HashMap<WatchKey, List<Consumer<Path>>>();
+		Thread thread = new Thread(this::run, "sleeper-filewatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the FileWatcher of the application, started on first use
+	 *
+	 * @return the FileWatcher
+	 * @throws IOException if the file system cannot be watched
+	 */
+	static synchronized FileWatcher getDefault() throws IOException
+	{
+		if(instance == null)
+			instance = new FileWatcher();
+		return instance;
+	}
+
+	/**
+	 * Call <code>listener</code> for files created or modified in <code>directory</code>
+	 *
+	 * @param directory the directory
+	 * @param listener the listener
+	 * @throws IOException if the directory cannot be watched
+	 */
+	synchronized void register(Path directory, Consumer<Path> listener) throws IOException
+	{
+		WatchKey key = keys.get(directory);
+		if(key == null)
+		{
+			key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			keys.put(directory, key);
+			listeners.put(key, new CopyOnWriteArrayList<Consumer<Path>>());
+		}
+		listeners.get(key).add(listener);
+	}
+
+	/**
+	 * Stop calling <code>listener</code>, and stop watching <code>directory</code> if it has no listeners left
+	 *
+	 * @param directory the directory
+	 * @param listener the listener
+	 */
+	synchronized void unregister(Path directory, Consumer<Path> listener)
+	{
+		WatchKey key = keys.get(directory);
+		if(key == null)
+			return;
+		List<Consumer<Path>> registered = listeners.get(key);
+		registered.remove(listener);
+		if(registered.isEmpty())
+		{
+			key.cancel();
+			keys.remove(directory);
+			listeners.remove(key);
+		}
+	}
+
+	private synchronized List<Consumer<Path>> getListeners(WatchKey key)
+	{
+		return listeners.get(key);
+	}
+
+	private void run()
+	{
+		try
+		{
+			while(true)
+			{
+				WatchKey key = service.take();
+				List<Consumer<Path>> registered = getListeners(key);
+				Path directory = (Path)key.watchable();
+				for(WatchEvent<?> event : key.pollEvents())
+				{
+					if(registered == null)
+						continue;
+					Path changed = (event.kind() == StandardWatchEventKinds.OVERFLOW) ? null
+							: directory.resolve((Path)event.context());
+					for(Consumer<Path> listener : registered)
+						listener.accept(changed);
+				}
+				key.reset();
+			}
+		}
+		catch(InterruptedException | ClosedWatchServiceException ex)
+		{
+			//	The application is exiting
+		}
+	}
+
+}
@@ -1,203 +1,955 @@
-package se.cqst.sleeper.providers;
-
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.net.ssl.HttpsURLConnection;
-
-import se.cqst.sleeper.parsers.Parser;
-
-/**
- * 
- * <p><code>HTTPProvider</code> is an implementation of the <code>Provider</code> interface that polls a 
- * web site for a specific key phrase, and triggers if it is found.</p>
- * 
- * <p>HTTPProvider will fetch a web page each time a call to <code>{@link #check()}</code> is made and
- * will only parse results with a <code>HTTP 200 OK</code> code.</p>
- * 
- * <p>To parse the web page, a <code>{@link Parser}</code> is used. It is up to the <code>Parser</code>
- * to interpret the web page and decide whether the key phrase exists there or not.</p>
- * 
- * <p><i>A <code>PlainTextParser</code> (default <code>Parser</code>) will look for the key phrase in
- * the entire HTML document. If you use a common enough key phrase this may cause false positives
- * with HTML/CSS/JavaScript code.</i></p>
- * 
- * <p><code>HTTPProvider</code> is initialized with a <code>HashMap&lt;String, String&gt;</code> 
- * containing arguments. The following arguments are used by HTTPProvider (all keys are in the format
- * (String, String) but will be interpreted according to <i>Accepted Value</i>:</p>
- * 
- * <col width="25%" />
- * <col width="25%" />
- * <col width="50%" />
- * <code>
- * 	<table>
- * 		<thead>
- * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
- * 		</thead>
- * 		<tbody>
- * 			<tr><td>keyphrase</td><td>String</td><td>check() returns true if found</td></tr>
- * 			<tr><td>debug</td><td>boolean</td><td>Prints info interesting while debugging</td></tr>
- * 			<tr><td>parser</td><td>Class</td><td>Full class name of a Parser to process messages</td></tr>
- * 		</tbody>
- * 	</table>
- * </code>
- * 
- * @author Nicklas Rosvall Carlquist
- * 
- * @see {@link Provider} for more information about the <code>Provider</code> interface
- * @see {@link Parser} for more information about <code>Parsers</code>
- * 
- * 
- */
-public class HTTPProvider implements Provider {
-	
-	public static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11";
-	
-	private HashMap<String, String> arguments;
-	private Parser parser;
-	private URL address;
-	private boolean ssl = false;
-	
-	/**
-	 * <p>Instantiate a new <code>HTTPProvider</code> using the provided <code>HashMap&lt;String, String&gt;</code>
-	 * with arguments
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 * 
-	 * @see {@link HTTPParser} for a list of valid arguments
-	 *
-	 * @param arguments argument list
-	 */
-	public HTTPProvider(HashMap<String, String> arguments)
-	{
-		this.arguments = arguments;
-		this.parser = this.getParser(arguments);
-		
-		this.address = null;
-		try
-		{
-			this.address = new URL(arguments.get("httpaddress"));
-		}
-		catch(MalformedURLException ex)
-		{
-			print("The specified URL \"" + arguments.get("httpaddress") + "\" is not a valid URL. "
-					+ "Remember to include protocol (http:// or https://) in the address.");
-			ex.printStackTrace();
-			System.exit(-1);
-		}
-		
-		Pattern sslPattern = Pattern.compile("(https)(\\:\\/\\/)(.*)($)");
-		Matcher sslMatcher = sslPattern.matcher(address.toString());
-		if(sslMatcher.matches())
-			this.ssl = true;
-		
-		this.printUsage();
-	}
-	
-	/* (non-Javadoc)
-	 * @see se.cqst.sleeper.providers.Provider#check()
-	 * 
-	 * The check() method in HTTPProvider calls parseURL() to determine
-	 * if the key phrase exists on the provided web page.
-	 */
-	@Override
-	public boolean check()
-	{
-		return parseURL();
-	}
-	
-	/**
-	 * <p>Connects to an input URL object, fetches its data and runs it though <code>this.parser</code></p>
-	 *
-	 * <p><code>HttpsURLConnection</code> is used to allow for <code>HTTPS</code> connections.</p>
-	 * 
-	 * <p>Only <code>HTTP 200 OK</code> status code is accepted; pages using e.g. <code> HTTP 3xx codes (
-	 * 301 Moved Permanently, 302 Moved)</code> will not be parsed.</p>
-	 * 
-	 * @return true, if the <code>Parser</code> object finds the key phrase on the page
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 * 
-	 * @see <a href="https://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html">HTTP/1.1: Status Code Definitions</a>
-	 * for information about HTTP Status Codes
-	 * 
-	 */
-	private boolean parseURL()
-	{
-		String data = "";
-		try
-		{
-			HttpURLConnection connection = null;
-			if(this.ssl)
-				connection = (HttpsURLConnection)this.address.openConnection();
-			else
-				connection = (HttpURLConnection)this.address.openConnection();
-			connection.addRequestProperty("User-Agent", USER_AGENT);	
-			
-			if(connection.getResponseCode() != 200)
-			{
-				print(connection.getResponseCode() + connection.getResponseMessage() + " when trying to access " + this.address.toString());
-			}
-			else
-			{
-				Scanner sc = new Scanner(connection.getInputStream());
-				sc.useDelimiter("\\A");
-				data = (sc.hasNext() ? sc.next() : "");
-				if(Boolean.valueOf(arguments.get("debug")))
-					System.out.println(data);
-				sc.close();
-			}
-			connection.getInputStream().close();
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-			System.exit(-1);
-		}
-		
-		return this.parser.phraseExists(arguments.get("keyphrase"), data);
-	}
-	
-	/* (non-Javadoc)
-	 * @see se.cqst.sleeper.providers.Provider#printHelp()
-	 * 
-	 * Override default printHelp() and display help about HTTPProvider.
-	 * 
-	 * Also run this.parser.printHelp()
-	 */
-	@Override
-	public void printHelp()
-	{
-		print("Provider HTTPProvider fetches a specified web page and uses a Parser to search within for"
-				+ "the keyphrase. The web page is specified using argument httpaddress, e.g. httpaddress=http://www.example.com."
-				+ "HTTPParser supports both HTTP and HTTPS, but cannot follow redirects and will not parse HTTP status pages (such"
-				+ "as 404 Not Found or 302 Moved)");
-		
-		if(this.parser != null)
-			this.parser.printHelp();
-	}
-	
-	/* (non-Javadoc)
-	 * @see se.cqst.sleeper.providers.Provider#printUsage()
-	 * 
-	 * Override default printUsage() and display usage info about HTTPProvider
-	 * 
-	 * Also run this.parser.printUsage()
-	 */
-	@Override
-	public void printUsage()
-	{
-		print("HTTPProvider will be used to check the specified web page for the keyphrase.");
-		print("The specified address is : " + arguments.get("httpaddress"));
-		
-		if(this.parser != null)
-			this.parser.printUsage();
-	}
-
-}
+package se.cqst.sleeper.providers;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.buffers.BufferPool;
+import se.cqst.sleeper.events.CheckEvent;
+import se.cqst.sleeper.events.ParseEvent;
+import se.cqst.sleeper.metrics.PollMetrics;
+import se.cqst.sleeper.parsers.Parser;
+import se.cqst.sleeper.plugins.Plugin;
+import se.cqst.sleeper.plugins.PluginException;
+import se.cqst.sleeper.senders.ConsoleSender;
+import se.cqst.sleeper.state.StateStore;
+
+/**
+ * 
+ * <p><code>HTTPProvider</code> is an implementation of the <code>Provider</code> interface that polls a 
+ * web site for a specific key phrase, and triggers if it is found.</p>
+ * 
+ * <p>HTTPProvider will fetch a web page each time a call to <code>{@link #check()}</code> is made and
+ * will only parse results with a <code>HTTP 200 OK</code> code. A page that cannot be fetched, e.g. because the host
+ * is unknown or the connection is refused, counts as not found and as an error in {@link PollMetrics}.</p>
+ * 
+ * <p>To parse the web page, a <code>{@link Parser}</code> is used. It is up to the <code>Parser</code>
+ * to interpret the web page and decide whether the key phrase exists there or not.</p>
+ * 
+ * <p>HTTPProvider asks for <code>gzip</code> or <code>deflate</code> compressed pages and decompresses
+ * them as a stream straight into the <code>Parser</code>, so the page is never buffered unless the
+ * <code>Parser</code> requires it (or <code>debug</code> is set). Pages are read into direct buffers from the
+ * shared {@link BufferPool}, which are returned to the pool when the check is done.</p>
+ * 
+ * <p>If a {@link StateStore} is configured (argument <code>statefile</code>), the validators and chunk hashes
+ * of the page are saved after every poll and restored when the watch is created again.</p>
+ * 
+ * <p>Every check is recorded in {@link PollMetrics}: the time until the response headers are in
+ * (<code>connect</code>), reading the body (<code>transfer</code>) and in the <code>Parser</code>
+ * (<code>parse</code>), the bytes read, <code>HTTP 304</code> responses, unchanged chunks and timeouts. Checks and
+ * parser calls are also recorded as JFR events ({@link CheckEvent}, {@link ParseEvent}).</p>
+ * 
+ * <p><i>A <code>PlainTextParser</code> (default <code>Parser</code>) will look for the key phrase in
+ * the entire HTML document. If you use a common enough key phrase this may cause false positives
+ * with HTML/CSS/JavaScript code. <code>HTMLParser</code> (<code>parser=html</code>) only looks in the
+ * text of the page, optionally within the elements of a selector.</i></p>
+ * 
+ * <p><code>HTTPProvider</code> is initialized with a <code>HashMap&lt;String, String&gt;</code> 
+ * containing arguments. The following arguments are used by HTTPProvider (all keys are in the format
+ * (String, String) but will be interpreted according to <i>Accepted Value</i>:</p>
+ * 
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>keyphrase</td><td>String</td><td>check() returns true if found</td></tr>
+ * 			<tr><td>debug</td><td>boolean</td><td>Prints info interesting while debugging</td></tr>
+ * 			<tr><td>parser</td><td>Class</td><td>Full class name of a Parser to process messages</td></tr>
+ * 			<tr><td>http_hash</td><td>boolean</td><td>Skip parsing unchanged parts of the page (default true)</td></tr>
+ * 			<tr><td>http_window</td><td>int</td><td>Seconds a page fetched for several watches is shared (default: repeat)</td></tr>
+ * 			<tr><td>http_timeout</td><td>int</td><td>Seconds to wait for a connection, and between reads, before the check fails (default: no timeout)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ * 
+ * @see {@link Provider} for more information about the <code>Provider</code> interface
+ * @see {@link Parser} for more information about <code>Parsers</code>
+ * 
+ * 
+ */
+@Plugin(name = "http", type = Provider.class)
+public class HTTPProvider implements Provider {
+	
+	public static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11";
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+	public static final int BUFFER_SIZE = 8192;
+	
+	private static final Pattern CHARSET_PATTERN = Pattern.compile("(?i)charset\\s*=\\s*\"?([^\\s;\"]+)");
+	private static final String[] REQUEST_HEADER_PAIRS = { "User-Agent", USER_AGENT, "Accept-Encoding", ACCEPT_ENCODING };
+	private static final Map<String, String> REQUEST_HEADERS;
+	
+	static
+	{
+		//	Requests iterate the array, which allocates nothing, and the map is the key of a shared page
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for(int i = 0; i < REQUEST_HEADER_PAIRS.length; i += 2)
+			headers.put(REQUEST_HEADER_PAIRS[i], REQUEST_HEADER_PAIRS[i + 1]);
+		REQUEST_HEADERS = Collections.unmodifiableMap(headers);
+	}
+	
+	private HashMap<String, String> arguments;
+	private final String keyphrase;
+	private final boolean debug;
+	private final boolean hashing;
+	private final long window;
+	private final int timeout;
+	private Parser parser;
+	private URL address;
+	private boolean ssl = false;
+	
+	private ContentFingerprint fingerprint;
+	private ContentFingerprint spare;
+	private String etag;
+	private String lastModified;
+	private boolean lastFound;
+	private long sourceTimestamp;
+	private SharedFetcher.Source source;
+	private long lastVersion;
+	private final StateStore.Record state;
+	private final int stateKey;
+	
+	private final String watchId;
+	private final PollMetrics metrics;
+	private String outcome;
+	private long parseNanos;
+	private long parseBytes;
+	private long readBytes;
+	private int skippedChunks;
+	private volatile HttpURLConnection connection;
+	private volatile boolean cancelled;
+	
+	/**
+	 * <p>Instantiate a new <code>HTTPProvider</code> using the provided <code>HashMap&lt;String, String&gt;</code>
+	 * with arguments
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 * 
+	 * @see {@link HTTPParser} for a list of valid arguments
+	 *
+	 * @param arguments argument list
+	 * @throws PluginException if <code>httpaddress</code> is not a valid URL
+	 */
+	public HTTPProvider(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.arguments = arguments;
+		this.keyphrase = spec.getKeyphrase();
+		this.debug = spec.isDebug();
+		this.hashing = spec.getBoolean("http_hash", true);
+		this.window = spec.getInt("http_window", spec.getRepeat() * 60) * 1000L;
+		this.timeout = spec.getInt("http_timeout", 0) * 1000;
+		this.watchId = spec.getId();
+		this.metrics = new PollMetrics(this.watchId, getClass().getSimpleName());
+		this.lastVersion = -1;
+		this.parser = this.getParser(arguments);
+		
+		this.address = null;
+		try
+		{
+			this.address = new URL(arguments.get("httpaddress"));
+		}
+		catch(MalformedURLException ex)
+		{
+			throw new PluginException("The specified URL \"" + arguments.get("httpaddress") + "\" is not a valid URL. "
+					+ "Remember to include protocol (http:// or https://) in the address.", ex);
+		}
+		
+		Pattern sslPattern = Pattern.compile("(https)(\\:\\/\\/)(.*)($)");
+		Matcher sslMatcher = sslPattern.matcher(address.toString());
+		if(sslMatcher.matches())
+			this.ssl = true;
+		
+		this.source = SharedFetcher.subscribe(this.address, REQUEST_HEADERS, this.timeout);
+		
+		StateStore store = StateStore.getDefault();
+		this.state = (store != null) ? store.getRecord(spec.getId()) : null;
+		this.stateKey = spec.getStateHash();
+		this.loadState();
+		
+		this.printUsage();
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#check()
+	 * 
+	 * The check() method in HTTPProvider calls parseURL() to determine
+	 * if the key phrase exists on the provided web page, or parseShared()
+	 * if other HTTPProviders poll the same page.
+	 */
+	@Override
+	public boolean check()
+	{
+		CheckEvent event = CheckEvent.start();
+		long start = System.nanoTime();
+		this.parseNanos = 0;
+		this.parseBytes = 0;
+		this.readBytes = 0;
+		this.skippedChunks = 0;
+		this.outcome = null;
+		this.cancelled = false;
+		
+		boolean found;
+		if(this.source != null && this.source.getSubscribers() > 1)
+			found = parseShared();
+		else
+			found = parseURL(start);
+		
+		metrics.recordCheck(start);
+		if(event != null)
+			event.commit(this.watchId, getClass().getSimpleName(), this.address.toString(), this.readBytes,
+					(this.outcome != null) ? this.outcome : (found ? "found" : "not found"));
+		return found;
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#close()
+	 * 
+	 * Unsubscribe from the shared page.
+	 */
+	@Override
+	public void close()
+	{
+		if(this.source != null)
+			SharedFetcher.unsubscribe(this.source);
+		this.source = null;
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#cancel()
+	 * 
+	 * Disconnect the connection of the running check, which makes a blocked read fail at once. A check waiting
+	 * for a shared fetch is interrupted instead, and the fetch itself runs to its end for the other subscribers.
+	 */
+	@Override
+	public void cancel()
+	{
+		this.cancelled = true;
+		HttpURLConnection connection = this.connection;
+		if(connection != null)
+			connection.disconnect();
+	}
+	
+	/**
+	 * <p>Connects to an input URL object, fetches its data and runs it though <code>this.parser</code></p>
+	 *
+	 * <p><code>HttpsURLConnection</code> is used to allow for <code>HTTPS</code> connections.</p>
+	 * 
+	 * <p>Only <code>HTTP 200 OK</code> status code is accepted; pages using e.g. <code> HTTP 3xx codes (
+	 * 301 Moved Permanently, 302 Moved)</code> will not be parsed. If the server sent an <code>ETag</code> or
+	 * <code>Last-Modified</code> header, the next request is conditional and <code>HTTP 304 Not Modified</code>
+	 * returns the previous result.</p>
+	 * 
+	 * <p>Unless <code>http_hash=false</code> is set, the page is hashed in chunks while it is read (see 
+	 * {@link ContentFingerprint}) and chunks that are identical to the previous poll are not parsed again.</p>
+	 * 
+	 * @param start the start of the check, from <code>System.nanoTime()</code>
+	 * @return true, if the <code>Parser</code> object finds the key phrase on the page
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 * 
+	 * @see <a href="https://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html">HTTP/1.1: Status Code Definitions</a>
+	 * for information about HTTP Status Codes
+	 * 
+	 */
+	private boolean parseURL(long start)
+	{
+		boolean found = false;
+		try
+		{
+			HttpURLConnection connection = null;
+			if(this.ssl)
+				connection = (HttpsURLConnection)this.address.openConnection();
+			else
+				connection = (HttpURLConnection)this.address.openConnection();
+			this.connection = connection;
+			if(isCancelled())
+				throw new InterruptedIOException("The check was cancelled");
+			connection.setConnectTimeout(this.timeout);
+			connection.setReadTimeout(this.timeout);
+			for(int i = 0; i < REQUEST_HEADER_PAIRS.length; i += 2)
+				connection.addRequestProperty(REQUEST_HEADER_PAIRS[i], REQUEST_HEADER_PAIRS[i + 1]);
+			if(this.etag != null)
+				connection.addRequestProperty("If-None-Match", this.etag);
+			if(this.lastModified != null)
+				connection.addRequestProperty("If-Modified-Since", this.lastModified);
+			
+			int status = connection.getResponseCode();
+			long transferStart = metrics.recordConnect(start);
+			if(status == HttpURLConnection.HTTP_NOT_MODIFIED)
+			{
+				metrics.recordNotModified();
+				this.outcome = "not modified";
+				if(this.lastFound && this.sourceTimestamp == 0)
+					this.sourceTimestamp = parseHttpDate(this.lastModified);
+				if(debug)
+					print("Debug: " + this.address.toString() + " has not been modified");
+				return this.lastFound;
+			}
+			
+			if(status != 200)
+			{
+				this.outcome = "HTTP " + status;
+				print(connection.getResponseCode() + connection.getResponseMessage() + " when trying to access " + this.address.toString());
+				connection.disconnect();
+				return this.parser.phraseExists(keyphrase, "");
+			}
+			
+			Charset charset = getCharset(connection, debug);
+			try(InputStream body = getDecodedStream(connection))
+			{
+				ContentFingerprint previous = (this.fingerprint != null && this.fingerprint.isReusable()) ? this.fingerprint : null;
+				ContentFingerprint current = (this.spare != null) ? this.spare : new ContentFingerprint();
+				current.reset();
+				
+				if(!hashing && !debug)
+				{
+					//	The parser reads the stream itself, so the transfer is timed as parsing
+					ParseEvent event = ParseEvent.start();
+					long parseStart = System.nanoTime();
+					found = this.parser.phraseExists(keyphrase, new InputStreamReader(body, charset));
+					this.parseNanos += System.nanoTime() - parseStart;
+					if(event != null)
+						event.commit(this.watchId, this.parser.getClass().getSimpleName(), -1, found);
+				}
+				else if(hashing && !debug && this.parser.isSegmentable() && isSegmentSafe(charset))
+					found = this.scanChunks(body, charset, keyphrase, previous, current);
+				else
+					found = this.scanWhole(body, connection.getContentLength(), charset, keyphrase, hashing ? previous : null, current);
+				
+				current.setFound(found);
+				//	Swap fingerprints, so that polling does not allocate a new one every time
+				this.spare = this.fingerprint;
+				this.fingerprint = hashing ? current : null;
+			}
+			
+			metrics.recordTransfer(System.nanoTime() - transferStart - this.parseNanos, this.readBytes);
+			metrics.recordParse(this.parseNanos, this.parseBytes);
+			if(hashing)
+				metrics.recordChunks(this.fingerprint.getCount(), this.skippedChunks);
+			
+			this.etag = connection.getHeaderField("ETag");
+			this.lastModified = connection.getHeaderField("Last-Modified");
+			this.setSourceTimestamp(found, this.lastModified, System.currentTimeMillis());
+			this.lastFound = found;
+			this.saveState();
+			
+			if(debug)
+				print("Debug: " + BufferPool.getDefault());
+		}
+		catch(SocketTimeoutException e)
+		{
+			metrics.recordTimeout();
+			this.outcome = "timeout";
+			print(this.address.toString() + " did not respond within " + this.timeout / 1000 + " seconds");
+		}
+		catch(IOException e)
+		{
+			if(isCancelled())
+			{
+				this.outcome = "cancelled";
+				found = false;
+			}
+			else
+			{
+				metrics.recordError();
+				this.outcome = e.getClass().getSimpleName();
+				print("Could not read " + this.address.toString() + ": " + e);
+			}
+		}
+		finally
+		{
+			this.connection = null;
+		}
+		
+		return found;
+	}
+	
+	/**
+	 * <p>Gets the page from the {@link SharedFetcher}, which fetches it at most once per <code>http_window</code>
+	 * for every <code>HTTPProvider</code> polling the same address, and runs it through <code>this.parser</code>.</p>
+	 * 
+	 * <p>A response that this provider has already parsed returns the previous result.</p>
+	 *
+	 * @return true, if the <code>Parser</code> object finds the key phrase on the page
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean parseShared()
+	{
+		boolean found = false;
+		try
+		{
+			SharedFetcher.Response response = this.source.fetch(this.window);
+			try
+			{
+				if(response.getVersion() == this.lastVersion)
+				{
+					metrics.recordNotModified();
+					this.outcome = "not modified";
+					if(debug)
+						print("Debug: " + this.address.toString() + " has already been parsed");
+					return this.lastFound;
+				}
+				
+				if(response.getStatus() != 200)
+				{
+					this.outcome = "HTTP " + response.getStatus();
+					print(response.getStatus() + response.getMessage() + " when trying to access " + this.address.toString());
+					found = this.parser.phraseExists(keyphrase, "");
+				}
+				else
+				{
+					ContentFingerprint previous = (hashing && this.fingerprint != null && this.fingerprint.isReusable()) ? this.fingerprint : null;
+					ContentFingerprint current = (this.spare != null) ? this.spare : new ContentFingerprint();
+					current.reset();
+					
+					boolean segmented = this.parser.isSegmentable() && isSegmentSafe(response.getCharset());
+					found = this.scanBuffer(response.getBody(), response.getCharset(), keyphrase, previous, current, segmented);
+					
+					current.setFound(found);
+					this.spare = this.fingerprint;
+					this.fingerprint = hashing ? current : null;
+					
+					metrics.recordParse(this.parseNanos, this.parseBytes);
+					if(hashing)
+						metrics.recordChunks(current.getCount(), this.skippedChunks);
+				}
+				
+				this.lastVersion = response.getVersion();
+				this.setSourceTimestamp(found, response.getLastModified(), response.getReceived());
+				this.lastFound = found;
+				this.saveState();
+			}
+			finally
+			{
+				response.release();
+			}
+		}
+		catch(SocketTimeoutException e)
+		{
+			metrics.recordTimeout();
+			this.outcome = "timeout";
+			print(this.address.toString() + " did not respond within " + this.timeout / 1000 + " seconds");
+		}
+		catch(IOException e)
+		{
+			if(isCancelled())
+			{
+				this.outcome = "cancelled";
+				found = false;
+			}
+			else
+			{
+				metrics.recordError();
+				this.outcome = e.getClass().getSimpleName();
+				print("Could not read " + this.address.toString() + ": " + e);
+			}
+		}
+		finally
+		{
+			this.connection = null;
+		}
+		
+		return found;
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#getSourceTimestamp()
+	 * 
+	 * The Last-Modified time of the page the key phrase was found on, or the
+	 * time the page was first fetched with it if the server did not send one.
+	 */
+	@Override
+	public long getSourceTimestamp()
+	{
+		return this.sourceTimestamp;
+	}
+	
+	/**
+	 * Returns true if the running check has been cancelled, with {@link #cancel()} or by interrupting its thread
+	 */
+	private boolean isCancelled()
+	{
+		return this.cancelled || Thread.currentThread().isInterrupted();
+	}
+	
+	/**
+	 * <p>Set the source timestamp after a page has been parsed. A page that was already found on the previous
+	 * poll keeps its timestamp, so that it stays the time the key phrase was first seen.</p>
+	 *
+	 * @param found true, if the key phrase was found on the page
+	 * @param lastModified the <code>Last-Modified</code> header of the response, or <code>null</code>
+	 * @param received the time the response was received, in milliseconds since the epoch
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void setSourceTimestamp(boolean found, String lastModified, long received)
+	{
+		if(!found)
+			this.sourceTimestamp = 0;
+		else if(lastModified != null)
+			this.sourceTimestamp = parseHttpDate(lastModified);
+		else if(!this.lastFound || this.sourceTimestamp == 0)
+			this.sourceTimestamp = (received > 0) ? received : System.currentTimeMillis();
+	}
+	
+	/**
+	 * <p>Returns an HTTP date (<code>Sun, 06 Nov 1994 08:49:37 GMT</code>) in milliseconds since the epoch, or 0
+	 * if <code>date</code> is <code>null</code> or not an HTTP date.</p>
+	 *
+	 * @param date the date
+	 * @return the date in milliseconds, or 0
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	static long parseHttpDate(String date)
+	{
+		if(date == null)
+			return 0;
+		try
+		{
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		}
+		catch(DateTimeParseException ex)
+		{
+			return 0;
+		}
+	}
+	
+	/**
+	 * <p>Restores the validators, the last result and the fingerprint of the page from the {@link StateStore},
+	 * so that the first poll after a restart can be a conditional request and skip unchanged chunks.</p>
+	 * 
+	 * <p>State saved with other arguments than the current ones is ignored.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void loadState()
+	{
+		ByteBuffer data = (this.state != null) ? this.state.read() : null;
+		if(data == null || data.remaining() < 4 || data.getInt() != this.stateKey)
+			return;
+		
+		this.lastFound = data.get() != 0;
+		this.etag = StateStore.getString(data);
+		this.lastModified = StateStore.getString(data);
+		int count = data.getInt();
+		if(count > 0 && hashing)
+		{
+			ContentFingerprint saved = new ContentFingerprint();
+			for(int i = 0; i < count; i++)
+				saved.add(data.getLong());
+			saved.setFound(this.lastFound);
+			this.fingerprint = saved;
+		}
+		
+		if(debug)
+			print("Debug: Restored state of " + this.address.toString() + " (" + count + " chunk hashes)");
+	}
+	
+	/**
+	 * <p>Saves the validators, the last result and the fingerprint of the page to the {@link StateStore}.
+	 * The fingerprint is left out if it does not fit in a record.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void saveState()
+	{
+		if(this.state == null)
+			return;
+		
+		ByteBuffer data = this.state.edit();
+		data.putInt(this.stateKey);
+		data.put((byte)(this.lastFound ? 1 : 0));
+		StateStore.putString(data, this.etag);
+		StateStore.putString(data, this.lastModified);
+		int count = (this.fingerprint != null) ? this.fingerprint.getCount() : 0;
+		if(data.remaining() < 4 + count * 8)
+			count = 0;
+		data.putInt(count);
+		for(int i = 0; i < count; i++)
+			data.putLong(this.fingerprint.getHash(i));
+		this.state.commit();
+	}
+	
+	/**
+	 * <p>Reads <code>body</code> in chunks of <code>ContentFingerprint.CHUNK_SIZE</code> bytes, hashes each chunk
+	 * into <code>current</code> and hands changed chunks to <code>this.parser</code>.</p>
+	 * 
+	 * <p>Every chunk is prefixed with the last bytes of the previous chunk, enough to hold the key phrase, so that
+	 * a key phrase spanning two chunks is found. A chunk that is unchanged since <code>previous</code> is skipped,
+	 * except for the overlap with the previous chunk if that one changed.</p>
+	 * 
+	 * <p>Only one chunk is kept in memory, in a buffer from the {@link BufferPool}, and reading stops as soon as the key phrase is found.</p>
+	 *
+	 * @param body the decompressed response body
+	 * @param charset the charset of <code>body</code>
+	 * @param keyphrase the key phrase
+	 * @param previous the fingerprint of the previous poll, or <code>null</code> if every chunk should be parsed
+	 * @param current the fingerprint of this poll, which chunk hashes are added to
+	 * @return true, if the key phrase is found
+	 * @throws IOException if the body could not be read
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean scanChunks(InputStream body, Charset charset, String keyphrase, ContentFingerprint previous, ContentFingerprint current) throws IOException
+	{
+		int overlap = keyphrase.length() * (charset.equals(StandardCharsets.UTF_8) ? 4 : 1);
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer buffer = pool.acquire(overlap + ContentFingerprint.CHUNK_SIZE);
+		try
+		{
+			int carried = 0;
+			boolean previousChanged = false;
+			
+			for(int index = 0; ; index++)
+			{
+				int length = BufferPool.read(body, buffer, carried, ContentFingerprint.CHUNK_SIZE);
+				if(length == 0)
+					break;
+				this.readBytes += length;
+				
+				long hash = ContentFingerprint.hash(buffer, carried, length);
+				current.add(hash);
+				
+				boolean changed = (previous == null || !previous.isUnchanged(index, hash));
+				if(!changed)
+					this.skippedChunks++;
+				int scan = 0;
+				if(changed)
+					scan = carried + length;
+				else if(previousChanged)
+					scan = carried + Math.min(length, overlap);
+				
+				if(scan > 0)
+				{
+					buffer.limit(scan).position(0);
+					if(this.parse(buffer, charset))
+						return true;
+				}
+				
+				previousChanged = changed;
+				int keep = Math.min(overlap, carried + length);
+				for(int i = 0, from = carried + length - keep; i < keep; i++)
+					buffer.put(i, buffer.get(from + i));
+				carried = keep;
+				
+				if(length < ContentFingerprint.CHUNK_SIZE)
+					break;
+			}
+		}
+		finally
+		{
+			pool.release(buffer);
+		}
+		
+		if(current.getCount() == 0)
+			return this.parser.phraseExists(keyphrase, "");
+		return false;
+	}
+	
+	/**
+	 * <p>Reads all of <code>body</code> into a pooled buffer and hands it to {@link #scanBuffer}.</p>
+	 * 
+	 * <p>This is used for Parsers that need the entire document, and when <code>debug</code> is set.</p>
+	 *
+	 * @param body the decompressed response body
+	 * @param expected the <code>Content-Length</code> of the response, used as a size hint, or -1
+	 * @param charset the charset of <code>body</code>
+	 * @param keyphrase the key phrase
+	 * @param previous the fingerprint of the previous poll, or <code>null</code> if the body should always be parsed
+	 * @param current the fingerprint of this poll, which chunk hashes are added to
+	 * @return true, if the key phrase is found
+	 * @throws IOException if the body could not be read
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean scanWhole(InputStream body, int expected, Charset charset, String keyphrase, ContentFingerprint previous, ContentFingerprint current) throws IOException
+	{
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer data = pool.readFully(body, expected);
+		this.readBytes += data.limit();
+		try
+		{
+			return this.scanBuffer(data, charset, keyphrase, previous, current, false);
+		}
+		finally
+		{
+			pool.release(data);
+		}
+	}
+	
+	/**
+	 * <p>Hashes a page that has been read into <code>data</code> into <code>current</code>, and hands it to
+	 * <code>this.parser</code> unless it is identical to <code>previous</code>.</p>
+	 * 
+	 * <p>If <code>segmented</code> is set, only the chunks that changed since <code>previous</code> are parsed,
+	 * together with enough of their neighbours to find a key phrase that spans two chunks (like
+	 * {@link #scanChunks}). Otherwise the whole page is parsed.</p>
+	 *
+	 * @param data the page, between the position (0) and the limit of the buffer
+	 * @param charset the charset of <code>data</code>
+	 * @param keyphrase the key phrase
+	 * @param previous the fingerprint of the previous poll, or <code>null</code> if the page should always be parsed
+	 * @param current the fingerprint of this poll, which chunk hashes are added to
+	 * @param segmented parse only changed chunks
+	 * @return true, if the key phrase is found
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean scanBuffer(ByteBuffer data, Charset charset, String keyphrase, ContentFingerprint previous, ContentFingerprint current, boolean segmented)
+	{
+		int length = data.limit();
+		for(int offset = 0; offset < length; offset += ContentFingerprint.CHUNK_SIZE)
+			current.add(ContentFingerprint.hash(data, offset, Math.min(ContentFingerprint.CHUNK_SIZE, length - offset)));
+		
+		if(debug)
+			ConsoleSender.println(charset.decode(data.duplicate()).toString());
+		
+		if(previous != null && previous.isUnchanged(current))
+		{
+			this.skippedChunks += current.getCount();
+			if(debug)
+				print("Debug: Content of " + this.address.toString() + " is unchanged, skipping parser");
+			return false;
+		}
+		
+		if(!segmented || previous == null || length == 0)
+			return this.parse(data, charset);
+		
+		int overlap = keyphrase.length() * (charset.equals(StandardCharsets.UTF_8) ? 4 : 1);
+		boolean previousChanged = false;
+		for(int index = 0; index < current.getCount(); index++)
+		{
+			int offset = index * ContentFingerprint.CHUNK_SIZE;
+			int chunk = Math.min(ContentFingerprint.CHUNK_SIZE, length - offset);
+			boolean changed = !previous.isUnchanged(index, current.getHash(index));
+			if(!changed)
+				this.skippedChunks++;
+			int end = 0;
+			if(changed)
+				end = offset + chunk;
+			else if(previousChanged)
+				end = offset + Math.min(chunk, overlap);
+			
+			if(end > 0)
+			{
+				data.limit(end).position(Math.max(0, offset - overlap));
+				boolean found = this.parse(data, charset);
+				data.limit(length).position(0);
+				if(found)
+					return true;
+			}
+			previousChanged = changed;
+		}
+		return false;
+	}
+	
+	/**
+	 * <p>Hands the bytes between the position and the limit of <code>data</code> to <code>this.parser</code>,
+	 * adding the time it took and the number of bytes to the parse metrics of the current check.</p>
+	 *
+	 * @param data the bytes to parse
+	 * @param charset the charset of <code>data</code>
+	 * @return true, if the key phrase is found
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private boolean parse(ByteBuffer data, Charset charset)
+	{
+		int bytes = data.remaining();
+		ParseEvent event = ParseEvent.start();
+		long start = System.nanoTime();
+		boolean found = this.parser.phraseExists(keyphrase, data, charset);
+		this.parseNanos += System.nanoTime() - start;
+		this.parseBytes += bytes;
+		if(event != null)
+			event.commit(this.watchId, this.parser.getClass().getSimpleName(), bytes, found);
+		return found;
+	}
+	
+	/**
+	 * <p>Returns true if text in <code>charset</code> can be split at any byte without affecting how
+	 * the bytes after the split are decoded, i.e. single byte charsets and <code>UTF-8</code>.</p>
+	 *
+	 * @param charset the charset
+	 * @return true, if bytes in the charset can be split into segments
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static boolean isSegmentSafe(Charset charset)
+	{
+		return charset.equals(StandardCharsets.UTF_8) || (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1.0f);
+	}
+	
+	/**
+	 * <p>Returns the response body of <code>connection</code>, decompressed according to its
+	 * <code>Content-Encoding</code> header.</p>
+	 * 
+	 * <p><code>gzip</code> and <code>deflate</code> are supported. Since some servers send raw deflate
+	 * data instead of the zlib format required by the specification, the zlib header is checked before
+	 * choosing how to inflate a <code>deflate</code> body.</p>
+	 * 
+	 * <p>The stream must be closed, which also frees the native memory of its <code>Inflater</code>.</p>
+	 *
+	 * @param connection a connected <code>HttpURLConnection</code>
+	 * @return a stream of the decompressed response body
+	 * @throws IOException if the body could not be read
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	static InputStream getDecodedStream(HttpURLConnection connection) throws IOException
+	{
+		InputStream stream = connection.getInputStream();
+		String encoding = connection.getContentEncoding();
+		if(encoding == null)
+			return stream;
+		
+		switch(encoding.trim().toLowerCase())
+		{
+		case "gzip":
+		case "x-gzip":
+			return new GZIPInputStream(stream, BUFFER_SIZE);
+		case "deflate":
+			BufferedInputStream buffered = new BufferedInputStream(stream, BUFFER_SIZE);
+			buffered.mark(2);
+			int cmf = buffered.read();
+			int flg = buffered.read();
+			buffered.reset();
+			boolean zlib = (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+			return new DeflateInputStream(buffered, new Inflater(!zlib));
+		default:
+			return stream;
+		}
+	}
+	
+	/**
+	 * <p>Returns the charset given in the <code>Content-Type</code> header of <code>connection</code>,
+	 * or the platform default charset if none (or an unsupported one) is given.</p>
+	 *
+	 * @param connection a connected <code>HttpURLConnection</code>
+	 * @param debug print a message if the charset is not supported
+	 * @return the charset of the response body
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	static Charset getCharset(HttpURLConnection connection, boolean debug)
+	{
+		String contentType = connection.getContentType();
+		if(contentType != null)
+		{
+			Matcher matcher = CHARSET_PATTERN.matcher(contentType);
+			if(matcher.find())
+			{
+				try
+				{
+					return Charset.forName(matcher.group(1));
+				}
+				catch(IllegalArgumentException ex)
+				{
+					if(debug)
+						ConsoleSender.log("HTTPProvider", "Debug: Unsupported charset " + matcher.group(1) + ", using platform default");
+				}
+			}
+		}
+		return Charset.defaultCharset();
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#printHelp()
+	 * 
+	 * Override default printHelp() and display help about HTTPProvider.
+	 * 
+	 * Also run this.parser.printHelp()
+	 */
+	@Override
+	public void printHelp()
+	{
+		print("Provider HTTPProvider fetches a specified web page and uses a Parser to search within for"
+				+ "the keyphrase. The web page is specified using argument httpaddress, e.g. httpaddress=http://www.example.com."
+				+ "HTTPParser supports both HTTP and HTTPS, but cannot follow redirects and will not parse HTTP status pages (such"
+				+ "as 404 Not Found or 302 Moved)");
+		
+		if(this.parser != null)
+			this.parser.printHelp();
+	}
+	
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.providers.Provider#printUsage()
+	 * 
+	 * Override default printUsage() and display usage info about HTTPProvider
+	 * 
+	 * Also run this.parser.printUsage()
+	 */
+	@Override
+	public void printUsage()
+	{
+		print("HTTPProvider will be used to check the specified web page for the keyphrase.");
+		print("The specified address is : " + arguments.get("httpaddress"));
+		
+		if(this.parser != null)
+			this.parser.printUsage();
+	}
+	
+	/**
+	 * <p>An <code>InflaterInputStream</code> that ends its <code>Inflater</code> when it is closed.</p>
+	 * 
+	 * <p><code>InflaterInputStream.close()</code> only ends an <code>Inflater</code> it created itself, and a
+	 * <code>deflate</code> body needs one that is created for its format, so without this the native memory of
+	 * every inflated body would be held until the <code>Inflater</code> is finalized.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static class DeflateInputStream extends InflaterInputStream
+	{
+		DeflateInputStream(InputStream stream, Inflater inflater)
+		{
+			super(stream, inflater, BUFFER_SIZE);
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				inf.end();
+			}
+		}
+	}
+
+}
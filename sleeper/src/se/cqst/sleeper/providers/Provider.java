@@ -1,140 +1,176 @@
-package se.cqst.sleeper.providers;
-
-import java.lang.reflect.Constructor;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
-
-import se.cqst.sleeper.parsers.Parser;
-
-/**
- * The Provider interface provides the application with the tools needed to check if
- * the key phrase has been sent. 
- * 
- * Providers uses the check() method to determine if the
- * key phrase has been found, and may use getParser() to parse incoming text to find
- * the phrase.
- * 
- * @author Nicklas Rosvall Carlquist
- */
-public interface Provider {
-	
-	/**
-	 * Check if the key phrase has been provided.
-	 *
-	 * @return true, if successful
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default boolean check()
-	{
-		return false;
-	}
-	
-	/**
-	 * <p>Use reflection to dynamically instantiate a Parser class based on the arguments
-	 * provided.</p>
-	 * 
-	 * <p>The full name of the class must be provided in the key "parser", ex:
-	 * <br>
-	 * <code>arguments.set("parser", "se.cqst.sleeper.parsers.PlainTextParser");</code></p>
-	 *
-	 * @param arguments a HashMap&lt;String, String&gt; with arguments for the Parser
-	 * @return the parser
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default Parser getParser(HashMap<String, String> arguments)
-	{
-		Parser parser = null;
-		
-		try
-		{
-			Object instance = null;
-			Class<?>	clazz = Class.forName(arguments.get("parser"));
-			Constructor<?> constructor = clazz.getConstructor(HashMap.class);
-			instance = constructor.newInstance(arguments);
-			if(instance instanceof se.cqst.sleeper.parsers.Parser)
-				parser = (Parser)instance;
-			else
-			{
-				System.out.println("Provider must be an implementation of se.cqst.sleeper.providers.Parser");
-				System.exit(0);
-			}
-		}
-		catch(ClassNotFoundException ex)
-		{
-			System.out.println("The parser \"" + arguments.get("parser") + 
-					"\" does not exist. Make sure you enter the full name of the class.");
-			ex.printStackTrace();
-			System.exit(0);
-		}
-		catch(NoSuchMethodException ex)
-		{
-			System.out.println("The parser \"" + arguments.get("parser") + 
-					"\" does not have a valid constructor (valid types are Parser(HashMap<String, String>))");
-			ex.printStackTrace();
-			System.exit(0);
-		}
-		catch(Exception ex)
-		{
-			ex.printStackTrace();
-			System.exit(0);
-		}
-		return parser;
-	}
-	
-	/**
-	 * <p>Returns the current date</p>
-	 *
-	 * @return Current date in yyyy-MM-dd HH:mm format
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default String getDate()
-	{
-		Calendar cal = Calendar.getInstance();
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-		return sdf.format(cal.getTime());
-	}
-	
-	/**
-	 * <p>Prints text to <code>System.out</code> with a prefix date in brackets.</p>
-	 *
-	 * @param text text to be printed
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default void print(String text)
-	{
-		System.out.println("[" + getDate() + "] " + text);
-	}
-	
-	/**
-	 * <p>Print detailed information about how you configure and use the Provider</p>
-	 * 
-	 * <p>Example: <i>Provider x performs task y to see if the key phrase exist.<br>
-	 * The following is a list of valid arguments: argument A, argument B, argument C -etc</i></p>
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default void	printHelp()
-	{
-		print("This Provider has no help specified.");
-	}
-	
-	/**
-	 * <p>Print information about what the Provider will do. This information will be
-	 * displayed when you run the application with the specified Provider</p>
-	 * 
-	 * <p>Example: <i>Provider x will perform task y to see if the key phrase
-	 * exist.</i></p>
-	 * 
-	 * @author Nicklas Rosvall Carlquist
-	 */
-	default void	printUsage()
-	{
-		print("This provider has no usage information defined.");
-	}
-
-}
+package se.cqst.sleeper.providers;
+
+import java.util.HashMap;
+
+import se.cqst.sleeper.parsers.Parser;
+import se.cqst.sleeper.plugins.PluginException;
+import se.cqst.sleeper.plugins.PluginRegistry;
+import se.cqst.sleeper.senders.ConsoleSender;
+
+/**
+ * The Provider interface provides the application with the tools needed to check if
+ * the key phrase has been sent. 
+ * 
+ * Providers uses the check() method to determine if the
+ * key phrase has been found, and may use getParser() to parse incoming text to find
+ * the phrase.
+ * 
+ * @author Nicklas Rosvall Carlquist
+ */
+public interface Provider {
+	
+	/**
+	 * Check if the key phrase has been provided.
+	 *
+	 * @return true, if successful
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default boolean check()
+	{
+		return false;
+	}
+	
+	/**
+	 * <p>Returns the time at which the source published the data in which the key phrase was found by the last
+	 * call to {@link #check()}, e.g. when a mail arrived or a page was modified. If the source does not say, a
+	 * Provider may return the time it first saw the data.</p>
+	 * 
+	 * <p>This is used to measure the detection lag of a watch.</p>
+	 *
+	 * @return the time in milliseconds since the epoch, or 0 if it is not known
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default long getSourceTimestamp()
+	{
+		return 0;
+	}
+	
+	/**
+	 * <p>Set a callback that checks the Provider at once, instead of at the next interval. A Provider that learns
+	 * of new data on its own (e.g. from file system events) calls it to be checked with no delay; calls made while
+	 * a check is running lead to one more check afterwards.</p>
+	 * 
+	 * <p>The default implementation ignores it, and the Provider is only checked at the interval.</p>
+	 *
+	 * @param wakeup the callback, safe to call from any thread
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void setWakeup(Runnable wakeup)
+	{
+		
+	}
+	
+	/**
+	 * <p>Abort a call to {@link #check()} that is running on another thread, e.g. by closing its connection, so
+	 * that it returns <code>false</code> as soon as possible. Called when the result of the check is no longer
+	 * needed.</p>
+	 * 
+	 * <p>The default implementation does nothing, and the check runs to its end.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void cancel()
+	{
+		
+	}
+	
+	/**
+	 * <p>Returns true if a key phrase found by {@link #check()} is consumed and not reported again by the next
+	 * check, e.g. a mail that is only read once. Other Providers report the key phrase for as long as the source
+	 * contains it.</p>
+	 *
+	 * @return true, if found key phrases are only reported once
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default boolean isConsuming()
+	{
+		return false;
+	}
+	
+	/**
+	 * <p>Release any resources held by the Provider (connections, subscriptions, threads). Called when
+	 * the Provider will not be checked again.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void close()
+	{
+		
+	}
+	
+	/**
+	 * <p>Create the Parser named in the arguments, using the {@link PluginRegistry}.</p>
+	 * 
+	 * <p>The short name or the full name of the class must be provided in the key "parser", ex:
+	 * <br>
+	 * <code>arguments.set("parser", "plaintext");</code></p>
+	 *
+	 * @param arguments a HashMap&lt;String, String&gt; with arguments for the Parser
+	 * @return the parser
+	 * @throws PluginException if the parser does not exist
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default Parser getParser(HashMap<String, String> arguments)
+	{
+		return PluginRegistry.getDefault().create(Parser.class, arguments.get("parser"), arguments);
+	}
+	
+	/**
+	 * <p>Returns the current date</p>
+	 *
+	 * @return Current date in yyyy-MM-dd HH:mm format
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default String getDate()
+	{
+		return ConsoleSender.getTimestamp(System.currentTimeMillis());
+	}
+	
+	/**
+	 * <p>Prints text to <code>System.out</code> with a prefix date in brackets.</p>
+	 * 
+	 * <p>The text is queued in the {@link ConsoleSender} log and written asynchronously.</p>
+	 *
+	 * @param text text to be printed
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void print(String text)
+	{
+		ConsoleSender.log(getClass().getSimpleName(), text);
+	}
+	
+	/**
+	 * <p>Print detailed information about how you configure and use the Provider</p>
+	 * 
+	 * <p>Example: <i>Provider x performs task y to see if the key phrase exist.<br>
+	 * The following is a list of valid arguments: argument A, argument B, argument C -etc</i></p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void	printHelp()
+	{
+		print("This Provider has no help specified.");
+	}
+	
+	/**
+	 * <p>Print information about what the Provider will do. This information will be
+	 * displayed when you run the application with the specified Provider</p>
+	 * 
+	 * <p>Example: <i>Provider x will perform task y to see if the key phrase
+	 * exist.</i></p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void	printUsage()
+	{
+		print("This provider has no usage information defined.");
+	}
+
+}
@@ -0,0 +1,353 @@
+package se.cqst.sleeper.providers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.cqst.sleeper.buffers.BufferPool;
+
+/**
+ * <p><code>SharedFetcher</code> lets every <code>HTTPProvider</code> in the application that polls the same
+ * address, with the same request headers, share one fetch.</p>
+ *
+ * <p>A provider subscribes to a {@link Source} when it is created and unsubscribes when it is closed. As long as a
+ * source has a single subscriber, the provider fetches the page itself and streams it into its
+ * <code>Parser</code>. With more than one subscriber, {@link Source#fetch(long)} is used instead:</p>
+ *
+ * <ul>
+ * 	<li>A response younger than the poll window is handed out again without a request.</li>
+ * 	<li>If a request is already in flight, the caller waits for it instead of sending its own (singleflight).</li>
+ * 	<li>Otherwise the caller fetches the page, with <code>If-None-Match</code>/<code>If-Modified-Since</code> from
+ * 		the previous response, into a buffer from the {@link BufferPool}.</li>
+ * </ul>
+ *
+ * <p>A {@link Response} is reference counted: every caller of <code>fetch()</code> must {@link Response#release()}
+ * it when done, and the body is returned to the pool once the response has been replaced and released by
+ * everyone. Each response has a version that only changes when the page does, so a subscriber can tell if it has
+ * already parsed it.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class SharedFetcher {
+
+	private static final ConcurrentHashMap<String, Source> SOURCES = new ConcurrentHashMap<String, Source>();
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	private SharedFetcher()
+	{ }
+
+	/**
+	 * <p>Subscribe to the source for <code>address</code> requested with <code>headers</code>, creating it if
+	 * this is the first subscriber.</p>
+	 *
+	 * @param address the address to fetch
+	 * @param headers the request headers
+	 * @param timeout the connect and read timeout in milliseconds, or 0 for none
+	 * @return the shared source
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static Source subscribe(URL address, Map<String, String> headers, int timeout)
+	{
+		String key = address.toString() + "\n" + new TreeMap<String, String>(headers) + "\n" + timeout;
+		return SOURCES.compute(key, (k, source) ->
+		{
+			if(source == null)
+				source = new Source(k, address, headers, timeout);
+			source.subscribers.incrementAndGet();
+			return source;
+		});
+	}
+
+	/**
+	 * <p>Unsubscribe from <code>source</code>. The last subscriber removes the source and releases its
+	 * cached response.</p>
+	 *
+	 * @param source a source returned by {@link #subscribe(URL, Map, int)}
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void unsubscribe(Source source)
+	{
+		SOURCES.computeIfPresent(source.key, (k, current) ->
+		{
+			if(current != source || source.subscribers.decrementAndGet() > 0)
+				return current;
+			source.clear();
+			return null;
+		});
+	}
+
+	/**
+	 * <p>A page shared by one or more subscribers, and its latest response.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static final class Source
+	{
+		private final String key;
+		private final URL address;
+		private final Map<String, String> headers;
+		private final int timeout;
+		private final AtomicInteger subscribers;
+
+		private CompletableFuture<Response> inFlight;
+		private Response latest;
+
+		private Source(String key, URL address, Map<String, String> headers, int timeout)
+		{
+			this.key = key;
+			this.address = address;
+			this.headers = new TreeMap<String, String>(headers);
+			this.timeout = timeout;
+			this.subscribers = new AtomicInteger();
+		}
+
+		/**
+		 * <p>Returns the response for this source, fetching it only if the latest response is older than
+		 * <code>window</code> milliseconds and no other thread is already fetching it.</p>
+		 *
+		 * @param window the poll window in milliseconds
+		 * @return a retained response, which must be released by the caller
+		 * @throws IOException if the page could not be fetched
+		 * @throws InterruptedIOException if the thread was interrupted while waiting for another thread to fetch it
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		public Response fetch(long window) throws IOException
+		{
+			while(true)
+			{
+				CompletableFuture<Response> future;
+				boolean owner = false;
+				Response previous;
+				synchronized(this)
+				{
+					if(latest != null && System.currentTimeMillis() - latest.fetched < window && latest.retain())
+						return latest;
+					if(inFlight == null)
+					{
+						inFlight = new CompletableFuture<Response>();
+						owner = true;
+					}
+					future = inFlight;
+					//	Hold the previous response while it is revalidated, since clear() may release it meanwhile
+					previous = (owner && latest != null && latest.retain()) ? latest : null;
+				}
+
+				if(owner)
+				{
+					Response response;
+					try
+					{
+						response = load(previous);
+					}
+					catch(IOException | RuntimeException ex)
+					{
+						synchronized(this)
+						{
+							inFlight = null;
+						}
+						if(previous != null)
+							previous.release();
+						future.completeExceptionally(ex);
+						throw ex;
+					}
+					boolean retained;
+					synchronized(this)
+					{
+						if(response != latest)
+						{
+							if(latest != null)
+								latest.release();
+							latest = response;
+							//	A revalidated response that was cleared meanwhile keeps the reference held for it
+							if(response == previous)
+								previous = null;
+						}
+						inFlight = null;
+						retained = response.retain();
+					}
+					if(previous != null)
+						previous.release();
+					future.complete(response);
+					if(retained)
+						return response;
+					continue;
+				}
+
+				try
+				{
+					Response response = future.get();
+					if(response.retain())
+						return response;
+				}
+				catch(InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for " + address);
+					interrupted.initCause(ex);
+					throw interrupted;
+				}
+				catch(ExecutionException ex)
+				{
+					if(ex.getCause() instanceof IOException)
+						throw (IOException)ex.getCause();
+					throw new IOException(ex.getCause());
+				}
+			}
+		}
+
+		/**
+		 * <p>Fetch the page. Returns <code>previous</code>, with a new fetch time, if the server answers
+		 * <code>HTTP 304 Not Modified</code>. Without a <code>previous</code> response, which must be retained by
+		 * the caller, the request is not conditional.</p>
+		 */
+		private Response load(Response previous) throws IOException
+		{
+			HttpURLConnection connection = (HttpURLConnection)address.openConnection();
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			for(Map.Entry<String, String> header : headers.entrySet())
+				connection.addRequestProperty(header.getKey(), header.getValue());
+			if(previous != null && previous.etag != null)
+				connection.addRequestProperty("If-None-Match", previous.etag);
+			if(previous != null && previous.lastModified != null)
+				connection.addRequestProperty("If-Modified-Since", previous.lastModified);
+
+			int status = connection.getResponseCode();
+			if(status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null)
+			{
+				previous.fetched = System.currentTimeMillis();
+				return previous;
+			}
+
+			if(status != HttpURLConnection.HTTP_OK)
+			{
+				String message = connection.getResponseMessage();
+				connection.disconnect();
+				return new Response(status, message, null, null, null, null);
+			}
+
+			Charset charset = HTTPProvider.getCharset(connection, false);
+			ByteBuffer body;
+			try(InputStream stream = HTTPProvider.getDecodedStream(connection))
+			{
+				body = BufferPool.getDefault().readFully(stream, connection.getContentLength());
+			}
+			return new Response(status, connection.getResponseMessage(), charset, body,
+					connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+		}
+
+		/**
+		 * <p>Drop the cached response.</p>
+		 */
+		private synchronized void clear()
+		{
+			if(latest != null)
+				latest.release();
+			latest = null;
+		}
+
+		public int		getSubscribers()	{	return subscribers.get();	}
+		public URL		getAddress()		{	return address;	}
+	}
+
+	/**
+	 * <p>A fetched page. The body is a read-only view of a pooled buffer and is valid until the response
+	 * is released.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static final class Response
+	{
+		private final int status;
+		private final String message;
+		private final Charset charset;
+		private final ByteBuffer body;
+		private final String etag;
+		private final String lastModified;
+		private final long version;
+		private final long received;
+		private final AtomicInteger references;
+		private volatile long fetched;
+
+		private Response(int status, String message, Charset charset, ByteBuffer body, String etag, String lastModified)
+		{
+			this.status = status;
+			this.message = message;
+			this.charset = charset;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.version = VERSIONS.incrementAndGet();
+			this.references = new AtomicInteger(1);
+			this.fetched = System.currentTimeMillis();
+			this.received = this.fetched;
+		}
+
+		/**
+		 * <p>Take a reference to this response. Fails if the response has already been released by everyone.</p>
+		 *
+		 * @return true, if the reference was taken
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		boolean retain()
+		{
+			int count;
+			do
+			{
+				count = references.get();
+				if(count == 0)
+					return false;
+			}
+			while(!references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/**
+		 * <p>Release a reference to this response. The body is returned to the pool with the last reference.</p>
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		public void release()
+		{
+			if(references.decrementAndGet() == 0 && body != null)
+				BufferPool.getDefault().release(body);
+		}
+
+		/**
+		 * <p>Returns a read-only view of the body, with its own position and limit, or <code>null</code> if the
+		 * status is not <code>HTTP 200 OK</code>.</p>
+		 *
+		 * @return the body
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		public ByteBuffer getBody()
+		{
+			return (body != null) ? body.asReadOnlyBuffer() : null;
+		}
+
+		public int		getStatus()			{	return status;	}
+		public String	getMessage()		{	return message;	}
+		public Charset	getCharset()		{	return charset;	}
+		public long		getVersion()		{	return version;	}
+		public String	getLastModified()	{	return lastModified;	}
+		public long		getReceived()		{	return received;	}
+	}
+
+}
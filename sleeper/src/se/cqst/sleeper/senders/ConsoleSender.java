@@ -1,5 +1,351 @@
-package se.cqst.sleeper.senders;
-
-public class ConsoleSender implements Sender {
-
-}
+package se.cqst.sleeper.senders;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.cqst.sleeper.plugins.Plugin;
+
+/**
+ * <p><strong>ConsoleSender</strong> is an implementation of the <code>Sender</code> interface that prints
+ * notifications to <code>System.out</code>.</p>
+ *
+ * <p>ConsoleSender is also the log sink of the application: the <code>print()</code> methods of
+ * <code>SleeperTask</code>, <code>Provider</code>, <code>Parser</code> and <code>Sender</code> all end up in
+ * {@link #log(String, String)}. Log lines are put in a fixed-size ring buffer and written to <code>System.out</code>
+ * in batches by a background thread, so the thread that polls a <code>Provider</code> never waits for the console.
+ * The date prefix is formatted at most once per second and shared by every line within that second.</p>
+ *
+ * <p>If the argument <code>log_json</code> is set, every line is written as a JSON object (JSON lines) with the
+ * fields <code>time</code>, <code>epoch</code>, <code>source</code> and <code>message</code>.</p>
+ *
+ * <p>Queued lines are written when the application exits, including through <code>System.exit()</code>.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Plugin(name = "console", type = Sender.class)
+public class ConsoleSender implements Sender {
+
+	public static final int CAPACITY = 8192;
+	public static final String DATE_FORMAT = "yyyy-MM-dd HH:mm";
+
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT).withZone(ZoneId.systemDefault());
+	private static final Ring RING = new Ring(CAPACITY, System.out);
+
+	private static volatile Stamp stamp = new Stamp(-1, "");
+	private static volatile boolean json = false;
+
+	HashMap<String, String> arguments;
+
+	public ConsoleSender(HashMap<String, String> arguments)
+	{
+		this.arguments = arguments;
+		ConsoleSender.configure(arguments);
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#send(java.lang.String, java.lang.String)
+	 *
+	 * Print the subject and the message.
+	 */
+	@Override
+	public void send(String subject, String message)
+	{
+		print(subject);
+		ConsoleSender.println(message);
+	}
+
+	/**
+	 * <p>Apply logging arguments (<code>log_json</code>) to the shared log.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void configure(HashMap<String, String> arguments)
+	{
+		json = Boolean.parseBoolean(arguments.get("log_json"));
+	}
+
+	/**
+	 * <p>Queue a log line with a date prefix.</p>
+	 *
+	 * @param source the name of the class logging the line
+	 * @param text the line to log
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void log(String source, String text)
+	{
+		RING.put(System.currentTimeMillis(), source, text);
+	}
+
+	/**
+	 * <p>Queue a line of output, e.g. the output of an action or a page printed for debugging, that is
+	 * printed without a date prefix (or with an empty source in JSON mode).</p>
+	 *
+	 * @param text the text to print
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void println(String text)
+	{
+		RING.put(System.currentTimeMillis(), null, text);
+	}
+
+	/**
+	 * <p>Block until every queued line has been written.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void flush()
+	{
+		RING.flush();
+	}
+
+	/**
+	 * <p>Returns <code>millis</code> formatted as <code>yyyy-MM-dd HH:mm</code>.</p>
+	 *
+	 * <p>The formatted String is cached and reused for every call within the same second.</p>
+	 *
+	 * @param millis milliseconds since the epoch
+	 * @return the formatted date
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static String getTimestamp(long millis)
+	{
+		long second = millis / 1000;
+		Stamp current = stamp;
+		if(current.second != second)
+		{
+			current = new Stamp(second, FORMATTER.format(Instant.ofEpochSecond(second)));
+			stamp = current;
+		}
+		return current.text;
+	}
+
+	/**
+	 * <p>Append <code>text</code> to <code>builder</code> as a quoted JSON string.</p>
+	 */
+	private static void appendJson(StringBuilder builder, String text)
+	{
+		if(text == null)
+		{
+			builder.append("null");
+			return;
+		}
+		builder.append('"');
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch(c)
+			{
+			case '"':	builder.append("\\\"");	break;
+			case '\\':	builder.append("\\\\");	break;
+			case '\n':	builder.append("\\n");	break;
+			case '\r':	builder.append("\\r");	break;
+			case '\t':	builder.append("\\t");	break;
+			default:
+				if(c < 0x20)
+					builder.append(String.format("\\u%04x", (int)c));
+				else
+					builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	/**
+	 * <p>Append one formatted log line to <code>builder</code>.</p>
+	 */
+	private static void format(StringBuilder builder, long time, String source, String text)
+	{
+		if(json)
+		{
+			builder.append("{\"time\":");
+			appendJson(builder, getTimestamp(time));
+			builder.append(",\"epoch\":").append(time).append(",\"source\":");
+			appendJson(builder, source);
+			builder.append(",\"message\":");
+			appendJson(builder, text);
+			builder.append('}');
+		}
+		else if(source != null)
+			builder.append('[').append(getTimestamp(time)).append("] ").append(text);
+		else
+			builder.append(text);
+		builder.append(System.lineSeparator());
+	}
+
+	/**
+	 * <p>A formatted date and the second it was formatted for.</p>
+	 */
+	private static class Stamp
+	{
+		final long second;
+		final String text;
+
+		Stamp(long second, String text)
+		{
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * <p>A bounded ring buffer of log lines, drained by a single writer thread.</p>
+	 *
+	 * <p>Slots are preallocated as parallel arrays, so queuing a line allocates nothing. A producer that finds
+	 * the ring full waits for the writer, which keeps memory bounded even if the console is slow.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private static class Ring
+	{
+		private final long[] times;
+		private final String[] sources;
+		private final String[] texts;
+		private final PrintStream out;
+
+		private final ReentrantLock lock;
+		private final Condition notEmpty;
+		private final Condition notFull;
+		private final Condition drained;
+
+		private long head;
+		private long tail;
+		private long written;
+
+		Ring(int capacity, PrintStream out)
+		{
+			this.times = new long[capacity];
+			this.sources = new String[capacity];
+			this.texts = new String[capacity];
+			this.out = out;
+			this.lock = new ReentrantLock();
+			this.notEmpty = lock.newCondition();
+			this.notFull = lock.newCondition();
+			this.drained = lock.newCondition();
+			this.head = 0;
+			this.tail = 0;
+			this.written = 0;
+
+			Thread writer = new Thread(this::write, "sleeper-log");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "sleeper-log-flush"));
+		}
+
+		void put(long time, String source, String text)
+		{
+			lock.lock();
+			try
+			{
+				while(tail - head == texts.length)
+					notFull.awaitUninterruptibly();
+				int slot = (int)(tail % texts.length);
+				times[slot] = time;
+				sources[slot] = source;
+				texts[slot] = text;
+				tail++;
+				notEmpty.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void flush()
+		{
+			lock.lock();
+			try
+			{
+				long target = tail;
+				while(written < target)
+				{
+					try
+					{
+						if(!drained.await(1, TimeUnit.SECONDS))
+							break;
+					}
+					catch(InterruptedException ex)
+					{
+						break;
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void write()
+		{
+			StringBuilder builder = new StringBuilder(4096);
+			int batch = Math.min(texts.length, 256);
+			long[] batchTimes = new long[batch];
+			String[] batchSources = new String[batch];
+			String[] batchTexts = new String[batch];
+
+			while(true)
+			{
+				int count = 0;
+				lock.lock();
+				try
+				{
+					while(head == tail)
+						notEmpty.awaitUninterruptibly();
+					while(head < tail && count < batch)
+					{
+						int slot = (int)(head % texts.length);
+						batchTimes[count] = times[slot];
+						batchSources[count] = sources[slot];
+						batchTexts[count] = texts[slot];
+						sources[slot] = null;
+						texts[slot] = null;
+						head++;
+						count++;
+					}
+					notFull.signalAll();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+
+				builder.setLength(0);
+				for(int i = 0; i < count; i++)
+				{
+					format(builder, batchTimes[i], batchSources[i], batchTexts[i]);
+					batchSources[i] = null;
+					batchTexts[i] = null;
+				}
+				out.print(builder);
+				out.flush();
+				if(builder.capacity() > 1024 * 1024)
+					builder = new StringBuilder(4096);
+
+				lock.lock();
+				try
+				{
+					written += count;
+					drained.signalAll();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+}
@@ -1,5 +1,332 @@
-package se.cqst.sleeper.senders;
-
-public class HTTPSender implements Sender {
-
-}
+package se.cqst.sleeper.senders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.plugins.Plugin;
+import se.cqst.sleeper.plugins.PluginException;
+
+/**
+ * <p><code>HTTPSender</code> is an implementation of the <code>Sender</code> interface that posts notifications
+ * as JSON to a webhook.</p>
+ *
+ * <p>Notifications are put on a bounded queue and posted by a single dispatcher thread, which waits on the queue
+ * while it is empty. When the queue is full,
+ * {@link #send(String, String)} waits up to <code>webhook_block</code> milliseconds for room before the
+ * notification is dropped, so a slow receiver slows down the producers instead of growing the queue without
+ * limit.</p>
+ *
+ * <p>If <code>webhook_batch</code> is larger than 1, the dispatcher waits up to <code>webhook_linger</code>
+ * milliseconds for more notifications and posts up to <code>webhook_batch</code> of them as one JSON array.
+ * Otherwise every notification is posted as a single JSON object. The connection is kept alive between posts,
+ * and failed posts (connection errors, <code>HTTP 429</code> and <code>HTTP 5xx</code>) are retried with
+ * exponential backoff.</p>
+ *
+ * <p>An HTTPSender is shared by the watches that post to the same webhook (see {@link SharedSenders}). When it
+ * is closed, it waits up to <code>CLOSE_TIMEOUT</code> milliseconds for the queued notifications to be posted.</p>
+ *
+ * <p>Every notification is posted as <code>{"subject": ..., "message": ..., "timestamp": ...}</code>, where
+ * <code>timestamp</code> is in milliseconds since the epoch.</p>
+ *
+ * <p>The following arguments are used by HTTPSender (all keys are in the format (String, String) but
+ * will be interpreted according to <i>Accepted Value</i>:</p>
+ *
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>webhookurl</td><td>String</td><td>URL to post notifications to</td></tr>
+ * 			<tr><td>webhook_batch</td><td>int</td><td>Maximum notifications per post, as a JSON array (default 1)</td></tr>
+ * 			<tr><td>webhook_linger</td><td>int</td><td>Milliseconds to wait for a batch to fill (default 50)</td></tr>
+ * 			<tr><td>webhook_queue</td><td>int</td><td>Maximum number of queued notifications (default 1000)</td></tr>
+ * 			<tr><td>webhook_block</td><td>int</td><td>Milliseconds to wait for room in a full queue (default 1000)</td></tr>
+ * 			<tr><td>webhook_retries</td><td>int</td><td>Number of retries of a failed post (default 5)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Plugin(name = "http", type = Sender.class)
+public class HTTPSender implements Sender {
+
+	public static final int DEFAULT_BATCH = 1;
+	public static final int DEFAULT_LINGER = 50;
+	public static final int DEFAULT_QUEUE = 1000;
+	public static final int DEFAULT_BLOCK = 1000;
+	public static final int DEFAULT_RETRIES = 5;
+	public static final int BACKOFF_BASE = 500;
+	public static final int BACKOFF_MAX = 30000;
+	public static final int TIMEOUT = 10000;
+	public static final int CLOSE_TIMEOUT = 30000;
+
+	//	Put on the queue by close(), so that the dispatcher never has to poll for it
+	private static final Map<String, Object> CLOSE = new LinkedHashMap<String, Object>();
+
+	private final URL address;
+	private final ObjectMapper mapper;
+	private final BlockingQueue<Map<String, Object>> queue;
+	private final Thread dispatcher;
+	private volatile boolean closed;
+
+	private final int batch;
+	private final int linger;
+	private final int block;
+	private final int retries;
+	private final boolean verbose;
+
+	/**
+	 * Instantiate a new <code>HTTPSender</code> using the provided <code>HashMap</code> with arguments
+	 *
+	 * @param arguments HashMap with arguments
+	 * @throws PluginException if <code>webhookurl</code> is not a valid URL
+	 */
+	public HTTPSender(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.mapper = new ObjectMapper();
+		this.batch = Math.max(1, spec.getInt("webhook_batch", DEFAULT_BATCH));
+		this.linger = spec.getInt("webhook_linger", DEFAULT_LINGER);
+		this.block = spec.getInt("webhook_block", DEFAULT_BLOCK);
+		this.retries = spec.getInt("webhook_retries", DEFAULT_RETRIES);
+		this.verbose = spec.isVerbose();
+		this.queue = new ArrayBlockingQueue<Map<String, Object>>(Math.max(1, spec.getInt("webhook_queue", DEFAULT_QUEUE)));
+		this.closed = false;
+
+		try
+		{
+			this.address = new URL(spec.getString("webhookurl", ""));
+		}
+		catch(MalformedURLException ex)
+		{
+			throw new PluginException("The specified webhook URL \"" + spec.getString("webhookurl", "") + "\" is not a valid URL. "
+					+ "Remember to include protocol (http:// or https://) in the address.", ex);
+		}
+
+		this.dispatcher = new Thread(this::dispatch, "sleeper-webhook");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+
+		this.printUsage();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#send(java.lang.String, java.lang.String)
+	 *
+	 * Queue the notification, waiting up to webhook_block ms if the queue is full.
+	 */
+	@Override
+	public void send(String subject, String message)
+	{
+		if(closed)
+		{
+			print("HTTPSender: Notification \"" + subject + "\" discarded, the sender has been closed");
+			return;
+		}
+
+		Map<String, Object> event = new LinkedHashMap<String, Object>();
+		event.put("subject", subject);
+		event.put("message", message);
+		event.put("timestamp", System.currentTimeMillis());
+
+		try
+		{
+			if(!queue.offer(event, block, TimeUnit.MILLISECONDS))
+				print("HTTPSender: Queue is full, notification \"" + subject + "\" dropped");
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * <p>Take notifications from the queue and post them until the sender is closed and the queue is empty.</p>
+	 *
+	 * <p>The queue is emptied in order, so the notifications queued before <code>close()</code> are all posted
+	 * before the dispatcher takes <code>CLOSE</code> and exits.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void dispatch()
+	{
+		List<Map<String, Object>> events = new ArrayList<Map<String, Object>>(batch);
+		boolean running = true;
+		while(running)
+		{
+			try
+			{
+				Map<String, Object> first = queue.take();
+				if(first == CLOSE)
+					break;
+				events.add(first);
+
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+				while(events.size() < batch)
+				{
+					long remaining = closed ? 0 : deadline - System.nanoTime();
+					Map<String, Object> next = queue.poll(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+					if(next == null)
+						break;
+					if(next == CLOSE)
+					{
+						running = false;
+						break;
+					}
+					events.add(next);
+				}
+
+				deliver(batch > 1 ? mapper.writeValueAsBytes(events) : mapper.writeValueAsBytes(events.get(0)), events.size());
+			}
+			catch(InterruptedException ex)
+			{
+				running = false;
+			}
+			catch(IOException ex)
+			{
+				print("HTTPSender: Could not serialize notification: " + ex.getMessage());
+			}
+			events.clear();
+		}
+	}
+
+	/**
+	 * <p>Post <code>body</code> to the webhook, retrying with exponential backoff and jitter if the post fails.</p>
+	 *
+	 * @param body the JSON body to post
+	 * @param count number of notifications in <code>body</code>
+	 * @throws InterruptedException if interrupted while waiting to retry
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void deliver(byte[] body, int count) throws InterruptedException
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			String error;
+			try
+			{
+				int status = post(body);
+				if(status < 300)
+				{
+					if(verbose)
+						print("Verbose: HTTPSender posted " + count + " notification(s)");
+					return;
+				}
+				error = "HTTP " + status;
+				if(status != 429 && status < 500)
+					attempt = retries;
+			}
+			catch(IOException ex)
+			{
+				error = ex.getMessage();
+			}
+
+			if(attempt >= retries)
+			{
+				print("HTTPSender: Could not post " + count + " notification(s) to " + address + ": " + error);
+				return;
+			}
+
+			long backoff = Math.min(BACKOFF_MAX, (long)BACKOFF_BASE << Math.min(attempt, 16));
+			Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+		}
+	}
+
+	/**
+	 * <p>Post <code>body</code> to the webhook and return the status code.</p>
+	 *
+	 * <p>The response is read to the end and closed, so that the connection can be kept alive and reused
+	 * by the next post.</p>
+	 *
+	 * @param body the JSON body to post
+	 * @return the HTTP status code of the response
+	 * @throws IOException if the post fails
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private int post(byte[] body) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)address.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+
+		try(OutputStream output = connection.getOutputStream())
+		{
+			output.write(body);
+		}
+
+		int status = connection.getResponseCode();
+		InputStream response = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+		if(response != null)
+		{
+			try(InputStream input = response)
+			{
+				byte[] data = new byte[1024];
+				while(input.read(data) != -1);
+			}
+		}
+		return status;
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#close()
+	 *
+	 * Stop accepting notifications, and wait for the dispatcher to post the queued ones and exit.
+	 */
+	@Override
+	public void close()
+	{
+		if(closed)
+			return;
+		closed = true;
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		try
+		{
+			if(queue.offer(CLOSE, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+				dispatcher.join(Math.max(1, deadline - System.currentTimeMillis()));
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if(dispatcher.isAlive())
+			print("HTTPSender: Notifications to " + address + " were still being posted after " + CLOSE_TIMEOUT / 1000 + " s, they are discarded");
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#printUsage()
+	 */
+	@Override
+	public void printUsage()
+	{
+		print("HTTPSender will post notifications to " + address + (batch > 1 ? " in batches of up to " + batch : "") + ".");
+	}
+
+}
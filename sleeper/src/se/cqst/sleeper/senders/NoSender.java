@@ -1,5 +1,24 @@
-package se.cqst.sleeper.senders;
-
-public class NoSender implements Sender {
-
-}
+package se.cqst.sleeper.senders;
+
+import java.util.HashMap;
+
+import se.cqst.sleeper.plugins.Plugin;
+
+/**
+ * <p><strong>NoSender</strong> is an implementation of the <code>Sender</code> interface that is used when no other
+ * <code>Sender</code> implementation has been specified. All notifications are discarded.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Plugin(name = "none", type = Sender.class)
+public class NoSender implements Sender {
+	
+	HashMap<String, String> arguments;
+	
+	public NoSender(HashMap<String, String> arguments)
+	{
+		this.arguments = arguments;
+	}
+
+}
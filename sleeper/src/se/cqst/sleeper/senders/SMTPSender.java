@@ -1,5 +1,333 @@
-package se.cqst.sleeper.senders;
-
-public class SMTPSender implements Sender {
-
-}
+package se.cqst.sleeper.senders;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.plugins.Plugin;
+
+/**
+ * <p><code>SMTPSender</code> is an implementation of the <code>Sender</code> interface that sends notifications
+ * as e-mail using <code>javax.mail</code>.</p>
+ *
+ * <p>Notifications are queued and sent on a background thread, never on the thread that polls the
+ * <code>Provider</code>. The first notification in a burst opens a window of <code>smtp_window</code> milliseconds;
+ * every notification that arrives within the window is sent together with it as a single digest mail. A single
+ * connected <code>Transport</code> is kept open between mails and only reconnected if the server has dropped it,
+ * so a burst of triggers never opens more than one SMTP session.</p>
+ *
+ * <p>An SMTPSender is shared by the watches that mail through the same server to the same recipients (see
+ * {@link SharedSenders}), so their notifications end up in the same digests. When it is closed, the queued
+ * notifications are sent at once, waiting up to <code>CLOSE_TIMEOUT</code> milliseconds.</p>
+ *
+ * <p>The following arguments are used by SMTPSender (all keys are in the format (String, String) but
+ * will be interpreted according to <i>Accepted Value</i>:</p>
+ *
+ * <col width="25%" />
+ * <col width="25%" />
+ * <col width="50%" />
+ * <code>
+ * 	<table>
+ * 		<thead>
+ * 			<tr><th>Key</th><th>Accepted value</th><th>Comment</th></tr>
+ * 		</thead>
+ * 		<tbody>
+ * 			<tr><td>smtpserver</td><td>String</td><td>Host name of the SMTP server</td></tr>
+ * 			<tr><td>smtpport</td><td>int</td><td>Port of the SMTP server (default 25)</td></tr>
+ * 			<tr><td>smtpuser</td><td>String</td><td>User name, if the server requires authentication</td></tr>
+ * 			<tr><td>smtppassword</td><td>String</td><td>Password, if the server requires authentication</td></tr>
+ * 			<tr><td>smtptls</td><td>boolean</td><td>Use STARTTLS</td></tr>
+ * 			<tr><td>smtpfrom</td><td>String</td><td>Sender address</td></tr>
+ * 			<tr><td>smtpto</td><td>String</td><td>Comma separated list of recipients</td></tr>
+ * 			<tr><td>smtp_window</td><td>int</td><td>Milliseconds to collect notifications into one mail (default 5000)</td></tr>
+ * 			<tr><td>smtp_batch</td><td>int</td><td>Maximum notifications per mail (default 100)</td></tr>
+ * 		</tbody>
+ * 	</table>
+ * </code>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+@Plugin(name = "smtp", type = Sender.class)
+public class SMTPSender implements Sender {
+
+	public static final int DEFAULT_PORT = 25;
+	public static final int DEFAULT_WINDOW = 5000;
+	public static final int DEFAULT_BATCH = 100;
+	public static final int TIMEOUT = 30000;
+	public static final int CLOSE_TIMEOUT = 2 * TIMEOUT;
+
+	private final Session session;
+	private Transport transport;
+	private final InternetAddress[] recipients;
+	private final InternetAddress from;
+
+	private final ConcurrentLinkedQueue<String[]> queue;
+	private final ScheduledThreadPoolExecutor executor;
+	private final AtomicBoolean scheduled;
+	private final int window;
+	private final int batch;
+	private final String server;
+	private final String user;
+	private final String password;
+	private final String to;
+	private final boolean verbose;
+	private final boolean debug;
+
+	/**
+	 * Instantiate a new <code>SMTPSender</code> using the provided <code>HashMap</code> with arguments
+	 *
+	 * @param arguments HashMap with arguments
+	 */
+	public SMTPSender(HashMap<String, String> arguments)
+	{
+		WatchSpec spec = new WatchSpec(arguments);
+		this.window = spec.getInt("smtp_window", DEFAULT_WINDOW);
+		this.batch = Math.max(1, spec.getInt("smtp_batch", DEFAULT_BATCH));
+		this.server = spec.getString("smtpserver", "");
+		this.user = spec.getString("smtpuser", "");
+		this.password = spec.getString("smtppassword", "");
+		this.to = spec.getString("smtpto", "");
+		this.verbose = spec.isVerbose();
+		this.debug = spec.isDebug();
+		this.queue = new ConcurrentLinkedQueue<String[]>();
+		this.scheduled = new AtomicBoolean(false);
+		this.executor = new ScheduledThreadPoolExecutor(1, runnable ->
+		{
+			Thread thread = new Thread(runnable, "sleeper-smtp");
+			thread.setDaemon(true);
+			return thread;
+		});
+		//	close() sends the queued notifications itself, without waiting for the window
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+		Properties properties = new Properties();
+		properties.put("mail.smtp.host", this.server);
+		properties.put("mail.smtp.port", String.valueOf(spec.getInt("smtpport", DEFAULT_PORT)));
+		properties.put("mail.smtp.auth", String.valueOf(!this.user.isEmpty()));
+		properties.put("mail.smtp.starttls.enable", String.valueOf(spec.getBoolean("smtptls")));
+		properties.put("mail.smtp.connectiontimeout", String.valueOf(TIMEOUT));
+		properties.put("mail.smtp.timeout", String.valueOf(TIMEOUT));
+		this.session = Session.getInstance(properties);
+		this.session.setDebug(this.debug);
+
+		InternetAddress[] recipients = new InternetAddress[0];
+		InternetAddress sender = null;
+		try
+		{
+			recipients = InternetAddress.parse(this.to);
+			if(!spec.getString("smtpfrom", "").isEmpty())
+				sender = new InternetAddress(spec.getString("smtpfrom", ""));
+		}
+		catch(MessagingException ex)
+		{
+			print("SMTPSender: Invalid e-mail address: " + ex.getMessage());
+		}
+		this.recipients = recipients;
+		this.from = sender;
+
+		this.printUsage();
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#send(java.lang.String, java.lang.String)
+	 *
+	 * Queue the notification, and schedule a flush at the end of the current window
+	 * unless one has already been scheduled.
+	 */
+	@Override
+	public void send(String subject, String message)
+	{
+		queue.add(new String[] { subject, message });
+		if(scheduled.compareAndSet(false, true))
+		{
+			try
+			{
+				executor.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+			}
+			catch(Exception ex)
+			{
+				print("SMTPSender: Notification \"" + subject + "\" discarded, the sender has been closed");
+			}
+		}
+	}
+
+	/**
+	 * <p>Send every queued notification, at most <code>smtp_batch</code> notifications per mail.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void flush()
+	{
+		scheduled.set(false);
+		List<String[]> notifications = new ArrayList<String[]>();
+		String[] notification;
+		while((notification = queue.poll()) != null)
+		{
+			notifications.add(notification);
+			if(notifications.size() == batch)
+			{
+				deliver(notifications);
+				notifications.clear();
+			}
+		}
+		if(!notifications.isEmpty())
+			deliver(notifications);
+	}
+
+	/**
+	 * <p>Send <code>notifications</code> as one mail; a digest if there is more than one.</p>
+	 *
+	 * <p>If sending fails, the <code>Transport</code> is reconnected and the mail is sent once more.</p>
+	 *
+	 * @param notifications the notifications to send
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void deliver(List<String[]> notifications)
+	{
+		try
+		{
+			MimeMessage mail = new MimeMessage(session);
+			if(from != null)
+				mail.setFrom(from);
+			else
+				mail.setFrom();
+			mail.setRecipients(Message.RecipientType.TO, recipients);
+			mail.setSentDate(new Date());
+
+			if(notifications.size() == 1)
+			{
+				mail.setSubject(notifications.get(0)[0]);
+				mail.setText(notifications.get(0)[1]);
+			}
+			else
+			{
+				StringBuilder text = new StringBuilder();
+				for(String[] notification : notifications)
+					text.append(notification[0]).append("\n\n").append(notification[1]).append("\n\n----\n\n");
+				mail.setSubject("Sleeper: " + notifications.size() + " notifications");
+				mail.setText(text.toString());
+			}
+			mail.saveChanges();
+
+			try
+			{
+				getTransport().sendMessage(mail, mail.getAllRecipients());
+			}
+			catch(MessagingException ex)
+			{
+				closeTransport();
+				getTransport().sendMessage(mail, mail.getAllRecipients());
+			}
+
+			if(verbose)
+				print("Verbose: SMTPSender sent " + notifications.size() + " notification(s)");
+		}
+		catch(MessagingException ex)
+		{
+			print("SMTPSender: Could not send " + notifications.size() + " notification(s): " + ex.getMessage());
+			if(debug)
+				ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * <p>Returns the connected <code>Transport</code>, connecting it first if needed.</p>
+	 *
+	 * @return a connected Transport
+	 * @throws MessagingException if a connection could not be made
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private Transport getTransport() throws MessagingException
+	{
+		if(transport == null)
+			transport = session.getTransport("smtp");
+		if(!transport.isConnected())
+		{
+			if(user.isEmpty())
+				transport.connect();
+			else
+				transport.connect(user, password);
+		}
+		return transport;
+	}
+
+	/**
+	 * <p>Close the <code>Transport</code>, ignoring any errors.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	private void closeTransport()
+	{
+		if(transport == null)
+			return;
+		try
+		{
+			transport.close();
+		}
+		catch(MessagingException ex)
+		{ }
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#close()
+	 *
+	 * Send queued notifications at once, then close the Transport and stop the background thread,
+	 * waiting up to CLOSE_TIMEOUT ms for it.
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			executor.submit(() ->
+			{
+				flush();
+				closeTransport();
+			});
+		}
+		catch(RejectedExecutionException ex)
+		{
+			//	Already closed
+			return;
+		}
+		executor.shutdown();
+		try
+		{
+			if(!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+				print("SMTPSender: Notifications to " + to + " were still being sent after " + CLOSE_TIMEOUT / 1000 + " s, they are discarded");
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see se.cqst.sleeper.senders.Sender#printUsage()
+	 */
+	@Override
+	public void printUsage()
+	{
+		print("SMTPSender will send notifications to " + to + " through "
+				+ server + ", collecting notifications within " + window + " ms into one mail.");
+	}
+
+}
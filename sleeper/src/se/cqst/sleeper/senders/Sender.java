@@ -1,5 +1,76 @@
-package se.cqst.sleeper.senders;
-
-public interface Sender {
-
-}
+package se.cqst.sleeper.senders;
+
+/**
+ * <p>The Sender interface is used to notify the outside world of events in the application, e.g. that
+ * the key phrase has been found and the action has been executed.</p>
+ * 
+ * <p>Senders must not block the caller on network I/O. {@link #send(String, String)} is called from the
+ * thread that polls the <code>Provider</code>, so implementations that talk to a remote server should queue
+ * the notification and deliver it on a thread of their own.</p>
+ * 
+ * @author Nicklas Rosvall Carlquist
+ */
+public interface Sender {
+	
+	/**
+	 * <p>Send a notification.</p>
+	 *
+	 * @param subject a short summary of the notification
+	 * @param message the notification
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void send(String subject, String message)
+	{
+		
+	}
+	
+	/**
+	 * <p>Deliver any queued notifications and release resources held by the Sender. Notifications sent
+	 * after <code>close()</code> has been called may be discarded.</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void close()
+	{
+		
+	}
+	
+	/**
+	 * <p>Returns the current date</p>
+	 *
+	 * @return Current date in yyyy-MM-dd HH:mm format
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default String getDate()
+	{
+		return ConsoleSender.getTimestamp(System.currentTimeMillis());
+	}
+	
+	/**
+	 * <p>Prints text to <code>System.out</code> with a prefix date in brackets.</p>
+	 * 
+	 * <p>The text is queued in the {@link ConsoleSender} log and written asynchronously.</p>
+	 *
+	 * @param text text to be printed
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void print(String text)
+	{
+		ConsoleSender.log(getClass().getSimpleName(), text);
+	}
+	
+	/**
+	 * <p>Print information about what the Sender will do. This information will be
+	 * displayed when you run the application with the specified Sender</p>
+	 * 
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	default void printUsage()
+	{
+		
+	}
+
+}
@@ -0,0 +1,91 @@
+package se.cqst.sleeper.senders;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import se.cqst.sleeper.WatchSpec;
+import se.cqst.sleeper.plugins.PluginRegistry;
+
+/**
+ * <p><code>SharedSenders</code> lets every watch in the application that notifies through the same
+ * <code>Sender</code>, with the same configuration, share one instance of it.</p>
+ *
+ * <p>A Sender collects notifications into digests and batches, and keeps its connection open between them, so
+ * it only does so across watches if they share it. Senders are told apart by their class and the arguments that
+ * configure them: every argument starting with <code>smtp</code> or <code>webhook</code>, <code>verbose</code>
+ * and <code>debug</code>.</p>
+ *
+ * <p>A shared Sender is never closed by a watch. {@link #closeAll()} closes every Sender, delivering what they
+ * have queued, when the application exits.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class SharedSenders {
+
+	private static final String[] PREFIXES = { "smtp", "webhook" };
+	private static final String[] KEYS = { "verbose", "debug" };
+
+	private static final Map<String, Sender> SENDERS = new HashMap<String, Sender>();
+
+	private SharedSenders()
+	{ }
+
+	/**
+	 * <p>Returns the Sender of <code>spec</code>, created the first time a watch asks for it with this
+	 * configuration.</p>
+	 *
+	 * @param spec the watch
+	 * @return the shared Sender
+	 * @throws se.cqst.sleeper.plugins.PluginException if the sender does not exist, or could not be created
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static synchronized Sender get(WatchSpec spec)
+	{
+		String key = getKey(spec);
+		Sender sender = SENDERS.get(key);
+		if(sender == null)
+		{
+			sender = PluginRegistry.getDefault().create(Sender.class, spec.getSender(), spec.toArguments());
+			SENDERS.put(key, sender);
+		}
+		return sender;
+	}
+
+	/**
+	 * <p>Close every shared Sender, waiting for them to deliver their queued notifications. A Sender asked for
+	 * after this is created again.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void closeAll()
+	{
+		List<Sender> senders;
+		synchronized(SharedSenders.class)
+		{
+			senders = new ArrayList<Sender>(SENDERS.values());
+			SENDERS.clear();
+		}
+		for(Sender sender : senders)
+			sender.close();
+	}
+
+	private static String getKey(WatchSpec spec)
+	{
+		Map<String, String> configuration = new TreeMap<String, String>();
+		for(Map.Entry<String, String> argument : spec.toArguments().entrySet())
+		{
+			for(String prefix : PREFIXES)
+				if(argument.getKey().startsWith(prefix))
+					configuration.put(argument.getKey(), argument.getValue());
+		}
+		for(String key : KEYS)
+			configuration.put(key, spec.getString(key, ""));
+		return PluginRegistry.getDefault().getClassName(Sender.class, spec.getSender()) + "\n" + configuration;
+	}
+
+}
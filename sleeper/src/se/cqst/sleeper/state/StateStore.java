@@ -0,0 +1,540 @@
+package se.cqst.sleeper.state;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import se.cqst.sleeper.senders.ConsoleSender;
+
+/**
+ * <p><strong>StateStore</strong> keeps the state of every watch (e.g. validators and content hashes of a page) in
+ * a memory-mapped file, so that a restarted application can pick up where it left off instead of downloading and
+ * parsing everything again.</p>
+ *
+ * <p>The file is a header followed by a number of fixed-size slots, one per watch id. Every slot is split
+ * in two halves that are written alternately, each with a sequence number and a CRC32, so a write that is
+ * interrupted (e.g. by a crash) never destroys the previous state: the valid half with the highest sequence number
+ * wins. Writing a record is a copy into mapped memory and nothing more; the operating system writes it to disk,
+ * and {@link #force()} is only called when the application exits.</p>
+ *
+ * <p>The store is enabled by setting the argument <code>statefile</code> to the path of the file. The number of
+ * slots of a new file is set with <code>statefile_slots</code> (default 256). If every slot is taken, the file
+ * grows to twice as many slots; the new slots are mapped on their own, so records already handed out stay where
+ * they are. A watch only runs without persistent state if the file cannot grow, which is reported.</p>
+ *
+ * <p>The slots of a watch that is gone for good (e.g. removed from a watch file) are freed with
+ * {@link #removeWatch(String)}.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class StateStore {
+
+	public static final int MAGIC = 0x534C5053;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int RECORD_SIZE = 8192;
+	public static final int HALF_SIZE = RECORD_SIZE / 2;
+	public static final int ID_SIZE = 48;
+	public static final int DEFAULT_SLOTS = 256;
+	public static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+	private static final int SEQUENCE = 0;
+	private static final int LENGTH = 4;
+	private static final int CHECKSUM = 8;
+	private static final int ID_LENGTH = 12;
+	private static final int ID = 14;
+	private static final int PAYLOAD = ID + ID_SIZE + 2;
+
+	public static final int PAYLOAD_SIZE = HALF_SIZE - PAYLOAD;
+
+	private static volatile StateStore store;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final List<MappedByteBuffer> regions;
+	private final List<Integer> firsts;
+	private final HashMap<String, Record> records;
+	private int slots;
+	private boolean[] taken;
+
+	/**
+	 * <p>Open (or create) a state file with <code>slots</code> slots. An existing file keeps its own number
+	 * of slots.</p>
+	 *
+	 * @param path the path of the state file
+	 * @param slots number of slots of a new file
+	 * @throws IOException if the file could not be opened, or is not a state file
+	 */
+	public StateStore(Path path, int slots) throws IOException
+	{
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		boolean existing = channel.size() >= HEADER_SIZE;
+		if(existing)
+		{
+			channel.read(header, 0);
+			header.flip();
+			if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE)
+			{
+				channel.close();
+				throw new IOException(path + " is not a state file of this version");
+			}
+			slots = header.getInt(12);
+			if(slots < 1 || slots > MAX_SLOTS)
+			{
+				channel.close();
+				throw new IOException(path + " has an invalid number of slots: " + slots);
+			}
+		}
+
+		this.slots = Math.max(1, slots);
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)RECORD_SIZE * this.slots);
+		this.regions = new ArrayList<MappedByteBuffer>();
+		this.regions.add(buffer);
+		this.firsts = new ArrayList<Integer>();
+		this.firsts.add(0);
+		this.records = new HashMap<String, Record>();
+		this.taken = new boolean[this.slots];
+
+		if(!existing)
+		{
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, RECORD_SIZE);
+			buffer.putInt(12, this.slots);
+		}
+
+		for(int slot = 0; slot < this.slots; slot++)
+		{
+			Record record = new Record(buffer, slot, HEADER_SIZE + slot * RECORD_SIZE);
+			if(record.id != null)
+			{
+				records.put(record.id, record);
+				taken[slot] = true;
+			}
+		}
+	}
+
+	/**
+	 * <p>Open the state file given by the argument <code>statefile</code>, if set. If it cannot be opened, the
+	 * application runs without persistent state.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void configure(HashMap<String, String> arguments)
+	{
+		String file = arguments.getOrDefault("statefile", "");
+		if(file.isEmpty() || store != null)
+			return;
+
+		int slots = DEFAULT_SLOTS;
+		try
+		{
+			slots = Integer.parseInt(arguments.get("statefile_slots"));
+		}
+		catch(NumberFormatException ex)
+		{ }
+
+		try
+		{
+			StateStore opened = new StateStore(Paths.get(file), slots);
+			Runtime.getRuntime().addShutdownHook(new Thread(opened::close, "sleeper-state"));
+			store = opened;
+			if(Boolean.parseBoolean(arguments.get("verbose")))
+				ConsoleSender.log("StateStore", "Verbose: Loaded " + opened.records.size() + " watch state(s) from " + file);
+		}
+		catch(IOException ex)
+		{
+			ConsoleSender.log("StateStore", "Could not open state file " + file + ", state will not be saved: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * <p>Returns the state store opened by {@link #configure(HashMap)}, or <code>null</code> if there is none.</p>
+	 *
+	 * @return the state store, or null
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static StateStore getDefault()
+	{
+		return store;
+	}
+
+	/**
+	 * <p>Returns the record of the watch <code>id</code>, taking a free slot for it if it has none. If every slot
+	 * is taken, the file grows.</p>
+	 *
+	 * @param id the id of the watch
+	 * @return the record, or <code>null</code> if the id is too long or the file could not grow
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized Record getRecord(String id)
+	{
+		Record record = records.get(id);
+		if(record != null)
+			return record;
+
+		byte[] encoded = id.getBytes(StandardCharsets.UTF_8);
+		if(encoded.length > ID_SIZE)
+			return null;
+
+		int free = 0;
+		while(free < slots && taken[free])
+			free++;
+		if(free == slots)
+		{
+			try
+			{
+				grow();
+			}
+			catch(IOException ex)
+			{
+				ConsoleSender.log("StateStore", "State file " + path + " is full (" + slots + " slots) and could not "
+						+ "grow, the state of " + id + " will not be saved: " + ex.getMessage());
+				return null;
+			}
+		}
+
+		record = new Record(getRegion(free), free, getOffset(free));
+		record.claim(id);
+		records.put(id, record);
+		taken[free] = true;
+		return record;
+	}
+
+	/**
+	 * <p>Remove the record of the watch <code>id</code> and free its slot.</p>
+	 *
+	 * @param id the id of the watch
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void remove(String id)
+	{
+		Record record = records.remove(id);
+		if(record != null)
+		{
+			record.release();
+			taken[record.slot] = false;
+		}
+	}
+
+	/**
+	 * <p>Remove every record of the watch <code>id</code>: its own, those kept for it by others (ids ending in
+	 * <code>:id</code>, e.g. its detection lag) and those of its children (ids starting with <code>id.</code>, e.g.
+	 * the children of a <code>CompositeProvider</code>). Called when the watch is gone for good, so that its slots
+	 * can be taken by other watches.</p>
+	 *
+	 * @param id the id of the watch
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void removeWatch(String id)
+	{
+		String children = id + ".";
+		String kept = ":" + id;
+		for(Iterator<Map.Entry<String, Record>> iterator = records.entrySet().iterator(); iterator.hasNext(); )
+		{
+			Map.Entry<String, Record> entry = iterator.next();
+			String key = entry.getKey();
+			if(key.equals(id) || key.startsWith(children) || key.endsWith(kept))
+			{
+				entry.getValue().release();
+				taken[entry.getValue().slot] = false;
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * <p>Write every change to disk.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public synchronized void force()
+	{
+		for(MappedByteBuffer region : regions)
+			region.force();
+	}
+
+	/**
+	 * <p>Write every change to disk and close the file.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void close()
+	{
+		try
+		{
+			force();
+			channel.close();
+		}
+		catch(IOException ex)
+		{
+			ConsoleSender.log("StateStore", "Could not close state file " + path + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * <p>Write <code>text</code> to <code>buffer</code> as a length prefixed UTF-8 string. <code>null</code> is
+	 * written as length -1.</p>
+	 *
+	 * @param buffer the buffer
+	 * @param text the string, or null
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void putString(ByteBuffer buffer, String text)
+	{
+		if(text == null)
+		{
+			buffer.putShort((short)-1);
+			return;
+		}
+		byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short)encoded.length);
+		buffer.put(encoded);
+	}
+
+	/**
+	 * <p>Read a string written by {@link #putString(ByteBuffer, String)}.</p>
+	 *
+	 * @param buffer the buffer
+	 * @return the string, or null
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static String getString(ByteBuffer buffer)
+	{
+		int length = buffer.getShort();
+		if(length < 0)
+			return null;
+		byte[] encoded = new byte[length];
+		buffer.get(encoded);
+		return new String(encoded, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Double the number of slots. The new slots are mapped as a region of their own, and the header is only
+	 * updated once they are, so a crash leaves a file with the old number of slots.
+	 */
+	private void grow() throws IOException
+	{
+		int added = Math.min(slots, MAX_SLOTS - slots);
+		if(added <= 0)
+			throw new IOException("the file already has the largest number of slots");
+		long position = HEADER_SIZE + (long)RECORD_SIZE * slots;
+		regions.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long)RECORD_SIZE * added));
+		firsts.add(slots);
+		slots += added;
+		taken = Arrays.copyOf(taken, slots);
+		buffer.putInt(12, slots);
+		ConsoleSender.log("StateStore", "State file " + path + " was full and has grown to " + slots + " slots");
+	}
+
+	/**
+	 * Returns the mapped region that holds <code>slot</code>
+	 */
+	private MappedByteBuffer getRegion(int slot)
+	{
+		int region = firsts.size() - 1;
+		while(firsts.get(region) > slot)
+			region--;
+		return regions.get(region);
+	}
+
+	/**
+	 * Returns the offset of <code>slot</code> in its region
+	 */
+	private int getOffset(int slot)
+	{
+		int region = firsts.size() - 1;
+		while(firsts.get(region) > slot)
+			region--;
+		return (region == 0) ? HEADER_SIZE + slot * RECORD_SIZE : (slot - firsts.get(region)) * RECORD_SIZE;
+	}
+
+	public synchronized int		getSlots()		{	return slots;	}
+	public Path		getPath()		{	return path;	}
+
+	/**
+	 * <p>The state of one watch: a slot in the state file.</p>
+	 *
+	 * <p>A Record is written by the Provider of its watch only, so it is not thread safe. The state is written
+	 * with {@link #edit()} and {@link #commit()}, and read with {@link #read()}.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public final class Record
+	{
+		private final MappedByteBuffer buffer;
+		private final int slot;
+		private final int offset;
+		private final CRC32 crc;
+		private final ByteBuffer view;
+		private final ByteBuffer[] editors;
+		private String id;
+		private byte[] encodedId;
+		private int current;
+		private int sequence;
+		private volatile boolean released;
+
+		private Record(MappedByteBuffer buffer, int slot, int offset)
+		{
+			this.buffer = buffer;
+			this.slot = slot;
+			this.offset = offset;
+			this.crc = new CRC32();
+			this.view = buffer.duplicate();
+			this.editors = new ByteBuffer[2];
+			this.current = -1;
+			this.sequence = 0;
+
+			for(int half = 0; half < 2; half++)
+			{
+				int base = offset + half * HALF_SIZE;
+				int halfSequence = buffer.getInt(base + SEQUENCE);
+				if(halfSequence > sequence && isValid(base))
+				{
+					sequence = halfSequence;
+					current = half;
+				}
+			}
+			if(current >= 0)
+			{
+				int base = offset + current * HALF_SIZE;
+				encodedId = new byte[buffer.getShort(base + ID_LENGTH)];
+				for(int i = 0; i < encodedId.length; i++)
+					encodedId[i] = buffer.get(base + ID + i);
+				id = new String(encodedId, StandardCharsets.UTF_8);
+			}
+		}
+
+		/**
+		 * <p>Returns true if the half at <code>base</code> has a consistent length and checksum.</p>
+		 */
+		private boolean isValid(int base)
+		{
+			int length = buffer.getInt(base + LENGTH);
+			int idLength = buffer.getShort(base + ID_LENGTH);
+			if(length < 0 || length > PAYLOAD_SIZE || idLength <= 0 || idLength > ID_SIZE)
+				return false;
+			return buffer.getInt(base + CHECKSUM) == checksum(base, idLength, length);
+		}
+
+		private int checksum(int base, int idLength, int length)
+		{
+			crc.reset();
+			view.limit(buffer.capacity());
+			view.limit(base + ID + idLength).position(base + ID);
+			crc.update(view);
+			view.limit(base + PAYLOAD + length).position(base + PAYLOAD);
+			crc.update(view);
+			return (int)crc.getValue();
+		}
+
+		private void claim(String id)
+		{
+			this.id = id;
+			this.encodedId = id.getBytes(StandardCharsets.UTF_8);
+			this.current = -1;
+			this.sequence = 0;
+			for(int half = 0; half < 2; half++)
+				buffer.putInt(offset + half * HALF_SIZE + SEQUENCE, 0);
+		}
+
+		/**
+		 * Free the slot on disk, and ignore further commits of a Provider that still holds the record
+		 */
+		private void release()
+		{
+			released = true;
+			claim(id);
+		}
+
+		/**
+		 * <p>Returns a read-only view of the state last committed, or <code>null</code> if nothing has been
+		 * committed for this watch.</p>
+		 *
+		 * @return the state, between position and limit
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		public ByteBuffer read()
+		{
+			if(current < 0 || released)
+				return null;
+			int base = offset + current * HALF_SIZE;
+			ByteBuffer view = buffer.asReadOnlyBuffer();
+			view.limit(base + PAYLOAD + buffer.getInt(base + LENGTH)).position(base + PAYLOAD);
+			return view.slice();
+		}
+
+		/**
+		 * <p>Returns an empty buffer of <code>{@link StateStore#PAYLOAD_SIZE}</code> bytes to write the new state
+		 * into. Nothing is visible until {@link #commit()} is called.</p>
+		 *
+		 * @return a buffer to write the state into
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		public ByteBuffer edit()
+		{
+			int half = (current == 0) ? 1 : 0;
+			if(editors[half] == null)
+			{
+				int base = offset + half * HALF_SIZE;
+				ByteBuffer editor = buffer.duplicate();
+				editor.limit(base + HALF_SIZE).position(base + PAYLOAD);
+				editors[half] = editor.slice();
+			}
+			editors[half].clear();
+			return editors[half];
+		}
+
+		/**
+		 * <p>Make the state written since {@link #edit()} (up to the position of the buffer) the current state.</p>
+		 *
+		 * @author Nicklas Rosvall Carlquist
+		 */
+		public void commit()
+		{
+			if(released)
+				return;
+			int half = (current == 0) ? 1 : 0;
+			int base = offset + half * HALF_SIZE;
+			int length = editors[half].position();
+
+			buffer.putShort(base + ID_LENGTH, (short)encodedId.length);
+			for(int i = 0; i < encodedId.length; i++)
+				buffer.put(base + ID + i, encodedId[i]);
+			buffer.putInt(base + LENGTH, length);
+			buffer.putInt(base + CHECKSUM, checksum(base, encodedId.length, length));
+			buffer.putInt(base + SEQUENCE, ++sequence);
+			current = half;
+		}
+
+		public String	getId()		{	return id;	}
+	}
+
+}
@@ -0,0 +1,482 @@
+package se.cqst.sleeper.state;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import se.cqst.sleeper.metrics.Histogram;
+import se.cqst.sleeper.metrics.Metrics;
+import se.cqst.sleeper.senders.ConsoleSender;
+
+/**
+ * <p><strong>TriggerJournal</strong> is an append-only log of triggers, written ahead of the action, so that a
+ * restarted application knows whether the action of a trigger has run.</p>
+ *
+ * <p>Every trigger gets three records:</p>
+ * <ul>
+ * 	<li><code>DETECTED</code> when the key phrase has been found, with the action to execute,</li>
+ * 	<li><code>STARTED</code> right before the action is started, and</li>
+ * 	<li><code>COMPLETED</code> when the action has finished (or has been skipped).</li>
+ * </ul>
+ *
+ * <p><code>DETECTED</code> and <code>STARTED</code> are durable (synced to disk) before the call returns.
+ * Records are written by a single writer thread that takes every record queued while the previous sync was in
+ * progress and writes them with one sync (group commit), so a burst of triggers across many watches shares
+ * one <code>fsync</code>.</p>
+ *
+ * <p>When the journal is opened, triggers that are not completed are kept and everything else is dropped
+ * (the journal is compacted). Only the latest incomplete trigger of a watch is kept, since a watch that was
+ * triggered again has superseded its older triggers. {@link #getPending(String)} returns the incomplete trigger
+ * of a watch: if it was only detected, the action never started and can be run without polling again; if it was
+ * started, the action may or may not have run.</p>
+ *
+ * <p>Every record is a line of tab separated fields followed by a CRC32, so a record torn by a crash is
+ * ignored. The journal is enabled by setting the argument <code>journal</code> to the path of the file.</p>
+ *
+ * @author Nicklas Rosvall Carlquist
+ *
+ */
+public final class TriggerJournal {
+
+	public static final int BATCH_SIZE = 1024;
+
+	/**
+	 * The type of a journal record
+	 */
+	public enum Type { DETECTED, STARTED, COMPLETED }
+
+	private static volatile TriggerJournal journal;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final LinkedBlockingQueue<Entry> queue;
+	private final Thread writer;
+	private final AtomicLong nextId;
+	private final AtomicLong syncs;
+	private final AtomicLong records;
+	private final Histogram syncTimer;
+	private final LinkedHashMap<Long, Trigger> pending;
+	private volatile boolean closed;
+
+	/**
+	 * <p>Open (or create) the journal at <code>path</code>, recover incomplete triggers and compact it.</p>
+	 *
+	 * @param path the path of the journal
+	 * @throws IOException if the journal could not be read or written
+	 */
+	public TriggerJournal(Path path) throws IOException
+	{
+		this.path = path;
+		this.pending = new LinkedHashMap<Long, Trigger>();
+		this.nextId = new AtomicLong(1);
+		this.syncs = new AtomicLong();
+		this.records = new AtomicLong();
+		this.syncTimer = Metrics.getDefault().timer("sleeper_journal_sync_seconds", "Duration of a sync of the trigger journal.");
+
+		if(Files.exists(path))
+			this.recover(Files.readAllLines(path, StandardCharsets.UTF_8));
+
+		//	Compact: write the records of incomplete triggers to a new file and replace the old one
+		Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel output = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			StringBuilder builder = new StringBuilder();
+			for(Trigger trigger : pending.values())
+			{
+				format(builder, Type.DETECTED, trigger.id, trigger.watchId, trigger.detected, trigger.action);
+				if(trigger.started)
+					format(builder, Type.STARTED, trigger.id, trigger.watchId, trigger.detected, "");
+			}
+			ByteBuffer data = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+			while(data.hasRemaining())
+				output.write(data);
+			output.force(true);
+		}
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.queue = new LinkedBlockingQueue<Entry>();
+		this.closed = false;
+		this.writer = new Thread(this::write, "sleeper-journal");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * <p>Open the journal given by the argument <code>journal</code>, if set. If it cannot be opened, the
+	 * application runs without a journal.</p>
+	 *
+	 * @param arguments HashMap with arguments
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static void configure(HashMap<String, String> arguments)
+	{
+		String file = arguments.getOrDefault("journal", "");
+		if(file.isEmpty() || journal != null)
+			return;
+
+		try
+		{
+			TriggerJournal opened = new TriggerJournal(Paths.get(file));
+			Runtime.getRuntime().addShutdownHook(new Thread(opened::close, "sleeper-journal-close"));
+			journal = opened;
+			Metrics.getDefault().counter("sleeper_journal_syncs_total", "Syncs of the trigger journal.", opened::getSyncs);
+			Metrics.getDefault().counter("sleeper_journal_records_total", "Records written to the trigger journal.", opened::getRecords);
+			if(Boolean.parseBoolean(arguments.get("verbose")))
+				ConsoleSender.log("TriggerJournal", "Verbose: " + opened.pending.size() + " incomplete trigger(s) in " + file);
+		}
+		catch(IOException ex)
+		{
+			ConsoleSender.log("TriggerJournal", "Could not open journal " + file + ", triggers will not be journaled: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * <p>Returns the journal opened by {@link #configure(HashMap)}, or <code>null</code> if there is none.</p>
+	 *
+	 * @return the journal, or null
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static TriggerJournal getDefault()
+	{
+		return journal;
+	}
+
+	/**
+	 * <p>Record that the key phrase of <code>watchId</code> has been found, and wait until the record is on disk.</p>
+	 *
+	 * @param watchId the id of the watch
+	 * @param action the action that will be executed
+	 * @return the id of the new trigger
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public long detected(String watchId, String action)
+	{
+		long id = nextId.getAndIncrement();
+		await(append(Type.DETECTED, id, watchId, action));
+		return id;
+	}
+
+	/**
+	 * <p>Record that the action of trigger <code>id</code> is about to start, and wait until the record is on disk.</p>
+	 *
+	 * @param id the id of the trigger
+	 * @param watchId the id of the watch
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void started(long id, String watchId)
+	{
+		await(append(Type.STARTED, id, watchId, ""));
+	}
+
+	/**
+	 * <p>Record that the action of trigger <code>id</code> has finished. The record is written asynchronously,
+	 * but is on disk before the application exits.</p>
+	 *
+	 * @param id the id of the trigger
+	 * @param watchId the id of the watch
+	 * @param detail the outcome, e.g. the exit code
+	 * @return a future that completes when the record is on disk
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public CompletableFuture<Void> completed(long id, String watchId, String detail)
+	{
+		synchronized(pending)
+		{
+			pending.remove(id);
+		}
+		return append(Type.COMPLETED, id, watchId, detail);
+	}
+
+	/**
+	 * <p>Returns the trigger of <code>watchId</code> that was not completed before the journal was opened, or
+	 * <code>null</code> if there is none.</p>
+	 *
+	 * @param watchId the id of the watch
+	 * @return the incomplete trigger, or null
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public Trigger getPending(String watchId)
+	{
+		Trigger latest = null;
+		synchronized(pending)
+		{
+			for(Trigger trigger : pending.values())
+				if(trigger.watchId.equals(watchId))
+					latest = trigger;
+		}
+		return latest;
+	}
+
+	/**
+	 * <p>Returns every trigger that was not completed before the journal was opened, and has not been completed
+	 * since.</p>
+	 *
+	 * @return the incomplete triggers
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public List<Trigger> getPending()
+	{
+		synchronized(pending)
+		{
+			return new ArrayList<Trigger>(pending.values());
+		}
+	}
+
+	/**
+	 * <p>Write every queued record and close the journal.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public void close()
+	{
+		closed = true;
+		try
+		{
+			writer.join(5000);
+			channel.close();
+		}
+		catch(InterruptedException | IOException ex)
+		{ }
+	}
+
+	private CompletableFuture<Void> append(Type type, long id, String watchId, String detail)
+	{
+		Entry entry = new Entry(type, id, watchId, System.currentTimeMillis(), detail);
+		if(closed)
+			entry.future.completeExceptionally(new IOException("The journal has been closed"));
+		else
+			queue.add(entry);
+		return entry.future;
+	}
+
+	private void await(CompletableFuture<Void> future)
+	{
+		try
+		{
+			future.join();
+		}
+		catch(CompletionException ex)
+		{
+			ConsoleSender.log("TriggerJournal", "Could not write to journal " + path + ": " + ex.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * <p>Writer thread: take every queued record, write them and sync once.</p>
+	 */
+	private void write()
+	{
+		List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+		StringBuilder builder = new StringBuilder();
+		while(true)
+		{
+			try
+			{
+				Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null)
+				{
+					if(closed)
+						return;
+					continue;
+				}
+				batch.add(first);
+			}
+			catch(InterruptedException ex)
+			{
+				return;
+			}
+			queue.drainTo(batch, BATCH_SIZE - batch.size());
+
+			builder.setLength(0);
+			for(Entry entry : batch)
+				format(builder, entry.type, entry.id, entry.watchId, entry.time, entry.detail);
+
+			try
+			{
+				ByteBuffer data = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+				while(data.hasRemaining())
+					channel.write(data);
+				long start = System.nanoTime();
+				channel.force(false);
+				syncTimer.recordSince(start);
+				syncs.incrementAndGet();
+				records.addAndGet(batch.size());
+				for(Entry entry : batch)
+					entry.future.complete(null);
+			}
+			catch(IOException ex)
+			{
+				for(Entry entry : batch)
+					entry.future.completeExceptionally(ex);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * <p>Rebuild the incomplete triggers from the lines of an existing journal, keeping the latest of each watch.</p>
+	 */
+	private void recover(List<String> lines)
+	{
+		for(String line : lines)
+		{
+			int last = line.lastIndexOf('\t');
+			if(last < 0 || !checksum(line.substring(0, last)).equals(line.substring(last + 1)))
+				continue;
+
+			String[] fields = line.substring(0, last).split("\t", -1);
+			if(fields.length != 5)
+				continue;
+			try
+			{
+				Type type = Type.valueOf(fields[0]);
+				long id = Long.parseLong(fields[1]);
+				String watchId = unescape(fields[2]);
+				long time = Long.parseLong(fields[3]);
+				nextId.accumulateAndGet(id + 1, Math::max);
+
+				switch(type)
+				{
+				case DETECTED:
+					pending.put(id, new Trigger(id, watchId, unescape(fields[4]), time));
+					break;
+				case STARTED:
+					if(pending.containsKey(id))
+						pending.get(id).started = true;
+					break;
+				case COMPLETED:
+					pending.remove(id);
+					break;
+				}
+			}
+			catch(IllegalArgumentException ex)
+			{ }
+		}
+		
+		//	Triggers are in the order they were detected, so the last one of a watch is its latest
+		HashMap<String, Long> latest = new HashMap<String, Long>();
+		for(Trigger trigger : pending.values())
+			latest.put(trigger.watchId, trigger.id);
+		pending.values().removeIf(trigger -> latest.get(trigger.watchId).longValue() != trigger.id);
+	}
+
+	private static void format(StringBuilder builder, Type type, long id, String watchId, long time, String detail)
+	{
+		int start = builder.length();
+		builder.append(type.name()).append('\t').append(id).append('\t').append(escape(watchId)).append('\t')
+				.append(time).append('\t').append(escape(detail));
+		String record = builder.substring(start);
+		builder.append('\t').append(checksum(record)).append('\n');
+	}
+
+	private static String checksum(String text)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(text.getBytes(StandardCharsets.UTF_8));
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static String escape(String text)
+	{
+		return (text == null) ? "" : text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String text)
+	{
+		StringBuilder builder = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c == '\\' && i + 1 < text.length())
+			{
+				char next = text.charAt(++i);
+				builder.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			}
+			else
+				builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	public long		getSyncs()		{	return syncs.get();	}
+	public long		getRecords()	{	return records.get();	}
+	public Path		getPath()		{	return path;	}
+
+	/**
+	 * <p>A record waiting to be written.</p>
+	 */
+	private static class Entry
+	{
+		final Type type;
+		final long id;
+		final String watchId;
+		final long time;
+		final String detail;
+		final CompletableFuture<Void> future;
+
+		Entry(Type type, long id, String watchId, long time, String detail)
+		{
+			this.type = type;
+			this.id = id;
+			this.watchId = watchId;
+			this.time = time;
+			this.detail = detail;
+			this.future = new CompletableFuture<Void>();
+		}
+	}
+
+	/**
+	 * <p>A trigger that was not completed when the journal was opened.</p>
+	 *
+	 * @author Nicklas Rosvall Carlquist
+	 */
+	public static final class Trigger
+	{
+		private final long id;
+		private final String watchId;
+		private final String action;
+		private final long detected;
+		private boolean started;
+
+		private Trigger(long id, String watchId, String action, long detected)
+		{
+			this.id = id;
+			this.watchId = watchId;
+			this.action = action;
+			this.detected = detected;
+			this.started = false;
+		}
+
+		public long		getId()			{	return id;	}
+		public String	getWatchId()	{	return watchId;	}
+		public String	getAction()		{	return action;	}
+		public long		getDetected()	{	return detected;	}
+		public boolean	isStarted()		{	return started;	}
+	}
+
+}